@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import java.util.concurrent.TimeUnit;
+import org.graphity.util.ModelUtils;
+import org.graphity.util.ResultSetUtils;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures hashing of models and result sets, as used for <code>ETag</code> computation.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see org.graphity.util.ModelUtils#hashModel(com.hp.hpl.jena.rdf.model.Model)
+ * @see org.graphity.util.ResultSetUtils#hashResultSet(com.hp.hpl.jena.query.ResultSet)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" })
+public class HashBenchmark
+{
+
+    @State(Scope.Benchmark)
+    public static class ModelState
+    {
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int triples;
+
+	private Model model;
+
+	@Setup
+	public void setUp()
+	{
+	    model = SyntheticData.createModel(triples);
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class ResultSetState
+    {
+	@Param({ "100", "10000", "100000" })
+	public int rows;
+
+	@Param({ "1", "4", "16" })
+	public int width;
+
+	private ResultSetRewindable results;
+
+	@Setup
+	public void setUp()
+	{
+	    results = SyntheticData.createResultSet(rows, width);
+	}
+    }
+
+    @Benchmark
+    public long hashModel(ModelState state)
+    {
+	return ModelUtils.hashModel(state.model);
+    }
+
+    @Benchmark
+    public long hashResultSet(ResultSetState state)
+    {
+	state.results.reset();
+	return ResultSetUtils.hashResultSet(state.results);
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.sun.jersey.core.header.OutBoundHeaders;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+import org.graphity.server.MediaType;
+import org.graphity.server.provider.ModelProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures reading and writing of RDF models by <code>ModelProvider</code>.
+ * N-Triples is also measured directly on Jena, as the baseline of the streaming RIOT reader and writer used by
+ * <code>ModelProvider</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see org.graphity.server.provider.ModelProvider
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" })
+public class ModelProviderBenchmark
+{
+    private static final Annotation[] ANNOTATIONS = new Annotation[0];
+    private static final ModelProvider provider = new ModelProvider();
+
+    @State(Scope.Benchmark)
+    public static class ModelState
+    {
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int triples;
+
+	private Model model;
+	private byte[] nTriples;
+
+	@Setup
+	public void setUp()
+	{
+	    model = SyntheticData.createModel(triples);
+
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    model.write(out, "N-TRIPLE");
+	    nTriples = out.toByteArray();
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class SyntaxState
+    {
+	@Param({ MediaType.APPLICATION_RDF_XML, MediaType.TEXT_TURTLE, MediaType.APPLICATION_N_TRIPLES })
+	public String mediaType;
+
+	private javax.ws.rs.core.MediaType type;
+	private byte[] serialized;
+
+	@Setup
+	public void setUp(ModelState state) throws IOException
+	{
+	    type = javax.ws.rs.core.MediaType.valueOf(mediaType);
+	    serialized = write(state.model, type).toByteArray();
+	}
+    }
+
+    @Benchmark
+    public Model readFrom(SyntaxState syntax) throws IOException
+    {
+	return provider.readFrom(Model.class, Model.class, ANNOTATIONS, syntax.type, new MultivaluedMapImpl(),
+		new ByteArrayInputStream(syntax.serialized));
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeTo(ModelState state, SyntaxState syntax) throws IOException
+    {
+	return write(state.model, syntax.type);
+    }
+
+    private static ByteArrayOutputStream write(Model model, javax.ws.rs.core.MediaType type) throws IOException
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	provider.writeTo(model, Model.class, Model.class, ANNOTATIONS, type, new OutBoundHeaders(), out);
+	return out;
+    }
+
+    @Benchmark
+    public Model readNTriples(ModelState state)
+    {
+	return ModelFactory.createDefaultModel().read(new ByteArrayInputStream(state.nTriples), null, "N-TRIPLE");
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeNTriples(ModelState state)
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	state.model.write(out, "N-TRIPLE");
+	return out;
+    }
+
+}
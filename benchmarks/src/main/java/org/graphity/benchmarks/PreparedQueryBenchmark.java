@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import java.util.concurrent.TimeUnit;
+import org.graphity.query.PreparedQuery;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares binding the resource URI into a prepared query template with parsing the query built from a string,
+ * as <code>QueriedResourceBase</code> did before.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see org.graphity.query.PreparedQuery
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PreparedQueryBenchmark
+{
+    public static final String URI = "http://data.graphity.org/benchmarks/resource/1";
+
+    public static final String DESCRIBE = "DESCRIBE ?this";
+
+    public static final String CONSTRUCT = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
+	    "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\n" +
+	    "CONSTRUCT { ?this ?p ?o . ?o rdfs:label ?label . ?s ?p2 ?this }\n" +
+	    "WHERE {\n" +
+	    "  { ?this ?p ?o\n" +
+	    "    OPTIONAL { ?o rdfs:label ?label FILTER (langMatches(lang(?label), \"en\")) }\n" +
+	    "    OPTIONAL { GRAPH ?g { ?o foaf:name ?label } }\n" +
+	    "    FILTER (!isBlank(?o) || bound(?label)) }\n" +
+	    "  UNION\n" +
+	    "  { ?s ?p2 ?this FILTER (?s != ?this) }\n" +
+	    "}";
+
+    @Param({ "describe", "construct" })
+    public String query;
+
+    private String template;
+    private PreparedQuery prepared;
+
+    @Setup
+    public void setUp()
+    {
+	template = query.equals("describe") ? DESCRIBE : CONSTRUCT;
+	prepared = new PreparedQuery(template);
+    }
+
+    @Benchmark
+    public Query parse()
+    {
+	return QueryFactory.create(template.replace("?this", "<" + URI + ">"));
+    }
+
+    @Benchmark
+    public Query bind()
+    {
+	return prepared.bind("this", Node.createURI(URI));
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.query.Query;
+import com.sun.jersey.api.core.ExtendedUriInfo;
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import com.sun.jersey.spi.inject.Injectable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MultivaluedMap;
+import org.graphity.server.provider.QueryParamProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures parsing of the <code>query</code> parameter into ARQ query by <code>QueryParamProvider</code>.
+ * Jersey request context is replaced with a proxy that only provides the query parameters.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see org.graphity.server.provider.QueryParamProvider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryParamProviderBenchmark
+{
+    public static final String DESCRIBE = "DESCRIBE <http://data.graphity.org/benchmarks/resource/1>";
+
+    public static final String SELECT = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
+	    "SELECT DISTINCT ?s ?label WHERE { ?s a ?type ; rdfs:label ?label FILTER (lang(?label) = \"en\") } ORDER BY ?label LIMIT 100";
+
+    public static final String CONSTRUCT = "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
+	    "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
+	    "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\n" +
+	    "CONSTRUCT { ?s ?p ?o . ?o rdfs:label ?label }\n" +
+	    "WHERE {\n" +
+	    "  { SELECT DISTINCT ?s WHERE { ?s rdf:type foaf:Document ; foaf:topic ?topic } ORDER BY ?s LIMIT 20 OFFSET 40 }\n" +
+	    "  ?s ?p ?o\n" +
+	    "  OPTIONAL { ?o rdfs:label ?label FILTER (langMatches(lang(?label), \"en\")) }\n" +
+	    "  OPTIONAL { GRAPH ?g { ?o foaf:name ?label } }\n" +
+	    "  FILTER (!isBlank(?o) || bound(?label))\n" +
+	    "}";
+
+    @Param({ "describe", "select", "construct" })
+    public String query;
+
+    private Injectable<Query> injectable;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException
+    {
+	final MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+	if (query.equals("describe")) params.putSingle("query", DESCRIBE);
+	if (query.equals("select")) params.putSingle("query", SELECT);
+	if (query.equals("construct")) params.putSingle("query", CONSTRUCT);
+
+	final ExtendedUriInfo uriInfo = (ExtendedUriInfo)Proxy.newProxyInstance(ExtendedUriInfo.class.getClassLoader(),
+		new Class<?>[] { ExtendedUriInfo.class },
+		new InvocationHandler()
+		{
+		    @Override
+		    public Object invoke(Object proxy, Method method, Object[] args)
+		    {
+			if (method.getName().equals("getQueryParameters")) return params;
+			throw new UnsupportedOperationException(method.getName());
+		    }
+		});
+	final HttpContext httpContext = (HttpContext)Proxy.newProxyInstance(HttpContext.class.getClassLoader(),
+		new Class<?>[] { HttpContext.class },
+		new InvocationHandler()
+		{
+		    @Override
+		    public Object invoke(Object proxy, Method method, Object[] args)
+		    {
+			if (method.getName().equals("getUriInfo")) return uriInfo;
+			throw new UnsupportedOperationException(method.getName());
+		    }
+		});
+
+	QueryParamProvider provider = new QueryParamProvider()
+	{
+	    @Override
+	    public HttpContext getHttpContext()
+	    {
+		return httpContext;
+	    }
+	};
+
+	QueryParam queryParam = (QueryParam)QueryParamProviderBenchmark.class.
+		getMethod("annotated", String.class).getParameterAnnotations()[0][0];
+	injectable = provider.getInjectable(null, queryParam);
+    }
+
+    /**
+     * Carries the <code>@QueryParam</code> annotation passed to the provider. Not a benchmark.
+     */
+    public void annotated(@QueryParam("query") String query)
+    {
+    }
+
+    @Benchmark
+    public Query create()
+    {
+	return injectable.getValue();
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.sun.jersey.core.header.OutBoundHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+import org.graphity.server.MediaType;
+import org.graphity.server.provider.ResultSetWriter;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures writing of SPARQL result sets by <code>ResultSetWriter</code>, with varying number of rows and
+ * variables.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see org.graphity.server.provider.ResultSetWriter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResultSetWriterBenchmark
+{
+    private static final Annotation[] ANNOTATIONS = new Annotation[0];
+
+    @Param({ "100", "10000", "100000" })
+    public int rows;
+
+    @Param({ "1", "4", "16" })
+    public int width;
+
+    @Param({ "xml", "json" })
+    public String format;
+
+    private final ResultSetWriter writer = new ResultSetWriter();
+    private javax.ws.rs.core.MediaType type;
+    private ResultSetRewindable results;
+
+    @Setup
+    public void setUp()
+    {
+	if (format.equals("json")) type = MediaType.APPLICATION_SPARQL_RESULTS_JSON_TYPE;
+	else type = MediaType.APPLICATION_SPARQL_RESULTS_XML_TYPE;
+
+	results = SyntheticData.createResultSet(rows, width);
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeTo() throws IOException
+    {
+	results.reset();
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	writer.writeTo(results, ResultSet.class, ResultSet.class, ANNOTATIONS, type, new OutBoundHeaders(), out);
+	return out;
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.benchmarks;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates deterministic synthetic RDF data for the benchmarks.
+ * Resources have a handful of properties each, with a mix of URI, plain, language-tagged and typed literal
+ * objects, roughly resembling Linked Data descriptions.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class SyntheticData
+{
+    /** Namespace of generated resources and properties */
+    public static final String NS = "http://data.graphity.org/benchmarks/";
+
+    private static final long SEED = 42;
+    private static final int PROPERTIES = 20;
+    private static final int TRIPLES_PER_RESOURCE = 10;
+    private static final String[] LANGS = { "en", "de", "fr", "lt" };
+
+    /**
+     * Creates model with the given number of triples.
+     *
+     * @param triples number of triples
+     * @return in-memory model
+     */
+    public static Model createModel(int triples)
+    {
+	Random random = new Random(SEED);
+	Model model = ModelFactory.createDefaultModel();
+	model.setNsPrefix("bench", NS);
+
+	List<Property> properties = new ArrayList<Property>(PROPERTIES);
+	for (int i = 0; i < PROPERTIES; i++) properties.add(model.createProperty(NS, "property" + i));
+
+	int resources = Math.max(1, triples / TRIPLES_PER_RESOURCE);
+	while (model.size() < triples)
+	{
+	    Resource subject = model.createResource(NS + "resource/" + random.nextInt(resources));
+	    Property property = properties.get(random.nextInt(PROPERTIES));
+
+	    switch (random.nextInt(4))
+	    {
+		case 0:
+		    model.add(subject, property, model.createResource(NS + "resource/" + random.nextInt(resources)));
+		    break;
+		case 1:
+		    model.add(subject, property, "Literal value " + random.nextLong());
+		    break;
+		case 2:
+		    model.add(subject, property, "Language tagged value " + random.nextLong(), LANGS[random.nextInt(LANGS.length)]);
+		    break;
+		default:
+		    model.addLiteral(subject, property, model.createTypedLiteral(String.valueOf(random.nextInt()), XSDDatatype.XSDinteger));
+	    }
+	}
+
+	return model;
+    }
+
+    /**
+     * Creates rewindable result set with the given number of rows and variables.
+     *
+     * @param rows number of solutions
+     * @param width number of variables
+     * @return result set
+     */
+    public static ResultSetRewindable createResultSet(int rows, int width)
+    {
+	Random random = new Random(SEED);
+
+	List<Var> vars = new ArrayList<Var>(width);
+	for (int i = 0; i < width; i++) vars.add(Var.alloc("var" + i));
+
+	List<Binding> bindings = new ArrayList<Binding>(rows);
+	for (int row = 0; row < rows; row++)
+	{
+	    BindingMap binding = BindingFactory.create();
+	    for (int i = 0; i < width; i++)
+	    {
+		Node node;
+		switch ((row + i) % 3)
+		{
+		    case 0:
+			node = Node.createURI(NS + "resource/" + random.nextInt(rows));
+			break;
+		    case 1:
+			node = Node.createLiteral("Literal value " + random.nextLong(), LANGS[random.nextInt(LANGS.length)], false);
+			break;
+		    default:
+			node = Node.createLiteral(String.valueOf(random.nextInt()), null, XSDDatatype.XSDinteger);
+		}
+		binding.add(vars.get(i), node);
+	    }
+	    bindings.add(binding);
+	}
+
+	return ResultSetFactory.makeRewindable(new ResultSetStream(Var.varNames(vars), null,
+		new QueryIterPlainWrapper(bindings.iterator())));
+    }
+
+}
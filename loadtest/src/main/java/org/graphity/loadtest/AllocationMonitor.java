@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures heap allocation and garbage collection during the load test.
+ * Allocation is summed over live threads, excluding the load test clients, so that it approximates the
+ * allocation of the server and the stub endpoint. Threads that terminate during the measurement are not counted.
+ * Requires HotSpot <code>com.sun.management.ThreadMXBean</code>; allocation is reported as -1 otherwise.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class AllocationMonitor
+{
+    private final Set<Long> excludedThreads;
+    private Map<Long, Long> startAllocated;
+    private long startCollections, startCollectionTime;
+
+    /**
+     * Creates monitor.
+     *
+     * @param excludedThreads IDs of threads whose allocation is not counted
+     */
+    public AllocationMonitor(Set<Long> excludedThreads)
+    {
+	this.excludedThreads = excludedThreads;
+    }
+
+    public void start()
+    {
+	startAllocated = getAllocatedBytes();
+	startCollections = getCollections();
+	startCollectionTime = getCollectionTime();
+    }
+
+    /**
+     * Returns bytes allocated since start. Threads started during the measurement are counted from their start.
+     *
+     * @return allocated bytes, or -1 if allocation measurement is not supported
+     */
+    public long getAllocated()
+    {
+	if (startAllocated == null) return -1;
+
+	long allocated = 0;
+	for (Map.Entry<Long, Long> entry : getAllocatedBytes().entrySet())
+	{
+	    Long start = startAllocated.get(entry.getKey());
+	    allocated += entry.getValue() - (start == null ? 0 : start);
+	}
+	return allocated;
+    }
+
+    public long getCollections()
+    {
+	long collections = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    if (gc.getCollectionCount() > 0) collections += gc.getCollectionCount();
+	return collections - startCollections;
+    }
+
+    public long getCollectionTime()
+    {
+	long time = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    if (gc.getCollectionTime() > 0) time += gc.getCollectionTime();
+	return time - startCollectionTime;
+    }
+
+    private Map<Long, Long> getAllocatedBytes()
+    {
+	ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return null;
+	com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean)threadBean;
+	if (!hotspotBean.isThreadAllocatedMemorySupported() || !hotspotBean.isThreadAllocatedMemoryEnabled()) return null;
+
+	Map<Long, Long> allocated = new HashMap<Long, Long>();
+	for (long id : threadBean.getAllThreadIds())
+	{
+	    if (excludedThreads.contains(id)) continue;
+	    long bytes = hotspotBean.getThreadAllocatedBytes(id);
+	    if (bytes >= 0) allocated.put(id, bytes);
+	}
+	return allocated;
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records latencies and response status codes of one operation.
+ * Not thread safe: each client thread records into its own instance, which are merged after the run.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class LatencyRecorder
+{
+    private long[] latencies = new long[1024];
+    private int count = 0;
+    private int errors = 0;
+    private final Map<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+
+    /**
+     * Records completed request.
+     *
+     * @param nanos latency (in nanoseconds)
+     * @param status HTTP response status, or -1 if the request failed without response
+     */
+    public void record(long nanos, int status)
+    {
+	if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+	latencies[count++] = nanos;
+
+	if (status < 0 || status >= 500) errors++;
+	Integer statusCount = statuses.get(status);
+	statuses.put(status, statusCount == null ? 1 : statusCount + 1);
+    }
+
+    public void merge(LatencyRecorder other)
+    {
+	for (int i = 0; i < other.count; i++)
+	{
+	    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+	    latencies[count++] = other.latencies[i];
+	}
+	errors += other.errors;
+	for (Map.Entry<Integer, Integer> entry : other.statuses.entrySet())
+	{
+	    Integer statusCount = statuses.get(entry.getKey());
+	    statuses.put(entry.getKey(), statusCount == null ? entry.getValue() : statusCount + entry.getValue());
+	}
+    }
+
+    /**
+     * Returns latency percentile. Sorts the recorded latencies on first call.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency (in nanoseconds), or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+	if (count == 0) return 0;
+
+	Arrays.sort(latencies, 0, count);
+	int index = (int)Math.ceil(percentile / 100 * count) - 1;
+	return latencies[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public long getMean()
+    {
+	if (count == 0) return 0;
+
+	long sum = 0;
+	for (int i = 0; i < count; i++) sum += latencies[i];
+	return sum / count;
+    }
+
+    public int getCount()
+    {
+	return count;
+    }
+
+    public int getErrors()
+    {
+	return errors;
+    }
+
+    public Map<Integer, Integer> getStatuses()
+    {
+	return statuses;
+    }
+
+}
@@ -0,0 +1,324 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import com.sun.jersey.spi.container.servlet.ServletContainer;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.graphity.server.ApplicationBase;
+import org.graphity.server.vocabulary.GS;
+import org.graphity.server.vocabulary.VoID;
+
+/**
+ * End-to-end load test of Graphity Server.
+ * Starts <code>ApplicationBase</code> in embedded Jetty, configured against an in-process stub SPARQL endpoint and
+ * Graph Store, drives a weighted mix of requests from concurrent clients, and reports throughput, latency
+ * percentiles, and allocation of the server.
+ * Options are passed as <code>name=value</code> arguments; other arguments that contain <code>=</code> and start
+ * with <code>http</code> are passed to the server as init parameters, e.g. <code>http://server.graphity.org/ontology#upstreamWorkers=32</code>.
+ * Logging is configured by <code>loadtest-log4j.properties</code> unless <code>log4j.configuration</code> is set.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see StubEndpoint
+ */
+public class LoadTest
+{
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+    static
+    {
+	DEFAULTS.put("clients", "16");
+	DEFAULTS.put("warmup", "10");
+	DEFAULTS.put("duration", "30");
+	DEFAULTS.put("latency", "20");
+	DEFAULTS.put("jitter", "10");
+	DEFAULTS.put("resources", "10000");
+	DEFAULTS.put("triples", "20");
+	DEFAULTS.put("literalSize", "32");
+	DEFAULTS.put("writeTriples", "50");
+	DEFAULTS.put("mix", "describe:70,select:15,construct:5,write:10");
+    }
+
+    private final Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+    private final Map<String, String> initParams = new LinkedHashMap<String, String>();
+    private final Set<Long> clientThreads = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private Server stubServer, server;
+    private String base;
+    private StubData data;
+
+    public LoadTest(String[] args)
+    {
+	for (String arg : args)
+	{
+	    int index = arg.indexOf('=', arg.startsWith("http") ? arg.indexOf('#') + 1 : 0);
+	    if (index < 0) throw new IllegalArgumentException("Argument must have name=value form: " + arg);
+
+	    String name = arg.substring(0, index), value = arg.substring(index + 1);
+	    if (name.startsWith("http")) initParams.put(name, value);
+	    else if (DEFAULTS.containsKey(name)) options.put(name, value);
+	    else throw new IllegalArgumentException("Unknown option: " + name + ", known options: " + DEFAULTS.keySet());
+	}
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+	if (System.getProperty("log4j.configuration") == null) System.setProperty("log4j.configuration", "loadtest-log4j.properties");
+
+	LoadTest test = new LoadTest(args);
+	try
+	{
+	    test.start();
+	    test.run(System.out);
+	}
+	finally
+	{
+	    test.stop();
+	}
+    }
+
+    /**
+     * Starts stub endpoint and the server under test.
+     */
+    public void start() throws Exception
+    {
+	int port = getFreePort();
+	base = "http://localhost:" + port + "/";
+	data = new StubData(base, getInt("resources"), getInt("triples"), getInt("literalSize"));
+
+	stubServer = new Server(0);
+	ServletContextHandler stubContext = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+	stubContext.setContextPath("/");
+	stubContext.addServlet(new ServletHolder(new StubEndpoint(data.createDataset(), getInt("latency"), getInt("jitter"))), "/*");
+	stubServer.setHandler(stubContext);
+	stubServer.start();
+	String stubBase = "http://localhost:" + stubServer.getConnectors()[0].getLocalPort();
+
+	FilterHolder jersey = new FilterHolder(ServletContainer.class);
+	jersey.setInitParameter("javax.ws.rs.Application", ApplicationBase.class.getName());
+	jersey.setInitParameter(VoID.sparqlEndpoint.getURI(), stubBase + StubEndpoint.SPARQL_PATH);
+	jersey.setInitParameter(GS.sparqlGraphStore.getURI(), stubBase + StubEndpoint.GRAPH_STORE_PATH);
+	for (Map.Entry<String, String> param : initParams.entrySet()) jersey.setInitParameter(param.getKey(), param.getValue());
+
+	server = new Server(port);
+	ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+	context.setContextPath("/");
+	context.addFilter(jersey, "/*", EnumSet.of(DispatcherType.REQUEST));
+	context.addServlet(DefaultServlet.class, "/"); // filters are only applied to requests mapped to a servlet
+	server.setHandler(context);
+	server.start();
+    }
+
+    public void stop() throws Exception
+    {
+	if (server != null) server.stop();
+	if (stubServer != null) stubServer.stop();
+    }
+
+    /**
+     * Runs warmup and measurement phases and prints the report.
+     *
+     * @param out report output
+     */
+    public void run(PrintStream out) throws InterruptedException
+    {
+	final Map<Operation, Integer> mix = getMix();
+	final int clients = getInt("clients");
+
+	ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager();
+	connManager.setMaxTotal(clients);
+	connManager.setDefaultMaxPerRoute(clients);
+	final DefaultHttpClient httpClient = new DefaultHttpClient(connManager);
+
+	out.println("Options: " + options);
+	if (!initParams.isEmpty()) out.println("Init parameters: " + initParams);
+	out.println("Server: " + base + " stub dataset: " + data.getResources() + " resources");
+
+	if (getInt("warmup") > 0)
+	{
+	    out.println("Warming up for " + getInt("warmup") + " s");
+	    drive(httpClient, mix, clients, getInt("warmup") * 1000L);
+	}
+
+	out.println("Measuring for " + getInt("duration") + " s");
+	AllocationMonitor allocation = new AllocationMonitor(clientThreads);
+	allocation.start();
+	long started = System.nanoTime();
+	Map<Operation, LatencyRecorder> recorders = drive(httpClient, mix, clients, getInt("duration") * 1000L);
+	long elapsed = System.nanoTime() - started;
+
+	report(out, recorders, elapsed, allocation);
+	httpClient.getConnectionManager().shutdown();
+    }
+
+    protected Map<Operation, LatencyRecorder> drive(final DefaultHttpClient httpClient, final Map<Operation, Integer> mix,
+	    int clients, long duration) throws InterruptedException
+    {
+	final long end = System.currentTimeMillis() + duration;
+	final List<Map<Operation, LatencyRecorder>> results = Collections.synchronizedList(new ArrayList<Map<Operation, LatencyRecorder>>());
+	final CountDownLatch done = new CountDownLatch(clients);
+
+	int total = 0;
+	for (int weight : mix.values()) total += weight;
+	final int totalWeight = total;
+
+	for (int i = 0; i < clients; i++)
+	{
+	    final long seed = i;
+	    Thread client = new Thread("LoadTest-client-" + i)
+	    {
+		@Override
+		public void run()
+		{
+		    clientThreads.add(getId());
+		    Random random = new Random(seed);
+		    Map<Operation, LatencyRecorder> recorders = new EnumMap<Operation, LatencyRecorder>(Operation.class);
+		    for (Operation operation : mix.keySet()) recorders.put(operation, new LatencyRecorder());
+
+		    try
+		    {
+			while (System.currentTimeMillis() < end)
+			{
+			    Operation operation = choose(mix, totalWeight, random);
+			    HttpUriRequest request = operation.createRequest(base, data, getInt("writeTriples"), random);
+			    long started = System.nanoTime();
+			    int status = execute(httpClient, request);
+			    recorders.get(operation).record(System.nanoTime() - started, status);
+			}
+		    }
+		    finally
+		    {
+			results.add(recorders);
+			done.countDown();
+		    }
+		}
+	    };
+	    client.setDaemon(true);
+	    client.start();
+	}
+	done.await();
+
+	Map<Operation, LatencyRecorder> merged = new EnumMap<Operation, LatencyRecorder>(Operation.class);
+	for (Operation operation : mix.keySet()) merged.put(operation, new LatencyRecorder());
+	for (Map<Operation, LatencyRecorder> recorders : results)
+	    for (Map.Entry<Operation, LatencyRecorder> entry : recorders.entrySet())
+		merged.get(entry.getKey()).merge(entry.getValue());
+	return merged;
+    }
+
+    protected int execute(DefaultHttpClient httpClient, HttpUriRequest request)
+    {
+	try
+	{
+	    HttpResponse response = httpClient.execute(request);
+	    EntityUtils.consume(response.getEntity());
+	    return response.getStatusLine().getStatusCode();
+	}
+	catch (IOException ex)
+	{
+	    request.abort();
+	    return -1;
+	}
+    }
+
+    private static Operation choose(Map<Operation, Integer> mix, int totalWeight, Random random)
+    {
+	int value = random.nextInt(totalWeight);
+	for (Map.Entry<Operation, Integer> entry : mix.entrySet())
+	{
+	    value -= entry.getValue();
+	    if (value < 0) return entry.getKey();
+	}
+	throw new IllegalStateException("Operation mix is empty");
+    }
+
+    protected void report(PrintStream out, Map<Operation, LatencyRecorder> recorders, long elapsed, AllocationMonitor allocation)
+    {
+	double seconds = elapsed / 1e9;
+	int total = 0;
+
+	out.println();
+	out.println(String.format("%-10s %8s %7s %9s %9s %9s %9s %9s %9s %9s  %s",
+		"operation", "requests", "errors", "req/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "statuses"));
+	for (Map.Entry<Operation, LatencyRecorder> entry : recorders.entrySet())
+	{
+	    LatencyRecorder recorder = entry.getValue();
+	    total += recorder.getCount();
+	    out.println(String.format("%-10s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f  %s",
+		    entry.getKey().name().toLowerCase(), recorder.getCount(), recorder.getErrors(), recorder.getCount() / seconds,
+		    recorder.getMean() / 1e6, recorder.getPercentile(50) / 1e6, recorder.getPercentile(90) / 1e6,
+		    recorder.getPercentile(99) / 1e6, recorder.getPercentile(99.9) / 1e6, recorder.getPercentile(100) / 1e6,
+		    recorder.getStatuses()));
+	}
+	out.println(String.format("%-10s %8d %7s %9.1f", "total", total, "", total / seconds));
+
+	out.println();
+	long allocated = allocation.getAllocated();
+	if (allocated >= 0)
+	    out.println(String.format("Server allocation: %.1f MB/s, %.1f KB/request",
+		    allocated / seconds / (1024 * 1024), total == 0 ? 0 : allocated / 1024.0 / total));
+	else out.println("Server allocation: not supported by this JVM");
+	out.println(String.format("GC: %d collections, %d ms", allocation.getCollections(), allocation.getCollectionTime()));
+    }
+
+    public Map<Operation, Integer> getMix()
+    {
+	Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+	for (String entry : options.get("mix").split(","))
+	{
+	    String[] pair = entry.trim().split(":");
+	    if (pair.length != 2) throw new IllegalArgumentException("Mix entries must have operation:weight form: " + entry);
+	    int weight = Integer.parseInt(pair[1].trim());
+	    if (weight > 0) mix.put(Operation.valueOf(pair[0].trim().toUpperCase()), weight);
+	}
+	if (mix.isEmpty()) throw new IllegalArgumentException("Operation mix is empty");
+	return mix;
+    }
+
+    public int getInt(String option)
+    {
+	return Integer.parseInt(options.get(option));
+    }
+
+    private static int getFreePort() throws IOException
+    {
+	ServerSocket socket = new ServerSocket(0);
+	try
+	{
+	    return socket.getLocalPort();
+	}
+	finally
+	{
+	    socket.close();
+	}
+    }
+
+}
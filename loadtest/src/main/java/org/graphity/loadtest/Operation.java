@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Random;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.graphity.server.MediaType;
+
+/**
+ * Request types issued by the load test clients against the server under test.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public enum Operation
+{
+    /** Linked Data <code>GET</code> of a resource description, served by <code>QueriedResourceBase</code> */
+    DESCRIBE
+    {
+	@Override
+	public HttpUriRequest createRequest(String base, StubData data, int writeTriples, Random random)
+	{
+	    HttpGet get = new HttpGet(data.getResourceURI(random.nextInt(data.getResources())));
+	    get.addHeader("Accept", MediaType.TEXT_TURTLE);
+	    return get;
+	}
+    },
+
+    /** <code>SELECT</code> query on <code>/sparql</code> */
+    SELECT
+    {
+	@Override
+	public HttpUriRequest createRequest(String base, StubData data, int writeTriples, Random random)
+	{
+	    String query = "SELECT ?s ?label WHERE { ?s a <" + StubData.NS + "Class" + random.nextInt(10) + "> ; " +
+		    "<http://www.w3.org/2000/01/rdf-schema#label> ?label } LIMIT 100 OFFSET " + random.nextInt(10) * 100;
+	    HttpGet get = new HttpGet(base + "sparql?query=" + encode(query));
+	    get.addHeader("Accept", MediaType.APPLICATION_SPARQL_RESULTS_XML);
+	    return get;
+	}
+    },
+
+    /** <code>CONSTRUCT</code> query on <code>/sparql</code> */
+    CONSTRUCT
+    {
+	@Override
+	public HttpUriRequest createRequest(String base, StubData data, int writeTriples, Random random)
+	{
+	    String resource = data.getResourceURI(random.nextInt(data.getResources()));
+	    String query = "CONSTRUCT { <" + resource + "> ?p ?o . ?o ?p2 ?o2 } WHERE { <" + resource + "> ?p ?o " +
+		    "OPTIONAL { ?o ?p2 ?o2 } } LIMIT 1000";
+	    HttpGet get = new HttpGet(base + "sparql?query=" + encode(query));
+	    get.addHeader("Accept", MediaType.TEXT_TURTLE);
+	    return get;
+	}
+    },
+
+    /** <code>PUT</code> of a named graph on <code>/service</code>, served by <code>GraphStoreBase</code> */
+    WRITE
+    {
+	@Override
+	public HttpUriRequest createRequest(String base, StubData data, int writeTriples, Random random)
+	{
+	    int index = random.nextInt(data.getResources());
+	    Model model = data.createModel(index, writeTriples, random);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    model.write(out, "TURTLE");
+
+	    HttpPut put = new HttpPut(base + "service?graph=" + encode(data.getGraphURI(index)));
+	    ByteArrayEntity entity = new ByteArrayEntity(out.toByteArray());
+	    entity.setContentType(MediaType.TEXT_TURTLE + "; charset=UTF-8");
+	    put.setEntity(entity);
+	    return put;
+	}
+    };
+
+    /**
+     * Creates request of this type.
+     *
+     * @param base base URI of the server under test
+     * @param data data generator
+     * @param writeTriples number of triples in written graphs
+     * @param random source of randomness of the calling thread
+     * @return HTTP request
+     */
+    public abstract HttpUriRequest createRequest(String base, StubData data, int writeTriples, Random random);
+
+    private static String encode(String value)
+    {
+	try
+	{
+	    return URLEncoder.encode(value, "UTF-8");
+	}
+	catch (UnsupportedEncodingException ex)
+	{
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+}
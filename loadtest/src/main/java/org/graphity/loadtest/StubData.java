@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic data served by the stub endpoint and written by the load test clients.
+ * Resource URIs are minted in the namespace of the server under test, so that their descriptions can be
+ * dereferenced through <code>QueriedResourceBase</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class StubData
+{
+    /** Namespace of generated classes and properties */
+    public static final String NS = "http://data.graphity.org/loadtest/";
+
+    private static final int CLASSES = 10;
+    private static final int PROPERTIES = 20;
+
+    private final String base;
+    private final int resources, triplesPerResource, literalSize;
+
+    /**
+     * Creates data generator.
+     *
+     * @param base base URI of the server under test
+     * @param resources number of resources in the dataset
+     * @param triplesPerResource number of triples in each resource description
+     * @param literalSize length of literal values (in characters)
+     */
+    public StubData(String base, int resources, int triplesPerResource, int literalSize)
+    {
+	this.base = base;
+	this.resources = resources;
+	this.triplesPerResource = triplesPerResource;
+	this.literalSize = literalSize;
+    }
+
+    public Dataset createDataset()
+    {
+	Random random = new Random(42);
+	Dataset dataset = DatasetFactory.createMem();
+	Model model = dataset.getDefaultModel();
+	for (int i = 0; i < resources; i++) addResource(model, i, triplesPerResource, random);
+	return dataset;
+    }
+
+    /**
+     * Creates model with description of a resource.
+     *
+     * @param index number of the resource
+     * @param triples number of triples
+     * @param random source of randomness
+     * @return model
+     */
+    public Model createModel(int index, int triples, Random random)
+    {
+	Model model = ModelFactory.createDefaultModel();
+	addResource(model, index, triples, random);
+	return model;
+    }
+
+    private void addResource(Model model, int index, int triples, Random random)
+    {
+	Resource resource = model.createResource(getResourceURI(index)).
+		addProperty(RDF.type, model.createResource(NS + "Class" + (index % CLASSES))).
+		addProperty(RDFS.label, "Resource " + index, "en");
+
+	for (int i = 2; i < triples; i++)
+	{
+	    Property property = model.createProperty(NS, "property" + random.nextInt(PROPERTIES));
+	    if (random.nextBoolean()) resource.addProperty(property, model.createResource(getResourceURI(random.nextInt(resources))));
+	    else resource.addProperty(property, createLiteral(random));
+	}
+    }
+
+    private String createLiteral(Random random)
+    {
+	char[] chars = new char[literalSize];
+	Arrays.fill(chars, (char)('a' + random.nextInt(26)));
+	return new String(chars) + random.nextInt();
+    }
+
+    public String getResourceURI(int index)
+    {
+	return base + "resource/" + index;
+    }
+
+    public String getGraphURI(int index)
+    {
+	return base + "graphs/" + index;
+    }
+
+    public int getResources()
+    {
+	return resources;
+    }
+
+}
@@ -0,0 +1,351 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.loadtest;
+
+import com.hp.hpl.jena.query.*;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjena.riot.WebContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process stub of the upstream SPARQL endpoint and Graph Store.
+ * Serves the SPARQL protocol on <code>/sparql</code> and the SPARQL Graph Store protocol on <code>/service</code>
+ * from an in-memory dataset. Each request is delayed by a fixed latency plus random jitter, to simulate a remote
+ * triple store. Responses carry an <code>ETag</code> of the dataset version, which changes on every write, and
+ * conditional requests with a matching <code>If-None-Match</code> are answered with <code>304 Not Modified</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/sparql11-protocol/">SPARQL 1.1 Protocol</a>
+ * @see <a href="http://www.w3.org/TR/sparql11-http-rdf-update/">SPARQL 1.1 Graph Store HTTP Protocol</a>
+ */
+public class StubEndpoint extends HttpServlet
+{
+    private static final Logger log = LoggerFactory.getLogger(StubEndpoint.class);
+
+    /** Path of the SPARQL endpoint, relative to the stub base URI */
+    public static final String SPARQL_PATH = "/sparql";
+    /** Path of the Graph Store, relative to the stub base URI */
+    public static final String GRAPH_STORE_PATH = "/service";
+
+    private final Dataset dataset;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong version = new AtomicLong();
+    private final long latency, jitter;
+    private final Random random = new Random();
+
+    /**
+     * Creates stub endpoint.
+     *
+     * @param dataset dataset to be served
+     * @param latency fixed delay of each request (in milliseconds)
+     * @param jitter maximum random delay added to the fixed one (in milliseconds)
+     */
+    public StubEndpoint(Dataset dataset, long latency, long jitter)
+    {
+	this.dataset = dataset;
+	this.latency = latency;
+	this.jitter = jitter;
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+    {
+	delay();
+
+	String path = req.getPathInfo() == null ? req.getServletPath() : req.getServletPath() + req.getPathInfo();
+	if (path.equals(SPARQL_PATH)) sparql(req, resp);
+	else if (path.equals(GRAPH_STORE_PATH)) graphStore(req, resp);
+	else resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    protected void delay()
+    {
+	long delay = latency;
+	if (jitter > 0)
+	    synchronized (random)
+	    {
+		delay += (long)(random.nextDouble() * jitter);
+	    }
+	if (delay <= 0) return;
+
+	try
+	{
+	    Thread.sleep(delay);
+	}
+	catch (InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    protected void sparql(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+	if (req.getParameter("update") != null)
+	{
+	    update(req.getParameter("update"), resp);
+	    return;
+	}
+	if (req.getMethod().equals("POST") && req.getContentType() != null &&
+		req.getContentType().startsWith(WebContent.contentTypeSPARQLUpdate))
+	{
+	    update(read(req), resp);
+	    return;
+	}
+
+	String queryString = req.getParameter("query");
+	if (queryString == null && req.getMethod().equals("POST") && req.getContentType() != null &&
+		req.getContentType().startsWith(WebContent.contentTypeSPARQLQuery))
+	    queryString = read(req);
+	if (queryString == null)
+	{
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No query specified");
+	    return;
+	}
+
+	Query query;
+	try
+	{
+	    query = QueryFactory.create(queryString);
+	}
+	catch (QueryException ex)
+	{
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+	    return;
+	}
+
+	String accept = req.getHeader("Accept") == null ? "" : req.getHeader("Accept");
+	lock.readLock().lock();
+	try
+	{
+	    if (notModified(req, resp)) return;
+
+	    QueryExecution qex = QueryExecutionFactory.create(query, dataset);
+	    try
+	    {
+		if (query.isSelectType())
+		{
+		    ResultSet results = qex.execSelect();
+		    if (prefers(accept, WebContent.contentTypeResultsJSON, WebContent.contentTypeResultsXML))
+		    {
+			resp.setContentType(WebContent.contentTypeResultsJSON);
+			ResultSetFormatter.outputAsJSON(resp.getOutputStream(), results);
+		    }
+		    else
+		    {
+			resp.setContentType(WebContent.contentTypeResultsXML);
+			ResultSetFormatter.outputAsXML(resp.getOutputStream(), results);
+		    }
+		}
+		else if (query.isAskType())
+		{
+		    resp.setContentType(WebContent.contentTypeResultsXML);
+		    ResultSetFormatter.outputAsXML(resp.getOutputStream(), qex.execAsk());
+		}
+		else
+		{
+		    Model model = query.isConstructType() ? qex.execConstruct() : qex.execDescribe();
+		    write(model, accept, resp);
+		}
+	    }
+	    finally
+	    {
+		qex.close();
+	    }
+	}
+	finally
+	{
+	    lock.readLock().unlock();
+	}
+    }
+
+    protected void update(String update, HttpServletResponse resp) throws IOException
+    {
+	lock.writeLock().lock();
+	try
+	{
+	    UpdateAction.parseExecute(update, dataset.asDatasetGraph());
+	    version.incrementAndGet();
+	    resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+	catch (RuntimeException ex)
+	{
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+	}
+	finally
+	{
+	    lock.writeLock().unlock();
+	}
+    }
+
+    protected void graphStore(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+	String graphURI = req.getParameter("graph");
+	if (graphURI == null && req.getParameter("default") == null)
+	{
+	    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Neither graph nor default parameter specified");
+	    return;
+	}
+
+	String method = req.getMethod();
+	if (method.equals("GET") || method.equals("HEAD"))
+	{
+	    lock.readLock().lock();
+	    try
+	    {
+		if (graphURI != null && !dataset.containsNamedModel(graphURI))
+		{
+		    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		    return;
+		}
+		if (notModified(req, resp)) return;
+		Model model = graphURI == null ? dataset.getDefaultModel() : dataset.getNamedModel(graphURI);
+		if (method.equals("HEAD")) resp.setContentType(WebContent.contentTypeTurtle);
+		else write(model, WebContent.contentTypeTurtle, resp);
+	    }
+	    finally
+	    {
+		lock.readLock().unlock();
+	    }
+	    return;
+	}
+
+	Model payload = null;
+	if (method.equals("PUT") || method.equals("POST"))
+	{
+	    payload = ModelFactory.createDefaultModel();
+	    payload.read(req.getInputStream(), null, getSyntax(req.getContentType()));
+	}
+
+	lock.writeLock().lock();
+	try
+	{
+	    boolean existing = graphURI == null || dataset.containsNamedModel(graphURI);
+	    if (method.equals("DELETE"))
+	    {
+		if (!existing)
+		{
+		    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		    return;
+		}
+		if (graphURI == null) dataset.getDefaultModel().removeAll();
+		else dataset.removeNamedModel(graphURI);
+		version.incrementAndGet();
+		resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	    }
+	    else if (method.equals("PUT"))
+	    {
+		if (graphURI == null) dataset.setDefaultModel(payload);
+		else dataset.replaceNamedModel(graphURI, payload);
+		version.incrementAndGet();
+		resp.setStatus(existing ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_CREATED);
+	    }
+	    else if (method.equals("POST"))
+	    {
+		if (graphURI == null) dataset.getDefaultModel().add(payload);
+		else if (existing) dataset.getNamedModel(graphURI).add(payload);
+		else dataset.addNamedModel(graphURI, payload);
+		version.incrementAndGet();
+		resp.setStatus(existing ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_CREATED);
+	    }
+	    else resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+	}
+	finally
+	{
+	    lock.writeLock().unlock();
+	}
+    }
+
+    protected void write(Model model, String accept, HttpServletResponse resp) throws IOException
+    {
+	if (prefers(accept, WebContent.contentTypeRDFXML, WebContent.contentTypeTurtle))
+	{
+	    resp.setContentType(WebContent.contentTypeRDFXML);
+	    model.write(resp.getOutputStream(), "RDF/XML");
+	}
+	else
+	{
+	    resp.setContentType(WebContent.contentTypeTurtle);
+	    model.write(resp.getOutputStream(), "TURTLE");
+	}
+    }
+
+    /**
+     * Sets <code>ETag</code> of the current dataset version and checks it against <code>If-None-Match</code>.
+     * Must be called while holding the read lock.
+     *
+     * @return true if <code>304 Not Modified</code> has been sent
+     */
+    private boolean notModified(HttpServletRequest req, HttpServletResponse resp)
+    {
+	String etag = "\"" + Long.toHexString(version.get()) + "\"";
+	resp.setHeader("ETag", etag);
+	if (!etag.equals(req.getHeader("If-None-Match"))) return false;
+
+	resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	return true;
+    }
+
+    /**
+     * Checks whether the first media type is listed before the second one in the <code>Accept</code> header.
+     * Quality values are not taken into account, which is sufficient for the clients used in the load test.
+     */
+    private static boolean prefers(String accept, String first, String second)
+    {
+	int firstIndex = accept.indexOf(first);
+	if (firstIndex < 0) return false;
+	int secondIndex = accept.indexOf(second);
+	return secondIndex < 0 || firstIndex < secondIndex;
+    }
+
+    private static String getSyntax(String contentType)
+    {
+	if (contentType == null) return "N-TRIPLE";
+	if (contentType.startsWith(WebContent.contentTypeTurtle)) return "TURTLE";
+	if (contentType.startsWith(WebContent.contentTypeRDFXML)) return "RDF/XML";
+	return "N-TRIPLE";
+    }
+
+    private static String read(HttpServletRequest req) throws IOException
+    {
+	StringBuilder sb = new StringBuilder();
+	Reader reader = new InputStreamReader(req.getInputStream(), "UTF-8");
+	char[] buffer = new char[4096];
+	int read;
+	while ((read = reader.read(buffer)) != -1) sb.append(buffer, 0, read);
+	return sb.toString();
+    }
+
+    public Dataset getDataset()
+    {
+	return dataset;
+    }
+
+}
@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary RDF serialization.
+ * <p>
+ * A document starts with the magic bytes <code>GRDF</code> and a version byte, followed by records, each
+ * starting with a tag byte: {@link #TRIPLE} followed by subject, predicate and object terms, or {@link #END}.
+ * Terms are dictionary-encoded per document: a term is written as an unsigned varint reference, where
+ * <code>0</code> introduces a new term inline (kind byte and payload) and <code>n &gt; 0</code> refers to the
+ * <code>n</code>-th term introduced before. IRIs are split into namespace and local name, and namespaces are
+ * dictionary-encoded the same way. Strings are UTF-8, prefixed with their byte length as a varint.
+ * </p>
+ * <p>
+ * SPARQL results use the same encoding, with a {@link #VARIABLES} record (count and names of variables) followed
+ * by {@link #ROW} records holding one term per variable, where unbound values are written as a new term of kind
+ * <code>UNDEF</code>.
+ * </p>
+ * <p>
+ * Both dictionaries are capped, and long literals are never added, so that memory use is bounded; writer and
+ * reader apply the same rules, so references stay in sync.
+ * </p>
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see BinaryRDFWriter
+ * @see BinaryRDFReader
+ * @see <a href="http://afs.github.io/rdf-thrift/">RDF Thrift</a>
+ */
+public class BinaryRDF
+{
+    /** Media type of the format */
+    public static final String CONTENT_TYPE = "application/x-rdf-binary";
+
+    static final byte[] MAGIC = { 'G', 'R', 'D', 'F' };
+    static final int VERSION = 1;
+
+    /** Record tags */
+    public static final int END = 0, TRIPLE = 1, VARIABLES = 2, ROW = 3;
+
+    /** Term kinds */
+    static final int UNDEF = 0, IRI = 1, BLANK = 2, PLAIN_LITERAL = 3, LANG_LITERAL = 4, TYPED_LITERAL = 5;
+
+    /** Maximum number of terms in the dictionary */
+    static final int MAX_TERMS = 1 << 20;
+    /** Maximum number of namespaces in the dictionary */
+    static final int MAX_NAMESPACES = 1 << 16;
+    /** Literals with longer lexical forms are not added to the dictionary */
+    static final int MAX_LITERAL_LENGTH = 1024;
+    /** Maximum byte length of a string accepted by the reader */
+    static final int MAX_STRING_LENGTH = 1 << 26;
+
+    /**
+     * Reads binary RDF into a model.
+     *
+     * @param model target model
+     * @param in input stream
+     * @return the model
+     * @throws IOException if the stream cannot be read or is not valid binary RDF
+     */
+    public static Model read(Model model, InputStream in) throws IOException
+    {
+	new BinaryRDFReader(in).read(model.getGraph());
+	return model;
+    }
+
+    /**
+     * Writes model as binary RDF.
+     *
+     * @param model source model
+     * @param out output stream, which is flushed but not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(Model model, OutputStream out) throws IOException
+    {
+	BinaryRDFWriter writer = new BinaryRDFWriter(out);
+	writer.write(model.getGraph());
+	writer.finish();
+    }
+
+    /**
+     * Returns the point at which an IRI is split into namespace and local name.
+     *
+     * @param iri IRI
+     * @return index of the first character of the local name
+     */
+    static int splitIRI(String iri)
+    {
+	int hash = iri.lastIndexOf('#');
+	if (hash >= 0) return hash + 1;
+	return iri.lastIndexOf('/') + 1;
+    }
+
+}
@@ -0,0 +1,253 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads binary RDF. Not thread-safe.
+ * Blank nodes are scoped to the document, i.e. each label is mapped to a fresh blank node.
+ * Malformed input, including lengths and references out of range, is reported as <code>IOException</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see BinaryRDF
+ */
+public class BinaryRDFReader
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private final List<Node> terms = new ArrayList<Node>();
+    private final List<String> namespaces = new ArrayList<String>();
+    private final Map<String, Node> blankNodes = new HashMap<String, Node>();
+    private int position = 0, limit = 0;
+
+    public BinaryRDFReader(InputStream in)
+    {
+	if (in == null) throw new IllegalArgumentException("InputStream must be not null");
+	this.in = in;
+    }
+
+    /**
+     * Reads all triples of the document into a graph.
+     *
+     * @param graph target graph
+     * @throws IOException if the stream cannot be read or is not valid binary RDF
+     */
+    public void read(Graph graph) throws IOException
+    {
+	Triple triple;
+	while ((triple = next()) != null) graph.add(triple);
+    }
+
+    /**
+     * Reads the next triple.
+     *
+     * @return triple, or null at the end of the document
+     * @throws IOException if the stream cannot be read or is not valid binary RDF
+     */
+    public Triple next() throws IOException
+    {
+	if (position == 0 && limit == 0) readHeader();
+
+	int tag = readByte();
+	switch (tag)
+	{
+	    case BinaryRDF.TRIPLE:
+		Node subject = readTerm(), predicate = readTerm(), object = readTerm();
+		if (subject.isLiteral() || !predicate.isURI()) throw new IOException("Invalid binary RDF triple: " + subject + " " + predicate);
+		return Triple.create(subject, predicate, object);
+	    case BinaryRDF.END:
+		return null;
+	    default:
+		throw new IOException("Invalid binary RDF record tag: " + tag);
+	}
+    }
+
+    private void readHeader() throws IOException
+    {
+	for (byte b : BinaryRDF.MAGIC)
+	    if (readByte() != b) throw new IOException("Not a binary RDF document");
+	int version = readByte();
+	if (version != BinaryRDF.VERSION) throw new IOException("Unsupported binary RDF version: " + version);
+    }
+
+    private Node readTerm() throws IOException
+    {
+	int id = readVarint();
+	if (id > 0) return getTerm(id);
+
+	return addTerm(readNewTerm(readByte()));
+    }
+
+    /**
+     * Reads the datatype of a typed literal, which must be an IRI. New terms of other kinds are rejected before they
+     * are read, so that nested datatypes cannot recurse.
+     */
+    private Node readDatatype() throws IOException
+    {
+	Node datatype;
+	int id = readVarint();
+	if (id > 0) datatype = getTerm(id);
+	else
+	{
+	    int kind = readByte();
+	    if (kind != BinaryRDF.IRI) throw new IOException("Invalid binary RDF datatype term kind: " + kind);
+	    datatype = addTerm(readNewTerm(kind));
+	}
+
+	if (!datatype.isURI()) throw new IOException("Invalid binary RDF datatype: " + datatype);
+	return datatype;
+    }
+
+    private Node getTerm(int id) throws IOException
+    {
+	if (id > terms.size()) throw new IOException("Invalid binary RDF term reference: " + id);
+	return terms.get(id - 1);
+    }
+
+    private Node readNewTerm(int kind) throws IOException
+    {
+	Node node;
+	switch (kind)
+	{
+	    case BinaryRDF.IRI:
+		node = Node.createURI(readNamespace() + readString());
+		break;
+	    case BinaryRDF.BLANK:
+		String label = readString();
+		node = blankNodes.get(label);
+		if (node == null)
+		{
+		    node = Node.createAnon();
+		    blankNodes.put(label, node);
+		}
+		break;
+	    case BinaryRDF.PLAIN_LITERAL:
+		node = Node.createLiteral(readString());
+		break;
+	    case BinaryRDF.LANG_LITERAL:
+		String lexicalForm = readString();
+		node = Node.createLiteral(lexicalForm, readString(), null);
+		break;
+	    case BinaryRDF.TYPED_LITERAL:
+		String typedLexicalForm = readString();
+		Node datatype = readDatatype();
+		node = Node.createLiteral(typedLexicalForm, null, TypeMapper.getInstance().getSafeTypeByName(datatype.getURI()));
+		break;
+	    default:
+		throw new IOException("Invalid binary RDF term kind: " + kind);
+	}
+	return node;
+    }
+
+    private Node addTerm(Node node)
+    {
+	if (node.isLiteral() && node.getLiteralLexicalForm().length() > BinaryRDF.MAX_LITERAL_LENGTH) return node;
+	if (terms.size() < BinaryRDF.MAX_TERMS) terms.add(node);
+	return node;
+    }
+
+    private String readNamespace() throws IOException
+    {
+	int id = readVarint();
+	if (id > 0)
+	{
+	    if (id > namespaces.size()) throw new IOException("Invalid binary RDF namespace reference: " + id);
+	    return namespaces.get(id - 1);
+	}
+
+	String namespace = readString();
+	if (namespaces.size() < BinaryRDF.MAX_NAMESPACES) namespaces.add(namespace);
+	return namespace;
+    }
+
+    /**
+     * Reads a length-prefixed string. Strings that do not fit the buffer are read chunk by chunk, so that memory is
+     * only allocated for bytes actually received, up to {@link BinaryRDF#MAX_STRING_LENGTH}.
+     */
+    private String readString() throws IOException
+    {
+	int length = readVarint();
+	if (length > BinaryRDF.MAX_STRING_LENGTH) throw new IOException("Binary RDF string too long: " + length + " bytes");
+	if (length <= limit - position)
+	{
+	    String value = new String(buffer, position, length, UTF_8);
+	    position += length;
+	    return value;
+	}
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, buffer.length * 8));
+	int remaining = length;
+	while (remaining > 0)
+	{
+	    if (position == limit) fill();
+	    int count = Math.min(remaining, limit - position);
+	    bytes.write(buffer, position, count);
+	    position += count;
+	    remaining -= count;
+	}
+	return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Reads an unsigned varint of at most 31 bits, as written by the writer from non-negative <code>int</code>s.
+     */
+    private int readVarint() throws IOException
+    {
+	int value = 0;
+	for (int shift = 0; shift < 35; shift += 7)
+	{
+	    int b = readByte();
+	    if (shift == 28 && (b & 0x78) != 0) throw new IOException("Binary RDF varint overflow");
+	    value |= (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0) return value;
+	}
+	throw new IOException("Invalid binary RDF varint");
+    }
+
+    private int readByte() throws IOException
+    {
+	if (position == limit) fill();
+	return buffer[position++] & 0xFF;
+    }
+
+    private void fill() throws IOException
+    {
+	limit = in.read(buffer, 0, buffer.length);
+	position = 0;
+	if (limit <= 0)
+	{
+	    limit = 0;
+	    throw new EOFException("Unexpected end of binary RDF document");
+	}
+    }
+
+}
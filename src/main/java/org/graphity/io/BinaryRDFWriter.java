@@ -0,0 +1,206 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes triples as binary RDF. Not thread-safe.
+ * Subclasses can write other records using the same term encoding.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see BinaryRDF
+ */
+public class BinaryRDFWriter
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private final Map<Node, Integer> terms = new HashMap<Node, Integer>();
+    private final Map<String, Integer> namespaces = new HashMap<String, Integer>();
+    private int position = 0;
+    private boolean started = false;
+
+    public BinaryRDFWriter(OutputStream out)
+    {
+	if (out == null) throw new IllegalArgumentException("OutputStream must be not null");
+	this.out = out;
+    }
+
+    public void write(Graph graph) throws IOException
+    {
+	ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+	try
+	{
+	    while (it.hasNext()) write(it.next());
+	}
+	finally
+	{
+	    it.close();
+	}
+    }
+
+    public void write(Triple triple) throws IOException
+    {
+	start();
+	writeByte(BinaryRDF.TRIPLE);
+	writeTerm(triple.getSubject());
+	writeTerm(triple.getPredicate());
+	writeTerm(triple.getObject());
+    }
+
+    /**
+     * Writes the end record and flushes the output stream.
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    public void finish() throws IOException
+    {
+	start();
+	writeByte(BinaryRDF.END);
+	flushBuffer();
+	out.flush();
+    }
+
+    protected void start() throws IOException
+    {
+	if (!started)
+	{
+	    started = true;
+	    for (byte b : BinaryRDF.MAGIC) writeByte(b);
+	    writeByte(BinaryRDF.VERSION);
+	}
+    }
+
+    protected void writeTerm(Node node) throws IOException
+    {
+	Integer id = terms.get(node);
+	if (id != null)
+	{
+	    writeVarint(id);
+	    return;
+	}
+
+	writeVarint(0);
+	if (node.isURI())
+	{
+	    writeByte(BinaryRDF.IRI);
+	    String iri = node.getURI();
+	    int split = BinaryRDF.splitIRI(iri);
+	    writeNamespace(iri.substring(0, split));
+	    writeString(iri.substring(split));
+	}
+	else if (node.isBlank())
+	{
+	    writeByte(BinaryRDF.BLANK);
+	    writeString(node.getBlankNodeLabel());
+	}
+	else if (node.isLiteral())
+	{
+	    String lang = node.getLiteralLanguage();
+	    String datatypeURI = node.getLiteralDatatypeURI();
+	    if (lang != null && !lang.isEmpty())
+	    {
+		writeByte(BinaryRDF.LANG_LITERAL);
+		writeString(node.getLiteralLexicalForm());
+		writeString(lang);
+	    }
+	    else if (datatypeURI != null)
+	    {
+		writeByte(BinaryRDF.TYPED_LITERAL);
+		writeString(node.getLiteralLexicalForm());
+		writeTerm(Node.createURI(datatypeURI));
+	    }
+	    else
+	    {
+		writeByte(BinaryRDF.PLAIN_LITERAL);
+		writeString(node.getLiteralLexicalForm());
+	    }
+	    if (node.getLiteralLexicalForm().length() > BinaryRDF.MAX_LITERAL_LENGTH) return;
+	}
+	else throw new IllegalArgumentException("Cannot write variable or special node: " + node);
+
+	if (terms.size() < BinaryRDF.MAX_TERMS) terms.put(node, terms.size() + 1);
+    }
+
+    private void writeNamespace(String namespace) throws IOException
+    {
+	Integer id = namespaces.get(namespace);
+	if (id != null)
+	{
+	    writeVarint(id);
+	    return;
+	}
+
+	writeVarint(0);
+	writeString(namespace);
+	if (namespaces.size() < BinaryRDF.MAX_NAMESPACES) namespaces.put(namespace, namespaces.size() + 1);
+    }
+
+    protected void writeString(String value) throws IOException
+    {
+	byte[] bytes = value.getBytes(UTF_8);
+	writeVarint(bytes.length);
+	if (bytes.length > buffer.length - position)
+	{
+	    flushBuffer();
+	    if (bytes.length > buffer.length)
+	    {
+		out.write(bytes);
+		return;
+	    }
+	}
+	System.arraycopy(bytes, 0, buffer, position, bytes.length);
+	position += bytes.length;
+    }
+
+    protected void writeVarint(int value) throws IOException
+    {
+	if (buffer.length - position < 5) flushBuffer();
+	while ((value & ~0x7F) != 0)
+	{
+	    buffer[position++] = (byte)((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	buffer[position++] = (byte)value;
+    }
+
+    protected void writeByte(int value) throws IOException
+    {
+	if (position == buffer.length) flushBuffer();
+	buffer[position++] = (byte)value;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+	if (position > 0)
+	{
+	    out.write(buffer, 0, position);
+	    position = 0;
+	}
+    }
+
+}
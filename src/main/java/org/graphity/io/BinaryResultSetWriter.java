@@ -0,0 +1,73 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes SPARQL result set as binary RDF results, row by row. Not thread-safe.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see BinaryRDF
+ */
+public class BinaryResultSetWriter extends BinaryRDFWriter
+{
+    /** Media type of the format */
+    public static final String CONTENT_TYPE = "application/x-sparql-results+binary";
+
+    public BinaryResultSetWriter(OutputStream out)
+    {
+	super(out);
+    }
+
+    public static void write(ResultSet results, OutputStream out) throws IOException
+    {
+	BinaryResultSetWriter writer = new BinaryResultSetWriter(out);
+	writer.write(results);
+	writer.finish();
+    }
+
+    public void write(ResultSet results) throws IOException
+    {
+	List<Var> vars = Var.varList(results.getResultVars());
+	start();
+	writeByte(BinaryRDF.VARIABLES);
+	writeVarint(vars.size());
+	for (Var var : vars) writeString(var.getVarName());
+
+	while (results.hasNext())
+	{
+	    Binding binding = results.nextBinding();
+	    writeByte(BinaryRDF.ROW);
+	    for (Var var : vars)
+	    {
+		if (binding.contains(var)) writeTerm(binding.get(var));
+		else
+		{
+		    writeVarint(0);
+		    writeByte(BinaryRDF.UNDEF);
+		}
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.openjena.riot.out.NodeFmtLib;
+
+/**
+ * Writes SPARQL result set as CSV, row by row. Only the values are written: IRIs without brackets and literals
+ * without language tags or datatypes.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/sparql11-results-csv-tsv/#csv">SPARQL 1.1 Query Results CSV Format</a>
+ */
+public class CSVResultSetWriter
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void write(ResultSet results, OutputStream out) throws IOException
+    {
+	Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 8192);
+	List<Var> vars = Var.varList(results.getResultVars());
+
+	for (int i = 0; i < vars.size(); i++)
+	{
+	    if (i > 0) writer.write(',');
+	    writeField(writer, vars.get(i).getVarName());
+	}
+	writer.write("\r\n");
+
+	while (results.hasNext())
+	{
+	    Binding binding = results.nextBinding();
+	    for (int i = 0; i < vars.size(); i++)
+	    {
+		if (i > 0) writer.write(',');
+		Node node = binding.get(vars.get(i));
+		if (node == null) continue;
+
+		if (node.isURI()) writeField(writer, node.getURI());
+		else if (node.isBlank()) writeField(writer, "_:" + NodeFmtLib.encodeBNodeLabel(node.getBlankNodeLabel()));
+		else writeField(writer, node.getLiteralLexicalForm());
+	    }
+	    writer.write("\r\n");
+	}
+	writer.flush();
+    }
+
+    /**
+     * Writes field, quoted if it contains a comma, quote or line break.
+     */
+    private static void writeField(Writer writer, String value) throws IOException
+    {
+	boolean quote = false;
+	for (int i = 0; i < value.length() && !quote; i++)
+	{
+	    char c = value.charAt(i);
+	    quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+	}
+	if (!quote)
+	{
+	    writer.write(value);
+	    return;
+	}
+
+	writer.write('"');
+	int start = 0;
+	for (int i = 0; i < value.length(); i++)
+	    if (value.charAt(i) == '"')
+	    {
+		writer.write(value, start, i + 1 - start);
+		writer.write('"');
+		start = i + 1;
+	    }
+	writer.write(value, start, value.length() - start);
+	writer.write('"');
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decoding of HTTP entity streams with <code>gzip</code> and <code>deflate</code> content codings.
+ * Streams are decompressed as they are read.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://tools.ietf.org/html/rfc2616#section-3.5">RFC 2616: Content Codings</a>
+ */
+public class ContentCoding
+{
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /** <code>Accept-Encoding</code> header value of the content codings that can be decoded */
+    public static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+    /**
+     * Checks whether content coding can be decoded.
+     *
+     * @param contentEncoding <code>Content-Encoding</code> header value, possibly null
+     * @return true if supported (or no coding is applied)
+     */
+    public static boolean isSupported(String contentEncoding)
+    {
+	if (contentEncoding == null) return true;
+
+	String coding = contentEncoding.trim();
+	return coding.isEmpty() || coding.equalsIgnoreCase("identity") || coding.equalsIgnoreCase(GZIP) ||
+		coding.equalsIgnoreCase("x-gzip") || coding.equalsIgnoreCase(DEFLATE);
+    }
+
+    /**
+     * Wraps entity stream with a decompressing stream, if content coding is applied.
+     * Both zlib-wrapped and raw data are accepted for <code>deflate</code>, as servers disagree on it.
+     *
+     * @param in entity stream
+     * @param contentEncoding <code>Content-Encoding</code> header value, possibly null
+     * @return decoded stream
+     * @throws IOException if coding is not supported or the stream header cannot be read
+     */
+    public static InputStream decode(InputStream in, String contentEncoding) throws IOException
+    {
+	if (contentEncoding == null) return in;
+
+	String coding = contentEncoding.trim();
+	if (coding.isEmpty() || coding.equalsIgnoreCase("identity")) return in;
+	if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) return new GZIPInputStream(in, 8192);
+	if (coding.equalsIgnoreCase(DEFLATE))
+	{
+	    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+	    byte[] header = new byte[2];
+	    int read = 0;
+	    while (read < 2)
+	    {
+		int count = pushback.read(header, read, 2 - read);
+		if (count < 0) break;
+		read += count;
+	    }
+	    pushback.unread(header, 0, read);
+
+	    boolean zlib = read == 2 && (header[0] & 0x0f) == 8 && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+	    final Inflater inflater = new Inflater(!zlib);
+	    return new InflaterInputStream(pushback, inflater, 8192)
+	    {
+		@Override
+		public void close() throws IOException
+		{
+		    try
+		    {
+			super.close();
+		    }
+		    finally
+		    {
+			inflater.end();
+		    }
+		}
+	    };
+	}
+
+	throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.graphity.util.JSONUtils;
+import org.openjena.riot.out.NodeFmtLib;
+
+/**
+ * Writes triples as JSON-LD in expanded form, without a context. Not thread-safe.
+ * Triples are written as they arrive: consecutive triples with the same subject are grouped into one node object,
+ * so only the properties of the current subject are held in memory. A subject that appears again later starts
+ * another node object with the same <code>@id</code>, which is equivalent in JSON-LD.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/json-ld/#expanded-document-form">JSON-LD: Expanded Document Form</a>
+ */
+public class JSONLDWriter
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Writer writer;
+    private final StringBuilder sb = new StringBuilder();
+    private final Map<Node, List<Node>> properties = new LinkedHashMap<Node, List<Node>>();
+    private Node subject = null;
+    private boolean started = false, empty = true;
+
+    public JSONLDWriter(OutputStream out)
+    {
+	if (out == null) throw new IllegalArgumentException("OutputStream must be not null");
+	this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 8192);
+    }
+
+    public static void write(Graph graph, OutputStream out) throws IOException
+    {
+	JSONLDWriter writer = new JSONLDWriter(out);
+	writer.write(graph);
+	writer.finish();
+    }
+
+    public void write(Graph graph) throws IOException
+    {
+	ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+	try
+	{
+	    while (it.hasNext()) write(it.next());
+	}
+	finally
+	{
+	    it.close();
+	}
+    }
+
+    public void write(Triple triple) throws IOException
+    {
+	start();
+	if (!triple.getSubject().equals(subject))
+	{
+	    writeNode();
+	    subject = triple.getSubject();
+	}
+
+	List<Node> objects = properties.get(triple.getPredicate());
+	if (objects == null)
+	{
+	    objects = new ArrayList<Node>(2);
+	    properties.put(triple.getPredicate(), objects);
+	}
+	objects.add(triple.getObject());
+    }
+
+    /**
+     * Writes the last node object, closes the document and flushes the output stream.
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    public void finish() throws IOException
+    {
+	start();
+	writeNode();
+	writer.write(']');
+	writer.flush();
+    }
+
+    private void start() throws IOException
+    {
+	if (!started)
+	{
+	    started = true;
+	    writer.write('[');
+	}
+    }
+
+    private void writeNode() throws IOException
+    {
+	if (subject == null) return;
+
+	sb.setLength(0);
+	if (!empty) sb.append(',');
+	sb.append('{');
+	JSONUtils.append(sb, "@id", getId(subject));
+	for (Entry<Node, List<Node>> entry : properties.entrySet())
+	{
+	    JSONUtils.quote(sb.append(','), entry.getKey().getURI()).append(":[");
+	    for (int i = 0; i < entry.getValue().size(); i++)
+	    {
+		if (i > 0) sb.append(',');
+		appendObject(entry.getValue().get(i));
+	    }
+	    sb.append(']');
+	}
+	sb.append('}');
+	writer.append(sb);
+
+	empty = false;
+	subject = null;
+	properties.clear();
+    }
+
+    private void appendObject(Node node)
+    {
+	sb.append('{');
+	if (node.isLiteral())
+	{
+	    JSONUtils.append(sb, "@value", node.getLiteralLexicalForm());
+	    String lang = node.getLiteralLanguage();
+	    if (lang != null && !lang.isEmpty()) JSONUtils.append(sb.append(','), "@language", lang);
+	    else if (node.getLiteralDatatypeURI() != null) JSONUtils.append(sb.append(','), "@type", node.getLiteralDatatypeURI());
+	}
+	else JSONUtils.append(sb, "@id", getId(node));
+	sb.append('}');
+    }
+
+    private static String getId(Node node)
+    {
+	if (node.isBlank()) return "_:" + NodeFmtLib.encodeBNodeLabel(node.getBlankNodeLabel());
+	return node.getURI();
+    }
+
+}
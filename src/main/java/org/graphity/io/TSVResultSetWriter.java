@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.openjena.riot.out.NodeFmtLib;
+
+/**
+ * Writes SPARQL result set as TSV, row by row. Terms are written in N-Triples syntax, without prefixes.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/sparql11-results-csv-tsv/#tsv">SPARQL 1.1 Query Results TSV Format</a>
+ */
+public class TSVResultSetWriter
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void write(ResultSet results, OutputStream out) throws IOException
+    {
+	Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 8192);
+	List<Var> vars = Var.varList(results.getResultVars());
+
+	for (int i = 0; i < vars.size(); i++)
+	{
+	    if (i > 0) writer.write('\t');
+	    writer.write('?');
+	    writer.write(vars.get(i).getVarName());
+	}
+	writer.write('\n');
+
+	while (results.hasNext())
+	{
+	    Binding binding = results.nextBinding();
+	    for (int i = 0; i < vars.size(); i++)
+	    {
+		if (i > 0) writer.write('\t');
+		Node node = binding.get(vars.get(i));
+		if (node != null) writeNode(writer, node);
+	    }
+	    writer.write('\n');
+	}
+	writer.flush();
+    }
+
+    protected static void writeNode(Writer writer, Node node) throws IOException
+    {
+	if (node.isURI())
+	{
+	    writer.write('<');
+	    writer.write(node.getURI());
+	    writer.write('>');
+	}
+	else if (node.isBlank())
+	{
+	    writer.write("_:");
+	    writer.write(NodeFmtLib.encodeBNodeLabel(node.getBlankNodeLabel()));
+	}
+	else
+	{
+	    writer.write('"');
+	    writeEscaped(writer, node.getLiteralLexicalForm());
+	    writer.write('"');
+	    String lang = node.getLiteralLanguage();
+	    if (lang != null && !lang.isEmpty())
+	    {
+		writer.write('@');
+		writer.write(lang);
+	    }
+	    else if (node.getLiteralDatatypeURI() != null)
+	    {
+		writer.write("^^<");
+		writer.write(node.getLiteralDatatypeURI());
+		writer.write('>');
+	    }
+	}
+    }
+
+    private static void writeEscaped(Writer writer, String value) throws IOException
+    {
+	int start = 0;
+	for (int i = 0; i < value.length(); i++)
+	{
+	    String escape;
+	    switch (value.charAt(i))
+	    {
+		case '"': escape = "\\\""; break;
+		case '\\': escape = "\\\\"; break;
+		case '\n': escape = "\\n"; break;
+		case '\r': escape = "\\r"; break;
+		case '\t': escape = "\\t"; break;
+		default: continue;
+	    }
+	    writer.write(value, start, i - start);
+	    writer.write(escape);
+	    start = i + 1;
+	}
+	writer.write(value, start, value.length() - start);
+    }
+
+}
@@ -0,0 +1,385 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.query;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.expr.*;
+import com.hp.hpl.jena.sparql.syntax.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * SPARQL query template that is parsed once and bound to parameter values many times.
+ * Parameters are variables of the template. Binding a parameter copies the syntax tree of the template with the
+ * variable replaced by the value, so that the query does not have to be built from a string and parsed again on
+ * every request. Expressions without parameters and inline data are shared between the template and the bound
+ * queries, which therefore must not be modified in place, apart from the query-level modifiers such as
+ * <code>OFFSET</code> and <code>LIMIT</code>.
+ * Bound queries are equivalent to the ones parsed from the template with the values substituted as text, and are
+ * executed remotely in their serialized form, so the template is not compiled to algebra.
+ * Arguments of aggregates are not substituted, so parameters should not be used inside them.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://jena.apache.org/documentation/javadoc/arq/com/hp/hpl/jena/query/Query.html">ARQ Query</a>
+ */
+public class PreparedQuery
+{
+    private final Query template;
+
+    /**
+     * Parses query template.
+     *
+     * @param template SPARQL 1.1 query string with parameters as variables
+     * @throws com.hp.hpl.jena.query.QueryParseException if the template is not a valid query
+     */
+    public PreparedQuery(String template)
+    {
+	this(QueryFactory.create(template, Syntax.syntaxSPARQL_11));
+    }
+
+    /**
+     * Creates prepared query from a parsed template.
+     * The template is shared with the bound queries and must not be modified afterwards.
+     *
+     * @param template query template
+     */
+    public PreparedQuery(Query template)
+    {
+	if (template == null) throw new IllegalArgumentException("Query template must be not null");
+	this.template = template;
+    }
+
+    /**
+     * Binds single parameter.
+     *
+     * @param name variable name, without the <code>?</code>
+     * @param value concrete node (URI, literal or blank node)
+     * @return new query with the value in place of the variable
+     */
+    public Query bind(String name, Node value)
+    {
+	return bind(Collections.singletonMap(name, value));
+    }
+
+    /**
+     * Binds parameters.
+     * Variables of the template that are not bound remain variables. Names that are not used in the template are
+     * ignored.
+     *
+     * @param values map of variable names (without the <code>?</code>) to concrete nodes
+     * @return new query with the values in place of the variables
+     */
+    public Query bind(Map<String, Node> values)
+    {
+	if (values == null) throw new IllegalArgumentException("Parameter map must be not null");
+
+	Map<Var, Node> bindings = new HashMap<Var, Node>();
+	for (Map.Entry<String, Node> entry : values.entrySet())
+	{
+	    if (entry.getValue() == null || entry.getValue().isVariable())
+		throw new IllegalArgumentException("Value of parameter ?" + entry.getKey() + " must be a concrete node");
+	    bindings.put(Var.alloc(entry.getKey()), entry.getValue());
+	}
+
+	Query query = new Substitution(bindings).copy(template, false);
+	// aggregators are registered with the query when it is parsed, and cannot be copied
+	if (template.hasAggregators()) return QueryFactory.create(query.toString(), template.getSyntax());
+	return query;
+    }
+
+    /**
+     * Returns the parsed template.
+     * It is shared with this prepared query and must not be modified.
+     *
+     * @return query template
+     */
+    public Query getTemplate()
+    {
+	return template;
+    }
+
+    @Override
+    public String toString()
+    {
+	return template.toString();
+    }
+
+    /**
+     * Copies query syntax, replacing variables with their values.
+     */
+    private static class Substitution extends ExprTransformCopy implements ElementVisitor
+    {
+	private final Map<Var, Node> bindings;
+	private Element result = null;
+
+	Substitution(Map<Var, Node> bindings)
+	{
+	    super(COPY_ONLY_ON_CHANGE);
+	    this.bindings = bindings;
+	}
+
+	/**
+	 * Copies query. Bound variables projected by a subquery are already constants in the outer query, so they
+	 * are dropped from its projection, or left unbound if nothing else is projected.
+	 */
+	Query copy(Query original, boolean subQuery)
+	{
+	    Query query = new Query();
+	    query.setSyntax(original.getSyntax());
+	    query.setPrefixMapping(original.getPrefixMapping());
+	    if (original.explicitlySetBaseURI()) query.setBaseURI(original.getBaseURI());
+	    if (original.isSelectType()) query.setQuerySelectType();
+	    else if (original.isConstructType()) query.setQueryConstructType();
+	    else if (original.isDescribeType()) query.setQueryDescribeType();
+	    else if (original.isAskType()) query.setQueryAskType();
+	    query.setDistinct(original.isDistinct());
+	    query.setReduced(original.isReduced());
+	    for (String uri : original.getGraphURIs()) query.addGraphURI(uri);
+	    for (String uri : original.getNamedGraphURIs()) query.addNamedGraphURI(uri);
+
+	    if (original.isDescribeType())
+	    {
+		for (Node node : original.getResultURIs()) query.addDescribeNode(node);
+		for (String name : original.getResultVars())
+		{
+		    Node value = bindings.get(Var.alloc(name));
+		    if (value != null) query.addDescribeNode(value);
+		    else query.addResultVar(name);
+		}
+		if (original.isQueryResultStar()) query.setQueryResultStar(true);
+	    }
+	    if (original.isSelectType())
+	    {
+		if (original.isQueryResultStar()) query.setQueryResultStar(true);
+		else
+		{
+		    VarExprList project = original.getProject();
+		    boolean dropBound = subQuery && !bindings.keySet().containsAll(project.getVars());
+		    for (Var var : project.getVars())
+		    {
+			if (project.hasExpr(var)) query.addResultVar(var, copy(project.getExpr(var)));
+			else if (!bindings.containsKey(var)) query.addResultVar(var);
+			else if (!subQuery) query.addResultVar(var, NodeValue.makeNode(bindings.get(var)));
+			else if (!dropBound) query.addResultVar(var);
+		    }
+		}
+	    }
+	    if (original.isConstructType())
+		query.setConstructTemplate(new Template(copy(original.getConstructTemplate().getBGP())));
+
+	    if (original.getQueryPattern() != null) query.setQueryPattern(copy(original.getQueryPattern()));
+
+	    if (original.hasGroupBy())
+	    {
+		VarExprList groupBy = original.getGroupBy();
+		for (Var var : groupBy.getVars())
+		{
+		    if (groupBy.hasExpr(var)) query.addGroupBy(var, copy(groupBy.getExpr(var)));
+		    else query.addGroupBy(var);
+		}
+	    }
+	    if (original.hasHaving())
+		for (Expr expr : original.getHavingExprs()) query.addHavingCondition(copy(expr));
+	    if (original.hasOrderBy())
+		for (SortCondition condition : original.getOrderBy())
+		    query.addOrderBy(copy(condition.getExpression()), condition.getDirection());
+	    if (original.hasOffset()) query.setOffset(original.getOffset());
+	    if (original.hasLimit()) query.setLimit(original.getLimit());
+	    if (original.hasValues()) query.setValuesDataBlock(original.getValuesVariables(), original.getValuesData());
+
+	    return query;
+	}
+
+	Element copy(Element element)
+	{
+	    element.visit(this);
+	    return result;
+	}
+
+	Expr copy(Expr expr)
+	{
+	    return ExprTransformer.transform(this, expr);
+	}
+
+	Node copy(Node node)
+	{
+	    if (!node.isVariable()) return node;
+
+	    Node value = bindings.get(Var.alloc(node));
+	    return value != null ? value : node;
+	}
+
+	Triple copy(Triple triple)
+	{
+	    return new Triple(copy(triple.getSubject()), copy(triple.getPredicate()), copy(triple.getObject()));
+	}
+
+	BasicPattern copy(BasicPattern pattern)
+	{
+	    BasicPattern copy = new BasicPattern();
+	    for (Triple triple : pattern) copy.add(copy(triple));
+	    return copy;
+	}
+
+	@Override
+	public Expr transform(ExprVar exprVar)
+	{
+	    Node value = bindings.get(exprVar.asVar());
+	    return value != null ? NodeValue.makeNode(value) : super.transform(exprVar);
+	}
+
+	@Override
+	public Expr transform(ExprFunctionOp funcOp, ExprList args, Op opArg)
+	{
+	    if (funcOp.getElement() != null)
+	    {
+		if (funcOp instanceof E_Exists) return new E_Exists(copy(funcOp.getElement()));
+		if (funcOp instanceof E_NotExists) return new E_NotExists(copy(funcOp.getElement()));
+	    }
+
+	    return super.transform(funcOp, args, opArg);
+	}
+
+	@Override
+	public void visit(ElementTriplesBlock el)
+	{
+	    result = new ElementTriplesBlock(copy(el.getPattern()));
+	}
+
+	@Override
+	public void visit(ElementPathBlock el)
+	{
+	    ElementPathBlock copy = new ElementPathBlock();
+	    Iterator<TriplePath> it = el.patternElts();
+	    while (it.hasNext())
+	    {
+		TriplePath path = it.next();
+		if (path.isTriple()) copy.addTriple(copy(path.asTriple()));
+		else copy.addTriplePath(new TriplePath(copy(path.getSubject()), path.getPath(), copy(path.getObject())));
+	    }
+	    result = copy;
+	}
+
+	@Override
+	public void visit(ElementFilter el)
+	{
+	    result = new ElementFilter(copy(el.getExpr()));
+	}
+
+	@Override
+	public void visit(ElementAssign el)
+	{
+	    result = new ElementAssign(el.getVar(), copy(el.getExpr()));
+	}
+
+	@Override
+	public void visit(ElementBind el)
+	{
+	    result = new ElementBind(el.getVar(), copy(el.getExpr()));
+	}
+
+	@Override
+	public void visit(ElementData el)
+	{
+	    result = el;
+	}
+
+	@Override
+	public void visit(ElementUnion el)
+	{
+	    ElementUnion copy = new ElementUnion();
+	    for (Element element : el.getElements()) copy.addElement(copy(element));
+	    result = copy;
+	}
+
+	@Override
+	public void visit(ElementOptional el)
+	{
+	    result = new ElementOptional(copy(el.getOptionalElement()));
+	}
+
+	@Override
+	public void visit(ElementGroup el)
+	{
+	    ElementGroup copy = new ElementGroup();
+	    for (Element element : el.getElements()) copy.addElement(copy(element));
+	    result = copy;
+	}
+
+	@Override
+	public void visit(ElementDataset el)
+	{
+	    result = el;
+	}
+
+	@Override
+	public void visit(ElementNamedGraph el)
+	{
+	    result = new ElementNamedGraph(copy(el.getGraphNameNode()), copy(el.getElement()));
+	}
+
+	@Override
+	public void visit(ElementExists el)
+	{
+	    result = new ElementExists(copy(el.getElement()));
+	}
+
+	@Override
+	public void visit(ElementNotExists el)
+	{
+	    result = new ElementNotExists(copy(el.getElement()));
+	}
+
+	@Override
+	public void visit(ElementMinus el)
+	{
+	    result = new ElementMinus(copy(el.getMinusElement()));
+	}
+
+	@Override
+	public void visit(ElementService el)
+	{
+	    result = new ElementService(copy(el.getServiceNode()), copy(el.getElement()), el.getSilent());
+	}
+
+	@Override
+	public void visit(ElementFetch el)
+	{
+	    result = el;
+	}
+
+	@Override
+	public void visit(ElementSubQuery el)
+	{
+	    result = new ElementSubQuery(copy(el.getQuery(), true));
+	}
+
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.query;
+
+/**
+ * Static cost estimate of a SPARQL query, as computed by <code>QueryCostEstimator</code>.
+ * Holds counts of the expensive constructs found in the query algebra and their weighted sum.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see QueryCostEstimator
+ */
+public class QueryCost
+{
+    /** Weight of a triple pattern with subject, predicate and object all unbound */
+    public static final long UNBOUND_PATTERN_WEIGHT = 100;
+    /** Weight of a triple pattern with only the predicate bound */
+    public static final long OPEN_PATTERN_WEIGHT = 10;
+    /** Weight of a cartesian product, i.e. join of patterns without shared variables */
+    public static final long CARTESIAN_PRODUCT_WEIGHT = 200;
+    /** Weight of a property path */
+    public static final long PATH_WEIGHT = 20;
+    /** Weight of an arbitrary length (<code>*</code>, <code>+</code>) property path */
+    public static final long UNBOUNDED_PATH_WEIGHT = 100;
+    /** Weight of each level of nested <code>OPTIONAL</code> */
+    public static final long OPTIONAL_DEPTH_WEIGHT = 20;
+    /** Weight of a <code>SERVICE</code> call */
+    public static final long SERVICE_WEIGHT = 100;
+    /** Weight of a missing <code>LIMIT</code> */
+    public static final long NO_LIMIT_WEIGHT = 50;
+
+    int unboundPatterns = 0;
+    int openPatterns = 0;
+    int cartesianProducts = 0;
+    int paths = 0;
+    int unboundedPaths = 0;
+    int optionalDepth = 0;
+    int services = 0;
+    boolean limited = true;
+
+    /**
+     * Returns weighted sum of all cost signals.
+     *
+     * @return total cost
+     */
+    public long getTotal()
+    {
+	return unboundPatterns * UNBOUND_PATTERN_WEIGHT +
+		openPatterns * OPEN_PATTERN_WEIGHT +
+		cartesianProducts * CARTESIAN_PRODUCT_WEIGHT +
+		paths * PATH_WEIGHT +
+		unboundedPaths * UNBOUNDED_PATH_WEIGHT +
+		optionalDepth * OPTIONAL_DEPTH_WEIGHT +
+		services * SERVICE_WEIGHT +
+		(limited ? 0 : NO_LIMIT_WEIGHT);
+    }
+
+    public int getUnboundPatterns()
+    {
+	return unboundPatterns;
+    }
+
+    public int getOpenPatterns()
+    {
+	return openPatterns;
+    }
+
+    public int getCartesianProducts()
+    {
+	return cartesianProducts;
+    }
+
+    public int getPaths()
+    {
+	return paths;
+    }
+
+    public int getUnboundedPaths()
+    {
+	return unboundedPaths;
+    }
+
+    public int getOptionalDepth()
+    {
+	return optionalDepth;
+    }
+
+    public int getServices()
+    {
+	return services;
+    }
+
+    public boolean isLimited()
+    {
+	return limited;
+    }
+
+    @Override
+    public String toString()
+    {
+	return "QueryCost[total=" + getTotal() +
+		", unboundPatterns=" + unboundPatterns +
+		", openPatterns=" + openPatterns +
+		", cartesianProducts=" + cartesianProducts +
+		", paths=" + paths +
+		", unboundedPaths=" + unboundedPaths +
+		", optionalDepth=" + optionalDepth +
+		", services=" + services +
+		", limited=" + limited + "]";
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.query;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.op.*;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.path.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates cost of a SPARQL query without executing it.
+ * Walks the ARQ algebra of the query and counts constructs that are known to be expensive on triple stores:
+ * unbound triple patterns, cartesian products, property paths, nested <code>OPTIONAL</code>s,
+ * <code>SERVICE</code> calls and missing <code>LIMIT</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see QueryCost
+ * @see <a href="http://jena.apache.org/documentation/query/algebra.html">ARQ - SPARQL Algebra</a>
+ */
+public class QueryCostEstimator
+{
+    private static final Logger log = LoggerFactory.getLogger(QueryCostEstimator.class);
+
+    /**
+     * Estimates cost of a query.
+     *
+     * @param query query object
+     * @return cost estimate
+     */
+    public static QueryCost estimate(Query query)
+    {
+	if (query == null) throw new IllegalArgumentException("Query must be not null");
+
+	QueryCost cost = new QueryCost();
+	cost.limited = query.isAskType() || query.hasLimit() ||
+		(query.isDescribeType() && query.getQueryPattern() == null); // DESCRIBE of explicit URIs
+	walk(Algebra.compile(query), 0, cost);
+
+	if (log.isDebugEnabled()) log.debug("Estimated {} for Query: {}", cost, query);
+	return cost;
+    }
+
+    private static void walk(Op op, int optionalDepth, QueryCost cost)
+    {
+	cost.optionalDepth = Math.max(cost.optionalDepth, optionalDepth);
+
+	if (op instanceof OpBGP) addPattern(((OpBGP)op).getPattern(), cost);
+	if (op instanceof OpTriple)
+	{
+	    BasicPattern pattern = new BasicPattern();
+	    pattern.add(((OpTriple)op).getTriple());
+	    addPattern(pattern, cost);
+	}
+	if (op instanceof OpPath) addPath(((OpPath)op).getTriplePath().getPath(), cost);
+	if (op instanceof OpService) cost.services++;
+
+	if (op instanceof Op1) walk(((Op1)op).getSubOp(), optionalDepth, cost);
+	if (op instanceof Op2)
+	{
+	    Op2 op2 = (Op2)op;
+	    if (op instanceof OpJoin && isCartesian(OpVars.patternVars(op2.getLeft()), OpVars.patternVars(op2.getRight())))
+		cost.cartesianProducts++;
+
+	    walk(op2.getLeft(), optionalDepth, cost);
+	    walk(op2.getRight(), op instanceof OpLeftJoin ? optionalDepth + 1 : optionalDepth, cost);
+	}
+	if (op instanceof OpN)
+	{
+	    Set<Var> previousVars = new HashSet<Var>();
+	    for (Op element : ((OpN)op).getElements())
+	    {
+		Set<Var> elementVars = OpVars.patternVars(element);
+		if (op instanceof OpSequence && isCartesian(previousVars, elementVars)) cost.cartesianProducts++;
+		previousVars.addAll(elementVars);
+
+		walk(element, optionalDepth, cost);
+	    }
+	}
+    }
+
+    private static boolean isCartesian(Set<Var> leftVars, Set<Var> rightVars)
+    {
+	if (leftVars.isEmpty() || rightVars.isEmpty()) return false;
+
+	return Collections.disjoint(leftVars, rightVars);
+    }
+
+    private static void addPattern(BasicPattern pattern, QueryCost cost)
+    {
+	// groups of variables connected by triple patterns; more than one group means cartesian product
+	List<Set<Var>> components = new ArrayList<Set<Var>>();
+
+	for (Triple triple : pattern.getList())
+	{
+	    boolean subjectBound = triple.getSubject().isConcrete();
+	    boolean predicateBound = triple.getPredicate().isConcrete();
+	    boolean objectBound = triple.getObject().isConcrete();
+
+	    if (!subjectBound && !predicateBound && !objectBound) cost.unboundPatterns++;
+	    else if (!subjectBound && !objectBound) cost.openPatterns++;
+
+	    Set<Var> vars = new HashSet<Var>();
+	    addVar(triple.getSubject(), vars);
+	    addVar(triple.getPredicate(), vars);
+	    addVar(triple.getObject(), vars);
+	    if (vars.isEmpty()) continue;
+
+	    Set<Var> merged = vars;
+	    for (int i = components.size() - 1; i >= 0; i--)
+		if (!Collections.disjoint(components.get(i), vars))
+		    merged.addAll(components.remove(i));
+	    components.add(merged);
+	}
+
+	if (components.size() > 1) cost.cartesianProducts += components.size() - 1;
+    }
+
+    private static void addVar(Node node, Set<Var> vars)
+    {
+	if (Var.isVar(node)) vars.add(Var.alloc(node));
+    }
+
+    private static void addPath(Path path, QueryCost cost)
+    {
+	cost.paths++;
+	if (isUnbounded(path)) cost.unboundedPaths++;
+    }
+
+    private static boolean isUnbounded(Path path)
+    {
+	if (path instanceof P_ZeroOrMore1 || path instanceof P_ZeroOrMoreN ||
+		path instanceof P_OneOrMore1 || path instanceof P_OneOrMoreN)
+	    return true;
+	if (path instanceof P_Mod && ((P_Mod)path).getMax() == P_Mod.INF) return true;
+
+	if (path instanceof P_Path1) return isUnbounded(((P_Path1)path).getSubPath());
+	if (path instanceof P_Path2) return isUnbounded(((P_Path2)path).getLeft()) || isUnbounded(((P_Path2)path).getRight());
+
+	return false;
+    }
+
+}
@@ -17,27 +17,110 @@
 
 package org.graphity.query;
 
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.engine.http.HttpQuery;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
 import com.hp.hpl.jena.sparql.engine.http.Service;
+import com.hp.hpl.jena.sparql.resultset.JSONInput;
+import com.hp.hpl.jena.sparql.resultset.XMLInput;
 import com.hp.hpl.jena.sparql.util.Context;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
+import org.openjena.riot.WebContent;
+import org.openjena.riot.lang.LangRDFXML;
+import org.openjena.riot.lang.SinkTriplesToGraph;
+import org.graphity.io.BinaryRDF;
+import org.graphity.io.ContentCoding;
+import org.graphity.io.BinaryRDFReader;
+import org.graphity.server.slowquery.QueryProfile;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Extends ARQ QueryEngineHTTP class in order to set authentication parameters stored in service context.
  * This workaround should be incorporated into Jena's codebase starting with version 2.10.1.
+ * Requests are executed using pooled Apache HttpClient connections instead of <code>HttpURLConnection</code>, so that
+ * timeouts are enforced as socket read deadlines and an executing request can be aborted from another thread.
+ * Compressed responses (<code>gzip</code> or <code>deflate</code>) are requested and decompressed while they are read.
+ * If validators of a cached response are set, the request is conditional and a <code>304 Not Modified</code>
+ * response is reported by {@link #isNotModified()} instead of being parsed.
+ * A response body that has not been read to the end when the query is closed, e.g. after a parse error or a
+ * cancellation, is only drained if the rest is short; otherwise the request is aborted and the connection dropped.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  * @see <a href="https://issues.apache.org/jira/browse/JENA-405">JIRA Issue JENA-405</a>
+ * @see <a href="http://hc.apache.org/httpcomponents-client-ga/tutorial/html/fundamentals.html#d5e303">HttpClient: Aborting requests</a>
  */
 public class QueryEngineHTTP extends com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP
 {
     private static final Logger log = LoggerFactory.getLogger(QueryEngineHTTP.class);
 
+    /** Accept header value for <code>SELECT</code> and <code>ASK</code> queries */
+    public static final String RESULT_SET_ACCEPT = WebContent.contentTypeResultsXML + ", " + WebContent.contentTypeResultsJSON + ";q=0.9";
+    /** Accept header value for <code>CONSTRUCT</code> and <code>DESCRIBE</code> queries */
+    public static final String MODEL_ACCEPT = BinaryRDF.CONTENT_TYPE + ", " + WebContent.contentTypeTurtle + ";q=0.95, " + WebContent.contentTypeRDFXML + ";q=0.9, " + WebContent.contentTypeNTriples + ";q=0.8";
+
+    /** Maximum number of unread bytes that are drained on close, so that the connection can be reused */
+    public static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final DefaultHttpClient httpClient = createHttpClient();
+
+    private final String serviceURI;
+    private final String queryString;
+    private final List<NameValuePair> params = new ArrayList<NameValuePair>();
+    private String user = null;
+    private char[] password = null;
+    private long connectTimeout = -1, readTimeout = -1;
+    private volatile HttpUriRequest request = null;
+    private volatile HttpEntity entity = null;
+    private volatile InputStream body = null;
+    private volatile InputStream decoded = null;
+    private volatile boolean aborted = false;
+    private String ifNoneMatch = null, ifModifiedSince = null;
+    private volatile String etag = null, lastModified = null;
+    private volatile boolean notModified = false;
+
     public QueryEngineHTTP(String serviceURI, String queryString)
     {
 	super(serviceURI, queryString);
+	this.serviceURI = serviceURI;
+	this.queryString = queryString;
 	
 	Map<String, Context> serviceContextMap = (Map<String,Context>)getContext().get(Service.serviceContext);
 	if (serviceContextMap != null && serviceContextMap.containsKey(serviceURI))
@@ -62,5 +145,502 @@ public class QueryEngineHTTP extends com.hp.hpl.jena.sparql.engine.http.QueryEng
     {
 	this(serviceURI, query.toString());	
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * Closes the pooled connections shared by all queries. Queries cannot be executed afterwards.
+     * Should be called when the application is undeployed.
+     */
+    public static void shutdown()
+    {
+	if (log.isDebugEnabled()) log.debug("Shutting down HttpClient connection manager");
+	httpClient.getConnectionManager().shutdown();
+    }
+
+    private static DefaultHttpClient createHttpClient()
+    {
+	ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager();
+	connectionManager.setMaxTotal(200);
+	connectionManager.setDefaultMaxPerRoute(50);
+	return new DefaultHttpClient(connectionManager);
+    }
+
+    @Override
+    public void addParam(String field, String value)
+    {
+	super.addParam(field, value);
+	params.add(new BasicNameValuePair(field, value));
+    }
+
+    @Override
+    public void addDefaultGraph(String defaultGraph)
+    {
+	super.addDefaultGraph(defaultGraph);
+	params.add(new BasicNameValuePair("default-graph-uri", defaultGraph));
+    }
+
+    @Override
+    public void addNamedGraph(String name)
+    {
+	super.addNamedGraph(name);
+	params.add(new BasicNameValuePair("named-graph-uri", name));
+    }
+
+    @Override
+    public final void setBasicAuthentication(String user, char[] password)
+    {
+	super.setBasicAuthentication(user, password);
+	this.user = user;
+	this.password = password;
+    }
+
+    /**
+     * Sets socket read timeout of the request.
+     * 
+     * @param readTimeout timeout in milliseconds, or -1 for no timeout
+     */
+    @Override
+    public void setTimeout(long readTimeout)
+    {
+	setTimeout(readTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets socket read and connection timeouts of the request.
+     * 
+     * @param readTimeout read timeout in milliseconds, or -1 for no timeout
+     * @param connectTimeout connection timeout in milliseconds, or -1 for no timeout
+     */
+    @Override
+    public void setTimeout(long readTimeout, long connectTimeout)
+    {
+	setTimeout(readTimeout, TimeUnit.MILLISECONDS, connectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void setTimeout(long readTimeout, TimeUnit timeoutUnits)
+    {
+	super.setTimeout(readTimeout, timeoutUnits);
+	this.readTimeout = readTimeout < 0 ? -1 : timeoutUnits.toMillis(readTimeout);
+    }
+
+    @Override
+    public void setTimeout(long readTimeout, TimeUnit readTimeoutUnits, long connectTimeout, TimeUnit connectTimeoutUnits)
+    {
+	super.setTimeout(readTimeout, readTimeoutUnits, connectTimeout, connectTimeoutUnits);
+	this.readTimeout = readTimeout < 0 ? -1 : readTimeoutUnits.toMillis(readTimeout);
+	this.connectTimeout = connectTimeout < 0 ? -1 : connectTimeoutUnits.toMillis(connectTimeout);
+    }
+
+    /**
+     * Makes the request conditional, using validators of a previously retrieved response.
+     * 
+     * @param etag value for <code>If-None-Match</code> header, or null if none
+     * @param lastModified value for <code>If-Modified-Since</code> header, or null if none
+     * @see #isNotModified()
+     */
+    public void setValidators(String etag, String lastModified)
+    {
+	this.ifNoneMatch = etag;
+	this.ifModifiedSince = lastModified;
+    }
+
+    /**
+     * Executes <code>SELECT</code> query.
+     * 
+     * @return result set, or null if the request was conditional and the endpoint returned <code>304 Not Modified</code>
+     */
+    @Override
+    public ResultSet execSelect()
+    {
+	InputStream in = exec(RESULT_SET_ACCEPT);
+	if (in == null) return null;
+	String contentType = getContentType();
+	if (contentType == null || contentType.equals(WebContent.contentTypeResultsXML) || contentType.equals(WebContent.contentTypeXML))
+	    return ResultSetFactory.fromXML(in);
+	if (contentType.equals(WebContent.contentTypeResultsJSON) || contentType.equals(WebContent.contentTypeJSON))
+	    return ResultSetFactory.fromJSON(in);
+
+	close();
+	throw new QueryException("Endpoint returned Content-Type: " + contentType + " which is not a SPARQL result set syntax");
+    }
+
+    @Override
+    public boolean execAsk()
+    {
+	InputStream in = exec(RESULT_SET_ACCEPT);
+	try
+	{
+	    String contentType = getContentType();
+	    if (contentType == null || contentType.equals(WebContent.contentTypeResultsXML) || contentType.equals(WebContent.contentTypeXML))
+		return XMLInput.booleanFromXML(in);
+	    if (contentType.equals(WebContent.contentTypeResultsJSON) || contentType.equals(WebContent.contentTypeJSON))
+		return JSONInput.booleanFromJSON(in);
+
+	    throw new QueryException("Endpoint returned Content-Type: " + contentType + " which is not a SPARQL result set syntax");
+	}
+	finally
+	{
+	    close();
+	}
+    }
+
+    @Override
+    public Model execConstruct()
+    {
+	return execConstruct(ModelFactory.createDefaultModel());
+    }
+
+    @Override
+    public Model execConstruct(Model model)
+    {
+	return execModel(model);
+    }
+
+    @Override
+    public Iterator<Triple> execConstructTriples()
+    {
+	return execConstruct().getGraph().find(Triple.ANY);
+    }
+
+    @Override
+    public Model execDescribe()
+    {
+	return execDescribe(ModelFactory.createDefaultModel());
+    }
+
+    @Override
+    public Model execDescribe(Model model)
+    {
+	return execModel(model);
+    }
+
+    @Override
+    public Iterator<Triple> execDescribeTriples()
+    {
+	return execDescribe().getGraph().find(Triple.ANY);
+    }
+
+    /**
+     * Parses RDF response into a model. If the request was conditional and the endpoint returned
+     * <code>304 Not Modified</code>, the model is returned unchanged.
+     */
+    private Model execModel(Model model)
+    {
+	InputStream in = exec(MODEL_ACCEPT);
+	if (in == null) return model;
+	Span span = Tracer.get().start("rdf.parse");
+	long start = System.nanoTime();
+	try
+	{
+	    String contentType = getContentType();
+	    span.setAttribute("mediaType", contentType);
+	    if (BinaryRDF.CONTENT_TYPE.equals(contentType))
+	    {
+		new BinaryRDFReader(in).read(model.getGraph());
+		span.setAttribute("triples", model.size());
+		return model;
+	    }
+
+	    Lang lang = contentType == null ? Lang.RDFXML : WebContent.contentTypeToLang(contentType);
+	    if (lang == null || !lang.isTriples())
+		throw new QueryException("Endpoint returned Content-Type: " + contentType + " which is not a valid RDF Graph syntax");
+
+	    SinkTriplesToGraph sink = new SinkTriplesToGraph(model.getGraph());
+	    if (lang.equals(Lang.RDFXML)) LangRDFXML.create(in, null, null, null, sink).parse();
+	    else RiotReader.createParserTriples(in, lang, null, sink).parse();
+	    sink.close();
+	    span.setAttribute("triples", model.size());
+
+	    return model;
+	}
+	catch (IOException ex)
+	{
+	    span.setError(ex);
+	    if (aborted) throw new QueryCancelledException();
+	    throw new QueryException("Could not read binary RDF response", ex);
+	}
+	catch (RuntimeException ex)
+	{
+	    span.setError(ex);
+	    if (aborted) throw new QueryCancelledException();
+	    throw ex;
+	}
+	finally
+	{
+	    close();
+	    QueryProfile.addPhase(QueryProfile.Phase.MATERIALIZE, System.nanoTime() - start);
+	    span.end();
+	}
+    }
+
+    /**
+     * Executes the HTTP request. GET method is used, unless the request URI is too long and POST is used instead.
+     * The request is traced as a span, and the trace context is forwarded in the <code>traceparent</code> header.
+     * 
+     * @param accept value of Accept header
+     * @return response body stream, or null if the request was conditional and the response is <code>304 Not Modified</code>
+     * @throws QueryExceptionHTTP if request fails or the endpoint returns an error status
+     * @throws QueryCancelledException if request has been aborted
+     */
+    protected InputStream exec(String accept)
+    {
+	List<NameValuePair> requestParams = new ArrayList<NameValuePair>();
+	requestParams.add(new BasicNameValuePair("query", queryString));
+	requestParams.addAll(params);
+
+	String requestURI = serviceURI + (serviceURI.contains("?") ? "&" : "?") + URLEncodedUtils.format(requestParams, HTTP.UTF_8);
+	HttpUriRequest httpRequest;
+	if (requestURI.length() <= HttpQuery.urlLimit) httpRequest = new HttpGet(requestURI);
+	else
+	{
+	    HttpPost httpPost = new HttpPost(serviceURI);
+	    try
+	    {
+		httpPost.setEntity(new UrlEncodedFormEntity(requestParams, HTTP.UTF_8));
+	    }
+	    catch (UnsupportedEncodingException ex)
+	    {
+		throw new QueryExceptionHTTP(ex);
+	    }
+	    httpRequest = httpPost;
+	}
+
+	httpRequest.addHeader("Accept", accept);
+	httpRequest.addHeader("Accept-Encoding", ContentCoding.ACCEPT_ENCODING);
+	if (ifNoneMatch != null) httpRequest.addHeader("If-None-Match", ifNoneMatch);
+	if (ifModifiedSince != null) httpRequest.addHeader("If-Modified-Since", ifModifiedSince);
+	Span span = Tracer.get().start("http.request").
+	    setAttribute("http.method", httpRequest.getMethod()).
+	    setAttribute("http.url", serviceURI);
+	httpRequest.addHeader(Tracer.TRACEPARENT, span.getTraceparent());
+	if (readTimeout >= 0) HttpConnectionParams.setSoTimeout(httpRequest.getParams(), (int)readTimeout);
+	if (connectTimeout >= 0) HttpConnectionParams.setConnectionTimeout(httpRequest.getParams(), (int)connectTimeout);
+	try
+	{
+	    if (user != null && password != null)
+		httpRequest.addHeader(new BasicScheme().authenticate(new UsernamePasswordCredentials(user, new String(password)), httpRequest));
+	}
+	catch (AuthenticationException ex)
+	{
+	    span.setError(ex).end();
+	    throw new QueryExceptionHTTP(ex);
+	}
+
+	request = httpRequest;
+	if (aborted)
+	{
+	    span.setAttribute("aborted", true).end();
+	    throw new QueryCancelledException();
+	}
+
+	try
+	{
+	    if (log.isDebugEnabled()) log.debug("Executing {} request to SPARQL endpoint: {}", httpRequest.getMethod(), serviceURI);
+	    final long start = System.nanoTime();
+	    HttpResponse response = httpClient.execute(httpRequest);
+	    QueryProfile.addPhase(QueryProfile.Phase.REMOTE_WAIT, System.nanoTime() - start);
+	    entity = response.getEntity();
+
+	    int statusCode = response.getStatusLine().getStatusCode();
+	    span.setAttribute("http.status_code", statusCode);
+	    if (statusCode == 304 && (ifNoneMatch != null || ifModifiedSince != null))
+	    {
+		notModified = true;
+		close();
+		return null;
+	    }
+	    if (statusCode != 200)
+	    {
+		close();
+		throw new QueryExceptionHTTP(statusCode, response.getStatusLine().getReasonPhrase());
+	    }
+	    if (entity == null) throw new QueryExceptionHTTP(statusCode, "Response has no body");
+	    etag = getHeader(response, "ETag");
+	    lastModified = getHeader(response, "Last-Modified");
+
+	    Header contentEncoding = entity.getContentEncoding();
+	    if (contentEncoding != null) span.setAttribute("http.content_encoding", contentEncoding.getValue());
+	    InputStream in = new FilterInputStream(entity.getContent())
+	    {
+		private boolean first = true;
+
+		@Override
+		public int read() throws IOException
+		{
+		    int b = super.read();
+		    if (first && b != -1) firstByte();
+		    return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+		    int read = super.read(b, off, len);
+		    if (first && read > 0) firstByte();
+		    return read;
+		}
+
+		private void firstByte()
+		{
+		    first = false;
+		    QueryProfile.addPhase(QueryProfile.Phase.FIRST_BYTE, System.nanoTime() - start);
+		}
+	    };
+	    body = in;
+	    if (contentEncoding == null) return in;
+
+	    // the raw body stays in place, so that close() can drain it and release the connection
+	    decoded = ContentCoding.decode(in, contentEncoding.getValue());
+	    return decoded;
+	}
+	catch (IOException ex)
+	{
+	    span.setError(ex);
+	    httpRequest.abort();
+	    if (aborted) throw new QueryCancelledException();
+	    throw new QueryExceptionHTTP(ex);
+	}
+	finally
+	{
+	    span.end();
+	}
+    }
+
+    private static String getHeader(HttpResponse response, String name)
+    {
+	Header header = response.getFirstHeader(name);
+	return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Returns media type of the current response, without parameters.
+     * 
+     * @return media type or null if unknown
+     */
+    protected String getContentType()
+    {
+	if (entity == null || entity.getContentType() == null) return null;
+
+	return entity.getContentType().getValue().split(";")[0].trim();
+    }
+
+    /**
+     * Returns <code>ETag</code> validator of the response.
+     * 
+     * @return header value, or null if none
+     */
+    public String getETag()
+    {
+	return etag;
+    }
+
+    /**
+     * Returns <code>Last-Modified</code> validator of the response.
+     * 
+     * @return header value, or null if none
+     */
+    public String getLastModified()
+    {
+	return lastModified;
+    }
+
+    /**
+     * Checks whether the conditional request was answered with <code>304 Not Modified</code>.
+     * 
+     * @return true if the previously retrieved response is still valid
+     * @see #setValidators(String, String)
+     */
+    public boolean isNotModified()
+    {
+	return notModified;
+    }
+
+    /**
+     * Aborts the request. Can be called from another thread, in which case a read blocked on the connection fails
+     * and the connection is released immediately.
+     */
+    @Override
+    public void abort()
+    {
+	aborted = true;
+	HttpUriRequest httpRequest = request;
+	if (httpRequest != null)
+	{
+	    if (log.isDebugEnabled()) log.debug("Aborting request to SPARQL endpoint: {}", serviceURI);
+	    httpRequest.abort();
+	}
+    }
+
+    /**
+     * Releases the connection back to the pool if the rest of the response body is short, otherwise aborts the
+     * request so that the endpoint stops sending it.
+     */
+    @Override
+    public void close()
+    {
+	HttpEntity httpEntity = entity;
+	InputStream bodyStream = body;
+	entity = null;
+	body = null;
+	if (httpEntity != null)
+	    try
+	    {
+		if (bodyStream == null) bodyStream = httpEntity.getContent();
+		if (!aborted && drain(bodyStream)) EntityUtils.consume(httpEntity);
+		else abortRequest();
+	    }
+	    catch (IOException ex)
+	    {
+		abortRequest();
+	    }
+	    catch (IllegalStateException ex) // content has already been consumed
+	    {
+		abortRequest();
+	    }
+
+	InputStream decodedStream = decoded;
+	decoded = null;
+	if (decodedStream != null)
+	    try
+	    {
+		decodedStream.close(); // releases the inflater
+	    }
+	    catch (IOException ex)
+	    {
+		if (log.isDebugEnabled()) log.debug("Could not close decompressing stream", ex);
+	    }
+
+	super.close();
+    }
+
+    private void abortRequest()
+    {
+	HttpUriRequest httpRequest = request;
+	if (httpRequest != null)
+	{
+	    if (log.isDebugEnabled()) log.debug("Aborting unfinished response of SPARQL endpoint: {}", serviceURI);
+	    httpRequest.abort();
+	}
+    }
+
+    /**
+     * Reads the rest of the response body, unless it is longer than {@link #MAX_DRAIN_BYTES}.
+     * 
+     * @param in response body stream
+     * @return true if the end of the body has been reached
+     * @throws IOException if the body cannot be read
+     */
+    private static boolean drain(InputStream in) throws IOException
+    {
+	byte[] buffer = new byte[4096];
+	long remaining = MAX_DRAIN_BYTES;
+	int read;
+	while ((read = in.read(buffer)) != -1)
+	{
+	    remaining -= read;
+	    if (remaining < 0) return false;
+	}
+	return true;
+    }
+
+}
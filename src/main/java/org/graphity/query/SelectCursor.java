@@ -0,0 +1,334 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.query;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingProject;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.expr.*;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementSubQuery;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keyset cursor over the results of a <code>SELECT</code> query.
+ * The results are ordered by the projected variables themselves, so the endpoint can use its indexes, and each page
+ * continues from the last row of the previous page using a <code>FILTER</code> (like the subject index scan).
+ * Since all projected variables are ordered, rows with equal keys are identical, and the ones already returned on
+ * the previous page are skipped using a small <code>OFFSET</code>.
+ * The state of the cursor is carried between requests in an opaque token.
+ * Rows inserted or deleted before the last row of the previous page do not shift the following pages.
+ * SPARQL leaves the order of blank nodes and of literals of different datatypes or languages to the endpoint,
+ * so the variables may only bind IRIs and plain (or <code>xsd:string</code>) literals, or be unbound: other
+ * results are rejected, since they could not be continued reliably.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://use-the-index-luke.com/no-offset">Paging Through Results: Keyset Pagination</a>
+ * @see org.graphity.server.util.SubjectIndex#getScanQuery(String)
+ */
+public class SelectCursor
+{
+    private static final Logger log = LoggerFactory.getLogger(SelectCursor.class);
+
+    /** Token value that starts a new cursor */
+    public static final String START = "*";
+    private static final int TOKEN_VERSION = 2;
+    private static final byte UNBOUND = 0, IRI = 1, LITERAL = 2;
+
+    private final Query query;
+    private final long pageSize;
+    private final List<Node> lastKeys;
+    private final long duplicates;
+    private final List<Var> resultVars;
+    private String nextToken = null;
+
+    /**
+     * Creates cursor for a query from a continuation token.
+     *
+     * @param query <code>SELECT</code> query
+     * @param token continuation token, or {@link #START} for the first page
+     * @param pageSize maximum number of rows per page
+     * @throws IllegalArgumentException if the token is malformed or was issued for a different query
+     */
+    public SelectCursor(Query query, String token, long pageSize)
+    {
+	if (query == null) throw new IllegalArgumentException("Query must be not null");
+	if (!query.isSelectType()) throw new IllegalArgumentException("Cursor can only be used with SELECT queries");
+	if (token == null) throw new IllegalArgumentException("Cursor token must be not null");
+	if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+
+	this.query = query;
+	this.pageSize = pageSize;
+	this.resultVars = query.getProjectVars();
+
+	if (token.equals(START))
+	{
+	    lastKeys = null;
+	    duplicates = 0;
+	}
+	else
+	{
+	    try
+	    {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(token)));
+		if (in.readInt() != TOKEN_VERSION) throw new IllegalArgumentException("Unsupported cursor token version");
+		if (in.readInt() != query.toString().hashCode()) throw new IllegalArgumentException("Cursor token was issued for a different query");
+		duplicates = in.readLong();
+		int count = in.readInt();
+		if (duplicates <= 0 || count != resultVars.size()) throw new IllegalArgumentException("Cursor token does not match query variables");
+		lastKeys = new ArrayList<Node>(count);
+		for (int i = 0; i < count; i++)
+		{
+		    byte kind = in.readByte();
+		    if (kind == UNBOUND)
+		    {
+			lastKeys.add(null);
+			continue;
+		    }
+		    
+		    int length = in.readInt();
+		    if (length < 0 || length > in.available()) throw new IllegalArgumentException("Malformed cursor token");
+		    byte[] key = new byte[length];
+		    in.readFully(key);
+		    if (kind == IRI) lastKeys.add(Node.createURI(new String(key, "UTF-8")));
+		    else if (kind == LITERAL) lastKeys.add(Node.createLiteral(new String(key, "UTF-8")));
+		    else throw new IllegalArgumentException("Malformed cursor token");
+		}
+	    }
+	    catch (IOException ex)
+	    {
+		throw new IllegalArgumentException("Malformed cursor token", ex);
+	    }
+	}
+    }
+
+    /**
+     * Returns query that retrieves the current page.
+     * The <code>FILTER</code> is added to the pattern of the query, unless its results are grouped, limited or
+     * computed, in which case the query is wrapped as a subquery.
+     * The query is ordered by all projected variables, in the order of projection.
+     *
+     * @return page query
+     */
+    public Query getPageQuery()
+    {
+	Element pattern;
+	if (isWrapped())
+	{
+	    Query inner = query.cloneQuery();
+	    inner.getGraphURIs().clear();
+	    inner.getNamedGraphURIs().clear();
+	    pattern = new ElementSubQuery(inner);
+	}
+	else pattern = query.getQueryPattern();
+
+	ElementGroup group = new ElementGroup();
+	if (pattern instanceof ElementGroup)
+	    for (Element element : ((ElementGroup)pattern).getElements()) group.addElement(element);
+	else group.addElement(pattern);
+	if (lastKeys != null) group.addElementFilter(new ElementFilter(getContinuation(0)));
+
+	Query page = new Query();
+	page.setQuerySelectType();
+	page.setPrefixMapping(query.getPrefixMapping());
+	if (query.explicitlySetBaseURI()) page.setBaseURI(query.getBaseURI());
+	for (String graphURI : query.getGraphURIs()) page.addGraphURI(graphURI);
+	for (String graphURI : query.getNamedGraphURIs()) page.addNamedGraphURI(graphURI);
+	if (!isWrapped())
+	{
+	    page.setDistinct(query.isDistinct());
+	    page.setReduced(query.isReduced());
+	}
+	page.setQueryPattern(group);
+	for (Var var : resultVars)
+	{
+	    page.addResultVar(var);
+	    page.addOrderBy(var, Query.ORDER_ASCENDING);
+	}
+	page.setLimit(pageSize);
+	if (duplicates > 0) page.setOffset(duplicates);
+
+	if (log.isDebugEnabled()) log.debug("Cursor page query: {}", page);
+	return page;
+    }
+
+    /**
+     * Returns true if the <code>FILTER</code> cannot be added to the pattern of the query without changing its
+     * results, because they are grouped, limited or computed by projection expressions.
+     */
+    private boolean isWrapped()
+    {
+	return query.hasGroupBy() || query.hasAggregators() || query.hasHaving() || query.hasLimit() ||
+		query.hasOffset() || query.hasValues() || !query.getProject().getExprs().isEmpty();
+    }
+
+    /**
+     * Builds lexicographic comparison of the projected variables with the last keys, starting at the given
+     * variable: <code>v > l || (v = l && (...))</code>, with the last variable compared using <code>>=</code>.
+     * The comparisons follow the SPARQL order: unbound, then IRIs, then literals, compared by their string values.
+     */
+    private Expr getContinuation(int i)
+    {
+	Expr var = new ExprVar(resultVars.get(i));
+	Node last = lastKeys.get(i);
+	Expr greater, equal;
+	if (last == null)
+	{
+	    greater = new E_Bound(var);
+	    equal = new E_LogicalNot(new E_Bound(var));
+	}
+	else if (last.isURI())
+	{
+	    greater = new E_LogicalOr(new E_IsLiteral(var),
+		    new E_LogicalAnd(new E_IsIRI(var), new E_GreaterThan(new E_Str(var), NodeValue.makeString(last.getURI()))));
+	    equal = new E_SameTerm(var, NodeValue.makeNode(last));
+	}
+	else
+	{
+	    Expr value = NodeValue.makeString(last.getLiteralLexicalForm());
+	    greater = new E_LogicalAnd(new E_IsLiteral(var), new E_GreaterThan(new E_Str(var), value));
+	    equal = new E_LogicalAnd(new E_IsLiteral(var), new E_Equals(new E_Str(var), value));
+	}
+
+	if (i == resultVars.size() - 1) return new E_LogicalOr(greater, equal);
+	return new E_LogicalOr(greater, new E_LogicalAnd(equal, getContinuation(i + 1)));
+    }
+
+    /**
+     * Processes results of the page query and computes continuation token of the next page.
+     *
+     * @param results results of the page query
+     * @return page results with the variables of the original query
+     * @throws IllegalArgumentException if the results bind blank nodes, or literals which are not plain strings
+     */
+    public ResultSetRewindable page(ResultSetRewindable results)
+    {
+	List<Binding> bindings = new ArrayList<Binding>();
+	List<Node> keys = null;
+	long keyDuplicates = 0;
+
+	while (results.hasNext())
+	{
+	    Binding binding = results.nextBinding();
+	    List<Node> rowKeys = new ArrayList<Node>(resultVars.size());
+	    for (Var var : resultVars) rowKeys.add(getKey(var, binding.get(var)));
+	    if (rowKeys.equals(keys)) keyDuplicates++;
+	    else
+	    {
+		keys = rowKeys;
+		keyDuplicates = 1;
+	    }
+
+	    bindings.add(new BindingProject(resultVars, binding));
+	}
+
+	if (bindings.size() >= pageSize)
+	{
+	    // the previous page ended on the same row, so its copies are skipped as well
+	    if (keys.equals(lastKeys)) keyDuplicates += duplicates;
+	    nextToken = createToken(keys, keyDuplicates);
+	}
+
+	return ResultSetFactory.makeRewindable(new ResultSetStream(Var.varNames(resultVars), null,
+		new QueryIterPlainWrapper(bindings.iterator())));
+    }
+
+    /**
+     * Returns key of a variable value: the IRI itself, or a plain literal with the lexical form of a string.
+     */
+    private Node getKey(Var var, Node node)
+    {
+	if (node == null || node.isURI()) return node;
+	if (node.isLiteral() && node.getLiteralLanguage().isEmpty() &&
+		(node.getLiteralDatatype() == null || node.getLiteralDatatype().equals(XSDDatatype.XSDstring)))
+	    return Node.createLiteral(node.getLiteralLexicalForm());
+
+	throw new IllegalArgumentException("Cursor cannot page results where " + var + " binds " + node +
+		": only IRIs and plain string literals have a stable order");
+    }
+
+    private String createToken(List<Node> keys, long keyDuplicates)
+    {
+	try
+	{
+	    ByteArrayOutputStream token = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(token);
+	    out.writeInt(TOKEN_VERSION);
+	    out.writeInt(query.toString().hashCode());
+	    out.writeLong(keyDuplicates);
+	    out.writeInt(keys.size());
+	    for (Node key : keys)
+	    {
+		if (key == null)
+		{
+		    out.writeByte(UNBOUND);
+		    continue;
+		}
+		
+		out.writeByte(key.isURI() ? IRI : LITERAL);
+		byte[] bytes = (key.isURI() ? key.getURI() : key.getLiteralLexicalForm()).getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	    }
+	    out.close();
+
+	    return Base64.encodeBase64URLSafeString(token.toByteArray());
+	}
+	catch (IOException ex)
+	{
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * Returns continuation token of the next page. Only available after the current page has been processed.
+     *
+     * @return token, or null if the current page is the last one
+     */
+    public String getNextToken()
+    {
+	return nextToken;
+    }
+
+    public long getPageSize()
+    {
+	return pageSize;
+    }
+
+    @Override
+    public String toString()
+    {
+	return "SelectCursor[pageSize=" + pageSize + ", lastKeys=" + (lastKeys == null ? null : Arrays.toString(lastKeys.toArray())) +
+		", duplicates=" + duplicates + "]";
+    }
+
+}
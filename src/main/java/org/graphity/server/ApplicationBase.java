@@ -17,20 +17,40 @@
 package org.graphity.server;
 
 import com.hp.hpl.jena.ontology.OntDocumentManager;
-import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.sparql.engine.http.Service;
 import com.sun.jersey.api.core.ResourceConfig;
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.ServletContext;
 import javax.ws.rs.core.Context;
+import org.graphity.query.QueryEngineHTTP;
+import org.graphity.server.metrics.Gauge;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.metrics.MetricsResource;
+import org.graphity.server.model.BatchResourceBase;
 import org.graphity.server.model.GraphStoreBase;
 import org.graphity.server.model.QueriedResourceBase;
 import org.graphity.server.model.SPARQLEndpointBase;
 import org.graphity.server.provider.*;
+import org.graphity.server.ratelimit.RateLimitExceededExceptionMapper;
+import org.graphity.server.slowquery.SlowQueryLog;
+import org.graphity.server.trace.SpanExporter;
+import org.graphity.server.trace.Tracer;
+import org.graphity.server.util.DataManager;
+import org.graphity.server.util.DescribeBatcher;
+import org.graphity.server.util.GraphVersionRegistry;
+import org.graphity.server.util.NegativeCache;
+import org.graphity.server.util.SubjectIndex;
+import org.graphity.server.util.UpstreamCache;
+import org.graphity.server.util.UpstreamScheduler;
 import org.graphity.server.vocabulary.GS;
 import org.graphity.server.vocabulary.VoID;
 import org.openjena.riot.SysRIOT;
@@ -64,12 +84,14 @@ public class ApplicationBase extends javax.ws.rs.core.Application
 	classes.add(QueriedResourceBase.class); // handles all
 	classes.add(SPARQLEndpointBase.class); // handles /sparql queries
 	classes.add(GraphStoreBase.class); // handles /service updates
+	classes.add(BatchResourceBase.class); // handles /batch
 
 	singletons.add(new ModelProvider());
 	singletons.add(new ResultSetWriter());
 	singletons.add(new QueryParamProvider());
 	singletons.add(new QueryFormParamProvider());
 	singletons.add(new UpdateRequestFormParamProvider());
+	singletons.add(new RateLimitExceededExceptionMapper());
     }
 
     /**
@@ -107,11 +129,322 @@ public class ApplicationBase extends javax.ws.rs.core.Application
 	    String authUser = (String)getResourceConfig().getProperty(Service.queryAuthUser.getSymbol());
 	    String authPwd = (String)getResourceConfig().getProperty(Service.queryAuthPwd.getSymbol());
 	    if (authUser != null && authPwd != null) configureServiceContext(graphStoreURI, authUser, authPwd);
+	    if (getResourceConfig().getProperty(GS.graphStoreMediaType.getURI()) != null)
+		DataManager.get().setGraphStoreMediaType(getResourceConfig().getProperty(GS.graphStoreMediaType.getURI()).toString());
 	}
 	else
 	{
 	    if (log.isWarnEnabled()) log.warn("No SPARQL Graph Store URI specified in web.xml. The server will be read-only.");
 	}
+
+	configureUpstreamScheduler();
+	configureUpstreamCache();
+	configureNegativeCache();
+	configureDescribeBatcher();
+	configureGraphVersions();
+	configureTimeouts();
+	configureMetrics();
+	configureTracing();
+	configureSlowQueryLog();
+	configureSubjectIndex();
+    }
+
+    /**
+     * Stops (pre destruction) the background threads and releases the resources started by <code>init()</code>:
+     * upstream scheduler workers, pooled upstream connections, slow-query log writer, subject index builder and
+     * journal, graph version file and JMX metric MBeans. Otherwise they outlive the webapp when it is undeployed,
+     * and keep its classloader from being collected.
+     * 
+     * @see #init()
+     */
+    @PreDestroy
+    public void destroy()
+    {
+	if (log.isDebugEnabled()) log.debug("Application.destroy()");
+	UpstreamScheduler.get().shutdown();
+	QueryEngineHTTP.shutdown();
+	SlowQueryLog.get().shutdown();
+	SubjectIndex.get().close();
+	GraphVersionRegistry.get().close();
+	Metrics.get().clear();
+    }
+
+    /**
+     * Configures slow-query log using <code>gs:slowQueryThreshold</code> (in milliseconds) and
+     * <code>gs:slowQueryQueueSize</code> parameter values from web.xml. The log is disabled if threshold is not set.
+     * 
+     * @see org.graphity.server.slowquery.SlowQueryLog
+     */
+    public void configureSlowQueryLog()
+    {
+	if (getResourceConfig().getProperty(GS.slowQueryThreshold.getURI()) != null)
+	{
+	    long threshold = Long.parseLong(getResourceConfig().getProperty(GS.slowQueryThreshold.getURI()).toString());
+	    int queueSize = getResourceConfig().getProperty(GS.slowQueryQueueSize.getURI()) == null ?
+		    SlowQueryLog.DEFAULT_QUEUE_SIZE :
+		    Integer.parseInt(getResourceConfig().getProperty(GS.slowQueryQueueSize.getURI()).toString());
+
+	    if (log.isDebugEnabled()) log.debug("Logging queries slower than {} ms with queue size {}", threshold, queueSize);
+	    SlowQueryLog.set(new SlowQueryLog(threshold, queueSize));
+	}
+    }
+
+    /**
+     * Configures exporter of trace spans using <code>gs:spanExporter</code> parameter value (class name) from web.xml.
+     * Spans are not exported if it is not set.
+     * 
+     * @see org.graphity.server.trace.Tracer
+     */
+    public void configureTracing()
+    {
+	if (getResourceConfig().getProperty(GS.spanExporter.getURI()) != null)
+	{
+	    String className = getResourceConfig().getProperty(GS.spanExporter.getURI()).toString();
+	    if (log.isDebugEnabled()) log.debug("Exporting trace spans using {}", className);
+	    try
+	    {
+		Tracer.get().setExporter((SpanExporter)Class.forName(className).newInstance());
+	    }
+	    catch (ClassNotFoundException ex)
+	    {
+		throw new IllegalArgumentException("SpanExporter class " + className + " not found", ex);
+	    }
+	    catch (InstantiationException ex)
+	    {
+		throw new IllegalArgumentException("SpanExporter class " + className + " cannot be instantiated", ex);
+	    }
+	    catch (IllegalAccessException ex)
+	    {
+		throw new IllegalArgumentException("SpanExporter class " + className + " cannot be instantiated", ex);
+	    }
+	}
+    }
+
+    /**
+     * Registers gauges of the upstream scheduler queues and of the conditional request hit ratio.
+     * The metrics are exposed on <code>/metrics</code> only if <code>gs:metrics</code> parameter value in web.xml
+     * is true, since the resource is not protected by authentication.
+     * 
+     * @see org.graphity.server.metrics.Metrics
+     * @see org.graphity.server.metrics.MetricsResource
+     */
+    public void configureMetrics()
+    {
+	if (getResourceConfig().getProperty(GS.metrics.getURI()) != null &&
+		Boolean.parseBoolean(getResourceConfig().getProperty(GS.metrics.getURI()).toString()))
+	    classes.add(MetricsResource.class); // handles /metrics
+
+	final Metrics metrics = Metrics.get();
+
+	for (final UpstreamScheduler.Workload workload : UpstreamScheduler.Workload.values())
+	{
+	    Map<String, String> tags = Collections.singletonMap("workload", workload.name().toLowerCase());
+	    metrics.gauge(new Gauge("upstream.scheduler.queued", tags)
+	    {
+		@Override
+		public double getValue()
+		{
+		    return UpstreamScheduler.get().getQueued(workload);
+		}
+	    });
+	    metrics.gauge(new Gauge("upstream.scheduler.running", tags)
+	    {
+		@Override
+		public double getValue()
+		{
+		    return UpstreamScheduler.get().getRunning(workload);
+		}
+	    });
+	}
+
+	for (final String resource : new String[] { "sparql", "resource", "batch", "service" })
+	    metrics.gauge(new Gauge("http.preconditions.hitratio", Collections.singletonMap("resource", resource))
+	    {
+		@Override
+		public double getValue()
+		{
+		    long notModified = metrics.counter("http.preconditions", "resource", resource, "result", "not_modified").getCount();
+		    long modified = metrics.counter("http.preconditions", "resource", resource, "result", "modified").getCount();
+		    return notModified + modified == 0 ? 0 : (double)notModified / (notModified + modified);
+		}
+	    });
+    }
+
+    /**
+     * Configures per-query-type execution timeouts using <code>gs:selectTimeout</code>, <code>gs:constructTimeout</code>,
+     * <code>gs:describeTimeout</code> and <code>gs:askTimeout</code> parameter values (in milliseconds) from web.xml,
+     * and the timeout of SPARQL Update requests using <code>gs:updateTimeout</code>
+     * 
+     * @see org.graphity.server.util.DataManager#setTimeout(int, long)
+     * @see org.graphity.server.util.DataManager#setUpdateTimeout(long)
+     */
+    public void configureTimeouts()
+    {
+	configureTimeout(Query.QueryTypeSelect, GS.selectTimeout);
+	configureTimeout(Query.QueryTypeConstruct, GS.constructTimeout);
+	configureTimeout(Query.QueryTypeDescribe, GS.describeTimeout);
+	configureTimeout(Query.QueryTypeAsk, GS.askTimeout);
+
+	if (getResourceConfig().getProperty(GS.updateTimeout.getURI()) != null)
+	{
+	    long timeout = Long.parseLong(getResourceConfig().getProperty(GS.updateTimeout.getURI()).toString());
+	    if (log.isDebugEnabled()) log.debug("Setting {} timeout to {} ms", GS.updateTimeout.getLocalName(), timeout);
+	    DataManager.get().setUpdateTimeout(timeout);
+	}
+    }
+
+    private void configureTimeout(int queryType, Property property)
+    {
+	if (getResourceConfig().getProperty(property.getURI()) != null)
+	{
+	    long timeout = Long.parseLong(getResourceConfig().getProperty(property.getURI()).toString());
+	    if (log.isDebugEnabled()) log.debug("Setting {} timeout to {} ms", property.getLocalName(), timeout);
+	    DataManager.get().setTimeout(queryType, timeout);
+	}
+    }
+
+    /**
+     * Configures scheduler of upstream calls using <code>gs:upstreamWorkers</code> and
+     * <code>gs:upstreamQueueSize</code> parameter values from web.xml
+     * 
+     * @see org.graphity.server.util.UpstreamScheduler
+     */
+    public void configureUpstreamScheduler()
+    {
+	int workers = getResourceConfig().getProperty(GS.upstreamWorkers.getURI()) == null ?
+		UpstreamScheduler.DEFAULT_WORKERS :
+		Integer.parseInt(getResourceConfig().getProperty(GS.upstreamWorkers.getURI()).toString());
+	int queueSize = getResourceConfig().getProperty(GS.upstreamQueueSize.getURI()) == null ?
+		UpstreamScheduler.DEFAULT_QUEUE_SIZE :
+		Integer.parseInt(getResourceConfig().getProperty(GS.upstreamQueueSize.getURI()).toString());
+
+	if (log.isDebugEnabled()) log.debug("Configuring UpstreamScheduler with {} workers and queue size {}", workers, queueSize);
+	UpstreamScheduler.set(new UpstreamScheduler(workers, queueSize));
+    }
+
+    /**
+     * Configures cache of upstream responses using <code>gs:upstreamCacheTTL</code> (in milliseconds) and
+     * <code>gs:upstreamCacheSize</code> parameter values from web.xml. Responses are not cached if TTL is not set.
+     * 
+     * @see org.graphity.server.util.UpstreamCache
+     */
+    public void configureUpstreamCache()
+    {
+	if (getResourceConfig().getProperty(GS.upstreamCacheTTL.getURI()) != null)
+	{
+	    long ttl = Long.parseLong(getResourceConfig().getProperty(GS.upstreamCacheTTL.getURI()).toString());
+	    int maxSize = getResourceConfig().getProperty(GS.upstreamCacheSize.getURI()) == null ?
+		    UpstreamCache.DEFAULT_MAX_SIZE :
+		    Integer.parseInt(getResourceConfig().getProperty(GS.upstreamCacheSize.getURI()).toString());
+
+	    if (log.isDebugEnabled()) log.debug("Caching upstream responses for {} ms with maximum size {}", ttl, maxSize);
+	    DataManager.get().setUpstreamCache(new UpstreamCache(ttl, maxSize));
+	}
+    }
+
+    /**
+     * Configures cache of resources without description using <code>gs:negativeCacheTTL</code> (in milliseconds)
+     * and <code>gs:negativeCacheSize</code> parameter values from web.xml. Empty descriptions are not cached if
+     * TTL is not set.
+     * 
+     * @see org.graphity.server.util.NegativeCache
+     */
+    public void configureNegativeCache()
+    {
+	if (getResourceConfig().getProperty(GS.negativeCacheTTL.getURI()) != null)
+	{
+	    long ttl = Long.parseLong(getResourceConfig().getProperty(GS.negativeCacheTTL.getURI()).toString());
+	    int maxSize = getResourceConfig().getProperty(GS.negativeCacheSize.getURI()) == null ?
+		    NegativeCache.DEFAULT_MAX_SIZE :
+		    Integer.parseInt(getResourceConfig().getProperty(GS.negativeCacheSize.getURI()).toString());
+
+	    if (log.isDebugEnabled()) log.debug("Caching resources without description for {} ms with maximum size {}", ttl, maxSize);
+	    DataManager.get().setNegativeCache(new NegativeCache(ttl, maxSize));
+	}
+    }
+
+    /**
+     * Configures batching of concurrent <code>DESCRIBE</code> queries using <code>gs:describeBatchWindow</code>
+     * (in milliseconds) and <code>gs:describeBatchSize</code> parameter values from web.xml. Queries are not
+     * batched if the window is not set.
+     * 
+     * @see org.graphity.server.util.DescribeBatcher
+     */
+    public void configureDescribeBatcher()
+    {
+	if (getResourceConfig().getProperty(GS.describeBatchWindow.getURI()) != null)
+	{
+	    long window = Long.parseLong(getResourceConfig().getProperty(GS.describeBatchWindow.getURI()).toString());
+	    int maxSize = getResourceConfig().getProperty(GS.describeBatchSize.getURI()) == null ?
+		    DescribeBatcher.DEFAULT_MAX_SIZE :
+		    Integer.parseInt(getResourceConfig().getProperty(GS.describeBatchSize.getURI()).toString());
+
+	    if (log.isDebugEnabled()) log.debug("Batching DESCRIBE queries within {} ms with maximum size {}", window, maxSize);
+	    DataManager.get().setDescribeBatcher(new DescribeBatcher(window, maxSize));
+	}
+    }
+
+    /**
+     * Configures index of subjects and objects in the dataset of the SPARQL endpoint using <code>gs:subjectIndex</code>,
+     * <code>gs:subjectIndexFile</code>, <code>gs:subjectIndexSize</code> (expected number of URIs),
+     * <code>gs:subjectIndexFalsePositiveRate</code> and <code>gs:subjectIndexRefresh</code> (in milliseconds)
+     * parameter values from web.xml. The index is built in the background, and persisted if the file is set.
+     * The index is disabled otherwise.
+     * 
+     * @see org.graphity.server.util.SubjectIndex
+     */
+    public void configureSubjectIndex()
+    {
+	File file = getResourceConfig().getProperty(GS.subjectIndexFile.getURI()) == null ?
+		null :
+		new File(getResourceConfig().getProperty(GS.subjectIndexFile.getURI()).toString());
+	if (file == null && (getResourceConfig().getProperty(GS.subjectIndex.getURI()) == null ||
+		!Boolean.parseBoolean(getResourceConfig().getProperty(GS.subjectIndex.getURI()).toString())))
+	    return;
+
+	String endpointURI = getResourceConfig().getProperty(VoID.sparqlEndpoint.getURI()).toString();
+	long expectedSize = getResourceConfig().getProperty(GS.subjectIndexSize.getURI()) == null ?
+		SubjectIndex.DEFAULT_EXPECTED_SIZE :
+		Long.parseLong(getResourceConfig().getProperty(GS.subjectIndexSize.getURI()).toString());
+	double falsePositiveRate = getResourceConfig().getProperty(GS.subjectIndexFalsePositiveRate.getURI()) == null ?
+		SubjectIndex.DEFAULT_FALSE_POSITIVE_RATE :
+		Double.parseDouble(getResourceConfig().getProperty(GS.subjectIndexFalsePositiveRate.getURI()).toString());
+	long refresh = getResourceConfig().getProperty(GS.subjectIndexRefresh.getURI()) == null ?
+		-1 :
+		Long.parseLong(getResourceConfig().getProperty(GS.subjectIndexRefresh.getURI()).toString());
+
+	if (log.isDebugEnabled()) log.debug("Indexing subjects of endpoint {} in {}", endpointURI, file);
+	SubjectIndex.set(new SubjectIndex(endpointURI, expectedSize, falsePositiveRate, SubjectIndex.DEFAULT_PAGE_SIZE, refresh, file));
+    }
+
+    /**
+     * Configures graph version registry using <code>gs:graphVersioning</code> and <code>gs:graphVersionFile</code>
+     * parameter values from web.xml. Versions are kept in memory if versioning is enabled, or persisted if the file
+     * is set. The registry is disabled otherwise, e.g. if the remote store is also written by other clients.
+     * 
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    public void configureGraphVersions()
+    {
+	if (getResourceConfig().getProperty(GS.graphVersionFile.getURI()) != null)
+	{
+	    File file = new File(getResourceConfig().getProperty(GS.graphVersionFile.getURI()).toString());
+	    if (log.isDebugEnabled()) log.debug("Persisting graph versions in {}", file);
+	    try
+	    {
+		GraphVersionRegistry.set(new GraphVersionRegistry(file));
+	    }
+	    catch (IOException ex)
+	    {
+		throw new IllegalArgumentException("Graph version file " + file + " cannot be read or written", ex);
+	    }
+	}
+	else if (getResourceConfig().getProperty(GS.graphVersioning.getURI()) != null &&
+		Boolean.parseBoolean(getResourceConfig().getProperty(GS.graphVersioning.getURI()).toString()))
+	{
+	    if (log.isDebugEnabled()) log.debug("Keeping graph versions in memory");
+	    GraphVersionRegistry.set(new GraphVersionRegistry());
+	}
     }
 
     /**
@@ -132,10 +465,7 @@ public class ApplicationBase extends javax.ws.rs.core.Application
 	com.hp.hpl.jena.sparql.util.Context queryContext = new com.hp.hpl.jena.sparql.util.Context();
 	queryContext.put(Service.queryAuthUser, authUser);
 	queryContext.put(Service.queryAuthPwd, authPwd);
-	Map<String,com.hp.hpl.jena.sparql.util.Context> serviceContext = new HashMap<String,com.hp.hpl.jena.sparql.util.Context>();
-
-	serviceContext.put(endpointURI, queryContext);
-	ARQ.getContext().put(Service.serviceContext, serviceContext);
+	DataManager.get().addServiceContext(endpointURI, queryContext);
     }
     
     /**
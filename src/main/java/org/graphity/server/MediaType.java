@@ -35,6 +35,21 @@ public class MediaType extends javax.ws.rs.core.MediaType
     /** "text/turtle" */
     public final static MediaType TEXT_TURTLE_TYPE = new MediaType("text","turtle");
 
+    /** "application/n-triples" */
+    public final static String APPLICATION_N_TRIPLES = "application/n-triples";
+    /** "application/n-triples" */
+    public final static MediaType APPLICATION_N_TRIPLES_TYPE = new MediaType("application","n-triples");
+
+    /** "application/n-quads" */
+    public final static String APPLICATION_N_QUADS = "application/n-quads";
+    /** "application/n-quads" */
+    public final static MediaType APPLICATION_N_QUADS_TYPE = new MediaType("application","n-quads");
+
+    /** "application/ld+json" */
+    public final static String APPLICATION_LD_JSON = "application/ld+json";
+    /** "application/ld+json" */
+    public final static MediaType APPLICATION_LD_JSON_TYPE = new MediaType("application","ld+json");
+
     /** "application/sparql-results+xml" */
     public final static String APPLICATION_SPARQL_RESULTS_XML = "application/sparql-results+xml";
     /** "application/sparql-results+xml" */
@@ -45,6 +60,21 @@ public class MediaType extends javax.ws.rs.core.MediaType
     /** "application/sparql-results+json" */
     public final static MediaType APPLICATION_SPARQL_RESULTS_JSON_TYPE = new MediaType("application","sparql-results+json");
 
+    /** "application/x-sparql-results+binary" */
+    public final static String APPLICATION_SPARQL_RESULTS_BINARY = "application/x-sparql-results+binary";
+    /** "application/x-sparql-results+binary" */
+    public final static MediaType APPLICATION_SPARQL_RESULTS_BINARY_TYPE = new MediaType("application","x-sparql-results+binary");
+
+    /** "text/csv" */
+    public final static String TEXT_CSV = "text/csv";
+    /** "text/csv" */
+    public final static MediaType TEXT_CSV_TYPE = new MediaType("text","csv");
+
+    /** "text/tab-separated-values" */
+    public final static String TEXT_TAB_SEPARATED_VALUES = "text/tab-separated-values";
+    /** "text/tab-separated-values" */
+    public final static MediaType TEXT_TAB_SEPARATED_VALUES_TYPE = new MediaType("text","tab-separated-values");
+
     /** "application/sparql-query" */
     public final static String APPLICATION_SPARQL_QUERY = "application/sparql-query";
     /** "application/sparql-query" */
@@ -54,6 +84,16 @@ public class MediaType extends javax.ws.rs.core.MediaType
     public final static String APPLICATION_SPARQL_UPDATE = "application/sparql-update";
     /** "application/sparql-update" */
     public final static MediaType APPLICATION_SPARQL_UPDATE_TYPE = new MediaType("application","sparql-update");
+
+    /** "application/x-rdf-binary" */
+    public final static String APPLICATION_RDF_BINARY = "application/x-rdf-binary";
+    /** "application/x-rdf-binary" */
+    public final static MediaType APPLICATION_RDF_BINARY_TYPE = new MediaType("application","x-rdf-binary");
+
+    /** "text/uri-list" */
+    public final static String TEXT_URI_LIST = "text/uri-list";
+    /** "text/uri-list" */
+    public final static MediaType TEXT_URI_LIST_TYPE = new MediaType("text","uri-list");
     
     public MediaType(String type, String subtype, Map<String, String> parameters)
     {
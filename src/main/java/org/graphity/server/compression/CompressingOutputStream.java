@@ -0,0 +1,212 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.compression;
+
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response entity stream that compresses the entity once it exceeds a size threshold.
+ * Status and headers are not written until either the threshold is exceeded (and the entity is compressed) or the
+ * stream is finished below it (and the entity is written uncompressed, with known length). A strong
+ * <code>ETag</code> of a compressed entity gets the content coding as suffix. Flushes are turned into
+ * deflate sync flushes, but only after enough data has been written since the previous one, so that flushing
+ * writers do not ruin the compression ratio.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see CompressionFilter
+ */
+class CompressingOutputStream extends OutputStream
+{
+    /** Minimum number of uncompressed bytes between sync flushes */
+    static final int FLUSH_INTERVAL = 32 * 1024;
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final ContainerResponseWriter writer;
+    private final ContainerResponse response;
+    private final String encoding;
+    private final DeflaterPool pool;
+    private final byte[] buffer;
+    private int count = 0;
+
+    private OutputStream out = null;
+    private Deflater deflater = null;
+    private CRC32 crc = null;
+    private byte[] deflateBuffer = null;
+    private long sinceFlush = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates stream.
+     *
+     * @param writer writer of the response status, headers and entity
+     * @param response response
+     * @param encoding <code>gzip</code> or <code>deflate</code>
+     * @param pool pool of deflaters matching the encoding
+     * @param threshold entity size (in bytes) below which the entity is not compressed
+     */
+    CompressingOutputStream(ContainerResponseWriter writer, ContainerResponse response, String encoding, DeflaterPool pool, int threshold)
+    {
+	this.writer = writer;
+	this.response = response;
+	this.encoding = encoding;
+	this.pool = pool;
+	this.buffer = new byte[threshold];
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+	write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+	if (finished) throw new IOException("Stream already finished");
+
+	if (out == null)
+	{
+	    if (count + len <= buffer.length)
+	    {
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+		return;
+	    }
+	    commit(CompressionFilter.isCompressible(response), -1);
+	}
+
+	if (deflater == null) out.write(b, off, len);
+	else deflate(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+	if (out == null || finished) return; // still deciding whether to compress
+
+	if (deflater != null)
+	{
+	    if (sinceFlush < FLUSH_INTERVAL) return;
+	    drain(Deflater.SYNC_FLUSH);
+	    sinceFlush = 0;
+	}
+	out.flush();
+    }
+
+    /**
+     * Writes the remaining entity data, and headers if they have not been written yet.
+     * Must be called once the entity has been written.
+     *
+     * @throws IOException if the response cannot be written
+     */
+    void finish() throws IOException
+    {
+	if (finished) return;
+
+	if (out == null) commit(false, count);
+	finished = true;
+	if (deflater == null) return;
+
+	try
+	{
+	    deflater.finish();
+	    while (!deflater.finished())
+	    {
+		int length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+		out.write(deflateBuffer, 0, length);
+	    }
+	    if (crc != null)
+	    {
+		writeInt((int)crc.getValue());
+		writeInt((int)deflater.getBytesRead());
+	    }
+	}
+	finally
+	{
+	    pool.release(deflater);
+	    deflater = null;
+	}
+    }
+
+    /**
+     * Writes status and headers, and the buffered entity data.
+     *
+     * @param compress true if the entity is compressed
+     * @param contentLength length of the whole uncompressed entity, or -1 if it is not known yet
+     */
+    private void commit(boolean compress, long contentLength) throws IOException
+    {
+	if (!compress)
+	{
+	    out = writer.writeStatusAndHeaders(contentLength, response);
+	    out.write(buffer, 0, count);
+	    return;
+	}
+
+	response.getHttpHeaders().putSingle(CompressionFilter.CONTENT_ENCODING, encoding);
+	CompressionFilter.encodeEntityTag(response, encoding);
+	out = writer.writeStatusAndHeaders(-1, response);
+	deflater = pool.acquire();
+	deflateBuffer = new byte[8192];
+	if (encoding.equals(CompressionFilter.GZIP))
+	{
+	    crc = new CRC32();
+	    out.write(GZIP_HEADER);
+	}
+	deflate(buffer, 0, count);
+    }
+
+    private void deflate(byte[] b, int off, int len) throws IOException
+    {
+	if (len == 0) return;
+
+	if (crc != null) crc.update(b, off, len);
+	deflater.setInput(b, off, len);
+	while (!deflater.needsInput())
+	{
+	    int length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.NO_FLUSH);
+	    if (length > 0) out.write(deflateBuffer, 0, length);
+	}
+	sinceFlush += len;
+    }
+
+    private void drain(int flush) throws IOException
+    {
+	int length;
+	do
+	{
+	    length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, flush);
+	    out.write(deflateBuffer, 0, length);
+	}
+	while (length == deflateBuffer.length);
+    }
+
+    private void writeInt(int value) throws IOException
+    {
+	out.write(value & 0xff);
+	out.write((value >> 8) & 0xff);
+	out.write((value >> 16) & 0xff);
+	out.write((value >> 24) & 0xff);
+    }
+
+}
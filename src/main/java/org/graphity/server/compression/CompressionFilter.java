@@ -0,0 +1,312 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.compression;
+
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.graphity.io.ContentCoding;
+import org.graphity.server.vocabulary.GS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses response entities using <code>gzip</code> or <code>deflate</code> content coding, as negotiated from
+ * the <code>Accept-Encoding</code> request header, and decompresses request entities (e.g. graphs sent to the
+ * Graph Store) with such <code>Content-Encoding</code>.
+ * Only textual and RDF media types are compressed, and only if the entity is larger than
+ * <code>gs:compressionThreshold</code> bytes (1024 by default). Compression level is set using
+ * <code>gs:compressionLevel</code> (6 by default). Deflaters are pooled.
+ * Strong <code>ETag</code> validators of compressed responses get the content coding as suffix (e.g.
+ * <code>"abc-gzip"</code>), since each content coding is a different representation; the suffix is removed from
+ * <code>If-None-Match</code> and <code>If-Match</code> request headers before they are evaluated, and restored on
+ * <code>304 Not Modified</code> responses.
+ * Decompressed request entities larger than <code>gs:maxDecodedRequestSize</code> bytes (16 MB by default) are
+ * rejected with <code>413 Request Entity Too Large</code>.
+ * Needs to be registered both as container request and response filter in web.xml, after filters that wrap the
+ * response writer, so that their measurements include compression.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://tools.ietf.org/html/rfc2616#section-14.3">RFC 2616: Accept-Encoding</a>
+ * @see <a href="http://tools.ietf.org/html/rfc7232#section-2.3.3">RFC 7232: Example: Entity-Tags Varying on Content-Negotiated Resources</a>
+ */
+public class CompressionFilter implements ContainerRequestFilter, ContainerResponseFilter
+{
+    private static final Logger log = LoggerFactory.getLogger(CompressionFilter.class);
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final int DEFAULT_LEVEL = 6;
+    public static final long DEFAULT_MAX_DECODED_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    /** Request property of the content coding removed from entity tags of conditional request headers */
+    public static final String TAG_ENCODING_PROPERTY = CompressionFilter.class.getName() + ".tagEncoding";
+
+    /** Content coding suffix of an entity tag, followed by its closing quote */
+    private static final Pattern TAG_ENCODING = Pattern.compile("-(" + GZIP + "|" + DEFLATE + ")\"");
+
+    /** Maximum number of idle deflaters kept per encoding */
+    public static final int POOL_SIZE = 64;
+
+    /** Compressible subtypes of <code>application</code> type, besides XML and JSON ones */
+    public static final Set<String> COMPRESSIBLE_SUBTYPES = new HashSet<String>(Arrays.asList("n-triples",
+	    "n-quads", "sparql-query", "sparql-update", "javascript", "x-rdf-binary", "x-sparql-results+binary"));
+
+    @Context ResourceConfig resourceConfig;
+
+    private DeflaterPool gzipPool, deflatePool;
+    private int threshold;
+    private long maxDecodedRequestSize;
+    private boolean initialized = false;
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request)
+    {
+	decodeEntityTags(request, HttpHeaders.IF_NONE_MATCH);
+	decodeEntityTags(request, HttpHeaders.IF_MATCH);
+
+	String encoding = request.getHeaderValue(CONTENT_ENCODING);
+	if (encoding == null) return request;
+	if (!ContentCoding.isSupported(encoding))
+	{
+	    if (log.isDebugEnabled()) log.debug("Unsupported request Content-Encoding: {}", encoding);
+	    throw new WebApplicationException(Response.Status.UNSUPPORTED_MEDIA_TYPE);
+	}
+
+	try
+	{
+	    init();
+	    request.setEntityInputStream(new LimitedInputStream(ContentCoding.decode(request.getEntityInputStream(), encoding), maxDecodedRequestSize));
+	}
+	catch (IOException ex)
+	{
+	    if (log.isDebugEnabled()) log.debug("Could not read compressed request entity", ex);
+	    throw new WebApplicationException(ex, Response.Status.BAD_REQUEST);
+	}
+	request.getRequestHeaders().remove(CONTENT_ENCODING);
+
+	return request;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, final ContainerResponse response)
+    {
+	if (response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode() &&
+		request.getProperties().get(TAG_ENCODING_PROPERTY) != null)
+	{
+	    // the client validated a compressed representation, whose tag it has to get back
+	    encodeEntityTag(response, request.getProperties().get(TAG_ENCODING_PROPERTY).toString());
+	    response.getHttpHeaders().add(HttpHeaders.VARY, ACCEPT_ENCODING);
+	    return response;
+	}
+	if (response.getEntity() == null || response.getHttpHeaders().containsKey(CONTENT_ENCODING)) return response;
+
+	final String encoding = getEncoding(request.getHeaderValue(ACCEPT_ENCODING));
+	if (encoding == null) return response;
+
+	init();
+	final DeflaterPool pool = encoding.equals(GZIP) ? gzipPool : deflatePool;
+	final ContainerResponseWriter writer = response.getContainerResponseWriter();
+	response.setContainerResponseWriter(new ContainerResponseWriter()
+	{
+	    private CompressingOutputStream out = null;
+
+	    @Override
+	    public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException
+	    {
+		if ((contentLength >= 0 && contentLength <= threshold) || !isCompressible(response))
+		    return writer.writeStatusAndHeaders(contentLength, response);
+
+		response.getHttpHeaders().add(HttpHeaders.VARY, ACCEPT_ENCODING);
+		out = new CompressingOutputStream(writer, response, encoding, pool, threshold);
+		return out;
+	    }
+
+	    @Override
+	    public void finish() throws IOException
+	    {
+		try
+		{
+		    if (out != null) out.finish();
+		}
+		finally
+		{
+		    writer.finish();
+		}
+	    }
+	});
+
+	return response;
+    }
+
+    /**
+     * Removes content coding suffixes from entity tags in a conditional request header, so that they are
+     * evaluated against the tags of the uncompressed entity. The removed content coding is stored in the
+     * request properties.
+     *
+     * @param request request
+     * @param name <code>If-None-Match</code> or <code>If-Match</code>
+     */
+    public static void decodeEntityTags(ContainerRequest request, String name)
+    {
+	List<String> values = request.getRequestHeaders().get(name);
+	if (values == null) return;
+
+	List<String> decoded = new ArrayList<String>(values.size());
+	for (String value : values)
+	{
+	    Matcher matcher = TAG_ENCODING.matcher(value);
+	    if (matcher.find()) request.getProperties().put(TAG_ENCODING_PROPERTY, matcher.group(1));
+	    decoded.add(matcher.replaceAll("\""));
+	}
+	request.getRequestHeaders().put(name, decoded);
+    }
+
+    /**
+     * Adds content coding suffix to a strong <code>ETag</code> of the response. Weak tags are left as they are,
+     * since semantically equivalent representations can share them.
+     *
+     * @param response response
+     * @param encoding <code>gzip</code> or <code>deflate</code>
+     */
+    public static void encodeEntityTag(ContainerResponse response, String encoding)
+    {
+	Object value = response.getHttpHeaders().getFirst(HttpHeaders.ETAG);
+	if (value == null) return;
+
+	EntityTag tag = value instanceof EntityTag ? (EntityTag)value : EntityTag.valueOf(value.toString());
+	if (tag.isWeak() || tag.getValue().endsWith("-" + encoding)) return;
+	response.getHttpHeaders().putSingle(HttpHeaders.ETAG, new EntityTag(tag.getValue() + "-" + encoding));
+    }
+
+    /**
+     * Chooses content coding from <code>Accept-Encoding</code> header value. <code>gzip</code> is preferred over
+     * <code>deflate</code> if both are acceptable, as some clients expect raw deflate data instead of zlib format.
+     *
+     * @param acceptEncoding header value, possibly null
+     * @return <code>gzip</code>, <code>deflate</code>, or null if neither is acceptable
+     */
+    public static String getEncoding(String acceptEncoding)
+    {
+	if (acceptEncoding == null) return null;
+
+	boolean gzip = false, deflate = false, wildcard = false, gzipExcluded = false, deflateExcluded = false;
+	for (String token : acceptEncoding.split(","))
+	{
+	    String[] parts = token.split(";");
+	    String coding = parts[0].trim().toLowerCase();
+	    boolean acceptable = true;
+	    for (int i = 1; i < parts.length; i++)
+	    {
+		String param = parts[i].trim();
+		if (param.startsWith("q="))
+		    try
+		    {
+			acceptable = Double.parseDouble(param.substring(2)) > 0;
+		    }
+		    catch (NumberFormatException ex)
+		    {
+			acceptable = false;
+		    }
+	    }
+
+	    if (coding.equals(GZIP) || coding.equals("x-gzip"))
+	    {
+		gzip = acceptable;
+		gzipExcluded = !acceptable;
+	    }
+	    else if (coding.equals(DEFLATE))
+	    {
+		deflate = acceptable;
+		deflateExcluded = !acceptable;
+	    }
+	    else if (coding.equals("*")) wildcard = acceptable;
+	}
+
+	if (gzip || (wildcard && !gzipExcluded)) return GZIP;
+	if (deflate || (wildcard && !deflateExcluded)) return DEFLATE;
+	return null;
+    }
+
+    /**
+     * Checks whether response media type is worth compressing: text, XML, JSON and RDF types are.
+     *
+     * @param response response
+     * @return true if compressible
+     */
+    public static boolean isCompressible(ContainerResponse response)
+    {
+	Object contentType = response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_TYPE);
+	if (contentType == null) return false;
+
+	MediaType mediaType = contentType instanceof MediaType ? (MediaType)contentType : MediaType.valueOf(contentType.toString());
+	String subtype = mediaType.getSubtype().toLowerCase();
+	if (mediaType.getType().equalsIgnoreCase("text")) return true;
+	if (!mediaType.getType().equalsIgnoreCase("application")) return false;
+	return subtype.endsWith("xml") || subtype.endsWith("json") || COMPRESSIBLE_SUBTYPES.contains(subtype);
+    }
+
+    private synchronized void init()
+    {
+	if (!initialized)
+	{
+	    threshold = getIntProperty(GS.compressionThreshold.getURI(), DEFAULT_THRESHOLD);
+	    int level = getIntProperty(GS.compressionLevel.getURI(), DEFAULT_LEVEL);
+	    maxDecodedRequestSize = getResourceConfig() == null || getResourceConfig().getProperty(GS.maxDecodedRequestSize.getURI()) == null ?
+		    DEFAULT_MAX_DECODED_REQUEST_SIZE :
+		    Long.parseLong(getResourceConfig().getProperty(GS.maxDecodedRequestSize.getURI()).toString());
+	    if (log.isDebugEnabled()) log.debug("Compressing responses larger than {} bytes with level {}", threshold, level);
+	    gzipPool = new DeflaterPool(level, true, POOL_SIZE);
+	    deflatePool = new DeflaterPool(level, false, POOL_SIZE);
+	    initialized = true;
+	}
+    }
+
+    private int getIntProperty(String uri, int defaultValue)
+    {
+	if (getResourceConfig() == null || getResourceConfig().getProperty(uri) == null) return defaultValue;
+	return Integer.parseInt(getResourceConfig().getProperty(uri).toString());
+    }
+
+    public ResourceConfig getResourceConfig()
+    {
+	return resourceConfig;
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of reusable <code>Deflater</code> instances with the same settings.
+ * Deflaters hold native memory that is only freed by <code>end()</code> or finalization, so reusing them avoids
+ * allocating and releasing it for every response.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class DeflaterPool
+{
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int level, maxSize;
+    private final boolean nowrap;
+
+    /**
+     * Creates pool.
+     *
+     * @param level compression level (0-9, or -1 for default)
+     * @param nowrap true for raw deflate data (as used by gzip), false for zlib format
+     * @param maxSize maximum number of idle deflaters kept in the pool
+     */
+    public DeflaterPool(int level, boolean nowrap, int maxSize)
+    {
+	this.level = level;
+	this.nowrap = nowrap;
+	this.maxSize = maxSize;
+    }
+
+    public Deflater acquire()
+    {
+	Deflater deflater = deflaters.poll();
+	if (deflater == null) return new Deflater(level, nowrap);
+
+	size.decrementAndGet();
+	return deflater;
+    }
+
+    /**
+     * Returns deflater to the pool, or releases its memory if the pool is full.
+     *
+     * @param deflater deflater acquired from this pool
+     */
+    public void release(Deflater deflater)
+    {
+	if (size.incrementAndGet() > maxSize)
+	{
+	    size.decrementAndGet();
+	    deflater.end();
+	    return;
+	}
+
+	deflater.reset();
+	deflaters.offer(deflater);
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.compression;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * Request entity stream that fails with <code>413 Request Entity Too Large</code> once more than a maximum number
+ * of bytes has been read, so that a small compressed entity cannot expand into an arbitrarily large one.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see CompressionFilter
+ */
+class LimitedInputStream extends FilterInputStream
+{
+    /** "413 Request Entity Too Large" (not defined in JAX-RS 1.1 Response.Status) */
+    static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
+    private final long limit;
+    private long count = 0;
+
+    /**
+     * Creates stream.
+     *
+     * @param in decoded entity stream
+     * @param limit maximum number of bytes
+     */
+    LimitedInputStream(InputStream in, long limit)
+    {
+	super(in);
+	this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+	int b = super.read();
+	if (b >= 0) count(1);
+	return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+	int read = super.read(b, off, len);
+	if (read > 0) count(read);
+	return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+	long skipped = super.skip(n);
+	if (skipped > 0) count(skipped);
+	return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+	return false;
+    }
+
+    private void count(long read)
+    {
+	count += read;
+	if (count > limit) throw new WebApplicationException(REQUEST_ENTITY_TOO_LARGE);
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonically increasing count of events.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics#counter(String, String...)
+ */
+public class Counter extends Metric implements CounterMBean
+{
+    private final AtomicLong count = new AtomicLong();
+
+    public Counter(String name, Map<String, String> tags)
+    {
+	super(name, tags);
+    }
+
+    public void increment()
+    {
+	count.incrementAndGet();
+    }
+
+    public void increment(long amount)
+    {
+	count.addAndGet(amount);
+    }
+
+    @Override
+    public long getCount()
+    {
+	return count.get();
+    }
+
+}
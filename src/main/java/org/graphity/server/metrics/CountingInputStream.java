@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts bytes read from the underlying stream.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class CountingInputStream extends FilterInputStream
+{
+    private long count = 0;
+
+    public CountingInputStream(InputStream in)
+    {
+	super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+	int b = in.read();
+	if (b != -1) count++;
+	return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+	int read = in.read(b, off, len);
+	if (read > 0) count += read;
+	return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+	long skipped = in.skip(n);
+	count += skipped;
+	return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+	return false;
+    }
+
+    public long getCount()
+    {
+	return count;
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Current value of something that can go up and down, such as number of requests in flight.
+ * The value is sampled when the gauge is read.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics#gauge(Gauge)
+ */
+public abstract class Gauge extends Metric implements GaugeMBean
+{
+
+    public Gauge(String name, Map<String, String> tags)
+    {
+	super(name, tags);
+    }
+
+    @Override
+    public abstract double getValue();
+
+}
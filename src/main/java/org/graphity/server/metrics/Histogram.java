@@ -0,0 +1,105 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets.
+ * Each power of two is split into 8 buckets, so percentiles are accurate to within 12.5% of the value.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+class Histogram
+{
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+	if (value < 0) value = 0;
+
+	buckets.incrementAndGet(getBucket(value));
+	count.incrementAndGet();
+	total.addAndGet(value);
+
+	long current = max.get();
+	while (value > current && !max.compareAndSet(current, value)) current = max.get();
+    }
+
+    private static int getBucket(long value)
+    {
+	if (value < LINEAR) return (int)value;
+
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+	return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long getUpperBound(int bucket)
+    {
+	if (bucket < LINEAR) return bucket;
+
+	int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+	int sub = (bucket - LINEAR) % SUB_BUCKETS;
+	return ((long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Returns approximate percentile of the recorded values.
+     *
+     * @param percentile percentile between 0 and 1
+     * @return upper bound of the bucket containing the percentile, capped by the maximum value
+     */
+    public long getPercentile(double percentile)
+    {
+	long target = (long)Math.ceil(percentile * count.get());
+	if (target <= 0) return 0;
+
+	long cumulative = 0;
+	for (int i = 0; i < BUCKETS; i++)
+	{
+	    cumulative += buckets.get(i);
+	    if (cumulative >= target) return Math.min(getUpperBound(i), getMax());
+	}
+	return getMax();
+    }
+
+    public long getCount()
+    {
+	return count.get();
+    }
+
+    public long getTotal()
+    {
+	return total.get();
+    }
+
+    public long getMax()
+    {
+	return max.get();
+    }
+
+}
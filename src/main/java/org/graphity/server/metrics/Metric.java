@@ -0,0 +1,59 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Base class of metrics. A metric is identified by its name and tags, e.g. <code>upstream.calls</code> with
+ * <code>operation=loadModel</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics
+ */
+public abstract class Metric
+{
+    private final String name;
+    private final Map<String, String> tags;
+
+    protected Metric(String name, Map<String, String> tags)
+    {
+	if (name == null) throw new IllegalArgumentException("Metric name must be not null");
+	if (tags == null) throw new IllegalArgumentException("Metric tags must be not null");
+
+	this.name = name;
+	this.tags = Collections.unmodifiableMap(tags);
+    }
+
+    public String getName()
+    {
+	return name;
+    }
+
+    public Map<String, String> getTags()
+    {
+	return tags;
+    }
+
+    @Override
+    public String toString()
+    {
+	return getClass().getSimpleName() + "[" + name + tags + "]";
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of metrics: timers, summaries, counters and gauges.
+ * Metrics are created on first use and registered as MBeans on the platform MBean server, with object names like
+ * <code>org.graphity.server:type=Timer,name=upstream.calls,operation=loadModel</code>. The registry can also be
+ * read over HTTP using {@link MetricsResource}.
+ * Tag values should come from a small set (operation names, endpoint URIs, media types), as each combination
+ * creates a separate metric.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://docs.oracle.com/javase/tutorial/jmx/mbeans/standard.html">Standard MBeans</a>
+ */
+public class Metrics
+{
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    /** JMX domain of the metric MBeans */
+    public static final String DOMAIN = "org.graphity.server";
+
+    private static Metrics s_instance = null;
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private final MBeanServer mbeanServer;
+
+    /**
+     * Returns global registry
+     *
+     * @return singleton instance
+     */
+    public static synchronized Metrics get()
+    {
+	if (s_instance == null)
+	{
+	    s_instance = new Metrics(ManagementFactory.getPlatformMBeanServer());
+	    if (log.isDebugEnabled()) log.debug("new Metrics({})", s_instance.mbeanServer);
+	}
+	return s_instance;
+    }
+
+    /**
+     * Creates registry.
+     *
+     * @param mbeanServer MBean server to register metrics with, or null if metrics should not be exposed over JMX
+     */
+    public Metrics(MBeanServer mbeanServer)
+    {
+	this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Returns timer, creating it if necessary.
+     *
+     * @param name metric name
+     * @param tags tag names and values, alternating
+     * @return timer
+     */
+    public Timer timer(String name, String... tags)
+    {
+	Map<String, String> tagMap = toMap(tags);
+	Metric metric = metrics.get(getKey(name, tagMap));
+	if (metric == null) metric = register(new Timer(name, tagMap), TimerMBean.class);
+	return (Timer)metric;
+    }
+
+    /**
+     * Returns distribution summary, creating it if necessary.
+     *
+     * @param name metric name
+     * @param tags tag names and values, alternating
+     * @return summary
+     */
+    public Summary summary(String name, String... tags)
+    {
+	Map<String, String> tagMap = toMap(tags);
+	Metric metric = metrics.get(getKey(name, tagMap));
+	if (metric == null) metric = register(new Summary(name, tagMap), SummaryMBean.class);
+	return (Summary)metric;
+    }
+
+    /**
+     * Returns counter, creating it if necessary.
+     *
+     * @param name metric name
+     * @param tags tag names and values, alternating
+     * @return counter
+     */
+    public Counter counter(String name, String... tags)
+    {
+	Map<String, String> tagMap = toMap(tags);
+	Metric metric = metrics.get(getKey(name, tagMap));
+	if (metric == null) metric = register(new Counter(name, tagMap), CounterMBean.class);
+	return (Counter)metric;
+    }
+
+    /**
+     * Registers gauge, unless a metric with the same name and tags already exists.
+     *
+     * @param gauge gauge
+     * @return registered gauge
+     */
+    public Gauge gauge(Gauge gauge)
+    {
+	if (gauge == null) throw new IllegalArgumentException("Gauge must be not null");
+
+	return (Gauge)register(gauge, GaugeMBean.class);
+    }
+
+    private <T> Metric register(Metric metric, Class<T> mbeanInterface)
+    {
+	Metric existing = metrics.putIfAbsent(getKey(metric.getName(), metric.getTags()), metric);
+	if (existing != null)
+	{
+	    if (!mbeanInterface.isInstance(existing))
+		throw new IllegalArgumentException("Metric " + existing + " is already registered with a different type");
+	    return existing;
+	}
+
+	if (mbeanServer != null)
+	    try
+	    {
+		mbeanServer.registerMBean(new StandardMBean(mbeanInterface.cast(metric), mbeanInterface), getObjectName(metric));
+	    }
+	    catch (JMException ex)
+	    {
+		if (log.isWarnEnabled()) log.warn("Could not register metric " + metric + " with JMX", ex);
+	    }
+	return metric;
+    }
+
+    /**
+     * Unregisters all metrics from JMX and removes them from this registry.
+     */
+    public void clear()
+    {
+	for (Metric metric : metrics.values())
+	    if (mbeanServer != null)
+		try
+		{
+		    ObjectName name = getObjectName(metric);
+		    if (mbeanServer.isRegistered(name)) mbeanServer.unregisterMBean(name);
+		}
+		catch (JMException ex)
+		{
+		    if (log.isWarnEnabled()) log.warn("Could not unregister metric " + metric + " from JMX", ex);
+		}
+	metrics.clear();
+    }
+
+    /**
+     * Returns all metrics, sorted by name and tags.
+     *
+     * @return metrics
+     */
+    public Collection<Metric> getMetrics()
+    {
+	return new TreeMap<String, Metric>(metrics).values();
+    }
+
+    /**
+     * Returns JMX object name of a metric.
+     *
+     * @param metric metric
+     * @return object name
+     * @throws JMException if the name or tags are not valid in an object name
+     */
+    public ObjectName getObjectName(Metric metric) throws JMException
+    {
+	StringBuilder sb = new StringBuilder(DOMAIN).
+		append(":type=").append(getType(metric)).
+		append(",name=").append(ObjectName.quote(metric.getName()));
+	for (Map.Entry<String, String> tag : metric.getTags().entrySet())
+	    sb.append(",").append(tag.getKey()).append("=").append(ObjectName.quote(tag.getValue()));
+	return new ObjectName(sb.toString());
+    }
+
+    /**
+     * Returns type of a metric.
+     *
+     * @param metric metric
+     * @return <code>Timer</code>, <code>Summary</code>, <code>Counter</code> or <code>Gauge</code>
+     */
+    public static String getType(Metric metric)
+    {
+	if (metric instanceof Timer) return "Timer";
+	if (metric instanceof Summary) return "Summary";
+	if (metric instanceof Counter) return "Counter";
+	return "Gauge";
+    }
+
+    private static String getKey(String name, Map<String, String> tags)
+    {
+	return name + tags;
+    }
+
+    private static Map<String, String> toMap(String... tags)
+    {
+	if (tags.length % 2 != 0) throw new IllegalArgumentException("Metric tags must be name/value pairs");
+
+	Map<String, String> map = new TreeMap<String, String>();
+	for (int i = 0; i < tags.length; i += 2)
+	    map.put(tags[i], tags[i + 1] == null ? "" : tags[i + 1]);
+	return map;
+    }
+
+}
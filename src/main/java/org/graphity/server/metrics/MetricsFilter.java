@@ -0,0 +1,221 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import com.sun.jersey.spi.CloseableService;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.Context;
+
+/**
+ * Records in-flight request gauges and request timers.
+ * Requests are classified by kind: <code>sparql</code> (SPARQL endpoint), <code>service</code> (Graph Store),
+ * <code>metrics</code> and <code>resource</code> (the rest). Timers are additionally tagged by response status,
+ * and stop when the response has been written, so that serialization is included. Requests that fail with an
+ * unmapped exception are recorded with status 500.
+ * Needs to be registered both as container request and response filter in web.xml.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics
+ */
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter
+{
+    /** Request kinds, matched against the first segment of the request path */
+    public static final String[] KINDS = { "sparql", "service", "metrics" };
+    /** Kind of requests that do not match any of the other kinds */
+    public static final String RESOURCE_KIND = "resource";
+
+    /** Name of the request property holding the in-flight request */
+    private static final String IN_FLIGHT_PROPERTY = MetricsFilter.class.getName() + ".inFlight";
+
+    @Context CloseableService closeableService;
+
+    private Map<String, AtomicLong> inFlight = null;
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request)
+    {
+	String kind = getKind(request);
+	getInFlight().get(kind).incrementAndGet();
+	final InFlight current = new InFlight(kind, System.nanoTime());
+	request.getProperties().put(IN_FLIGHT_PROPERTY, current);
+
+	// closed by Jersey after the response is written, or after an unmapped exception
+	getCloseableService().add(new Closeable()
+	{
+	    @Override
+	    public void close()
+	    {
+		complete(current);
+	    }
+	});
+
+	return request;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, ContainerResponse response)
+    {
+	final InFlight current = (InFlight)request.getProperties().get(IN_FLIGHT_PROPERTY);
+	if (current != null)
+	{
+	    current.setStatus(response.getStatus());
+
+	    final ContainerResponseWriter writer = response.getContainerResponseWriter();
+	    response.setContainerResponseWriter(new ContainerResponseWriter()
+	    {
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException
+		{
+		    return writer.writeStatusAndHeaders(contentLength, response);
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+		    try
+		    {
+			writer.finish();
+		    }
+		    finally
+		    {
+			complete(current);
+		    }
+		}
+	    });
+	}
+
+	return response;
+    }
+
+    /**
+     * Removes request from the in-flight gauge and records its timer. Calls after the first one have no effect.
+     *
+     * @param current in-flight request
+     */
+    protected void complete(InFlight current)
+    {
+	if (!current.complete()) return;
+
+	getInFlight().get(current.getKind()).decrementAndGet();
+	getMetrics().timer("http.requests", "kind", current.getKind(), "status", String.valueOf(current.getStatus())).
+	    recordSince(current.getStartNanos());
+    }
+
+    /**
+     * Returns kind of the request, used as metric tag.
+     *
+     * @param request current request
+     * @return request kind
+     */
+    public String getKind(ContainerRequest request)
+    {
+	String path = request.getPath();
+	for (String kind : KINDS)
+	    if (path.equals(kind) || path.startsWith(kind + "/")) return kind;
+
+	return RESOURCE_KIND;
+    }
+
+    private synchronized Map<String, AtomicLong> getInFlight()
+    {
+	if (inFlight == null)
+	{
+	    Map<String, AtomicLong> map = new HashMap<String, AtomicLong>();
+	    for (String kind : KINDS) map.put(kind, createGauge(kind));
+	    map.put(RESOURCE_KIND, createGauge(RESOURCE_KIND));
+	    inFlight = Collections.unmodifiableMap(map);
+	}
+
+	return inFlight;
+    }
+
+    private AtomicLong createGauge(String kind)
+    {
+	final AtomicLong value = new AtomicLong();
+	getMetrics().gauge(new Gauge("http.requests.inflight", Collections.singletonMap("kind", kind))
+	{
+	    @Override
+	    public double getValue()
+	    {
+		return value.get();
+	    }
+	});
+	return value;
+    }
+
+    public Metrics getMetrics()
+    {
+	return Metrics.get();
+    }
+
+    public CloseableService getCloseableService()
+    {
+	return closeableService;
+    }
+
+    protected static class InFlight
+    {
+	private final String kind;
+	private final long startNanos;
+	private final AtomicBoolean completed = new AtomicBoolean();
+	private volatile int status = 500; // unmapped exceptions are answered by the container with 500
+
+	InFlight(String kind, long startNanos)
+	{
+	    this.kind = kind;
+	    this.startNanos = startNanos;
+	}
+
+	public String getKind()
+	{
+	    return kind;
+	}
+
+	public long getStartNanos()
+	{
+	    return startNanos;
+	}
+
+	public int getStatus()
+	{
+	    return status;
+	}
+
+	public void setStatus(int status)
+	{
+	    this.status = status;
+	}
+
+	boolean complete()
+	{
+	    return completed.compareAndSet(false, true);
+	}
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * Exposes metrics in Prometheus text format.
+ * Timers are reported in seconds, as summaries with 0.5, 0.95 and 0.99 quantiles and a separate maximum.
+ * Should be protected, e.g. using <code>HTTPBasicAuthFilter</code>, if the server is public.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics
+ * @see <a href="http://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus exposition formats</a>
+ */
+@Path("/metrics")
+public class MetricsResource
+{
+    /** Media type of the Prometheus text format */
+    public static final String TEXT_PLAIN_PROMETHEUS = "text/plain; version=0.0.4; charset=UTF-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+    @GET
+    @Produces(TEXT_PLAIN_PROMETHEUS)
+    public String get()
+    {
+	Map<String, List<Metric>> families = new LinkedHashMap<String, List<Metric>>();
+	for (Metric metric : getMetrics().getMetrics())
+	{
+	    if (!families.containsKey(metric.getName())) families.put(metric.getName(), new ArrayList<Metric>());
+	    families.get(metric.getName()).add(metric);
+	}
+
+	StringBuilder sb = new StringBuilder();
+	for (Map.Entry<String, List<Metric>> family : families.entrySet())
+	{
+	    String name = getName(family.getKey());
+	    Metric first = family.getValue().get(0);
+
+	    if (first instanceof Timer)
+	    {
+		sb.append("# TYPE ").append(name).append("_seconds summary\n");
+		for (Metric metric : family.getValue())
+		{
+		    Timer timer = (Timer)metric;
+		    for (double quantile : QUANTILES)
+			append(sb, name + "_seconds", metric.getTags(), quantile, timer.getPercentile(quantile) / 1000);
+		    append(sb, name + "_seconds_count", metric.getTags(), null, timer.getCount());
+		    append(sb, name + "_seconds_sum", metric.getTags(), null, timer.getTotalTime() / 1000);
+		}
+		sb.append("# TYPE ").append(name).append("_seconds_max gauge\n");
+		for (Metric metric : family.getValue())
+		    append(sb, name + "_seconds_max", metric.getTags(), null, ((Timer)metric).getMax() / 1000);
+	    }
+	    else if (first instanceof Summary)
+	    {
+		sb.append("# TYPE ").append(name).append(" summary\n");
+		for (Metric metric : family.getValue())
+		{
+		    Summary summary = (Summary)metric;
+		    for (double quantile : QUANTILES)
+			append(sb, name, metric.getTags(), quantile, summary.getPercentile(quantile));
+		    append(sb, name + "_count", metric.getTags(), null, summary.getCount());
+		    append(sb, name + "_sum", metric.getTags(), null, summary.getTotal());
+		}
+		sb.append("# TYPE ").append(name).append("_max gauge\n");
+		for (Metric metric : family.getValue())
+		    append(sb, name + "_max", metric.getTags(), null, ((Summary)metric).getMax());
+	    }
+	    else if (first instanceof Counter)
+	    {
+		sb.append("# TYPE ").append(name).append("_total counter\n");
+		for (Metric metric : family.getValue())
+		    append(sb, name + "_total", metric.getTags(), null, ((Counter)metric).getCount());
+	    }
+	    else
+	    {
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		for (Metric metric : family.getValue())
+		    append(sb, name, metric.getTags(), null, ((Gauge)metric).getValue());
+	    }
+	}
+
+	return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Map<String, String> tags, Double quantile, double value)
+    {
+	sb.append(name);
+	if (!tags.isEmpty() || quantile != null)
+	{
+	    sb.append('{');
+	    String separator = "";
+	    for (Map.Entry<String, String> tag : tags.entrySet())
+	    {
+		sb.append(separator).append(getName(tag.getKey())).append("=\"").append(escape(tag.getValue())).append('"');
+		separator = ",";
+	    }
+	    if (quantile != null) sb.append(separator).append("quantile=\"").append(quantile).append('"');
+	    sb.append('}');
+	}
+	sb.append(' ');
+	if (value == Math.rint(value) && !Double.isInfinite(value)) sb.append((long)value);
+	else sb.append(value);
+	sb.append('\n');
+    }
+
+    private static String getName(String name)
+    {
+	return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String escape(String value)
+    {
+	return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public Metrics getMetrics()
+    {
+	return Metrics.get();
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Measures count and distribution of amounts, such as sizes in bytes or triples.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics#summary(String, String...)
+ */
+public class Summary extends Metric implements SummaryMBean
+{
+    private final Histogram histogram = new Histogram();
+
+    public Summary(String name, Map<String, String> tags)
+    {
+	super(name, tags);
+    }
+
+    public void record(long amount)
+    {
+	histogram.record(amount);
+    }
+
+    /**
+     * Returns amount percentile.
+     *
+     * @param percentile percentile between 0 and 1
+     * @return amount
+     */
+    public long getPercentile(double percentile)
+    {
+	return histogram.getPercentile(percentile);
+    }
+
+    @Override
+    public long getCount()
+    {
+	return histogram.getCount();
+    }
+
+    @Override
+    public long getTotal()
+    {
+	return histogram.getTotal();
+    }
+
+    @Override
+    public double getMean()
+    {
+	long count = getCount();
+	return count == 0 ? 0 : (double)getTotal() / count;
+    }
+
+    @Override
+    public long getMax()
+    {
+	return histogram.getMax();
+    }
+
+    @Override
+    public long get50thPercentile()
+    {
+	return getPercentile(0.5);
+    }
+
+    @Override
+    public long get95thPercentile()
+    {
+	return getPercentile(0.95);
+    }
+
+    @Override
+    public long get99thPercentile()
+    {
+	return getPercentile(0.99);
+    }
+
+}
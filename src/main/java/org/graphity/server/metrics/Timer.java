@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures count and distribution of durations.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Metrics#timer(String, String...)
+ */
+public class Timer extends Metric implements TimerMBean
+{
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Histogram histogram = new Histogram();
+
+    public Timer(String name, Map<String, String> tags)
+    {
+	super(name, tags);
+    }
+
+    /**
+     * Records duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos)
+    {
+	histogram.record(nanos);
+    }
+
+    /**
+     * Records duration since a start time.
+     *
+     * @param startNanos start time, as returned by <code>System.nanoTime()</code>
+     */
+    public void recordSince(long startNanos)
+    {
+	record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns duration percentile.
+     *
+     * @param percentile percentile between 0 and 1
+     * @return duration in milliseconds
+     */
+    public double getPercentile(double percentile)
+    {
+	return histogram.getPercentile(percentile) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getCount()
+    {
+	return histogram.getCount();
+    }
+
+    @Override
+    public double getTotalTime()
+    {
+	return histogram.getTotal() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMean()
+    {
+	long count = getCount();
+	return count == 0 ? 0 : getTotalTime() / count;
+    }
+
+    @Override
+    public double getMax()
+    {
+	return histogram.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get50thPercentile()
+    {
+	return getPercentile(0.5);
+    }
+
+    @Override
+    public double get95thPercentile()
+    {
+	return getPercentile(0.95);
+    }
+
+    @Override
+    public double get99thPercentile()
+    {
+	return getPercentile(0.99);
+    }
+
+}
@@ -0,0 +1,42 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.metrics;
+
+/**
+ * JMX management interface of a timer. Times are in milliseconds.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Timer
+ */
+public interface TimerMBean
+{
+
+    long getCount();
+
+    double getTotalTime();
+
+    double getMean();
+
+    double getMax();
+
+    double get50thPercentile();
+
+    double get95thPercentile();
+
+    double get99thPercentile();
+
+}
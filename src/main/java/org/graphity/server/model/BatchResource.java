@@ -0,0 +1,59 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.model;
+
+import java.util.List;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import org.graphity.server.MediaType;
+
+/**
+ * Resource returning RDF descriptions of several Linked Data resources in a single response.
+ * Resource URIs are passed as <code>uri</code> query or form parameters, or as a <code>text/uri-list</code> request
+ * body.
+ * 
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see QueriedResource
+ * @see <a href="http://tools.ietf.org/html/rfc2483#section-5">RFC 2483: text/uri-list</a>
+ */
+public interface BatchResource
+{
+    /**
+     * Handles GET request with resource URIs as query parameters
+     * 
+     * @param uris resource URIs
+     * @return response with the descriptions of the resources
+     */
+    @GET Response get(@QueryParam("uri") List<String> uris);
+
+    /**
+     * Handles POST request with resource URIs as form parameters
+     * 
+     * @param uris resource URIs
+     * @return response with the descriptions of the resources
+     */
+    @POST @Consumes(MediaType.APPLICATION_FORM_URLENCODED) Response post(@FormParam("uri") List<String> uris);
+
+    /**
+     * Handles POST request with resource URIs as a URI list
+     * 
+     * @param uriList URIs separated by line breaks, with optional comment lines starting with <code>#</code>
+     * @return response with the descriptions of the resources
+     */
+    @POST @Consumes(MediaType.TEXT_URI_LIST) Response postURIList(String uriList);
+
+}
@@ -0,0 +1,465 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.model;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.jersey.api.core.ResourceContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import javax.ws.rs.*;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import org.graphity.server.MediaType;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.ratelimit.RateLimitExceededException;
+import org.graphity.server.ratelimit.RateLimitFilter;
+import org.graphity.server.ratelimit.RateLimiter;
+import org.graphity.server.util.DataManager;
+import org.graphity.server.util.GraphVersionRegistry;
+import org.graphity.server.util.NegativeCache;
+import org.graphity.server.util.SubjectIndex;
+import org.graphity.server.util.UpstreamScheduler;
+import org.graphity.server.vocabulary.GS;
+import org.graphity.util.ModelUtils;
+import org.openjena.riot.out.SinkQuadOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the resource returning descriptions of several resources, as they would be returned by
+ * <code>QueriedResourceBase</code>, in a single response.
+ * Descriptions are served from the upstream cache where possible, and the remaining ones are retrieved using a
+ * single query on the SPARQL endpoint. Resources without description, including the ones in the negative cache
+ * or not in the subject index, are left out of the response.
+ * The descriptions are returned as one RDF graph, or as N-Quads in which each description is in a named graph
+ * of its resource. Relative URIs are resolved against the base URI of the application, only resources under the
+ * base URI can be requested, and at most <code>gs:batchMaxResources</code> different resources can be requested
+ * at once. If requests are rate limited, every resource after the first one is charged to the request budget of
+ * the client, as if it was requested separately.
+ * 
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see QueriedResourceBase
+ * @see SPARQLEndpoint#loadModels(java.util.Collection)
+ */
+@Path("/batch")
+public class BatchResourceBase implements BatchResource
+{
+    private static final Logger log = LoggerFactory.getLogger(BatchResourceBase.class);
+
+    /** Default maximum number of resources in a request */
+    public static final int DEFAULT_MAX_RESOURCES = 100;
+    /** Label of this resource in metrics */
+    public static final String METRICS_RESOURCE = "batch";
+
+    private final URI base;
+    private final SPARQLEndpoint endpoint;
+    private final CacheControl cacheControl;
+    private final int maxResources;
+    @Context private HttpContext httpContext;
+
+    /**
+     * JAX-RS-compatible resource constructor with injected initialization objects.
+     * Uses <code>gs:cacheControl</code> and <code>gs:batchMaxResources</code> parameter values from web.xml.
+     * 
+     * @param uriInfo URI information of the request
+     * @param resourceConfig webapp configuration
+     * @param resourceContext resource context
+     */
+    public BatchResourceBase(@Context UriInfo uriInfo, @Context ResourceConfig resourceConfig, @Context ResourceContext resourceContext)
+    {
+	this(uriInfo.getBaseUri(),
+		resourceContext.getResource(SPARQLEndpointBase.class),
+		resourceConfig.getProperty(GS.cacheControl.getURI()) == null ?
+		    null :
+		    CacheControl.valueOf(resourceConfig.getProperty(GS.cacheControl.getURI()).toString()),
+		resourceConfig.getProperty(GS.batchMaxResources.getURI()) == null ?
+		    DEFAULT_MAX_RESOURCES :
+		    Integer.parseInt(resourceConfig.getProperty(GS.batchMaxResources.getURI()).toString()));
+    }
+
+    /**
+     * Protected constructor. Not suitable for JAX-RS but can be used when subclassing.
+     * 
+     * @param base base URI, against which relative resource URIs are resolved
+     * @param endpoint SPARQL endpoint of the resources
+     * @param cacheControl Cache control config
+     * @param maxResources maximum number of resources in a request
+     */
+    protected BatchResourceBase(URI base, SPARQLEndpoint endpoint, CacheControl cacheControl, int maxResources)
+    {
+	if (base == null) throw new IllegalArgumentException("Base URI cannot be null");
+	if (endpoint == null) throw new IllegalArgumentException("SPARQL endpoint cannot be null");
+	if (maxResources <= 0) throw new IllegalArgumentException("Maximum number of resources must be positive");
+	this.base = base;
+	this.endpoint = endpoint;
+	this.cacheControl = cacheControl;
+	this.maxResources = maxResources;
+    }
+
+    /**
+     * Handles GET request and returns response with RDF descriptions of the resources.
+     * Conditional requests matching the dataset version are answered with <code>304 Not Modified</code> without
+     * retrieving the descriptions.
+     * 
+     * @param uris resource URIs
+     * @return response with the descriptions
+     */
+    @GET
+    @Override
+    public Response get(@QueryParam("uri") List<String> uris)
+    {
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getDatasetVersion();
+	ResponseBuilder notModified = getEndpoint() instanceof SPARQLEndpointBase ?
+		((SPARQLEndpointBase)getEndpoint()).evaluatePreconditions(version, METRICS_RESOURCE) :
+		getEndpoint().evaluatePreconditions(version);
+	if (notModified != null) return notModified.cacheControl(getCacheControl()).build();
+
+	List<String> resolved = getURIs(uris);
+	acquire(resolved.size() - 1);
+	return getResponseBuilder(describe(resolved), version).
+		cacheControl(getCacheControl()).
+		build();
+    }
+
+    @POST
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Override
+    public Response post(@FormParam("uri") List<String> uris)
+    {
+	List<String> resolved = getURIs(uris);
+	acquire(resolved.size() - 1);
+	return getResponseBuilder(describe(resolved), null).build();
+    }
+
+    @POST
+    @Consumes(MediaType.TEXT_URI_LIST)
+    @Override
+    public Response postURIList(String uriList)
+    {
+	List<String> uris = new ArrayList<String>();
+	for (String line : uriList.split("\r?\n"))
+	    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) uris.add(line.trim());
+
+	return post(uris);
+    }
+
+    /**
+     * Resolves resource URIs against the base URI and removes duplicates.
+     * 
+     * @param uris resource URIs, possibly relative
+     * @return absolute resource URIs, in the order of the request
+     * @throws WebApplicationException with <code>400 Bad Request</code> if there are no URIs, too many of them, or
+     * some of them are invalid or not under the base URI
+     */
+    public List<String> getURIs(List<String> uris)
+    {
+	if (uris == null || uris.isEmpty())
+	{
+	    if (log.isDebugEnabled()) log.debug("No resource URIs in batch request; returning 400 Bad Request");
+	    throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	}
+
+	Set<String> resolved = new LinkedHashSet<String>();
+	for (String uri : uris)
+	{
+	    String absolute;
+	    try
+	    {
+		absolute = getBase().resolve(new URI(uri.trim())).normalize().toString();
+	    }
+	    catch (URISyntaxException ex)
+	    {
+		throw new WebApplicationException(ex, Response.Status.BAD_REQUEST);
+	    }
+	    if (!absolute.startsWith(getBase().toString()))
+	    {
+		if (log.isDebugEnabled()) log.debug("Resource {} in batch request is not under base URI {}; returning 400 Bad Request", absolute, getBase());
+		throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	    }
+	    resolved.add(absolute);
+	}
+
+	if (resolved.size() > getMaxResources())
+	{
+	    if (log.isDebugEnabled()) log.debug("Batch request of {} resources exceeds the maximum of {}; returning 400 Bad Request", resolved.size(), getMaxResources());
+	    throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	}
+	return new ArrayList<String>(resolved);
+    }
+
+    /**
+     * Charges additional resources of the request to the budget of the client, if the request is rate limited.
+     * The rate limit filter has already charged the request itself.
+     * 
+     * @param cost number of additional resources
+     * @throws RateLimitExceededException if the client has exceeded its request rate
+     * @see RateLimitFilter
+     */
+    protected void acquire(int cost)
+    {
+	if (cost <= 0 || getHttpContext() == null) return;
+
+	RateLimiter limiter = (RateLimiter)getHttpContext().getProperties().get(RateLimitFilter.LIMITER_PROPERTY);
+	if (limiter == null) return;
+
+	String client = (String)getHttpContext().getProperties().get(RateLimitFilter.CLIENT_PROPERTY);
+	long wait = limiter.tryAcquire(client, cost);
+	if (wait > 0)
+	{
+	    if (log.isDebugEnabled()) log.debug("Client {} exceeded request rate with batch of {} resources", client, cost + 1);
+	    throw new RateLimitExceededException("Request rate limit exceeded", (wait + 999) / 1000);
+	}
+    }
+
+    /**
+     * Returns RDF descriptions of resources.
+     * Cached <code>DESCRIBE</code> results are used as they are, and the other descriptions are loaded using the
+     * interactive workload of the upstream scheduler, from earlier batches in the upstream cache or from the SPARQL
+     * endpoint.
+     * 
+     * @param uris absolute resource URIs
+     * @return map of the resource URIs to their non-empty descriptions, in the order of the URIs
+     * @see SPARQLEndpoint#loadModels(java.util.Collection)
+     * @see org.graphity.server.util.UpstreamScheduler.Workload#INTERACTIVE
+     */
+    public Map<String, Model> describe(List<String> uris)
+    {
+	// taken before the descriptions are retrieved, so that a concurrent write is not shadowed by a stale 404
+	long generation = getNegativeCache() != null ? getNegativeCache().getGeneration() : 0;
+	Map<String, Model> descriptions = new LinkedHashMap<String, Model>();
+	final Map<Query, String> misses = new LinkedHashMap<Query, String>();
+	for (String uri : uris)
+	{
+	    if (isAbsent(uri))
+	    {
+		Metrics.get().counter("batch.resources", "result", "absent").increment();
+		continue;
+	    }
+
+	    Query query = getQuery(uri);
+	    Model model = getEndpoint().getCachedModel(query);
+	    descriptions.put(uri, model); // keeps the position of the resource, even if the model is loaded later
+	    if (model == null) misses.put(query, uri);
+	    else Metrics.get().counter("batch.resources", "result", "cached").increment();
+	}
+
+	if (!misses.isEmpty())
+	{
+	    if (log.isDebugEnabled()) log.debug("Loading {} of {} descriptions in batch request", misses.size(), uris.size());
+	    Map<Query, Model> models = UpstreamScheduler.get().execute(UpstreamScheduler.Workload.INTERACTIVE, new Callable<Map<Query, Model>>()
+	    {
+		@Override
+		public Map<Query, Model> call()
+		{
+		    return getEndpoint().loadModels(misses.keySet());
+		}
+	    }, DataManager.get().getTimeout(misses.keySet().iterator().next()));
+
+	    for (Map.Entry<Query, Model> entry : models.entrySet())
+		descriptions.put(misses.get(entry.getKey()), entry.getValue());
+	    Metrics.get().counter("batch.resources", "result", "loaded").increment(misses.size());
+	}
+
+	Iterator<Map.Entry<String, Model>> it = descriptions.entrySet().iterator();
+	while (it.hasNext())
+	{
+	    Map.Entry<String, Model> entry = it.next();
+	    if (entry.getValue().isEmpty())
+	    {
+		if (getNegativeCache() != null) getNegativeCache().add(entry.getKey(), generation);
+		it.remove();
+	    }
+	}
+	return descriptions;
+    }
+
+    /**
+     * Returns true if a resource is known to have no description, without querying the SPARQL endpoint
+     * 
+     * @param uri resource URI
+     * @return true if the resource is not in the subject index or is in the negative cache
+     * @see org.graphity.server.util.SubjectIndex
+     * @see org.graphity.server.util.NegativeCache
+     */
+    protected boolean isAbsent(String uri)
+    {
+	if (SubjectIndex.get().isReady() && !SubjectIndex.get().mightContain(uri)) return true;
+
+	return getNegativeCache() != null && getNegativeCache().contains(uri);
+    }
+
+    /**
+     * Creates response builder for RDF descriptions of resources.
+     * If N-Quads are requested, each description is streamed in the named graph of its resource. Otherwise the
+     * descriptions are merged into one RDF model.
+     * 
+     * @param descriptions map of resource URIs to their descriptions
+     * @param version dataset version, or null if versions are not available
+     * @return response builder for the descriptions
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    public ResponseBuilder getResponseBuilder(Map<String, Model> descriptions, GraphVersionRegistry.Version version)
+    {
+	EntityTag entityTag = version == null ? new EntityTag(Long.toHexString(hashDescriptions(descriptions))) : version.getEntityTag();
+	Variant variant = getEndpoint().getRequest().selectVariant(SPARQLEndpointBase.MODEL_VARIANTS);
+
+	Object entity;
+	if (variant != null && variant.getMediaType().isCompatible(MediaType.APPLICATION_N_QUADS_TYPE))
+	    entity = getQuadsOutput(descriptions);
+	else
+	{
+	    Model model = ModelFactory.createDefaultModel();
+	    for (Model description : descriptions.values()) model.add(description);
+	    entity = model;
+	}
+	if (log.isDebugEnabled()) log.debug("Returning batch Response with {} descriptions", descriptions.size());
+
+	ResponseBuilder rb = getEndpoint() instanceof SPARQLEndpointBase ?
+		((SPARQLEndpointBase)getEndpoint()).getResponseBuilder(entityTag, entity, SPARQLEndpointBase.MODEL_VARIANTS, METRICS_RESOURCE) :
+		getEndpoint().getResponseBuilder(entityTag, entity, SPARQLEndpointBase.MODEL_VARIANTS);
+	if (version != null) rb.lastModified(version.getLastModified());
+	return rb;
+    }
+
+    /**
+     * Returns output writing RDF descriptions of resources as N-Quads, with each description in the named graph
+     * of its resource
+     * 
+     * @param descriptions map of resource URIs to their descriptions
+     * @return streaming output
+     * @see <a href="http://www.w3.org/TR/n-quads/">N-Quads</a>
+     */
+    public StreamingOutput getQuadsOutput(final Map<String, Model> descriptions)
+    {
+	return new StreamingOutput()
+	{
+	    @Override
+	    public void write(OutputStream output) throws IOException
+	    {
+		SinkQuadOutput sink = new SinkQuadOutput(output);
+		for (Map.Entry<String, Model> description : descriptions.entrySet())
+		{
+		    Node graph = Node.createURI(description.getKey());
+		    ExtendedIterator<Triple> it = description.getValue().getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		    try
+		    {
+			while (it.hasNext()) sink.send(new Quad(graph, it.next()));
+		    }
+		    finally
+		    {
+			it.close();
+		    }
+		}
+		sink.flush();
+	    }
+	};
+    }
+
+    /**
+     * Computes hash of RDF descriptions of resources, which depends on the resources and the order of the
+     * descriptions
+     * 
+     * @param descriptions map of resource URIs to their descriptions
+     * @return hash value
+     */
+    protected static long hashDescriptions(Map<String, Model> descriptions)
+    {
+	long result = 0;
+	for (Map.Entry<String, Model> description : descriptions.entrySet())
+	    result = result * 31 + (description.getKey().hashCode() ^ ModelUtils.hashModel(description.getValue()));
+	return result;
+    }
+
+    /**
+     * Given a resource URI, returns query that retrieves its RDF description.
+     * The query is the same as the one of <code>QueriedResourceBase</code>, so that cached descriptions are shared.
+     * 
+     * @param uri resource URI
+     * @return query object
+     * @see QueriedResourceBase#getQuery(String)
+     */
+    public Query getQuery(String uri)
+    {
+	return getEndpoint().prepareQuery(QueriedResourceBase.DESCRIBE_TEMPLATE).
+		bind(QueriedResourceBase.THIS_VAR, Node.createURI(uri));
+    }
+
+    /**
+     * Returns cache of resources without description
+     * 
+     * @return negative cache, or null if it is not configured
+     */
+    public NegativeCache getNegativeCache()
+    {
+	return DataManager.get().getNegativeCache();
+    }
+
+    /**
+     * Returns HTTP context of the request.
+     * 
+     * @return context, or null if this resource was not created by JAX-RS
+     */
+    public HttpContext getHttpContext()
+    {
+	return httpContext;
+    }
+
+    public URI getBase()
+    {
+	return base;
+    }
+
+    public SPARQLEndpoint getEndpoint()
+    {
+	return endpoint;
+    }
+
+    public CacheControl getCacheControl()
+    {
+	return cacheControl;
+    }
+
+    public int getMaxResources()
+    {
+	return maxResources;
+    }
+
+}
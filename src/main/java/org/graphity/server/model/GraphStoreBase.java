@@ -19,13 +19,18 @@ package org.graphity.server.model;
 import com.hp.hpl.jena.datatypes.RDFDatatype;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.rdf.model.*;
+import com.hp.hpl.jena.query.Query;
 import com.sun.jersey.api.core.ResourceConfig;
 import java.net.URI;
+import java.util.concurrent.Callable;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import org.graphity.server.metrics.Metrics;
 import org.graphity.server.util.DataManager;
+import org.graphity.server.util.GraphVersionRegistry;
+import org.graphity.server.util.UpstreamScheduler;
 import org.graphity.server.vocabulary.GS;
 import org.graphity.util.ModelUtils;
 import org.slf4j.Logger;
@@ -34,6 +39,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Proxy implementation of SPARQL Graph Store.
  * This class does natively manage the RDF store. It forwards the requests to a remote Graph Store service.
+ * If the graph version registry is enabled, graphs are validated using their versions instead of hashes, and
+ * conditional requests are answered before the remote Graph Store is contacted.
+ * <code>HEAD</code> requests do not retrieve graphs from the remote Graph Store.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  */
@@ -42,6 +50,9 @@ public class GraphStoreBase implements GraphStore
 {
     private static final Logger log = LoggerFactory.getLogger(GraphStoreBase.class);
 
+    /** Label of this resource in metrics */
+    public static final String METRICS_RESOURCE = "service";
+
     private final Resource resource;
     private final Request request;
 
@@ -69,9 +80,27 @@ public class GraphStoreBase implements GraphStore
 		model);
     }
 
+    /**
+     * Creates response builder for a graph, validated by its version.
+     * 
+     * @param model RDF model of the graph
+     * @param version version of the graph, or null if versions are not available
+     * @return response builder
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    public ResponseBuilder getResponseBuilder(Model model, GraphVersionRegistry.Version version)
+    {
+	if (version == null) return getResponseBuilder(model);
+
+	return getResponseBuilder(version.getEntityTag(), model).
+		lastModified(version.getLastModified());
+    }
+
     public ResponseBuilder getResponseBuilder(EntityTag entityTag, Object entity)
     {
 	Response.ResponseBuilder rb = getRequest().evaluatePreconditions(entityTag);
+	Metrics.get().counter("http.preconditions", "resource", METRICS_RESOURCE, "result", rb != null ? "not_modified" : "modified").
+		increment();
 	if (rb != null)
 	{
 	    if (log.isTraceEnabled()) log.trace("Resource not modified, skipping Response generation");
@@ -87,19 +116,38 @@ public class GraphStoreBase implements GraphStore
     
     @GET
     @Override
-    public Response get(@QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") URI graphUri)
+    public Response get(@QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") final URI graphUri)
     {
 	if (!defaultGraph && graphUri == null) throw new WebApplicationException(Status.BAD_REQUEST);
 
+	// version is taken before the graph is retrieved, so that a concurrent write cannot be missed
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getVersion(defaultGraph ? null : graphUri.toString());
+	ResponseBuilder notModified = evaluatePreconditions(version);
+	if (notModified != null) return notModified.build();
+
 	if (defaultGraph)
 	{
-	    Model model = DataManager.get().getModel(getURI());
+	    Model model = execute(new Callable<Model>()
+	    {
+		@Override
+		public Model call()
+		{
+		    return DataManager.get().getModel(getURI());
+		}
+	    });
 	    if (log.isDebugEnabled()) log.debug("GET Graph Store default graph, returning Model of size(): {}", model.size());
-	    return getResponseBuilder(model).build();
+	    return getResponseBuilder(model, version).build();
 	}
 	else
 	{
-	    Model model = DataManager.get().getModel(getURI(), graphUri.toString());
+	    Model model = execute(new Callable<Model>()
+	    {
+		@Override
+		public Model call()
+		{
+		    return DataManager.get().getModel(getURI(), graphUri.toString());
+		}
+	    });
 	    if (model == null)
 	    {
 		if (log.isDebugEnabled()) log.debug("GET Graph Store named graph with URI: {} not found", graphUri);
@@ -108,14 +156,57 @@ public class GraphStoreBase implements GraphStore
 	    else
 	    {
 		if (log.isDebugEnabled()) log.debug("GET Graph Store named graph with URI: {} found, returning Model of size(): {}", graphUri, model.size());
-		return getResponseBuilder(model).build();
+		return getResponseBuilder(model, version).build();
 	    }
 	}
     }
 
+    /**
+     * Handles HEAD request and returns response with the headers of a graph, without retrieving it from the remote
+     * Graph Store.
+     * Conditional requests matching the graph version are answered with <code>304 Not Modified</code>, headers are
+     * generated from the cached graph if there is one, and otherwise only the existence of a named graph is checked
+     * using <code>HEAD</code> request to the remote Graph Store. In the last case, <code>ETag</code> is only
+     * returned if the graph version is available, and <code>Content-Type</code> is negotiated from the RDF
+     * variants without retrieving the graph.
+     * 
+     * @param defaultGraph true if the default graph is requested
+     * @param graphUri named graph URI
+     * @return response without entity
+     */
+    @HEAD
+    public Response head(@QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") URI graphUri)
+    {
+	if (!defaultGraph && graphUri == null) throw new WebApplicationException(Status.BAD_REQUEST);
+
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getVersion(defaultGraph ? null : graphUri.toString());
+	ResponseBuilder notModified = evaluatePreconditions(version);
+	if (notModified != null) return notModified.build();
+
+	Model model = DataManager.get().getCachedModel(getURI(), defaultGraph ? null : graphUri.toString());
+	if (model != null)
+	{
+	    if (log.isDebugEnabled()) log.debug("HEAD Graph Store graph with URI: {} found in cache", graphUri);
+	    return getResponseBuilder(model, version).entity(null).build();
+	}
+
+	if (!defaultGraph && !containsModel(graphUri))
+	{
+	    if (log.isDebugEnabled()) log.debug("HEAD Graph Store named graph with URI: {} not found", graphUri);
+	    return Response.status(Status.NOT_FOUND).build();
+	}
+
+	Variant variant = getRequest().selectVariant(SPARQLEndpointBase.MODEL_VARIANTS);
+	if (variant == null) return Response.notAcceptable(SPARQLEndpointBase.MODEL_VARIANTS).build();
+
+	ResponseBuilder rb = Response.ok(null, variant);
+	if (version != null) rb.tag(version.getEntityTag()).lastModified(version.getLastModified());
+	return rb.build();
+    }
+
     @POST
     @Override
-    public Response post(Model model, @QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") URI graphUri)
+    public Response post(final Model model, @QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") final URI graphUri)
     {
 	if (!defaultGraph && graphUri == null) throw new WebApplicationException(Status.BAD_REQUEST);
 	if (log.isDebugEnabled()) log.debug("POST Graph Store request with RDF payload: {} payload size(): {}", model, model.size());
@@ -125,16 +216,32 @@ public class GraphStoreBase implements GraphStore
 	if (defaultGraph)
 	{
 	    if (log.isDebugEnabled()) log.debug("POST Model to default graph");
-	    DataManager.get().addModel(getURI(), model);
+	    execute(new Callable<Void>()
+	    {
+		@Override
+		public Void call()
+		{
+		    DataManager.get().addModel(getURI(), model);
+		    return null;
+		}
+	    });
 	    return Response.ok().build();
 	}
 	else
 	{
-	    boolean existingGraph = DataManager.get().containsModel(getURI(), graphUri.toString());
+	    boolean existingGraph = containsModel(graphUri);
 
 	    // is this implemented correctly? The specification is not very clear.
 	    if (log.isDebugEnabled()) log.debug("POST Model to named graph with URI: {} Did it already exist? {}", graphUri, existingGraph);
-	    DataManager.get().addModel(getURI(), graphUri.toString(), model);
+	    execute(new Callable<Void>()
+	    {
+		@Override
+		public Void call()
+		{
+		    DataManager.get().addModel(getURI(), graphUri.toString(), model);
+		    return null;
+		}
+	    });
 	    
 	    if (existingGraph) return Response.ok().build();
 	    else return Response.created(graphUri).build();
@@ -143,7 +250,7 @@ public class GraphStoreBase implements GraphStore
 
     @PUT
     @Override
-    public Response put(Model model, @QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") URI graphUri)
+    public Response put(final Model model, @QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") final URI graphUri)
     {
 	if (!defaultGraph && graphUri == null) throw new WebApplicationException(Status.BAD_REQUEST);
 	if (log.isDebugEnabled()) log.debug("PUT Graph Store request with RDF payload: {} payload size(): {}", model, model.size());
@@ -151,15 +258,31 @@ public class GraphStoreBase implements GraphStore
 	if (defaultGraph)
 	{
 	    if (log.isDebugEnabled()) log.debug("PUT Model to default graph");
-	    DataManager.get().putModel(getURI(), model);
+	    execute(new Callable<Void>()
+	    {
+		@Override
+		public Void call()
+		{
+		    DataManager.get().putModel(getURI(), model);
+		    return null;
+		}
+	    });
 	    return Response.ok().build();
 	}
 	else
 	{
-	    boolean existingGraph = DataManager.get().containsModel(getURI(), graphUri.toString());
+	    boolean existingGraph = containsModel(graphUri);
 	    
 	    if (log.isDebugEnabled()) log.debug("PUT Model to named graph with URI: {} Did it already exist? {}", graphUri, existingGraph);
-	    DataManager.get().putModel(getURI(), graphUri.toString(), model);
+	    execute(new Callable<Void>()
+	    {
+		@Override
+		public Void call()
+		{
+		    DataManager.get().putModel(getURI(), graphUri.toString(), model);
+		    return null;
+		}
+	    });
 	    
 	    if (existingGraph) return Response.ok().build();
 	    else return Response.created(graphUri).build();
@@ -168,19 +291,27 @@ public class GraphStoreBase implements GraphStore
 
     @DELETE
     @Override
-    public Response delete(@QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") URI graphUri)
+    public Response delete(@QueryParam("default") @DefaultValue("false") Boolean defaultGraph, @QueryParam("graph") final URI graphUri)
     {
 	if (!defaultGraph && graphUri == null) throw new WebApplicationException(Status.BAD_REQUEST);
 	
 	if (defaultGraph)
 	{
-	    DataManager.get().deleteDefault(getURI());
+	    execute(new Callable<Void>()
+	    {
+		@Override
+		public Void call()
+		{
+		    DataManager.get().deleteDefault(getURI());
+		    return null;
+		}
+	    });
 	    if (log.isDebugEnabled()) log.debug("DELETE default graph from Graph Store");	    
 	    return Response.noContent().build();
 	}
 	else
 	{
-	    if (!DataManager.get().containsModel(getURI(), graphUri.toString()))
+	    if (!containsModel(graphUri))
 	    {
 		if (log.isDebugEnabled()) log.debug("DELETE named graph with URI {}: not found", graphUri);
 		return Response.status(Status.NOT_FOUND).build();
@@ -188,12 +319,87 @@ public class GraphStoreBase implements GraphStore
 	    else
 	    {
 		if (log.isDebugEnabled()) log.debug("DELETE named graph with URI: {}", graphUri);
-		DataManager.get().deleteModel(getURI(), graphUri.toString());
+		execute(new Callable<Void>()
+		{
+		    @Override
+		    public Void call()
+		    {
+			DataManager.get().deleteModel(getURI(), graphUri.toString());
+			return null;
+		    }
+		});
 		return Response.noContent().build();
 	    }
 	}
     }
 
+    /**
+     * Evaluates request preconditions against a graph version, without contacting the remote Graph Store.
+     * 
+     * @param version graph version, or null if versions are not available
+     * @return <code>304 Not Modified</code> response builder, or null if the request has to be processed
+     */
+    public ResponseBuilder evaluatePreconditions(GraphVersionRegistry.Version version)
+    {
+	if (version == null) return null;
+
+	ResponseBuilder rb = getRequest().evaluatePreconditions(version.getLastModified(), version.getEntityTag());
+	if (rb != null)
+	{
+	    Metrics.get().counter("http.preconditions", "resource", METRICS_RESOURCE, "result", "not_modified").increment();
+	    if (log.isTraceEnabled()) log.trace("Graph version {} not modified, skipping Graph Store request", version);
+	    rb.lastModified(version.getLastModified());
+	}
+	return rb;
+    }
+
+    /**
+     * Checks whether the remote Graph Store contains a named graph.
+     * 
+     * @param graphUri named graph URI
+     * @return true if the graph exists
+     */
+    public boolean containsModel(final URI graphUri)
+    {
+	return execute(new Callable<Boolean>()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return DataManager.get().containsModel(getURI(), graphUri.toString());
+	    }
+	}, DataManager.get().getTimeout(Query.QueryTypeAsk));
+    }
+
+    /**
+     * Executes a graph transfer to or from the remote Graph Store. A graph transfer costs about as much as a
+     * <code>CONSTRUCT</code> of the graph, so it is cancelled after the <code>gs:constructTimeout</code>.
+     * 
+     * @param <T> result type
+     * @param call Graph Store call
+     * @return result of the call
+     * @see #execute(Callable, long)
+     */
+    protected <T> T execute(Callable<T> call)
+    {
+	return execute(call, DataManager.get().getTimeout(Query.QueryTypeConstruct));
+    }
+
+    /**
+     * Executes a call to the remote Graph Store using the bulk workload of the upstream scheduler, so that
+     * large graph transfers do not occupy upstream capacity reserved for interactive requests.
+     * 
+     * @param <T> result type
+     * @param call Graph Store call
+     * @param timeout deadline in milliseconds, or -1 for no deadline
+     * @return result of the call
+     * @see UpstreamScheduler.Workload#BULK
+     */
+    protected <T> T execute(Callable<T> call, long timeout)
+    {
+	return UpstreamScheduler.get().execute(UpstreamScheduler.Workload.BULK, call, timeout);
+    }
+
     public Resource getResource()
     {
 	return resource;
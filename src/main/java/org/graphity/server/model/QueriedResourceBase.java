@@ -16,29 +16,55 @@
  */
 package org.graphity.server.model;
 
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Query;
-import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSetRewindable;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.sun.jersey.api.core.ResourceConfig;
 import com.sun.jersey.api.core.ResourceContext;
+import java.net.URI;
 import java.util.List;
+import java.util.concurrent.Callable;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
 import javax.ws.rs.Path;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Variant;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.util.DataManager;
+import org.graphity.server.util.GraphVersionRegistry;
+import org.graphity.server.util.NegativeCache;
+import org.graphity.server.util.SubjectIndex;
+import org.graphity.server.util.UpstreamScheduler;
 import org.graphity.server.vocabulary.GS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Base class of generic read-only Linked Data resources with RDF representations queried from SPARQL endpoints.
+ * If <code>gs:pageSize</code> is configured, the description is paged: each request retrieves a bounded, ordered
+ * slice of the triples in which the resource is subject or object, and links to the neighbouring pages are
+ * returned in <code>Link</code> headers. Triples are ordered by their IRIs and literals; blank nodes are left out
+ * of the order key, since their labels are not stable between query executions. Triples that differ only in
+ * blank nodes are therefore ordered by the endpoint, and can move across a page boundary between requests.
+ * If the graph version registry is enabled, descriptions are validated using the dataset version, and
+ * conditional requests are answered before the SPARQL endpoint is contacted.
+ * If the negative cache is configured, resources without description are remembered for a short time, and further
+ * requests for them are answered with <code>404 Not Found</code> without querying the endpoint. The same applies
+ * to resources that are not in the subject index, if it is enabled.
+ * Queries are bound from prepared templates, in which the resource is the <code>?this</code> variable.
+ * Subclasses can prepare their own templates using {@link SPARQLEndpoint#prepareQuery(String)}.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  * @see SPARQLEndpoint
@@ -49,11 +75,42 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
 {
     private static final Logger log = LoggerFactory.getLogger(QueriedResourceBase.class);
     
+    /** Query parameter of the page offset (number of triples to skip) */
+    public static final String OFFSET_PARAM = "offset";
+    /** Label of this resource in metrics */
+    public static final String METRICS_RESOURCE = "resource";
+    /** Query parameter of the page size (maximum number of triples) */
+    public static final String LIMIT_PARAM = "limit";
+    /** Template variable bound to the resource URI */
+    public static final String THIS_VAR = "this";
+    /** Template of the description query */
+    public static final String DESCRIBE_TEMPLATE = "DESCRIBE ?this";
+    /**
+     * Template of the query of a description page, without <code>OFFSET</code> and <code>LIMIT</code>.
+     * Self-referencing triples are only matched as outgoing, so that every solution is a distinct triple.
+     */
+    public static final String PAGE_TEMPLATE = "SELECT DISTINCT ?s ?p ?o WHERE { " +
+	    "{ ?this ?p ?o BIND(?this AS ?s) } UNION " +
+	    "{ ?s ?p ?this FILTER(?s != ?this) BIND(?this AS ?o) } " +
+	    "} ORDER BY (IF(isBlank(?s), \"\", ?s)) ?p (IF(isBlank(?o), \"\", ?o))";
+    /** Template of the query checking whether the resource is subject of any triples */
+    public static final String ASK_TEMPLATE = "ASK { ?this ?p ?o }";
+    /** Template of the query checking whether the resource is subject or object of any triples */
+    public static final String ASK_OBJECT_TEMPLATE = "ASK { { ?this ?p ?o } UNION { ?s ?p ?this } }";
+
     private final SPARQLEndpoint endpoint;
+    private final Long offset, limit;
+    private final boolean describeIncoming;
+    private long solutions = -1;
+    @Context private HttpHeaders httpHeaders;
 
     /**
      * JAX-RS-compatible resource constructor with injected initialization objects.
      * The URI of the resource being created is the absolute path of the current request URI.
+     * Uses <code>gs:pageSize</code> parameter value from web.xml as the default and maximum page size, and
+     * <code>offset</code> and <code>limit</code> request query parameters to select the page.
+     * Uses <code>gs:describeIncoming</code> parameter value from web.xml to tell whether <code>DESCRIBE</code>
+     * results of the endpoint include triples in which the resource is object.
      * 
      * @param uriInfo URI information of the request
      * @param resourceConfig webapp configuration
@@ -68,7 +125,11 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
 		resourceContext.getResource(SPARQLEndpointBase.class),
 		resourceConfig.getProperty(GS.cacheControl.getURI()) == null ?
 		    null :
-		    CacheControl.valueOf(resourceConfig.getProperty(GS.cacheControl.getURI()).toString()));
+		    CacheControl.valueOf(resourceConfig.getProperty(GS.cacheControl.getURI()).toString()),
+		getOffset(uriInfo, resourceConfig),
+		getLimit(uriInfo, resourceConfig),
+		resourceConfig.getProperty(GS.describeIncoming.getURI()) != null &&
+		    Boolean.parseBoolean(resourceConfig.getProperty(GS.describeIncoming.getURI()).toString()));
     }
 
     /**
@@ -79,27 +140,185 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
      * @param cacheControl Cache control config
      */
     protected QueriedResourceBase(Resource resource, SPARQLEndpoint endpoint, CacheControl cacheControl)
+    {
+	this(resource, endpoint, cacheControl, null, null);
+    }
+
+    /**
+     * Protected constructor of a paged resource. Not suitable for JAX-RS but can be used when subclassing.
+     * 
+     * @param resource This resource as RDF resource (must be URI resource, not a blank node)
+     * @param endpoint SPARQL endpoint of this resource
+     * @param cacheControl Cache control config
+     * @param offset number of triples to skip, or null if not paged
+     * @param limit maximum number of triples in the page, or null if not paged
+     */
+    protected QueriedResourceBase(Resource resource, SPARQLEndpoint endpoint, CacheControl cacheControl, Long offset, Long limit)
+    {
+	this(resource, endpoint, cacheControl, offset, limit, false);
+    }
+
+    /**
+     * Protected constructor of a paged resource whose description can include incoming triples. Not suitable for
+     * JAX-RS but can be used when subclassing.
+     * 
+     * @param resource This resource as RDF resource (must be URI resource, not a blank node)
+     * @param endpoint SPARQL endpoint of this resource
+     * @param cacheControl Cache control config
+     * @param offset number of triples to skip, or null if not paged
+     * @param limit maximum number of triples in the page, or null if not paged
+     * @param describeIncoming true if <code>DESCRIBE</code> results include triples in which the resource is object
+     */
+    protected QueriedResourceBase(Resource resource, SPARQLEndpoint endpoint, CacheControl cacheControl, Long offset, Long limit, boolean describeIncoming)
     {
 	super(resource, cacheControl);
 	if (endpoint == null) throw new IllegalArgumentException("SPARQL endpoint cannot be null");
+	if (offset != null && offset < 0) throw new IllegalArgumentException("Offset cannot be negative");
+	if (limit != null && limit <= 0) throw new IllegalArgumentException("Limit must be positive");
 	this.endpoint = endpoint;
+	this.offset = offset;
+	this.limit = limit;
+	this.describeIncoming = describeIncoming;
+    }
+
+    private static Long getLimit(UriInfo uriInfo, ResourceConfig resourceConfig)
+    {
+	if (resourceConfig.getProperty(GS.pageSize.getURI()) == null) return null;
+
+	long pageSize = Long.parseLong(resourceConfig.getProperty(GS.pageSize.getURI()).toString());
+	Long limit = parseParam(uriInfo, LIMIT_PARAM);
+	if (limit == null || limit > pageSize) return pageSize;
+	if (limit == 0) throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	return limit;
+    }
+
+    private static Long getOffset(UriInfo uriInfo, ResourceConfig resourceConfig)
+    {
+	if (resourceConfig.getProperty(GS.pageSize.getURI()) == null) return null;
+
+	Long offset = parseParam(uriInfo, OFFSET_PARAM);
+	if (offset == null) return 0L;
+	return offset;
+    }
+
+    private static Long parseParam(UriInfo uriInfo, String name)
+    {
+	String value = uriInfo.getQueryParameters().getFirst(name);
+	if (value == null) return null;
+
+	try
+	{
+	    long number = Long.parseLong(value);
+	    if (number < 0) throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	    return number;
+	}
+	catch (NumberFormatException ex)
+	{
+	    throw new WebApplicationException(ex, Response.Status.BAD_REQUEST);
+	}
     }
 
     /**
      * Returns RDF description of this resource.
      * The description is the result of a query executed on the SPARQL endpoint of this resource.
-     * By default, the query is <code>DESCRIBE</code> with URI of this resource.
+     * By default, the query is <code>DESCRIBE</code> with URI of this resource, or <code>SELECT</code> of the
+     * triples of its page if the resource is paged.
+     * The query is executed using the interactive workload of the upstream scheduler. If describe batching is
+     * configured, <code>DESCRIBE</code> queries are first offered to a batch, which takes one worker for all of its
+     * resources.
      * 
      * @return RDF description
      * @see getQuery()
+     * @see SPARQLEndpoint#loadBatchedModel(Query)
+     * @see org.graphity.server.util.UpstreamScheduler.Workload#INTERACTIVE
      */
     public Model describe()
     {
-	return getEndpoint().loadModel(getQuery());
+	final Query query = getQuery();
+	if (getLimit() != null) return describePage(query);
+	// batches are formed before taking an upstream worker, so that waiting callers do not hold workers
+	Model batched = getEndpoint().loadBatchedModel(query);
+	if (batched != null) return batched;
+	
+	return UpstreamScheduler.get().execute(UpstreamScheduler.Workload.INTERACTIVE, new Callable<Model>()
+	{
+	    @Override
+	    public Model call()
+	    {
+		return getEndpoint().loadModel(query);
+	    }
+	}, DataManager.get().getTimeout(query));
+    }
+    
+    /**
+     * Returns RDF description page of this resource.
+     * The page query selects one triple more than the page size, which is not included in the page but shows
+     * that there is a next one.
+     * 
+     * @param query page query
+     * @return RDF description page
+     * @see #getQuery(String, long, long)
+     * @see #hasNextPage()
+     */
+    protected Model describePage(final Query query)
+    {
+	ResultSetRewindable results = UpstreamScheduler.get().execute(UpstreamScheduler.Workload.INTERACTIVE, new Callable<ResultSetRewindable>()
+	{
+	    @Override
+	    public ResultSetRewindable call()
+	    {
+		return getEndpoint().loadResultSetRewindable(query);
+	    }
+	}, DataManager.get().getTimeout(query));
+
+	Model page = ModelFactory.createDefaultModel();
+	solutions = 0;
+	while (results.hasNext())
+	{
+	    QuerySolution solution = results.next();
+	    if (++solutions > getLimit()) continue;
+	    page.add(solution.getResource("s"), page.createProperty(solution.getResource("p").getURI()), solution.get("o"));
+	}
+	return page;
+    }
+
+    /**
+     * Returns true if the page retrieved by {@link #describePage(Query)} is followed by another one.
+     * The decision is made from the number of solutions, not the size of the page model.
+     * 
+     * @return true if there is a next page
+     */
+    public boolean hasNextPage()
+    {
+	return getLimit() != null && solutions > getLimit();
+    }
+
+    /**
+     * Checks whether the SPARQL endpoint has any triples about this resource, without retrieving its description.
+     * The query is executed using the interactive workload of the upstream scheduler.
+     * 
+     * @return true if the resource exists
+     * @see getAskQuery()
+     */
+    public boolean exists()
+    {
+	final Query query = getAskQuery();
+	
+	return UpstreamScheduler.get().execute(UpstreamScheduler.Workload.INTERACTIVE, new Callable<Boolean>()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return getEndpoint().ask(query);
+	    }
+	}, DataManager.get().getTimeout(query));
     }
     
     /**
      * Handles GET request and returns response with RDF description of this resource.
+     * Pages other than the first one can be empty.
+     * Conditional requests matching the dataset version are answered with <code>304 Not Modified</code> without
+     * retrieving the description, unless the resource is known not to exist.
      * 
      * @return response with RDF description
      */
@@ -107,16 +326,189 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
     @Override
     public Response get()
     {
+	// version is taken before the description is retrieved, so that a concurrent write cannot be missed
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getDatasetVersion();
+	// the dataset version does not prove that this resource exists, so known missing resources are rejected first
+	checkSubjectIndex();
+	checkNegativeCache();
+	ResponseBuilder notModified = evaluatePreconditions(version);
+	// taken before the description is retrieved, so that a concurrent write is not shadowed by a stale 404
+	long generation = getNegativeCacheGeneration();
+	if (notModified != null) return notModified.cacheControl(getCacheControl()).build();
+
 	Model description = describe();
 
-	if (description.isEmpty())
+	if (description.isEmpty() && isFirstPage())
 	{
 	    if (log.isDebugEnabled()) log.debug("DESCRIBE Model is empty; returning 404 Not Found");
-	    throw new WebApplicationException(Response.Status.NOT_FOUND);
+	    throw notFound(generation);
 	}
 	if (log.isDebugEnabled()) log.debug("Returning @GET Response with {} statements in Model", description.size());
-	return getResponse(description);
+	return getResponseBuilder(description, version).build();
+    }
+
+    /**
+     * Handles HEAD request and returns response with the headers of the RDF description of this resource.
+     * The description is not retrieved from the SPARQL endpoint: resources known not to exist are answered with
+     * <code>404 Not Found</code>, conditional requests matching the dataset version are answered with
+     * <code>304 Not Modified</code>, headers are generated from the cached description if
+     * there is one, and otherwise only the existence of the resource is checked using <code>ASK</code>.
+     * The <code>ASK</code> query matches the same triples as the description retrieved by GET, so that both
+     * methods agree on existence: triples in which the resource is subject, and also the ones in which it is
+     * object if the resource is paged or <code>gs:describeIncoming</code> is true.
+     * In the last case, headers that depend on the description, such as hash-based <code>ETag</code> and the link
+     * to the next page, are omitted.
+     * 
+     * @return response without entity
+     * @see exists()
+     */
+    @HEAD
+    public Response head()
+    {
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getDatasetVersion();
+	// the dataset version does not prove that this resource exists, so known missing resources are rejected first
+	checkSubjectIndex();
+	checkNegativeCache();
+	ResponseBuilder notModified = evaluatePreconditions(version);
+	// taken before the description is retrieved, so that a concurrent write is not shadowed by a stale 404
+	long generation = getNegativeCacheGeneration();
+	if (notModified != null) return notModified.cacheControl(getCacheControl()).build();
+
+	Model description = getEndpoint().getCachedModel(getQuery());
+	if (description != null)
+	{
+	    if (description.isEmpty() && isFirstPage())
+	    {
+		if (log.isDebugEnabled()) log.debug("Cached DESCRIBE Model is empty; returning 404 Not Found");
+		throw notFound(generation);
+	    }
+	    if (log.isDebugEnabled()) log.debug("Returning @HEAD Response of cached Model with {} statements", description.size());
+	    return getResponseBuilder(description, version).entity(null).build();
+	}
+
+	if (isFirstPage() && !exists())
+	{
+	    if (log.isDebugEnabled()) log.debug("ASK result is false; returning 404 Not Found");
+	    throw notFound(generation);
+	}
+
+	Variant variant = getEndpoint().getRequest().selectVariant(SPARQLEndpointBase.MODEL_VARIANTS);
+	if (variant == null) return Response.notAcceptable(SPARQLEndpointBase.MODEL_VARIANTS).build();
 
+	ResponseBuilder rb = Response.ok(null, variant).cacheControl(getCacheControl());
+	if (version != null) rb.tag(version.getEntityTag()).lastModified(version.getLastModified());
+	if (log.isDebugEnabled()) log.debug("Returning @HEAD Response without retrieving Model");
+	return addPageLinks(rb).build();
+    }
+
+    /**
+     * Evaluates request preconditions against the dataset version.
+     * <code>If-None-Match: *</code> only matches if the resource exists, which the dataset version does not prove,
+     * so such requests are not answered from the version and are evaluated against the description instead.
+     * 
+     * @param version dataset version, or null if versions are not tracked
+     * @return <code>304 Not Modified</code> response builder, or null if the request has to be processed
+     * @see SPARQLEndpoint#evaluatePreconditions(GraphVersionRegistry.Version)
+     */
+    protected ResponseBuilder evaluatePreconditions(GraphVersionRegistry.Version version)
+    {
+	if (getHttpHeaders() != null)
+	{
+	    List<String> ifNoneMatch = getHttpHeaders().getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+	    if (ifNoneMatch != null)
+		for (String value : ifNoneMatch)
+		    if (value.trim().equals("*")) return null;
+	}
+
+	if (getEndpoint() instanceof SPARQLEndpointBase)
+	    return ((SPARQLEndpointBase)getEndpoint()).evaluatePreconditions(version, METRICS_RESOURCE);
+	return getEndpoint().evaluatePreconditions(version);
+    }
+
+    /**
+     * Returns <code>404 Not Found</code> without querying the SPARQL endpoint if this resource is definitely not a
+     * subject or object in the dataset. Only the first page is checked, as other pages can be empty.
+     * 
+     * @throws WebApplicationException if the resource is not in the subject index
+     * @see org.graphity.server.util.SubjectIndex
+     */
+    protected void checkSubjectIndex()
+    {
+	if (!SubjectIndex.get().isReady() || !isFirstPage()) return;
+
+	boolean absent = !SubjectIndex.get().mightContain(getURI());
+	Metrics.get().counter("subject.index", "result", absent ? "absent" : "present").increment();
+	if (absent)
+	{
+	    if (log.isDebugEnabled()) log.debug("Resource {} is not in subject index; returning 404 Not Found", getURI());
+	    throw new WebApplicationException(Response.Status.NOT_FOUND);
+	}
+    }
+
+    /**
+     * Returns <code>404 Not Found</code> without querying the SPARQL endpoint if this resource is known to have no
+     * description. Only the first page is checked, as other pages can be empty.
+     * 
+     * @throws WebApplicationException if the resource is in the negative cache
+     * @see org.graphity.server.util.NegativeCache
+     */
+    protected void checkNegativeCache()
+    {
+	if (getNegativeCache() == null || !isFirstPage()) return;
+
+	boolean missing = getNegativeCache().contains(getURI());
+	Metrics.get().counter("negative.cache", "result", missing ? "hit" : "miss").increment();
+	if (missing)
+	{
+	    if (log.isDebugEnabled()) log.debug("Resource {} is in negative cache; returning 404 Not Found", getURI());
+	    throw new WebApplicationException(Response.Status.NOT_FOUND);
+	}
+    }
+
+    /**
+     * Returns the generation of the negative cache, which is taken before the description is retrieved.
+     * 
+     * @return generation, or 0 if the negative cache is not configured
+     * @see NegativeCache#getGeneration()
+     */
+    protected long getNegativeCacheGeneration()
+    {
+	return getNegativeCache() != null ? getNegativeCache().getGeneration() : 0;
+    }
+
+    /**
+     * Records this resource in the negative cache, if it is configured and has not been invalidated since the
+     * description was retrieved, and returns exception of <code>404 Not Found</code> response.
+     * 
+     * @param generation negative cache generation taken before the description was retrieved
+     * @return exception to be thrown
+     * @see #getNegativeCacheGeneration()
+     */
+    protected WebApplicationException notFound(long generation)
+    {
+	if (getNegativeCache() != null) getNegativeCache().add(getURI(), generation);
+
+	return new WebApplicationException(Response.Status.NOT_FOUND);
+    }
+
+    /**
+     * Returns cache of resources without description
+     * 
+     * @return negative cache, or null if it is not configured
+     */
+    public NegativeCache getNegativeCache()
+    {
+	return DataManager.get().getNegativeCache();
+    }
+
+    /**
+     * Returns true if this resource is not paged, or if the current page is the first one.
+     * 
+     * @return true if empty description means the resource does not exist
+     */
+    protected boolean isFirstPage()
+    {
+	return getOffset() == null || getOffset() == 0;
     }
 
     /**
@@ -139,8 +531,25 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
     @Override
     public ResponseBuilder getResponseBuilder(Model model)
     {
-	return getEndpoint().getResponseBuilder(model).
-		cacheControl(getCacheControl());
+	return getResponseBuilder(model, SPARQLEndpointBase.MODEL_VARIANTS);
+    }
+
+    /**
+     * Creates response builder for an RDF model, validated by the dataset version
+     * 
+     * @param model RDF model
+     * @param version dataset version, or null if versions are not available
+     * @return response builder for the model
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    public ResponseBuilder getResponseBuilder(Model model, GraphVersionRegistry.Version version)
+    {
+	if (version == null) return getResponseBuilder(model);
+
+	ResponseBuilder rb = getEndpoint() instanceof SPARQLEndpointBase ?
+		((SPARQLEndpointBase)getEndpoint()).getResponseBuilder(model, version, METRICS_RESOURCE) :
+		getEndpoint().getResponseBuilder(model, version);
+	return addPageLinks(rb.cacheControl(getCacheControl()));
     }
 
     /**
@@ -152,8 +561,47 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
      */
     public ResponseBuilder getResponseBuilder(Model model, List<Variant> variants)
     {
-	return getEndpoint().getResponseBuilder(model, variants).
-		cacheControl(getCacheControl());
+	ResponseBuilder rb = getEndpoint() instanceof SPARQLEndpointBase ?
+		((SPARQLEndpointBase)getEndpoint()).getResponseBuilder(model, variants, METRICS_RESOURCE) :
+		getEndpoint().getResponseBuilder(model, variants);
+	return addPageLinks(rb.cacheControl(getCacheControl()));
+    }
+
+    /**
+     * Adds <code>Link</code> headers with <code>first</code>, <code>prev</code> and <code>next</code> page URIs
+     * to the response. Next page is linked only if the current one has been retrieved and is followed by another
+     * one. Does nothing if the resource is not paged.
+     * 
+     * @param rb response builder
+     * @return response builder
+     * @see #hasNextPage()
+     * @see <a href="http://tools.ietf.org/html/rfc5988">RFC 5988: Web Linking</a>
+     */
+    public ResponseBuilder addPageLinks(ResponseBuilder rb)
+    {
+	if (getLimit() == null) return rb;
+
+	rb.header("Link", "<" + getPageURI(0) + ">; rel=\"first\"");
+	if (getOffset() > 0)
+	    rb.header("Link", "<" + getPageURI(Math.max(0, getOffset() - getLimit())) + ">; rel=\"prev\"");
+	if (hasNextPage())
+	    rb.header("Link", "<" + getPageURI(getOffset() + getLimit()) + ">; rel=\"next\"");
+
+	return rb;
+    }
+
+    /**
+     * Returns URI of a page of this resource
+     * 
+     * @param offset page offset
+     * @return page URI
+     */
+    public URI getPageURI(long offset)
+    {
+	return UriBuilder.fromUri(getURI()).
+		queryParam(OFFSET_PARAM, offset).
+		queryParam(LIMIT_PARAM, getLimit()).
+		build();
     }
     
     /**
@@ -164,6 +612,8 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
     @Override
     public Query getQuery()
     {
+	if (getLimit() != null) return getQuery(getURI(), getOffset(), getLimit());
+
 	return getQuery(getURI());
     }
     
@@ -175,7 +625,52 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
      */
     public Query getQuery(String uri)
     {
-	return QueryFactory.create("DESCRIBE <" + uri + ">");
+	return getEndpoint().prepareQuery(DESCRIBE_TEMPLATE).bind(THIS_VAR, Node.createURI(uri));
+    }
+
+    /**
+     * Given a resource URI, returns query that retrieves a page of its RDF description.
+     * The page is an ordered slice of the triples in which the resource is subject or object, so that the
+     * response size is bounded regardless of the number of links of the resource. One triple more than the limit
+     * is selected, to find out whether there is a next page.
+     * 
+     * @param uri resource URI
+     * @param offset number of triples to skip
+     * @param limit maximum number of triples in the page
+     * @return query object
+     */
+    public Query getQuery(String uri, long offset, long limit)
+    {
+	Query query = getEndpoint().prepareQuery(PAGE_TEMPLATE).bind(THIS_VAR, Node.createURI(uri));
+	query.setOffset(offset);
+	query.setLimit(limit + 1);
+	return query;
+    }
+
+    /**
+     * Returns query used to check whether this resource exists.
+     * Triples in which the resource is object are matched if they can be included in its description.
+     * 
+     * @return query object
+     * @see #isDescribeIncoming()
+     */
+    public Query getAskQuery()
+    {
+	return getAskQuery(getURI(), getLimit() != null || isDescribeIncoming());
+    }
+
+    /**
+     * Given a resource URI, returns query that checks whether there are triples about it.
+     * 
+     * @param uri resource URI
+     * @param object if true, triples in which the resource is object are matched as well as the ones in which it
+     * is subject
+     * @return query object
+     */
+    public Query getAskQuery(String uri, boolean object)
+    {
+	String template = object ? ASK_OBJECT_TEMPLATE : ASK_TEMPLATE;
+	return getEndpoint().prepareQuery(template).bind(THIS_VAR, Node.createURI(uri));
     }
 
     /**
@@ -190,4 +685,45 @@ public class QueriedResourceBase extends LinkedDataResourceBase implements Queri
 	return endpoint;
     }
 
+    /**
+     * Returns HTTP headers of the request.
+     * 
+     * @return headers, or null if this resource was not created by JAX-RS
+     */
+    public HttpHeaders getHttpHeaders()
+    {
+	return httpHeaders;
+    }
+
+    /**
+     * Returns true if <code>DESCRIBE</code> results of the SPARQL endpoint include triples in which the resource is
+     * object, as configured by <code>gs:describeIncoming</code>. Pages always include them.
+     * 
+     * @return true if the description can include incoming triples
+     */
+    public boolean isDescribeIncoming()
+    {
+	return describeIncoming;
+    }
+
+    /**
+     * Returns offset of the current page
+     * 
+     * @return number of triples to skip, or null if not paged
+     */
+    public Long getOffset()
+    {
+	return offset;
+    }
+
+    /**
+     * Returns size of the current page
+     * 
+     * @return maximum number of triples, or null if not paged
+     */
+    public Long getLimit()
+    {
+	return limit;
+    }
+
 }
\ No newline at end of file
@@ -19,10 +19,15 @@ package org.graphity.server.model;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.ResultSetRewindable;
 import com.hp.hpl.jena.rdf.model.Model;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Variant;
+import org.graphity.query.PreparedQuery;
+import org.graphity.server.util.GraphVersionRegistry;
 
 /**
  * Extended SPARQL endpoint interface, includes query and update as well as JAX-RS helper methods.
@@ -89,6 +94,30 @@ public interface SPARQLEndpoint extends SPARQLQueryEndpoint, SPARQLUpdateEndpoin
      */
     ResponseBuilder getResponseBuilder(EntityTag entityTag, Object entity, List<Variant> variants);
     
+    /**
+     * Returns response builder initialized with RDF model, validated by the dataset version
+     * 
+     * @param model RDF model
+     * @param version dataset version, or null if versions are not available
+     * @return response builder for the model
+     */
+    ResponseBuilder getResponseBuilder(Model model, GraphVersionRegistry.Version version);
+    
+    /**
+     * Evaluates request preconditions against the dataset version, without contacting the endpoint
+     * 
+     * @param version dataset version, or null if versions are not available
+     * @return <code>304 Not Modified</code> response builder, or null if the request has to be processed
+     */
+    ResponseBuilder evaluatePreconditions(GraphVersionRegistry.Version version);
+    
+    /**
+     * Returns the current request, used for content negotiation and evaluation of preconditions
+     * 
+     * @return request
+     */
+    Request getRequest();
+    
     /**
      * Loads RDF model from the endpoint by executing a SPARQL query (<code>DESCRIBE</code> or <code>CONSTRUCT</code>)
      * 
@@ -98,7 +127,27 @@ public interface SPARQLEndpoint extends SPARQLQueryEndpoint, SPARQLUpdateEndpoin
      * @see <a href="http://www.w3.org/TR/2013/REC-sparql11-query-20130321/#construct">CONSTRUCT</a>
      */
     Model loadModel(Query query);
+
+    /**
+     * Loads description of a resource as part of a batch of concurrent <code>DESCRIBE</code> queries, if describe
+     * batching is configured. Must be called outside of upstream workers, as it waits for the batch.
+     * 
+     * @param query <code>DESCRIBE</code> query of a single resource
+     * @return RDF model, or null if the query is not batched and has to be loaded using {@link #loadModel(Query)}
+     * @see org.graphity.server.util.DescribeBatcher
+     */
+    Model loadBatchedModel(Query query);
  
+    /**
+     * Loads RDF models of several <code>DESCRIBE</code> queries of single resources, executing the ones that are
+     * not cached as one combined query on the endpoint
+     * 
+     * @param queries <code>DESCRIBE</code> queries of single resources
+     * @return map of the queries to their result RDF models, in the order of the queries
+     * @see <a href="http://www.w3.org/TR/2013/REC-sparql11-query-20130321/#describe">DESCRIBE</a>
+     */
+    Map<Query, Model> loadModels(Collection<Query> queries);
+
     /**
      * Loads RDF model from the endpoint by executing a SPARQL query (<pre>SELECT</pre>)
      * 
@@ -108,4 +157,31 @@ public interface SPARQLEndpoint extends SPARQLQueryEndpoint, SPARQLUpdateEndpoin
      */
     ResultSetRewindable loadResultSetRewindable(Query query);
 
+    /**
+     * Returns RDF model of a query (<code>DESCRIBE</code> or <code>CONSTRUCT</code>) if it is available without
+     * contacting the endpoint, e.g. from a cache
+     * 
+     * @param query SPARQL query
+     * @return RDF model, or null if it is not available
+     */
+    Model getCachedModel(Query query);
+
+    /**
+     * Executes <code>ASK</code> query on the endpoint
+     * 
+     * @param query SPARQL query
+     * @return boolean result
+     * @see <a href="http://www.w3.org/TR/2013/REC-sparql11-query-20130321/#ask">ASK</a>
+     */
+    boolean ask(Query query);
+
+    /**
+     * Returns prepared query for a query template, parsing the template only the first time it is used
+     * 
+     * @param template SPARQL query string with parameters as variables
+     * @return prepared query
+     * @see org.graphity.query.PreparedQuery
+     */
+    PreparedQuery prepareQuery(String template);
+
 }
\ No newline at end of file
@@ -25,11 +25,24 @@ import com.hp.hpl.jena.update.UpdateRequest;
 import com.sun.jersey.api.core.ResourceConfig;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.*;
+import org.graphity.query.PreparedQuery;
+import org.graphity.query.QueryCost;
+import org.graphity.query.QueryCostEstimator;
+import org.graphity.query.SelectCursor;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.slowquery.QueryProfile;
 import org.graphity.server.util.DataManager;
+import org.graphity.server.util.GraphVersionRegistry;
+import org.graphity.server.util.UpstreamScheduler;
 import org.graphity.server.vocabulary.GS;
 import org.graphity.server.vocabulary.VoID;
 import org.graphity.util.ModelUtils;
@@ -40,6 +53,8 @@ import org.slf4j.LoggerFactory;
 /**
  * Base class of SPARQL endpoint proxies.
  * This class does natively manage the RDF store. It forwards SPARQL HTTP protocol requests to a remote SPARQL endpoint.
+ * If the graph version registry is enabled, query results are validated using the dataset version instead of
+ * hashes, and conditional requests are answered before the remote endpoint is contacted.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  * @see <a href="http://docs.oracle.com/javaee/6/tutorial/doc/gkqbq.html">JAX-RS Runtime Content Negotiation</a>
@@ -56,7 +71,11 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
      */
     public static final List<Variant> MODEL_VARIANTS = Variant.VariantListBuilder.newInstance().
 		mediaTypes(org.graphity.server.MediaType.APPLICATION_RDF_XML_TYPE,
-			org.graphity.server.MediaType.TEXT_TURTLE_TYPE).
+			org.graphity.server.MediaType.TEXT_TURTLE_TYPE,
+			org.graphity.server.MediaType.APPLICATION_N_TRIPLES_TYPE,
+			org.graphity.server.MediaType.APPLICATION_N_QUADS_TYPE,
+			org.graphity.server.MediaType.APPLICATION_LD_JSON_TYPE,
+			org.graphity.server.MediaType.APPLICATION_RDF_BINARY_TYPE).
 		add().build();
 
     /**
@@ -66,7 +85,10 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
      */
     public static final List<Variant> RESULT_SET_VARIANTS = Variant.VariantListBuilder.newInstance().
 			mediaTypes(org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_XML_TYPE,
-			    org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON_TYPE).
+			    org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON_TYPE,
+			    org.graphity.server.MediaType.TEXT_CSV_TYPE,
+			    org.graphity.server.MediaType.TEXT_TAB_SEPARATED_VALUES_TYPE,
+			    org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_BINARY_TYPE).
 			add().build();
 
     /**
@@ -81,9 +103,21 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
 	VARIANTS = variants;
     }
     
+    /** Label of this resource in metrics */
+    public static final String METRICS_RESOURCE = "sparql";
+    /** Query parameter of the <code>SELECT</code> cursor token */
+    public static final String CURSOR_PARAM = "cursor";
+    /** Page size of <code>SELECT</code> cursors, used if <code>gs:resultLimit</code> is not configured */
+    public static final long DEFAULT_CURSOR_PAGE_SIZE = 1000;
+    /** Maximum number of cached prepared query templates */
+    public static final int MAX_PREPARED_QUERIES = 256;
+
+    private static final ConcurrentMap<String, PreparedQuery> PREPARED_QUERIES = new ConcurrentHashMap<String, PreparedQuery>();
+
     private final Resource resource;
     private final Request request;
     private final ResourceConfig resourceConfig;
+    private final UriInfo uriInfo;
 
     /**
      * JAX-RS-compatible resource constructor with injected initialization objects.
@@ -95,11 +129,25 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
      * @see <a href="https://jersey.java.net/nonav/apidocs/1.16/jersey/com/sun/jersey/api/core/ResourceConfig.html">Jersey ResourceConfig</a>
      */
     public SPARQLEndpointBase(@Context Request request, @Context ResourceConfig resourceConfig)
+    {
+	this((UriInfo)null, request, resourceConfig);
+    }
+
+    /**
+     * JAX-RS-compatible resource constructor with injected initialization objects, including request URI
+     * information which enables <code>SELECT</code> cursors.
+     * Uses <code>void:sparqlEndpoint</code> parameter value from web.xml as endpoint URI.
+     * 
+     * @param uriInfo URI information of the request
+     * @param request current request
+     * @param resourceConfig webapp configuration
+     */
+    public SPARQLEndpointBase(@Context UriInfo uriInfo, @Context Request request, @Context ResourceConfig resourceConfig)
     {
 	this(resourceConfig.getProperty(VoID.sparqlEndpoint.getURI()) == null ?
 		null :
 		ResourceFactory.createResource(resourceConfig.getProperty(VoID.sparqlEndpoint.getURI()).toString()),
-	    request, resourceConfig);
+	    uriInfo, request, resourceConfig);
     }
     
     /**
@@ -111,6 +159,20 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
      * @param resourceConfig webapp configuration
      */
     protected SPARQLEndpointBase(Resource endpoint, Request request, ResourceConfig resourceConfig)
+    {
+	this(endpoint, null, request, resourceConfig);
+    }
+
+    /**
+     * Protected constructor with explicit endpoint resource and request URI information.
+     * Not suitable for JAX-RS but can be used when subclassing.
+     * 
+     * @param endpoint RDF resource of this endpoint (must be URI resource, not a blank node)
+     * @param uriInfo URI information of the request, or null if cursors are not used
+     * @param request current request
+     * @param resourceConfig webapp configuration
+     */
+    protected SPARQLEndpointBase(Resource endpoint, UriInfo uriInfo, Request request, ResourceConfig resourceConfig)
     {
 	if (endpoint == null) throw new IllegalArgumentException("Endpoint cannot be null");
 	if (!endpoint.isURIResource()) throw new IllegalArgumentException("Endpoint must be URI Resource (not a blank node)");
@@ -118,6 +180,7 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
 	if (resourceConfig == null) throw new IllegalArgumentException("ResourceConfig cannot be null");
 
 	this.resource = endpoint;
+	this.uriInfo = uriInfo;
 	this.request = request;
 	this.resourceConfig = resourceConfig;
 	if (log.isDebugEnabled()) log.debug("Constructing SPARQLEndpointBase with endpoint: {}", endpoint);
@@ -215,34 +278,238 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
      * Returns response builder for a SPARQL query.
      * Contains the main SPARQL endpoint JAX-RS implementation logic.
      * Uses <code>gs:resultLimit</code> parameter value from web.xml as <code>LIMIT</code> value on <code>SELECT</code> queries, if present.
+     * Queries with estimated cost over <code>gs:maxQueryCost</code> are rejected before reaching the remote endpoint.
+     * Queries are executed using the query workload of the upstream scheduler, or the bulk workload if their estimated
+     * cost exceeds <code>gs:lowPriorityQueryCost</code>.
+     * Queries running longer than the timeout of their type are cancelled and <code>504 Gateway Timeout</code>
+     * is returned.
+     * <code>SELECT</code> queries with <code>cursor</code> request parameter are executed page by page.
+     * Conditional requests matching the dataset version are answered with <code>304 Not Modified</code> without
+     * executing the query.
      * 
      * @param query SPARQL query
      * @return response builder
+     * @see #checkQueryCost(Query)
+     * @see #evaluatePreconditions(GraphVersionRegistry.Version)
+     * @see #getWorkload(QueryCost)
+     * @see #getResponseBuilder(Query, String)
      */
     @Override
-    public ResponseBuilder getResponseBuilder(Query query)
+    public ResponseBuilder getResponseBuilder(final Query query)
     {
 	if (query == null) throw new WebApplicationException(Response.Status.BAD_REQUEST);
 
+	// version is taken before the query is executed, so that a concurrent write cannot be missed
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getDatasetVersion();
+	ResponseBuilder notModified = evaluatePreconditions(version);
+	if (notModified != null) return notModified;
+
 	if (query.isSelectType())
 	{
+	    if (getCursor() != null) return getResponseBuilder(query, getCursor());
+
 	    if (log.isDebugEnabled()) log.debug("SPARQL endpoint executing SELECT query: {}", query);
 	    if (getResourceConfig().getProperty(GS.resultLimit.getURI()) != null)
 		query.setLimit(Long.parseLong(getResourceConfig().getProperty(GS.resultLimit.getURI()).toString()));
+	    UpstreamScheduler.Workload workload = getWorkload(checkQueryCost(query));
 
-	    return getResponseBuilder(loadResultSetRewindable(getResource(), query));
+	    return getResponseBuilder(UpstreamScheduler.get().execute(workload, new Callable<ResultSetRewindable>()
+	    {
+		@Override
+		public ResultSetRewindable call()
+		{
+		    return loadResultSetRewindable(getResource(), query);
+		}
+	    }, DataManager.get().getTimeout(query)), version);
 	}
 
 	if (query.isConstructType() || query.isDescribeType())
 	{
 	    if (log.isDebugEnabled()) log.debug("SPARQL endpoint executing CONSTRUCT/DESCRIBE query: {}", query);
-	    return getResponseBuilder(loadModel(getResource(), query));
+	    UpstreamScheduler.Workload workload = getWorkload(checkQueryCost(query));
+
+	    return getResponseBuilder(UpstreamScheduler.get().execute(workload, new Callable<Model>()
+	    {
+		@Override
+		public Model call()
+		{
+		    return loadModel(getResource(), query);
+		}
+	    }, DataManager.get().getTimeout(query)), version);
 	}
 
 	if (log.isWarnEnabled()) log.warn("SPARQL endpoint received unknown type of query: {}", query);
 	throw new WebApplicationException(Response.Status.BAD_REQUEST);
     }
 
+    /**
+     * Returns response builder for a page of <code>SELECT</code> query results.
+     * The query is rewritten to retrieve the page following the cursor token, and the URI of the next page is
+     * returned in <code>Link</code> header with <code>rel="next"</code>, unless this is the last page.
+     * Only one page of results is buffered, no matter how many results the query has.
+     * Responds with <code>400 Bad Request</code> if the token is invalid, or if the results cannot be paged
+     * because they bind blank nodes or typed literals.
+     * 
+     * @param query <code>SELECT</code> query
+     * @param token cursor token, or <code>*</code> for the first page
+     * @return response builder
+     * @see org.graphity.query.SelectCursor
+     */
+    public ResponseBuilder getResponseBuilder(Query query, String token)
+    {
+	SelectCursor cursor;
+	try
+	{
+	    cursor = new SelectCursor(query, token, getCursorPageSize());
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    if (log.isDebugEnabled()) log.debug("Invalid cursor token: {}", token);
+	    throw getCursorException(ex);
+	}
+	
+	final Query pageQuery = cursor.getPageQuery();
+	GraphVersionRegistry.Version version = GraphVersionRegistry.get().getDatasetVersion();
+	if (log.isDebugEnabled()) log.debug("SPARQL endpoint executing SELECT query page with {}", cursor);
+	UpstreamScheduler.Workload workload = getWorkload(checkQueryCost(pageQuery));
+	ResultSetRewindable results = UpstreamScheduler.get().execute(workload, new Callable<ResultSetRewindable>()
+	{
+	    @Override
+	    public ResultSetRewindable call()
+	    {
+		return loadResultSetRewindable(getResource(), pageQuery);
+	    }
+	}, DataManager.get().getTimeout(pageQuery));
+
+	ResultSetRewindable page;
+	try
+	{
+	    page = cursor.page(results);
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    if (log.isDebugEnabled()) log.debug("Cursor cannot page query results: {}", ex.getMessage());
+	    throw getCursorException(ex);
+	}
+
+	ResponseBuilder rb = getResponseBuilder(page, version);
+	if (cursor.getNextToken() != null)
+	    rb.header("Link", "<" + getUriInfo().getRequestUriBuilder().
+		    replaceQueryParam(CURSOR_PARAM, cursor.getNextToken()).
+		    build() + ">; rel=\"next\"");
+	
+	return rb;
+    }
+
+    /**
+     * Returns <code>400 Bad Request</code> exception for an invalid cursor or a query that cannot be paged.
+     * 
+     * @param ex cause
+     * @return web application exception
+     */
+    protected WebApplicationException getCursorException(IllegalArgumentException ex)
+    {
+	return new WebApplicationException(ex, Response.status(Response.Status.BAD_REQUEST).
+		type(MediaType.TEXT_PLAIN_TYPE).
+		entity(ex.getMessage()).
+		build());
+    }
+
+    /**
+     * Returns <code>SELECT</code> cursor token from the request URI.
+     * 
+     * @return cursor token, or null if cursor is not requested
+     */
+    public String getCursor()
+    {
+	if (getUriInfo() == null) return null;
+	
+	return getUriInfo().getQueryParameters().getFirst(CURSOR_PARAM);
+    }
+
+    /**
+     * Returns page size of <code>SELECT</code> cursors (<code>gs:resultLimit</code> parameter value from web.xml).
+     * 
+     * @return maximum number of results per page
+     */
+    public long getCursorPageSize()
+    {
+	if (getResourceConfig().getProperty(GS.resultLimit.getURI()) == null) return DEFAULT_CURSOR_PAGE_SIZE;
+	
+	return Long.parseLong(getResourceConfig().getProperty(GS.resultLimit.getURI()).toString());
+    }
+
+    /**
+     * Rejects query if its estimated cost exceeds <code>gs:maxQueryCost</code> parameter value from web.xml.
+     * Does nothing if the parameter is not present.
+     * 
+     * @param query SPARQL query
+     * @return estimated cost of the query
+     * @throws WebApplicationException with <code>403 Forbidden</code> status if the query is too expensive
+     * @see org.graphity.query.QueryCostEstimator
+     */
+    public QueryCost checkQueryCost(Query query)
+    {
+	QueryCost cost = QueryCostEstimator.estimate(query);
+	Long maxCost = getMaxQueryCost();
+	
+	if (maxCost != null && cost.getTotal() > maxCost)
+	{
+	    if (log.isWarnEnabled()) log.warn("Rejecting query with {} exceeding gs:maxQueryCost {}: " + query, cost, maxCost);
+	    throw new WebApplicationException(Response.status(Response.Status.FORBIDDEN).
+		    type(MediaType.TEXT_PLAIN_TYPE).
+		    entity("Estimated query cost " + cost.getTotal() + " exceeds the limit of " + maxCost + ": " + cost).
+		    build());
+	}
+	
+	return cost;
+    }
+
+    /**
+     * Returns upstream workload for a query of given cost.
+     * Queries with estimated cost over <code>gs:lowPriorityQueryCost</code> are demoted to the bulk workload, so
+     * that analytic queries do not compete with ad-hoc ones for upstream capacity.
+     * 
+     * @param cost estimated query cost
+     * @return upstream workload
+     */
+    public UpstreamScheduler.Workload getWorkload(QueryCost cost)
+    {
+	Long lowPriorityCost = getLowPriorityQueryCost();
+	if (lowPriorityCost != null && cost.getTotal() > lowPriorityCost)
+	{
+	    if (log.isDebugEnabled()) log.debug("Demoting query with {} exceeding gs:lowPriorityQueryCost {} to bulk workload", cost, lowPriorityCost);
+	    return UpstreamScheduler.Workload.BULK;
+	}
+
+	return UpstreamScheduler.Workload.QUERY;
+    }
+
+    /**
+     * Returns query cost above which queries are executed with low priority
+     * (<code>gs:lowPriorityQueryCost</code> parameter value from web.xml).
+     * 
+     * @return cost threshold, or null if queries are not demoted
+     */
+    public Long getLowPriorityQueryCost()
+    {
+	if (getResourceConfig().getProperty(GS.lowPriorityQueryCost.getURI()) == null) return null;
+	
+	return Long.parseLong(getResourceConfig().getProperty(GS.lowPriorityQueryCost.getURI()).toString());
+    }
+
+    /**
+     * Returns maximum allowed query cost (<code>gs:maxQueryCost</code> parameter value from web.xml).
+     * 
+     * @return cost limit, or null if queries are not limited
+     */
+    public Long getMaxQueryCost()
+    {
+	if (getResourceConfig().getProperty(GS.maxQueryCost.getURI()) == null) return null;
+	
+	return Long.parseLong(getResourceConfig().getProperty(GS.maxQueryCost.getURI()).toString());
+    }
+    
     @Override
     public ResponseBuilder getResponseBuilder(Model model)
     {
@@ -252,8 +519,25 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
     @Override
     public ResponseBuilder getResponseBuilder(Model model, List<Variant> variants)
     {
-	return getResponseBuilder(new EntityTag(Long.toHexString(ModelUtils.hashModel(model))),
-		model, variants);
+	return getResponseBuilder(model, variants, METRICS_RESOURCE);
+    }
+    
+    /**
+     * Creates response builder for an RDF model. The outcome of the preconditions is counted under the given
+     * resource label.
+     * 
+     * @param model RDF model
+     * @param variants list of representation variants
+     * @param resource label of the resource in metrics, e.g. <code>sparql</code>
+     * @return response builder
+     */
+    protected ResponseBuilder getResponseBuilder(Model model, List<Variant> variants, String resource)
+    {
+	long start = System.nanoTime();
+	EntityTag entityTag = new EntityTag(Long.toHexString(ModelUtils.hashModel(model)));
+	QueryProfile.addPhase(QueryProfile.Phase.HASH, System.nanoTime() - start);
+	return getResponseBuilder(entityTag,
+		model, variants, resource);
     }
     
     @Override
@@ -265,16 +549,116 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
     @Override
     public ResponseBuilder getResponseBuilder(ResultSetRewindable resultSet, List<Variant> variants)
     {
+	long start = System.nanoTime();
 	EntityTag entityTag = new EntityTag(Long.toHexString(ResultSetUtils.hashResultSet(resultSet)));
 	resultSet.reset(); // ResultSet needs to be rewinded back to the beginning
+	QueryProfile.addPhase(QueryProfile.Phase.HASH, System.nanoTime() - start);
 	return getResponseBuilder(entityTag,
 		resultSet, variants);
     }
     
+    /**
+     * Creates response builder for an RDF model, validated by the dataset version.
+     * 
+     * @param model RDF model
+     * @param version dataset version, or null if versions are not available
+     * @return response builder
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    @Override
+    public ResponseBuilder getResponseBuilder(Model model, GraphVersionRegistry.Version version)
+    {
+	return getResponseBuilder(model, version, METRICS_RESOURCE);
+    }
+
+    /**
+     * Creates response builder for an RDF model, validated by the dataset version. The outcome of the
+     * preconditions is counted under the given resource label.
+     * 
+     * @param model RDF model
+     * @param version dataset version, or null if versions are not available
+     * @param resource label of the resource in metrics, e.g. <code>sparql</code>
+     * @return response builder
+     */
+    protected ResponseBuilder getResponseBuilder(Model model, GraphVersionRegistry.Version version, String resource)
+    {
+	if (version == null) return getResponseBuilder(model, MODEL_VARIANTS, resource);
+
+	return getResponseBuilder(version.getEntityTag(), model, MODEL_VARIANTS, resource).
+		lastModified(version.getLastModified());
+    }
+
+    /**
+     * Creates response builder for a result set, validated by the dataset version.
+     * 
+     * @param resultSet result set
+     * @param version dataset version, or null if versions are not available
+     * @return response builder
+     * @see org.graphity.server.util.GraphVersionRegistry
+     */
+    public ResponseBuilder getResponseBuilder(ResultSetRewindable resultSet, GraphVersionRegistry.Version version)
+    {
+	if (version == null) return getResponseBuilder(resultSet);
+
+	return getResponseBuilder(version.getEntityTag(), resultSet, RESULT_SET_VARIANTS).
+		lastModified(version.getLastModified());
+    }
+
+    /**
+     * Evaluates request preconditions against the dataset version, without contacting the remote endpoint.
+     * 
+     * @param version dataset version, or null if versions are not available
+     * @return <code>304 Not Modified</code> response builder, or null if the request has to be processed
+     */
+    @Override
+    public ResponseBuilder evaluatePreconditions(GraphVersionRegistry.Version version)
+    {
+	return evaluatePreconditions(version, METRICS_RESOURCE);
+    }
+
+    /**
+     * Evaluates request preconditions against the dataset version. The outcome is counted under the given
+     * resource label.
+     * 
+     * @param version dataset version, or null if versions are not available
+     * @param resource label of the resource in metrics, e.g. <code>sparql</code>
+     * @return <code>304 Not Modified</code> response builder, or null if the request has to be processed
+     */
+    protected ResponseBuilder evaluatePreconditions(GraphVersionRegistry.Version version, String resource)
+    {
+	if (version == null) return null;
+
+	ResponseBuilder rb = getRequest().evaluatePreconditions(version.getLastModified(), version.getEntityTag());
+	if (rb != null)
+	{
+	    Metrics.get().counter("http.preconditions", "resource", resource, "result", "not_modified").increment();
+	    if (log.isTraceEnabled()) log.trace("Dataset version {} not modified, skipping query execution", version);
+	    rb.lastModified(version.getLastModified());
+	}
+	return rb;
+    }
+
     @Override
     public ResponseBuilder getResponseBuilder(EntityTag entityTag, Object entity, List<Variant> variants)
+    {
+	return getResponseBuilder(entityTag, entity, variants, METRICS_RESOURCE);
+    }
+
+    /**
+     * Creates response builder for an entity. The outcome of the preconditions is counted under the given
+     * resource label.
+     * 
+     * @param entityTag ETag value of the entity
+     * @param entity response entity
+     * @param variants list of representation variants
+     * @param resource label of the resource in metrics, e.g. <code>sparql</code>
+     * @return response builder
+     */
+    protected ResponseBuilder getResponseBuilder(EntityTag entityTag, Object entity, List<Variant> variants, String resource)
     {	
 	Response.ResponseBuilder rb = getRequest().evaluatePreconditions(entityTag);
+	Metrics.get().counter("http.preconditions", "resource", resource, "result", rb != null ? "not_modified" : "modified").
+		increment();
 	if (rb != null)
 	{
 	    if (log.isTraceEnabled()) log.trace("Resource not modified, skipping Response generation");
@@ -321,6 +705,75 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
 	return loadModel(this, query);
     }
 
+    public Model loadBatchedModel(Resource endpoint, Query query)
+    {
+	return DataManager.get().loadBatchedModel(endpoint.getURI(), query);
+    }
+
+    @Override
+    public Model loadBatchedModel(Query query)
+    {
+	return loadBatchedModel(this, query);
+    }
+
+    public Map<Query, Model> loadModels(Resource endpoint, Collection<Query> queries)
+    {
+	if (log.isDebugEnabled()) log.debug("Loading {} Models from SPARQL endpoint: {}", queries.size(), endpoint);
+	return DataManager.get().loadModels(endpoint.getURI(), queries);
+    }
+
+    @Override
+    public Map<Query, Model> loadModels(Collection<Query> queries)
+    {
+	return loadModels(this, queries);
+    }
+
+    public Model getCachedModel(Resource endpoint, Query query)
+    {
+	return DataManager.get().getCachedModel(endpoint.getURI(), query, null);
+    }
+
+    @Override
+    public Model getCachedModel(Query query)
+    {
+	return getCachedModel(this, query);
+    }
+
+    public boolean ask(Resource endpoint, Query query)
+    {
+	if (log.isDebugEnabled()) log.debug("Executing ASK on SPARQL endpoint: {} using Query: {}", endpoint, query);
+	return DataManager.get().ask(endpoint.getURI(), query);
+    }
+
+    @Override
+    public boolean ask(Query query)
+    {
+	return ask(this, query);
+    }
+
+    /**
+     * Returns prepared query for a query template.
+     * Prepared queries are shared by all endpoints, since templates are expected to be constants of the resource
+     * classes. At most {@link #MAX_PREPARED_QUERIES} templates are kept, further ones are parsed on every call.
+     * 
+     * @param template SPARQL query string with parameters as variables
+     * @return prepared query
+     */
+    @Override
+    public PreparedQuery prepareQuery(String template)
+    {
+	PreparedQuery prepared = PREPARED_QUERIES.get(template);
+	if (prepared != null) return prepared;
+
+	prepared = new PreparedQuery(template);
+	if (PREPARED_QUERIES.size() < MAX_PREPARED_QUERIES)
+	{
+	    PreparedQuery existing = PREPARED_QUERIES.putIfAbsent(template, prepared);
+	    if (existing != null) return existing;
+	}
+	return prepared;
+    }
+
     private Resource getResource()
     {
 	return resource;
@@ -343,6 +796,7 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
 	return VARIANTS;
     }
     
+    @Override
     public Request getRequest()
     {
 	return request;
@@ -353,6 +807,11 @@ public class SPARQLEndpointBase implements SPARQLEndpoint
 	return resourceConfig;
     }
 
+    public UriInfo getUriInfo()
+    {
+	return uriInfo;
+    }
+
     @Override
     public AnonId getId()
     {
@@ -29,17 +29,35 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
+import org.graphity.io.BinaryRDF;
+import org.graphity.io.JSONLDWriter;
 import org.graphity.server.MediaType;
+import org.graphity.server.metrics.CountingInputStream;
+import org.graphity.server.metrics.CountingOutputStream;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.slowquery.QueryProfile;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
 import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
+import org.openjena.riot.lang.SinkTriplesToGraph;
+import org.openjena.riot.out.NTriplesWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Reads RDF from request body or writes RDF to response.
  * Needs to be registered in the application.
+ * Records serialization time, bytes and Model sizes per media type in <code>Metrics</code>, and traces
+ * parsing and serialization as spans.
+ * Binary RDF (<code>application/x-rdf-binary</code>) is handled by <code>BinaryRDF</code>, as it is not a RIOT language;
+ * malformed binary request bodies are rejected with <code>400 Bad Request</code>.
+ * N-Triples, N-Quads and JSON-LD are written by streaming writers, triple by triple, without the prefix and
+ * pretty-printing analysis done by the RDF/XML and Turtle writers.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  * @see org.graphity.server.Application
@@ -48,8 +66,10 @@ import org.slf4j.LoggerFactory;
  * @see <a href="http://jsr311.java.net/nonav/javadoc/javax/ws/rs/ext/MessageBodyWriter.html">JAX-RS MessageBodyWriter</a>
  */
 @Provider
-@Consumes({MediaType.APPLICATION_RDF_XML, MediaType.TEXT_TURTLE, MediaType.TEXT_PLAIN})
-@Produces({MediaType.APPLICATION_RDF_XML, MediaType.TEXT_TURTLE, MediaType.TEXT_PLAIN})
+@Consumes({MediaType.APPLICATION_RDF_XML, MediaType.TEXT_TURTLE, MediaType.TEXT_PLAIN, MediaType.APPLICATION_N_TRIPLES,
+    MediaType.APPLICATION_RDF_BINARY})
+@Produces({MediaType.APPLICATION_RDF_XML, MediaType.TEXT_TURTLE, MediaType.TEXT_PLAIN, MediaType.APPLICATION_N_TRIPLES,
+    MediaType.APPLICATION_N_QUADS, MediaType.APPLICATION_LD_JSON, MediaType.APPLICATION_RDF_BINARY})
 public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWriter<Model>
 {
     
@@ -62,9 +82,10 @@ public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWrite
     public static final Map<String, Lang> LANGS = new HashMap<String, Lang>();
     static
     {
-        LANGS.put(MediaType.APPLICATION_RDF_XML, Lang.RDFXML);
-        LANGS.put(MediaType.TEXT_TURTLE, Lang.TURTLE);
-        LANGS.put(MediaType.TEXT_PLAIN, Lang.TURTLE);
+	LANGS.put(MediaType.APPLICATION_RDF_XML, Lang.RDFXML);
+	LANGS.put(MediaType.TEXT_TURTLE, Lang.TURTLE);
+	LANGS.put(MediaType.TEXT_PLAIN, Lang.TURTLE);
+	LANGS.put(MediaType.APPLICATION_N_TRIPLES, Lang.NTRIPLES);
     }    
     private static final Logger log = LoggerFactory.getLogger(ModelProvider.class);
 
@@ -73,7 +94,7 @@ public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWrite
     @Override
     public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, javax.ws.rs.core.MediaType mediaType)
     {
-        return type == Model.class;
+	return type == Model.class;
     }
 
     @Override
@@ -89,14 +110,60 @@ public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWrite
 	if (log.isDebugEnabled()) log.debug("Syntax used to read Model: {}", syntax);
 
 	// extract base URI from httpHeaders?
-	return model.read(entityStream, null, syntax);
+	long start = System.nanoTime();
+	Span span = Tracer.get().start("rdf.parse");
+	try
+	{
+	    CountingInputStream in = new CountingInputStream(entityStream);
+	    if (isBinary(mediaType))
+		try
+		{
+		    BinaryRDF.read(model, in);
+		}
+		catch (IOException ex)
+		{
+		    if (log.isDebugEnabled()) log.debug("Invalid binary RDF request body", ex);
+		    throw new WebApplicationException(ex, Response.Status.BAD_REQUEST);
+		}
+	    else if (Lang.NTRIPLES.equals(lang)) // no Jena reader is registered under the RIOT name
+	    {
+		SinkTriplesToGraph sink = new SinkTriplesToGraph(model.getGraph());
+		RiotReader.createParserTriples(in, lang, null, sink).parse();
+		sink.close();
+	    }
+	    else model.read(in, null, syntax);
+	    record("read", mediaType, span, start, in.getCount(), model.size());
+	    return model;
+	}
+	finally
+	{
+	    span.end();
+	}
     }
     
     public static Lang langFromMediaType(javax.ws.rs.core.MediaType mediaType)
     { 
-        if (mediaType == null) return null;
+	if (mediaType == null) return null;
 	if (log.isTraceEnabled()) log.trace("langFromMediaType({}): {}", mediaType.getType() + "/" + mediaType.getSubtype(), LANGS.get(mediaType.getType() + "/" + mediaType.getSubtype()));
-        return LANGS.get(mediaType.getType() + "/" + mediaType.getSubtype());
+	return LANGS.get(mediaType.getType() + "/" + mediaType.getSubtype());
+    }
+
+    public static boolean isBinary(javax.ws.rs.core.MediaType mediaType)
+    {
+	return isCompatible(mediaType, MediaType.APPLICATION_RDF_BINARY_TYPE);
+    }
+
+    /**
+     * Checks whether media type has the same type and subtype, ignoring parameters.
+     * 
+     * @param mediaType media type, possibly null
+     * @param other media type to compare with
+     * @return true if type and subtype are equal
+     */
+    protected static boolean isCompatible(javax.ws.rs.core.MediaType mediaType, javax.ws.rs.core.MediaType other)
+    {
+	return mediaType != null && mediaType.getType().equalsIgnoreCase(other.getType()) &&
+		mediaType.getSubtype().equalsIgnoreCase(other.getSubtype());
     }
 
     // WRITER
@@ -104,7 +171,7 @@ public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWrite
     @Override
     public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, javax.ws.rs.core.MediaType mediaType)
     {
-        return Model.class.isAssignableFrom(type);
+	return Model.class.isAssignableFrom(type);
     }
 
     @Override
@@ -122,7 +189,44 @@ public class ModelProvider implements MessageBodyReader<Model>, MessageBodyWrite
 	if (lang != null) syntax = lang.getName();
 	if (log.isDebugEnabled()) log.debug("Syntax used to write Model: {}", syntax);
 
-	model.write(entityStream, syntax);
+	long start = System.nanoTime();
+	Span span = Tracer.get().start("rdf.serialize");
+	try
+	{
+	    CountingOutputStream out = new CountingOutputStream(entityStream);
+	    if (isBinary(mediaType)) BinaryRDF.write(model, out);
+	    else if (isCompatible(mediaType, MediaType.APPLICATION_N_TRIPLES_TYPE) || isCompatible(mediaType, MediaType.APPLICATION_N_QUADS_TYPE))
+		NTriplesWriter.write(out, model.getGraph()); // triples of a Model are in the default graph, i.e. valid N-Quads
+	    else if (isCompatible(mediaType, MediaType.APPLICATION_LD_JSON_TYPE)) JSONLDWriter.write(model.getGraph(), out);
+	    else model.write(out, syntax);
+	    record("write", mediaType, span, start, out.getCount(), model.size());
+	    QueryProfile.addPhase(QueryProfile.Phase.SERIALIZE, System.nanoTime() - start);
+	    QueryProfile.addBytes(out.getCount());
+	}
+	finally
+	{
+	    span.end();
+	}
+    }
+
+    /**
+     * Records serialization metrics and span attributes.
+     * 
+     * @param direction <code>read</code> or <code>write</code>
+     * @param mediaType media type of the serialization
+     * @param span span of the serialization
+     * @param startNanos start time (as returned by <code>System.nanoTime()</code>)
+     * @param bytes number of bytes read or written
+     * @param triples number of triples in the Model
+     */
+    protected void record(String direction, javax.ws.rs.core.MediaType mediaType, Span span, long startNanos, long bytes, long triples)
+    {
+	String type = mediaType == null ? "unknown" : mediaType.getType() + "/" + mediaType.getSubtype();
+	span.setAttribute("mediaType", type).setAttribute("bytes", bytes).setAttribute("triples", triples);
+	Metrics metrics = Metrics.get();
+	metrics.timer("serialization.time", "provider", "model", "direction", direction, "mediaType", type).recordSince(startNanos);
+	metrics.summary("serialization.bytes", "provider", "model", "direction", direction, "mediaType", type).record(bytes);
+	metrics.summary("serialization.model.size", "direction", direction, "mediaType", type).record(triples);
     }
     
 }
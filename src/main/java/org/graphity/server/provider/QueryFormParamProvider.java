@@ -27,6 +27,7 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.Provider;
+import org.graphity.server.slowquery.QueryProfile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,7 +68,10 @@ public class QueryFormParamProvider extends PerRequestTypeInjectableProvider<For
 		if (log.isTraceEnabled()) log.trace("Providing Injectable<Query> with @FormParam({}) and value: {}", paramName, value);
 		try
 		{
-		    return QueryFactory.create(value);
+		    long start = System.nanoTime();
+		    Query query = QueryFactory.create(value);
+		    QueryProfile.addPhase(QueryProfile.Phase.PARSE, System.nanoTime() - start);
+		    return query;
 		}
 		catch (Exception ex)
 		{
@@ -28,21 +28,35 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
+import org.graphity.io.BinaryResultSetWriter;
+import org.graphity.io.CSVResultSetWriter;
+import org.graphity.io.TSVResultSetWriter;
+import org.graphity.server.metrics.CountingOutputStream;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.slowquery.QueryProfile;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Writes SPARQL result set to the response.
  * Needs to be registered in the application.
+ * Records serialization time, bytes and result set sizes per media type in <code>Metrics</code>, and traces
+ * serialization as a span.
+ * CSV, TSV and binary results are written row by row by streaming writers.
  * 
  * @author Martynas Jusevičius <martynas@graphity.org>
  * @see org.graphity.server.Application
  * @see <a href="http://www.w3.org/TR/rdf-sparql-XMLres/">SPARQL Query Results XML Format</a>
+ * @see <a href="http://www.w3.org/TR/sparql11-results-csv-tsv/">SPARQL 1.1 Query Results CSV and TSV Formats</a>
  * @see <a href="http://jena.apache.org/documentation/javadoc/arq/com/hp/hpl/jena/query/ResultSet.html">Jena ResultSet</a>
  * @see <a href="http://jsr311.java.net/nonav/javadoc/javax/ws/rs/ext/MessageBodyWriter.html">JAX-RS MessageBodyWriter</a>
  */
 @Provider
-@Produces({org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_XML, org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON})
+@Produces({org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_XML, org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON,
+    org.graphity.server.MediaType.TEXT_CSV, org.graphity.server.MediaType.TEXT_TAB_SEPARATED_VALUES,
+    org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_BINARY})
 public class ResultSetWriter implements MessageBodyWriter<ResultSet>
 {
     private static final Logger log = LoggerFactory.getLogger(ResultSetWriter.class);
@@ -62,10 +76,35 @@ public class ResultSetWriter implements MessageBodyWriter<ResultSet>
     @Override
     public void writeTo(ResultSet results, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException
     {
-	if (mediaType.equals(org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON_TYPE))
-	    ResultSetFormatter.outputAsJSON(entityStream, results);
-	else
-	    ResultSetFormatter.outputAsXML(entityStream, results);
+	long start = System.nanoTime();
+	String typeName = mediaType.getType() + "/" + mediaType.getSubtype();
+	CountingOutputStream out = new CountingOutputStream(entityStream);
+	Span span = Tracer.get().start("rdf.serialize").setAttribute("mediaType", typeName);
+	try
+	{
+	    if (typeName.equals(org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_JSON))
+		ResultSetFormatter.outputAsJSON(out, results);
+	    else if (typeName.equals(org.graphity.server.MediaType.TEXT_CSV))
+		CSVResultSetWriter.write(results, out);
+	    else if (typeName.equals(org.graphity.server.MediaType.TEXT_TAB_SEPARATED_VALUES))
+		TSVResultSetWriter.write(results, out);
+	    else if (typeName.equals(org.graphity.server.MediaType.APPLICATION_SPARQL_RESULTS_BINARY))
+		BinaryResultSetWriter.write(results, out);
+	    else
+		ResultSetFormatter.outputAsXML(out, results);
+	    span.setAttribute("bytes", out.getCount()).setAttribute("rows", results.getRowNumber());
+	    QueryProfile.addPhase(QueryProfile.Phase.SERIALIZE, System.nanoTime() - start);
+	    QueryProfile.addBytes(out.getCount());
+	}
+	finally
+	{
+	    span.end();
+	}
+
+	Metrics metrics = Metrics.get();
+	metrics.timer("serialization.time", "provider", "resultset", "direction", "write", "mediaType", typeName).recordSince(start);
+	metrics.summary("serialization.bytes", "provider", "resultset", "direction", "write", "mediaType", typeName).record(out.getCount());
+	metrics.summary("serialization.resultset.size", "direction", "write", "mediaType", typeName).record(results.getRowNumber());
     }
     
 }
@@ -0,0 +1,44 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.ratelimit;
+
+/**
+ * Thrown when a client exceeds its request budget.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class RateLimitExceededException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private long retryAfter;
+
+    /**
+     * @param message error message
+     * @param retryAfter number of seconds after which the request can be retried
+     */
+    public RateLimitExceededException(String message, long retryAfter)
+    {
+	super(message);
+	this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter()
+    {
+	return retryAfter;
+    }
+}
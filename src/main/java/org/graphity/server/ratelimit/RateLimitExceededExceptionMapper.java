@@ -0,0 +1,47 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.ratelimit;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Maps exceeded request budget to <code>429 Too Many Requests</code> response with <code>Retry-After</code> header.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://tools.ietf.org/html/rfc6585#section-4">RFC 6585: 429 Too Many Requests</a>
+ */
+@Provider
+public class RateLimitExceededExceptionMapper implements ExceptionMapper<RateLimitExceededException>
+{
+    /** "429 Too Many Requests" (not defined in JAX-RS 1.1 Response.Status) */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    @Override
+    public Response toResponse(RateLimitExceededException ex)
+    {
+        return Response.
+                status(TOO_MANY_REQUESTS).
+                header("Retry-After", ex.getRetryAfter()).
+                type(MediaType.TEXT_PLAIN).
+                entity(ex.getMessage()).
+                build();
+    }
+
+}
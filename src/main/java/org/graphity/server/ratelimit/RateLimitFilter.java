@@ -0,0 +1,188 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.ratelimit;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.sun.jersey.api.container.MappableContainerException;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.jersey.spi.CloseableService;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import java.io.Closeable;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+import org.graphity.server.vocabulary.GS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits request rate and concurrency of each client.
+ * Authenticated clients are identified by username, anonymous ones by IP address.
+ * Requests to the SPARQL endpoint (<code>/sparql</code>) and to the rest of the resources have separate budgets,
+ * configured in web.xml using <code>gs:sparqlRequestRate</code>, <code>gs:sparqlRequestBurst</code>,
+ * <code>gs:sparqlMaxConcurrentRequests</code> and <code>gs:requestRate</code>, <code>gs:requestBurst</code>,
+ * <code>gs:maxConcurrentRequests</code>, respectively. Requests are not limited if rate is not configured.
+ * A concurrent request slot is held until the response has been written, and is released even if the request
+ * fails with an unmapped exception.
+ * The limiter and client key of the request are stored in its properties, so that resources whose requests cost
+ * more than one token can charge the rest, as the batch endpoint does for every resource after the first one.
+ * Needs to be registered as container request filter in web.xml.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see RateLimiter
+ * @see RateLimitExceededExceptionMapper
+ * @see <a href="https://jersey.java.net/nonav/apidocs/1.16/jersey/com/sun/jersey/spi/container/ContainerRequestFilter.html">Jersey ContainerRequestFilter</a>
+ */
+public class RateLimitFilter implements ContainerRequestFilter
+{
+    private static final Logger log = LoggerFactory.getLogger(RateLimitFilter.class);
+
+    /** Path of the SPARQL endpoint, relative to the base URI */
+    public static final String SPARQL_PATH = "sparql";
+    /** Request property of the rate limiter that admitted the request */
+    public static final String LIMITER_PROPERTY = RateLimitFilter.class.getName() + ".limiter";
+    /** Request property of the client key of the request */
+    public static final String CLIENT_PROPERTY = RateLimitFilter.class.getName() + ".client";
+
+    @Context ResourceConfig resourceConfig;
+    @Context HttpServletRequest httpServletRequest;
+    @Context CloseableService closeableService;
+
+    private RateLimiter sparqlLimiter, resourceLimiter;
+    private boolean initialized = false;
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request)
+    {
+	RateLimiter limiter = getRateLimiter(request);
+	if (limiter == null) return request;
+
+	String client = getClient(request);
+	// the slot is reserved first, so that a request rejected for concurrency does not use up rate budget
+	final RateLimiter.Slot slot = limiter.tryEnter(client);
+	if (slot == null)
+	{
+	    if (log.isDebugEnabled()) log.debug("Client {} exceeded concurrent request limit on path {}", client, request.getPath());
+	    throw new MappableContainerException(
+		new RateLimitExceededException("Concurrent request limit exceeded", 1));
+	}
+
+	long wait = limiter.tryAcquire(client);
+	if (wait > 0)
+	{
+	    slot.release();
+	    if (log.isDebugEnabled()) log.debug("Client {} exceeded request rate on path {}", client, request.getPath());
+	    throw new MappableContainerException(
+		new RateLimitExceededException("Request rate limit exceeded", (wait + 999) / 1000));
+	}
+	// closed by Jersey after the response is written, or after an unmapped exception
+	getCloseableService().add(new Closeable()
+	{
+	    @Override
+	    public void close()
+	    {
+		slot.release();
+	    }
+	});
+	request.getProperties().put(LIMITER_PROPERTY, limiter);
+	request.getProperties().put(CLIENT_PROPERTY, client);
+
+	return request;
+    }
+
+    /**
+     * Returns client key of the request.
+     * Username is used for authenticated requests, IP address otherwise.
+     *
+     * @param request current request
+     * @return client key
+     */
+    public String getClient(ContainerRequest request)
+    {
+	if (request.getUserPrincipal() != null) return "user:" + request.getUserPrincipal().getName();
+
+	if (getHttpServletRequest() != null) return "ip:" + getHttpServletRequest().getRemoteAddr();
+
+	return "ip:unknown";
+    }
+
+    /**
+     * Returns rate limiter responsible for the requested path.
+     *
+     * @param request current request
+     * @return rate limiter, or null if requests to this path are not limited
+     */
+    public RateLimiter getRateLimiter(ContainerRequest request)
+    {
+	init();
+
+	if (request.getPath().equals(SPARQL_PATH) || request.getPath().startsWith(SPARQL_PATH + "/"))
+	    return sparqlLimiter;
+
+	return resourceLimiter;
+    }
+
+    private synchronized void init()
+    {
+	if (!initialized)
+	{
+	    sparqlLimiter = createRateLimiter(GS.sparqlRequestRate, GS.sparqlRequestBurst, GS.sparqlMaxConcurrentRequests);
+	    resourceLimiter = createRateLimiter(GS.requestRate, GS.requestBurst, GS.maxConcurrentRequests);
+	    initialized = true;
+	}
+    }
+
+    /**
+     * Creates rate limiter from web.xml configuration.
+     *
+     * @param rate property of request rate (requests per second)
+     * @param burst property of burst size
+     * @param maxConcurrent property of concurrent request limit
+     * @return rate limiter, or null if rate is not configured
+     */
+    protected RateLimiter createRateLimiter(Property rate, Property burst, Property maxConcurrent)
+    {
+	if (getResourceConfig() == null || getResourceConfig().getProperty(rate.getURI()) == null) return null;
+
+	double rateValue = Double.parseDouble(getResourceConfig().getProperty(rate.getURI()).toString());
+	double burstValue = getResourceConfig().getProperty(burst.getURI()) == null ?
+		rateValue :
+		Double.parseDouble(getResourceConfig().getProperty(burst.getURI()).toString());
+	int maxConcurrentValue = getResourceConfig().getProperty(maxConcurrent.getURI()) == null ?
+		0 :
+		Integer.parseInt(getResourceConfig().getProperty(maxConcurrent.getURI()).toString());
+
+	if (log.isDebugEnabled()) log.debug("Creating RateLimiter with rate: {} burst: {} max concurrent: " + maxConcurrentValue, rateValue, burstValue);
+	return new RateLimiter(rateValue, burstValue, maxConcurrentValue);
+    }
+
+    public ResourceConfig getResourceConfig()
+    {
+	return resourceConfig;
+    }
+
+    public HttpServletRequest getHttpServletRequest()
+    {
+	return httpServletRequest;
+    }
+
+    public CloseableService getCloseableService()
+    {
+	return closeableService;
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.ratelimit;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-client request budget.
+ * Combines a token bucket limiting the request rate with a cap on the number of concurrent in-flight requests
+ * of each client. Clients are identified by opaque string keys (e.g. IP address or username).
+ * At most {@link #MAX_CLIENTS} clients are tracked; the least recently seen one is forgotten when a new client
+ * arrives, so that a flood of clients with distinct keys costs constant time and memory per request.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see TokenBucket
+ */
+public class RateLimiter
+{
+    /** Maximum number of tracked clients */
+    public static final int MAX_CLIENTS = 10000;
+
+    private final double rate;
+    private final double burst;
+    private final int maxConcurrent;
+    private final Map<String, Client> clients = Collections.synchronizedMap(new LinkedHashMap<String, Client>(16, 0.75f, true)
+    {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Client> eldest)
+	{
+	    return size() > MAX_CLIENTS;
+	}
+    });
+
+    /**
+     * Creates rate limiter.
+     *
+     * @param rate allowed requests per second per client
+     * @param burst maximum burst size per client
+     * @param maxConcurrent maximum number of concurrent requests per client, or 0 if unlimited
+     */
+    public RateLimiter(double rate, double burst, int maxConcurrent)
+    {
+	if (rate <= 0) throw new IllegalArgumentException("Request rate must be positive");
+	if (maxConcurrent < 0) throw new IllegalArgumentException("Concurrent request limit cannot be negative");
+
+	this.rate = rate;
+	this.burst = Math.max(burst, 1);
+	this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     *
+     * @param client client key
+     * @return 0 if the request is allowed, otherwise number of milliseconds after which it can be retried
+     */
+    public long tryAcquire(String client)
+    {
+	return getClient(client).getBucket().tryConsume();
+    }
+
+    /**
+     * Takes several tokens from the client's bucket, for requests that cost more than one.
+     *
+     * @param client client key
+     * @param cost number of tokens
+     * @return 0 if the request is allowed, otherwise number of milliseconds after which it can be retried
+     * @see TokenBucket#tryConsume(double)
+     */
+    public long tryAcquire(String client, double cost)
+    {
+	return getClient(client).getBucket().tryConsume(cost);
+    }
+
+    /**
+     * Reserves one of the client's concurrent request slots.
+     * Every returned slot must be released when the request is complete.
+     *
+     * @param client client key
+     * @return reserved slot, or null if the client has reached its limit
+     */
+    public Slot tryEnter(String client)
+    {
+	Semaphore semaphore = getClient(client).getSemaphore();
+	if (semaphore == null) return new Slot(null);
+	if (!semaphore.tryAcquire()) return null;
+
+	return new Slot(semaphore);
+    }
+
+    /**
+     * Returns state of a client, starting to track it if it is not tracked yet.
+     *
+     * @param client client key
+     * @return client state
+     */
+    protected Client getClient(String client)
+    {
+	if (client == null) throw new IllegalArgumentException("Client key cannot be null");
+
+	synchronized (clients)
+	{
+	    Client state = clients.get(client);
+	    if (state == null)
+	    {
+		state = new Client(new TokenBucket(getRate(), getBurst()),
+			getMaxConcurrent() == 0 ? null : new Semaphore(getMaxConcurrent()));
+		clients.put(client, state);
+	    }
+	    return state;
+	}
+    }
+
+    public double getRate()
+    {
+	return rate;
+    }
+
+    public double getBurst()
+    {
+	return burst;
+    }
+
+    public int getMaxConcurrent()
+    {
+	return maxConcurrent;
+    }
+
+    /**
+     * Concurrent request slot reserved by <code>tryEnter()</code>.
+     * The slot is returned to the semaphore it was taken from, even if the client has been forgotten meanwhile.
+     */
+    public static class Slot
+    {
+	private final Semaphore semaphore;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	Slot(Semaphore semaphore)
+	{
+	    this.semaphore = semaphore;
+	}
+
+	/**
+	 * Releases the slot. Calls after the first one have no effect.
+	 */
+	public void release()
+	{
+	    if (semaphore != null && released.compareAndSet(false, true)) semaphore.release();
+	}
+    }
+
+    protected static class Client
+    {
+	private final TokenBucket bucket;
+	private final Semaphore semaphore;
+
+	Client(TokenBucket bucket, Semaphore semaphore)
+	{
+	    this.bucket = bucket;
+	    this.semaphore = semaphore;
+	}
+
+	public TokenBucket getBucket()
+	{
+	    return bucket;
+	}
+
+	public Semaphore getSemaphore()
+	{
+	    return semaphore;
+	}
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.ratelimit;
+
+/**
+ * Token bucket used to limit request rate of a single client.
+ * The bucket holds at most <code>capacity</code> tokens and is refilled continuously at <code>rate</code> tokens
+ * per second. Each request consumes one token, unless it is charged a higher cost.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://en.wikipedia.org/wiki/Token_bucket">Token bucket</a>
+ */
+public class TokenBucket
+{
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates full token bucket.
+     *
+     * @param rate refill rate in tokens per second
+     * @param capacity maximum number of tokens (burst size)
+     */
+    public TokenBucket(double rate, double capacity)
+    {
+	if (rate <= 0) throw new IllegalArgumentException("Token bucket rate must be positive");
+	if (capacity < 1) throw new IllegalArgumentException("Token bucket capacity must be at least 1");
+
+	this.rate = rate;
+	this.capacity = capacity;
+	this.tokens = capacity;
+	this.lastRefill = System.nanoTime();
+    }
+
+    private void refill(long now)
+    {
+	tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+	lastRefill = now;
+    }
+
+    /**
+     * Attempts to consume one token.
+     *
+     * @return 0 if the token was consumed, otherwise number of milliseconds until a token becomes available
+     */
+    public long tryConsume()
+    {
+	return tryConsume(1);
+    }
+
+    /**
+     * Attempts to consume several tokens.
+     * A cost greater than the capacity is allowed once the bucket is full, and leaves the bucket in debt, so that
+     * it is charged in full without being refused forever.
+     *
+     * @param cost number of tokens
+     * @return 0 if the tokens were consumed, otherwise number of milliseconds until enough tokens become available
+     */
+    public synchronized long tryConsume(double cost)
+    {
+	refill(System.nanoTime());
+
+	double required = Math.min(cost, capacity);
+	if (tokens >= required)
+	{
+	    tokens -= cost;
+	    return 0;
+	}
+
+	return (long)Math.ceil((required - tokens) / rate * 1000);
+    }
+
+    /**
+     * Checks whether the bucket has been refilled to its capacity, i.e. the client has been idle.
+     *
+     * @return true if bucket is full
+     */
+    public synchronized boolean isFull()
+    {
+	refill(System.nanoTime());
+	return tokens >= capacity;
+    }
+
+    public double getRate()
+    {
+	return rate;
+    }
+
+    public double getCapacity()
+    {
+	return capacity;
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.slowquery;
+
+import com.hp.hpl.jena.query.Query;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and sizes collected while processing a request, for the slow-query log.
+ * The profile of a request is current on the request thread and on upstream worker threads executing calls on
+ * its behalf, and is filled in using the static methods, which do nothing if there is no current profile.
+ * Timings of phases that occur more than once per request (e.g. several upstream calls) are summed.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see SlowQueryLog
+ * @see SlowQueryFilter
+ */
+public class QueryProfile
+{
+    /** Processing phases */
+    public enum Phase
+    {
+	/** Parsing of the query from the request */
+	PARSE,
+	/** Waiting for upstream response headers */
+	REMOTE_WAIT,
+	/** Time from sending the upstream request until the first byte of the response body */
+	FIRST_BYTE,
+	/** Parsing the upstream response into a Model or result set */
+	MATERIALIZE,
+	/** Hashing of the result for the entity tag */
+	HASH,
+	/** Writing the response */
+	SERIALIZE
+    }
+
+    private static final ThreadLocal<QueryProfile> current = new ThreadLocal<QueryProfile>();
+
+    private final String method, path;
+    private final long startMillis, startNanos;
+    private final AtomicLongArray phases = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong upstreamNanos = new AtomicLong(), cardinality = new AtomicLong(-1), bytes = new AtomicLong(-1);
+    private final AtomicInteger upstreamCalls = new AtomicInteger();
+    private volatile Query query = null;
+    private volatile String endpointURI = null;
+    private volatile int status = -1;
+    private volatile long durationNanos = -1;
+
+    QueryProfile(String method, String path)
+    {
+	this.method = method;
+	this.path = path;
+	this.startMillis = System.currentTimeMillis();
+	this.startNanos = System.nanoTime();
+    }
+
+    static void setCurrent(QueryProfile profile)
+    {
+	if (profile == null) current.remove();
+	else current.set(profile);
+    }
+
+    /**
+     * Returns profile of the request processed by the current thread.
+     *
+     * @return profile, or null if the request is not profiled
+     */
+    public static QueryProfile getCurrent()
+    {
+	return current.get();
+    }
+
+    /**
+     * Wraps a task so that the profile which is current at the time of wrapping is also current while the task
+     * runs, possibly on another thread.
+     *
+     * @param <T> result type
+     * @param task task
+     * @return wrapped task, or the task itself if there is no current profile
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task)
+    {
+	final QueryProfile profile = current.get();
+	if (profile == null) return task;
+
+	return new Callable<T>()
+	{
+	    @Override
+	    public T call() throws Exception
+	    {
+		QueryProfile previous = current.get();
+		current.set(profile);
+		try
+		{
+		    return task.call();
+		}
+		finally
+		{
+		    setCurrent(previous);
+		}
+	    }
+	};
+    }
+
+    /**
+     * Adds duration of a phase to the current profile.
+     *
+     * @param phase processing phase
+     * @param nanos duration in nanoseconds
+     */
+    public static void addPhase(Phase phase, long nanos)
+    {
+	QueryProfile profile = current.get();
+	if (profile != null) profile.phases.addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * Sets upstream query of the current profile. Only the first query of a request is kept.
+     *
+     * @param query query sent upstream
+     * @param endpointURI remote endpoint URI
+     */
+    public static void addQuery(Query query, String endpointURI)
+    {
+	QueryProfile profile = current.get();
+	if (profile != null && profile.query == null)
+	{
+	    profile.query = query;
+	    profile.endpointURI = endpointURI;
+	}
+    }
+
+    /**
+     * Adds duration of an upstream call to the current profile.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public static void addUpstreamCall(long nanos)
+    {
+	QueryProfile profile = current.get();
+	if (profile != null)
+	{
+	    profile.upstreamCalls.incrementAndGet();
+	    profile.upstreamNanos.addAndGet(nanos);
+	}
+    }
+
+    /**
+     * Adds number of triples or result rows returned from upstream to the current profile.
+     *
+     * @param count number of triples or rows
+     */
+    public static void addCardinality(long count)
+    {
+	QueryProfile profile = current.get();
+	if (profile != null)
+	{
+	    profile.cardinality.compareAndSet(-1, 0);
+	    profile.cardinality.addAndGet(count);
+	}
+    }
+
+    /**
+     * Adds number of response bytes to the current profile.
+     *
+     * @param count number of bytes written
+     */
+    public static void addBytes(long count)
+    {
+	QueryProfile profile = current.get();
+	if (profile != null)
+	{
+	    profile.bytes.compareAndSet(-1, 0);
+	    profile.bytes.addAndGet(count);
+	}
+    }
+
+    void end(int status)
+    {
+	this.status = status;
+	durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getMethod()
+    {
+	return method;
+    }
+
+    public String getPath()
+    {
+	return path;
+    }
+
+    public long getStartMillis()
+    {
+	return startMillis;
+    }
+
+    /**
+     * Returns duration of the request.
+     *
+     * @return nanoseconds, or -1 if the request has not ended
+     */
+    public long getDurationNanos()
+    {
+	return durationNanos;
+    }
+
+    public int getStatus()
+    {
+	return status;
+    }
+
+    public long getPhaseNanos(Phase phase)
+    {
+	return phases.get(phase.ordinal());
+    }
+
+    public long getUpstreamNanos()
+    {
+	return upstreamNanos.get();
+    }
+
+    public int getUpstreamCalls()
+    {
+	return upstreamCalls.get();
+    }
+
+    /**
+     * Returns number of triples or result rows returned from upstream.
+     *
+     * @return count, or -1 if unknown
+     */
+    public long getCardinality()
+    {
+	return cardinality.get();
+    }
+
+    /**
+     * Returns number of response bytes.
+     *
+     * @return count, or -1 if unknown
+     */
+    public long getBytes()
+    {
+	return bytes.get();
+    }
+
+    /**
+     * Returns first query sent upstream.
+     *
+     * @return query, or null if no query was sent
+     */
+    public Query getQuery()
+    {
+	return query;
+    }
+
+    public String getEndpointURI()
+    {
+	return endpointURI;
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.slowquery;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Profiles requests to the SPARQL endpoint and Linked Data resources while the slow-query log is enabled, and
+ * offers the profiles to the log once the response has been written.
+ * Graph Store (<code>/service</code>) and <code>/metrics</code> requests are not profiled.
+ * Needs to be registered both as container request and response filter in web.xml.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see SlowQueryLog
+ */
+public class SlowQueryFilter implements ContainerRequestFilter, ContainerResponseFilter
+{
+    /** Paths that are not profiled, relative to the base URI */
+    public static final String[] EXCLUDED_PATHS = { "service", "metrics" };
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request)
+    {
+	// profile left over from a request that failed with an unmapped exception
+	QueryProfile.setCurrent(null);
+
+	if (!getSlowQueryLog().isEnabled()) return request;
+	for (String path : EXCLUDED_PATHS)
+	    if (request.getPath().equals(path) || request.getPath().startsWith(path + "/")) return request;
+
+	QueryProfile.setCurrent(new QueryProfile(request.getMethod(), "/" + request.getPath()));
+
+	return request;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, final ContainerResponse response)
+    {
+	final QueryProfile profile = QueryProfile.getCurrent();
+	if (profile != null)
+	{
+	    final ContainerResponseWriter writer = response.getContainerResponseWriter();
+	    response.setContainerResponseWriter(new ContainerResponseWriter()
+	    {
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException
+		{
+		    return writer.writeStatusAndHeaders(contentLength, response);
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+		    try
+		    {
+			writer.finish();
+		    }
+		    finally
+		    {
+			QueryProfile.setCurrent(null);
+			profile.end(response.getStatus());
+			getSlowQueryLog().offer(profile);
+		    }
+		}
+	    });
+	}
+
+	return response;
+    }
+
+    public SlowQueryLog getSlowQueryLog()
+    {
+	return SlowQueryLog.get();
+    }
+
+}
@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.slowquery;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.graphity.util.JSONUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous log of requests whose upstream calls took longer than a threshold.
+ * Profiles are put on a bounded lock-free queue and written by a daemon thread, one JSON object per line, at INFO
+ * level of the <code>org.graphity.server.slowquery.SlowQueryLog</code> logger. If the queue is full, profiles
+ * are dropped instead of blocking request threads, and the number of dropped profiles is logged later.
+ * Configured in web.xml using <code>gs:slowQueryThreshold</code> (in milliseconds) and
+ * <code>gs:slowQueryQueueSize</code>.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see QueryProfile
+ */
+public class SlowQueryLog
+{
+    private static final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    /** Default capacity of the queue */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static SlowQueryLog s_instance = null;
+
+    private final long thresholdNanos;
+    private final int queueSize;
+    private final Queue<QueryProfile> queue = new ConcurrentLinkedQueue<QueryProfile>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Returns global slow-query log. It is disabled unless replaced using {@link #set(SlowQueryLog)}.
+     *
+     * @return singleton instance
+     */
+    public static synchronized SlowQueryLog get()
+    {
+	if (s_instance == null) s_instance = new SlowQueryLog(-1, DEFAULT_QUEUE_SIZE);
+	return s_instance;
+    }
+
+    /**
+     * Replaces global slow-query log. The previous instance is shut down.
+     *
+     * @param slowQueryLog new log
+     */
+    public static synchronized void set(SlowQueryLog slowQueryLog)
+    {
+	if (slowQueryLog == null) throw new IllegalArgumentException("SlowQueryLog cannot be null");
+
+	if (s_instance != null) s_instance.shutdown();
+	s_instance = slowQueryLog;
+    }
+
+    /**
+     * Creates log and starts its writer thread, unless the log is disabled.
+     *
+     * @param threshold minimum total duration of upstream calls of a logged request (in milliseconds), or -1 to
+     * disable the log
+     * @param queueSize capacity of the queue
+     */
+    public SlowQueryLog(long threshold, int queueSize)
+    {
+	if (queueSize < 1) throw new IllegalArgumentException("Queue size must be positive");
+
+	this.thresholdNanos = threshold < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(threshold);
+	this.queueSize = queueSize;
+	if (isEnabled())
+	{
+	    writer = new Thread(new Writer(), "SlowQueryLog");
+	    writer.setDaemon(true);
+	    writer.start();
+	}
+	else writer = null;
+    }
+
+    public boolean isEnabled()
+    {
+	return thresholdNanos >= 0;
+    }
+
+    /**
+     * Queues profile of a finished request, if its upstream calls took at least the threshold and it sent a
+     * query upstream. Never blocks.
+     *
+     * @param profile request profile
+     * @return true if the profile was queued
+     */
+    public boolean offer(QueryProfile profile)
+    {
+	if (!isEnabled() || shutdown || profile.getQuery() == null || profile.getUpstreamNanos() < thresholdNanos)
+	    return false;
+
+	if (size.incrementAndGet() > queueSize)
+	{
+	    size.decrementAndGet();
+	    dropped.incrementAndGet();
+	    return false;
+	}
+
+	queue.offer(profile);
+	return true;
+    }
+
+    /**
+     * Stops the writer thread after the queued profiles are written.
+     */
+    public void shutdown()
+    {
+	shutdown = true;
+	if (writer != null) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Returns number of profiles dropped because the queue was full.
+     *
+     * @return dropped count
+     */
+    public long getDropped()
+    {
+	return dropped.get();
+    }
+
+    public long getThreshold()
+    {
+	return thresholdNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public int getQueueSize()
+    {
+	return queueSize;
+    }
+
+    /**
+     * Serializes profile as a single-line JSON object.
+     * Query text is normalized to a single line. Times are in milliseconds.
+     *
+     * @param profile request profile
+     * @return JSON string
+     */
+    public String toJSON(QueryProfile profile)
+    {
+	StringBuilder sb = new StringBuilder("{");
+	sb.append("\"timestamp\":").append(profile.getStartMillis()).append(',');
+	JSONUtils.append(sb, "method", profile.getMethod()).append(',');
+	JSONUtils.append(sb, "path", profile.getPath()).append(',');
+	sb.append("\"status\":").append(profile.getStatus()).append(',');
+	JSONUtils.append(sb, "endpoint", String.valueOf(profile.getEndpointURI())).append(',');
+	JSONUtils.append(sb, "query", normalize(profile.getQuery().toString())).append(',');
+	sb.append("\"upstreamCalls\":").append(profile.getUpstreamCalls()).append(',');
+	sb.append("\"upstream\":").append(toMillis(profile.getUpstreamNanos())).append(',');
+	sb.append("\"total\":").append(toMillis(profile.getDurationNanos())).append(',');
+	sb.append("\"phases\":{");
+	String separator = "";
+	for (QueryProfile.Phase phase : QueryProfile.Phase.values())
+	{
+	    sb.append(separator);
+	    JSONUtils.quote(sb, phase.name().toLowerCase(Locale.ENGLISH)).append(':').append(toMillis(profile.getPhaseNanos(phase)));
+	    separator = ",";
+	}
+	sb.append("},");
+	sb.append("\"cardinality\":").append(profile.getCardinality()).append(',');
+	sb.append("\"bytes\":").append(profile.getBytes());
+
+	return sb.append('}').toString();
+    }
+
+    private static String normalize(String queryString)
+    {
+	return queryString.replaceAll("\\s+", " ").trim();
+    }
+
+    private static String toMillis(long nanos)
+    {
+	if (nanos < 0) return "-1";
+	return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+    }
+
+    private class Writer implements Runnable
+    {
+	private long reportedDropped = 0;
+
+	@Override
+	public void run()
+	{
+	    while (true)
+	    {
+		QueryProfile profile = queue.poll();
+		if (profile == null)
+		{
+		    if (shutdown) return;
+		    LockSupport.parkNanos(IDLE_PARK_NANOS);
+		    continue;
+		}
+		size.decrementAndGet();
+
+		long droppedNow = dropped.get();
+		if (droppedNow > reportedDropped)
+		{
+		    if (log.isWarnEnabled()) log.warn("{} slow query profiles dropped because the queue was full", droppedNow - reportedDropped);
+		    reportedDropped = droppedNow;
+		}
+
+		try
+		{
+		    if (log.isInfoEnabled()) log.info(toJSON(profile));
+		}
+		catch (RuntimeException ex)
+		{
+		    if (log.isWarnEnabled()) log.warn("Could not write slow query profile", ex);
+		}
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.trace;
+
+import java.util.Map;
+import org.graphity.util.JSONUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes finished spans to the log, one JSON object per line, for offline analysis.
+ * Spans are logged at INFO level by the <code>org.graphity.server.trace.LogSpanExporter</code> logger, which
+ * can be routed to a separate file in log4j.properties.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class LogSpanExporter implements SpanExporter
+{
+    private static final Logger log = LoggerFactory.getLogger(LogSpanExporter.class);
+
+    @Override
+    public void export(Span span)
+    {
+	if (log.isInfoEnabled()) log.info(toJSON(span));
+    }
+
+    /**
+     * Serializes span as a single-line JSON object.
+     * Times are in microseconds.
+     *
+     * @param span finished span
+     * @return JSON string
+     */
+    public String toJSON(Span span)
+    {
+	StringBuilder sb = new StringBuilder("{");
+	JSONUtils.append(sb, "traceId", span.getTraceId()).append(',');
+	JSONUtils.append(sb, "spanId", span.getSpanId()).append(',');
+	if (span.getParentSpanId() != null) JSONUtils.append(sb, "parentSpanId", span.getParentSpanId()).append(',');
+	JSONUtils.append(sb, "name", span.getName()).append(',');
+	sb.append("\"start\":").append(span.getStartMicros()).append(',');
+	sb.append("\"duration\":").append(span.getDurationNanos() / 1000);
+	if (span.getError() != null) JSONUtils.append(sb.append(','), "error", span.getError());
+
+	Map<String, Object> attributes = span.getAttributes();
+	if (!attributes.isEmpty())
+	{
+	    sb.append(",\"attributes\":{");
+	    String separator = "";
+	    for (Map.Entry<String, Object> attribute : attributes.entrySet())
+	    {
+		sb.append(separator);
+		if (attribute.getValue() instanceof Number || attribute.getValue() instanceof Boolean)
+		    JSONUtils.quote(sb, attribute.getKey()).append(':').append(attribute.getValue());
+		else JSONUtils.append(sb, attribute.getKey(), String.valueOf(attribute.getValue()));
+		separator = ",";
+	    }
+	    sb.append('}');
+	}
+
+	return sb.append('}').toString();
+    }
+
+}
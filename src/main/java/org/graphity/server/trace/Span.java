@@ -0,0 +1,187 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timed operation within a trace.
+ * Spans are started by {@link Tracer} and become current on the starting thread until they are ended, which
+ * has to happen on the same thread.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/trace-context/">W3C Trace Context</a>
+ */
+public class Span
+{
+    private final Tracer tracer;
+    private final Span previous;
+    private final String traceId, spanId, parentSpanId, name;
+    private final boolean sampled;
+    private final long startMicros, startNanos;
+    private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private volatile long durationNanos = -1;
+    private volatile String error = null;
+
+    Span(Tracer tracer, Span previous, String traceId, String spanId, String parentSpanId, String name, boolean sampled)
+    {
+	this.tracer = tracer;
+	this.previous = previous;
+	this.traceId = traceId;
+	this.spanId = spanId;
+	this.parentSpanId = parentSpanId;
+	this.name = name;
+	this.sampled = sampled;
+	this.startMicros = System.currentTimeMillis() * 1000;
+	this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets attribute of the span.
+     *
+     * @param key attribute name, e.g. <code>http.status_code</code>
+     * @param value attribute value
+     * @return this span
+     */
+    public Span setAttribute(String key, Object value)
+    {
+	synchronized (attributes)
+	{
+	    attributes.put(key, value);
+	}
+	return this;
+    }
+
+    /**
+     * Marks the span as failed.
+     *
+     * @param throwable cause of the failure
+     * @return this span
+     */
+    public Span setError(Throwable throwable)
+    {
+	error = throwable.getClass().getName() + (throwable.getMessage() == null ? "" : ": " + throwable.getMessage());
+	return this;
+    }
+
+    /**
+     * Ends the span, restores the span that was current before this one was started and exports this span.
+     * Subsequent calls have no effect.
+     */
+    public void end()
+    {
+	if (ended.compareAndSet(false, true))
+	{
+	    durationNanos = System.nanoTime() - startNanos;
+	    tracer.end(this);
+	}
+    }
+
+    /**
+     * Returns value of the <code>traceparent</code> header that propagates this span as parent.
+     *
+     * @return header value
+     */
+    public String getTraceparent()
+    {
+	return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    Span getPrevious()
+    {
+	return previous;
+    }
+
+    public String getTraceId()
+    {
+	return traceId;
+    }
+
+    public String getSpanId()
+    {
+	return spanId;
+    }
+
+    /**
+     * Returns identifier of the parent span, which can be remote.
+     *
+     * @return parent span ID, or null if this is a root span
+     */
+    public String getParentSpanId()
+    {
+	return parentSpanId;
+    }
+
+    public String getName()
+    {
+	return name;
+    }
+
+    public boolean isSampled()
+    {
+	return sampled;
+    }
+
+    /**
+     * Returns start time of the span.
+     *
+     * @return microseconds since the epoch
+     */
+    public long getStartMicros()
+    {
+	return startMicros;
+    }
+
+    /**
+     * Returns duration of the span.
+     *
+     * @return nanoseconds, or -1 if the span has not ended
+     */
+    public long getDurationNanos()
+    {
+	return durationNanos;
+    }
+
+    public Map<String, Object> getAttributes()
+    {
+	synchronized (attributes)
+	{
+	    return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
+	}
+    }
+
+    /**
+     * Returns error of the span.
+     *
+     * @return error description, or null if the span did not fail
+     */
+    public String getError()
+    {
+	return error;
+    }
+
+    @Override
+    public String toString()
+    {
+	return "Span[" + name + " " + getTraceparent() + "]";
+    }
+
+}
@@ -0,0 +1,32 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.trace;
+
+/**
+ * Receives finished spans, e.g. to write them to a file or send them to a tracing backend.
+ * Implementations must be thread-safe and should not block, as spans are exported on request threads.
+ * Can be configured in web.xml using <code>gs:spanExporter</code> (class name with a no-argument constructor).
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Tracer
+ */
+public interface SpanExporter
+{
+
+    void export(Span span);
+
+}
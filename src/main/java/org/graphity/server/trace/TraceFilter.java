@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.trace;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Starts a span for each request, continuing the trace propagated in the W3C <code>traceparent</code> header,
+ * and ends it when the response has been written, so that serialization is included.
+ * Needs to be registered both as container request and response filter in web.xml.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see Tracer
+ * @see <a href="http://www.w3.org/TR/trace-context/">W3C Trace Context</a>
+ */
+public class TraceFilter implements ContainerRequestFilter, ContainerResponseFilter
+{
+    /**
+     * Span of the request being processed by the current thread.
+     * Jersey skips response filters if the request fails with an unmapped exception, so a span left over from
+     * the previous request on the same container thread is ended before the next one is started.
+     */
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request)
+    {
+	Span leftover = currentSpan.get();
+	if (leftover != null)
+	{
+	    currentSpan.remove();
+	    leftover.setAttribute("http.status_code", 500).end();
+	}
+	getTracer().clear();
+
+	Span span = getTracer().start("HTTP " + request.getMethod(), request.getHeaderValue(Tracer.TRACEPARENT)).
+	    setAttribute("http.method", request.getMethod()).
+	    setAttribute("http.path", "/" + request.getPath());
+	currentSpan.set(span);
+
+	return request;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, ContainerResponse response)
+    {
+	final Span span = currentSpan.get();
+	if (span != null)
+	{
+	    span.setAttribute("http.status_code", response.getStatus());
+	    if (response.getMappedThrowable() != null) span.setError(response.getMappedThrowable());
+
+	    final ContainerResponseWriter writer = response.getContainerResponseWriter();
+	    response.setContainerResponseWriter(new ContainerResponseWriter()
+	    {
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException
+		{
+		    return writer.writeStatusAndHeaders(contentLength, response);
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+		    try
+		    {
+			writer.finish();
+		    }
+		    finally
+		    {
+			currentSpan.remove();
+			span.end();
+		    }
+		}
+	    });
+	}
+
+	return response;
+    }
+
+    public Tracer getTracer()
+    {
+	return Tracer.get();
+    }
+
+}
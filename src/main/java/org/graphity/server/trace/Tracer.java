@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.trace;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates spans and keeps track of the current span of each thread.
+ * Inbound trace context is extracted from W3C <code>traceparent</code> headers by {@link TraceFilter}, and
+ * {@link #getTraceparent()} provides the header value to be forwarded upstream. Spans are always created so that
+ * trace context is propagated, but only exported if an exporter is set.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/trace-context/">W3C Trace Context</a>
+ */
+public class Tracer
+{
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    /** Name of the trace context header */
+    public static final String TRACEPARENT = "traceparent";
+
+    private static final Pattern TRACEPARENT_PATTERN = Pattern.compile("[0-9a-f]{2}-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}(-.*)?");
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+    private static final String INVALID_SPAN_ID = "0000000000000000";
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>()
+    {
+	@Override
+	protected Random initialValue()
+	{
+	    return new Random();
+	}
+    };
+
+    private static Tracer s_instance = null;
+
+    private volatile SpanExporter exporter = null;
+
+    /**
+     * Returns global tracer
+     *
+     * @return singleton instance
+     */
+    public static synchronized Tracer get()
+    {
+	if (s_instance == null) s_instance = new Tracer();
+	return s_instance;
+    }
+
+    /**
+     * Starts a span. It becomes a child of the current span of this thread, or a root span of a new trace if
+     * there is none, and becomes the current span.
+     *
+     * @param name span name
+     * @return started span
+     */
+    public Span start(String name)
+    {
+	Span parent = current.get();
+	Span span;
+	if (parent == null) span = new Span(this, null, newTraceId(), newSpanId(), null, name, true);
+	else span = new Span(this, parent, parent.getTraceId(), newSpanId(), parent.getSpanId(), name, parent.isSampled());
+
+	current.set(span);
+	return span;
+    }
+
+    /**
+     * Starts a span of an inbound request. It becomes a child of the remote span propagated in the
+     * <code>traceparent</code> header, or a root span of a new trace if the header is missing or invalid.
+     * The span replaces any current span of this thread.
+     *
+     * @param name span name
+     * @param traceparent value of the <code>traceparent</code> header, or null
+     * @return started span
+     */
+    public Span start(String name, String traceparent)
+    {
+	Span span = null;
+	if (traceparent != null)
+	{
+	    String value = traceparent.trim().toLowerCase();
+	    if (TRACEPARENT_PATTERN.matcher(value).matches() && !value.startsWith("ff"))
+	    {
+		String traceId = value.substring(3, 35);
+		String parentSpanId = value.substring(36, 52);
+		boolean sampled = (Integer.parseInt(value.substring(53, 55), 16) & 1) != 0;
+		if (!traceId.equals(INVALID_TRACE_ID) && !parentSpanId.equals(INVALID_SPAN_ID))
+		    span = new Span(this, null, traceId, newSpanId(), parentSpanId, name, sampled);
+	    }
+	    if (span == null && log.isDebugEnabled()) log.debug("Ignoring invalid traceparent header: {}", traceparent);
+	}
+	if (span == null) span = new Span(this, null, newTraceId(), newSpanId(), null, name, true);
+
+	current.set(span);
+	return span;
+    }
+
+    /**
+     * Called by the span when it ends.
+     *
+     * @param span ended span
+     */
+    void end(Span span)
+    {
+	if (current.get() == span)
+	{
+	    if (span.getPrevious() == null) current.remove();
+	    else current.set(span.getPrevious());
+	}
+
+	SpanExporter spanExporter = exporter;
+	if (spanExporter != null && span.isSampled())
+	    try
+	    {
+		spanExporter.export(span);
+	    }
+	    catch (RuntimeException ex)
+	    {
+		if (log.isWarnEnabled()) log.warn("Could not export span " + span, ex);
+	    }
+    }
+
+    /**
+     * Returns current span of this thread.
+     *
+     * @return span, or null if there is none
+     */
+    public Span getCurrent()
+    {
+	return current.get();
+    }
+
+    /**
+     * Returns <code>traceparent</code> header value of the current span, to be forwarded upstream.
+     *
+     * @return header value, or null if there is no current span
+     */
+    public String getTraceparent()
+    {
+	Span span = current.get();
+	if (span == null) return null;
+	return span.getTraceparent();
+    }
+
+    /**
+     * Wraps a task so that the span which is current at the time of wrapping is also current while the task
+     * runs, possibly on another thread.
+     *
+     * @param <T> result type
+     * @param task task
+     * @return wrapped task, or the task itself if there is no current span
+     */
+    public <T> Callable<T> wrap(final Callable<T> task)
+    {
+	final Span span = current.get();
+	if (span == null) return task;
+
+	return new Callable<T>()
+	{
+	    @Override
+	    public T call() throws Exception
+	    {
+		Span previous = current.get();
+		current.set(span);
+		try
+		{
+		    return task.call();
+		}
+		finally
+		{
+		    if (previous == null) current.remove();
+		    else current.set(previous);
+		}
+	    }
+	};
+    }
+
+    /**
+     * Removes current span of this thread without ending it.
+     * Used to clean up after requests whose spans could not be ended.
+     */
+    public void clear()
+    {
+	current.remove();
+    }
+
+    public SpanExporter getExporter()
+    {
+	return exporter;
+    }
+
+    /**
+     * Sets exporter of finished spans.
+     *
+     * @param exporter exporter, or null to disable exporting
+     */
+    public void setExporter(SpanExporter exporter)
+    {
+	this.exporter = exporter;
+    }
+
+    private static String newTraceId()
+    {
+	return toHex(random.get().nextLong()) + toHex(random.get().nextLong());
+    }
+
+    private static String newSpanId()
+    {
+	long id;
+	do
+	{
+	    id = random.get().nextLong();
+	}
+	while (id == 0);
+	return toHex(id);
+    }
+
+    private static String toHex(long value)
+    {
+	String hex = Long.toHexString(value);
+	return INVALID_SPAN_ID.substring(hex.length()) + hex;
+    }
+
+}
@@ -20,15 +20,29 @@ import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.sparql.ARQException;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.UpdateRequest;
+import com.sun.jersey.api.client.AsyncWebResource;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
 import com.sun.jersey.api.client.filter.LoggingFilter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
+import org.graphity.server.util.DataManager;
+import org.graphity.server.util.UpstreamScheduler;
 import org.openjena.riot.WebContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Executes SPARQL Update requests on a remote endpoint. Versions of the written graphs are bumped in the graph
+ * version registry, written resources are removed from the negative cache, and written subjects are added to the
+ * subject index.
+ * The request is sent asynchronously, so that a cancelled upstream call stops waiting for it without waiting for
+ * the socket read timeout.
  *
  * @author Martynas Jusevičius <martynas@graphity.org>
  */
@@ -40,12 +54,17 @@ public class UpdateProcessRemote extends com.hp.hpl.jena.sparql.modify.UpdatePro
     private final String endpointURI ;
     private String user = null ;
     private char[] password = null ;
+    private boolean compressRequest = false ;
+    private long readTimeout = -1, connectTimeout = -1 ;
 
     public UpdateProcessRemote(UpdateRequest request, String endpointURI)
     {
 	super(request, endpointURI);
         this.request = request ;
         this.endpointURI = endpointURI ;
+
+	long timeout = DataManager.get().getUpdateTimeout();
+	if (timeout >= 0) setTimeout(timeout, timeout);
     }
 
     @Override
@@ -64,8 +83,14 @@ public class UpdateProcessRemote extends com.hp.hpl.jena.sparql.modify.UpdatePro
     public void execute()
     {
 	Client client = Client.create();
-	WebResource wr = client.resource(endpointURI);
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	client.setExecutorService(executor);
+	if (readTimeout >= 0) client.setReadTimeout((int)readTimeout);
+	if (connectTimeout >= 0) client.setConnectTimeout((int)connectTimeout);
+	AsyncWebResource wr = client.asyncResource(endpointURI);
 	client.addFilter(new LoggingFilter(System.out));
+	// requests gzip responses and decompresses them; compresses the request entity only if enabled
+	client.addFilter(new GZIPContentEncodingFilter(compressRequest));
 
 	/*
 	if (user != null || password != null)
@@ -86,12 +111,52 @@ public class UpdateProcessRemote extends com.hp.hpl.jena.sparql.modify.UpdatePro
 	String reqStr = request.toString();
 
 	if (log.isDebugEnabled()) log.debug("Sending SPARQL request {} to endpoint {}", reqStr, endpointURI);
-	ClientResponse response =
-	wr.type(WebContent.contentTypeSPARQLUpdate).
-	accept(WebContent.contentTypeResultsXML).
-	post(ClientResponse.class, reqStr);
-	
-	if (log.isDebugEnabled()) log.debug("SPARQL endpoint response: {}", response);
+	Span span = Tracer.get().start("sparql.update").setAttribute("http.url", endpointURI);
+	try
+	{
+	    final Future<ClientResponse> future =
+	    wr.type(WebContent.contentTypeSPARQLUpdate).
+	    accept(WebContent.contentTypeResultsXML).
+	    header(Tracer.TRACEPARENT, span.getTraceparent()).
+	    post(ClientResponse.class, reqStr);
+	    UpstreamScheduler.onCancel(new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    future.cancel(true);
+		}
+	    });
+
+	    ClientResponse response = future.get();
+	    span.setAttribute("http.status_code", response.getStatus());
+
+	    if (log.isDebugEnabled()) log.debug("SPARQL endpoint response: {}", response);
+	}
+	catch (RuntimeException ex)
+	{
+	    span.setError(ex);
+	    throw ex;
+	}
+	catch (ExecutionException ex)
+	{
+	    span.setError(ex.getCause());
+	    if (ex.getCause() instanceof RuntimeException) throw (RuntimeException)ex.getCause();
+	    throw new ARQException(ex.getCause());
+	}
+	catch (InterruptedException ex)
+	{
+	    span.setAttribute("aborted", true);
+	    Thread.currentThread().interrupt();
+	    throw new ARQException("SPARQL Update request to endpoint " + endpointURI + " cancelled", ex);
+	}
+	finally
+	{
+	    executor.shutdownNow();
+	    client.destroy();
+	    DataManager.get().invalidate(request);
+	    span.end();
+	}
     }
 
     public void setBasicAuthentication(String user, char[] password)
@@ -99,4 +164,27 @@ public class UpdateProcessRemote extends com.hp.hpl.jena.sparql.modify.UpdatePro
         this.user = user ;
         this.password = password ;
     }
+
+    /**
+     * Sets socket read and connection timeouts of the request.
+     * 
+     * @param readTimeout read timeout in milliseconds, or -1 for no timeout
+     * @param connectTimeout connection timeout in milliseconds, or -1 for no timeout
+     */
+    public void setTimeout(long readTimeout, long connectTimeout)
+    {
+        this.readTimeout = readTimeout < 0 ? -1 : readTimeout ;
+        this.connectTimeout = connectTimeout < 0 ? -1 : connectTimeout ;
+    }
+
+    /**
+     * Enables gzip compression of the update request body. The endpoint must accept
+     * <code>Content-Encoding: gzip</code>.
+     * 
+     * @param compressRequest true to compress
+     */
+    public void setCompressRequest(boolean compressRequest)
+    {
+        this.compressRequest = compressRequest ;
+    }
 }
\ No newline at end of file
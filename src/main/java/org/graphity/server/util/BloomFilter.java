@@ -0,0 +1,204 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings.
+ * Membership tests have no false negatives, and false positives occur at roughly the rate the filter was sized
+ * for, as long as the expected number of strings is not exceeded. Strings cannot be removed.
+ * Bits are set without locking, so the filter can be read and updated concurrently.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://en.wikipedia.org/wiki/Bloom_filter">Bloom filter</a>
+ */
+public class BloomFilter
+{
+    private static final long MAX_BITS = (long)Integer.MAX_VALUE * Long.SIZE;
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * Creates empty filter sized for the expected number of strings and false positive rate.
+     *
+     * @param expectedSize expected number of strings
+     * @param falsePositiveRate acceptable false positive rate, between 0 and 1 (exclusive)
+     */
+    public BloomFilter(long expectedSize, double falsePositiveRate)
+    {
+	this(getBits(expectedSize, falsePositiveRate), getHashes(expectedSize, getBits(expectedSize, falsePositiveRate)));
+    }
+
+    /**
+     * Creates empty filter of given size.
+     *
+     * @param bits number of bits, rounded up to a multiple of 64
+     * @param hashes number of hash functions
+     */
+    public BloomFilter(long bits, int hashes)
+    {
+	if (bits <= 0 || bits > MAX_BITS) throw new IllegalArgumentException("Number of bits must be positive and at most " + MAX_BITS);
+	if (hashes <= 0) throw new IllegalArgumentException("Number of hash functions must be positive");
+
+	this.words = new AtomicLongArray((int)((bits + Long.SIZE - 1) / Long.SIZE));
+	this.bits = (long)words.length() * Long.SIZE;
+	this.hashes = hashes;
+    }
+
+    /**
+     * Returns optimal number of bits for the expected number of strings and false positive rate.
+     *
+     * @param expectedSize expected number of strings
+     * @param falsePositiveRate acceptable false positive rate
+     * @return number of bits
+     */
+    public static long getBits(long expectedSize, double falsePositiveRate)
+    {
+	if (expectedSize <= 0) throw new IllegalArgumentException("Expected size must be positive");
+	if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+
+	double bits = -expectedSize * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+	return Math.min(MAX_BITS, Math.max(Long.SIZE, (long)Math.ceil(bits)));
+    }
+
+    /**
+     * Returns optimal number of hash functions for the expected number of strings and number of bits.
+     *
+     * @param expectedSize expected number of strings
+     * @param bits number of bits
+     * @return number of hash functions
+     */
+    public static int getHashes(long expectedSize, long bits)
+    {
+	return Math.max(1, (int)Math.round((double)bits / expectedSize * Math.log(2)));
+    }
+
+    /**
+     * Adds string to the filter.
+     *
+     * @param value string
+     */
+    public void add(String value)
+    {
+	long hash1 = hash(value), hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+	for (int i = 0; i < hashes; i++)
+	{
+	    long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bits;
+	    int index = (int)(bit >>> 6);
+	    long mask = 1L << bit;
+	    long word = words.get(index);
+	    while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) word = words.get(index);
+	}
+    }
+
+    /**
+     * Tests membership of a string.
+     *
+     * @param value string
+     * @return false if the string has definitely not been added, true if it probably has
+     */
+    public boolean mightContain(String value)
+    {
+	long hash1 = hash(value), hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+	for (int i = 0; i < hashes; i++)
+	{
+	    long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bits;
+	    if ((words.get((int)(bit >>> 6)) & (1L << bit)) == 0) return false;
+	}
+	return true;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of a string, with avalanche mixing.
+     */
+    private static long hash(String value)
+    {
+	long hash = 0xcbf29ce484222325L;
+	for (int i = 0; i < value.length(); i++)
+	{
+	    hash ^= value.charAt(i);
+	    hash *= 0x100000001b3L;
+	}
+	return mix(hash);
+    }
+
+    /**
+     * Finalization step of MurmurHash3.
+     */
+    private static long mix(long hash)
+    {
+	hash ^= hash >>> 33;
+	hash *= 0xff51afd7ed558ccdL;
+	hash ^= hash >>> 33;
+	hash *= 0xc4ceb9fe1a85ec53L;
+	hash ^= hash >>> 33;
+	return hash;
+    }
+
+    /**
+     * Writes the filter to a stream.
+     *
+     * @param out output stream
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException
+    {
+	out.writeLong(bits);
+	out.writeInt(hashes);
+	for (int i = 0; i < words.length(); i++) out.writeLong(words.get(i));
+    }
+
+    /**
+     * Reads filter written by {@link #writeTo(DataOutputStream)} from a stream.
+     *
+     * @param in input stream
+     * @return filter
+     * @throws IOException if the stream cannot be read
+     */
+    public static BloomFilter readFrom(DataInputStream in) throws IOException
+    {
+	long bits = in.readLong();
+	int hashes = in.readInt();
+	if (bits <= 0 || bits > MAX_BITS || bits % Long.SIZE != 0 || hashes <= 0) throw new IOException("Invalid Bloom filter header");
+
+	BloomFilter filter = new BloomFilter(bits, hashes);
+	for (int i = 0; i < filter.words.length(); i++) filter.words.set(i, in.readLong());
+	return filter;
+    }
+
+    /**
+     * Returns number of bits of the filter.
+     *
+     * @return number of bits
+     */
+    public long getBits()
+    {
+	return bits;
+    }
+
+    public int getHashes()
+    {
+	return hashes;
+    }
+
+}
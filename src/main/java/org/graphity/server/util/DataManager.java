@@ -16,27 +16,43 @@
  */
 package org.graphity.server.util;
 
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.*;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.sparql.engine.http.Service;
+import com.hp.hpl.jena.sparql.resultset.ResultSetMem;
 import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.update.UpdateRequest;
 import com.hp.hpl.jena.util.FileManager;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import org.apache.jena.fuseki.DatasetAccessor;
 import org.apache.jena.fuseki.http.DatasetAdapter;
 import org.graphity.query.QueryEngineHTTP;
+import org.graphity.server.metrics.Metrics;
+import org.graphity.server.slowquery.QueryProfile;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
 import org.graphity.update.DatasetGraphAccessorHTTP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
 * Utility class for retrieval of SPARQL query results from local RDF models and remote endpoints.
+* Remote calls are timed in <code>Metrics</code> by operation, endpoint and outcome, and traced as spans.
+* If an upstream cache is set, remote models, result sets and graphs are cached, and expired entries are revalidated
+* using conditional requests.
+* If a describe batcher is set, concurrent <code>DESCRIBE</code> queries of single resources are combined into one
+* upstream query. Descriptions of several resources can also be loaded at once, in which case the ones that are not
+* cached are retrieved using a single upstream query.
 * Uses portions of Jena code
 * (c) Copyright 2010 Epimorphics Ltd.
 * All rights reserved.
@@ -58,6 +74,12 @@ public class DataManager extends FileManager
     private static final Logger log = LoggerFactory.getLogger(DataManager.class);
 
     private Context context;
+    private final Map<Integer, Long> timeouts = new ConcurrentHashMap<Integer, Long>();
+    private volatile long updateTimeout = -1;
+    private String graphStoreMediaType = null;
+    private UpstreamCache upstreamCache = null;
+    private NegativeCache negativeCache = null;
+    private DescribeBatcher describeBatcher = null;
 
     /**
      * Returns global data manager
@@ -65,11 +87,11 @@ public class DataManager extends FileManager
      * @return singleton instance
      */
     public static DataManager get() {
-        if (s_instance == null) {
-            s_instance = new DataManager(FileManager.get(), ARQ.getContext());
+	if (s_instance == null) {
+	    s_instance = new DataManager(FileManager.get(), ARQ.getContext());
 	    if (log.isDebugEnabled()) log.debug("new DataManager({}): {}", FileManager.get(), s_instance);
-        }
-        return s_instance;
+	}
+	return s_instance;
     }
 
     /**
@@ -84,7 +106,9 @@ public class DataManager extends FileManager
     }
 
     /**
-     * Creates remote SPARQL execution based on a query and optional request parameters
+     * Creates remote SPARQL execution based on a query and optional request parameters.
+     * Timeout of the query type is used as socket read deadline, and the request is aborted if the upstream call
+     * executing it is cancelled.
      * 
      * @param endpointURI remote endpoint URI
      * @param query query object
@@ -96,7 +120,17 @@ public class DataManager extends FileManager
 	if (log.isDebugEnabled()) log.debug("Remote service {} Query: {} ", endpointURI, query);
 	if (query == null) throw new IllegalArgumentException("Query must be not null");
 
-	QueryEngineHTTP request = new QueryEngineHTTP(endpointURI, query);
+	final QueryEngineHTTP request = new QueryEngineHTTP(endpointURI, query);
+	long timeout = getTimeout(query);
+	if (timeout >= 0) request.setTimeout(timeout, timeout);
+	UpstreamScheduler.onCancel(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		request.abort();
+	    }
+	});
 	if (params != null)
 	    for (Entry<String, List<String>> entry : params.entrySet())
 		if (!entry.getKey().equals("query")) // query param is handled separately
@@ -125,20 +159,204 @@ public class DataManager extends FileManager
 	if (log.isDebugEnabled()) log.debug("Remote service {} Query: {} ", endpointURI, query);
 	if (query == null) throw new IllegalArgumentException("Query must be not null");
 
+	String cacheKey = getCacheKey("model", endpointURI, query.toString(), params);
+	UpstreamCache.Entry cached = getCacheEntry(cacheKey);
+	if (cached != null && cached.isFresh())
+	{
+	    countCache(endpointURI, "hit");
+	    return ModelFactory.createDefaultModel().add((Model)cached.getValue());
+	}
+
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.loadModel").setAttribute("endpoint", endpointURI);
+	QueryProfile.addQuery(query, endpointURI);
+	boolean success = false;
 	QueryExecution qex = sparqlService(endpointURI, query, params);
+	if (cached != null && cached.hasValidators() && qex instanceof QueryEngineHTTP)
+	    ((QueryEngineHTTP)qex).setValidators(cached.getETag(), cached.getLastModified());
 	try
 	{
-	    if (query.isConstructType()) return qex.execConstruct();
-	    if (query.isDescribeType()) return qex.execDescribe();
+	    Model model;
+	    if (query.isConstructType()) model = qex.execConstruct();
+	    else if (query.isDescribeType()) model = qex.execDescribe();
+	    else throw new QueryExecException("Query to load Model must be CONSTRUCT or DESCRIBE");
+
+	    if (qex instanceof QueryEngineHTTP && ((QueryEngineHTTP)qex).isNotModified())
+	    {
+		getUpstreamCache().revalidated(cached);
+		countCache(endpointURI, "revalidated");
+		success = true;
+		return model.add((Model)cached.getValue());
+	    }
 
-	    throw new QueryExecException("Query to load Model must be CONSTRUCT or DESCRIBE");
+	    getMetrics().summary("upstream.model.size", "endpoint", endpointURI).record(model.size());
+	    QueryProfile.addCardinality(model.size());
+	    if (cacheKey != null)
+	    {
+		countCache(endpointURI, "miss");
+		if (qex instanceof QueryEngineHTTP)
+		    getUpstreamCache().put(cacheKey, ModelFactory.createDefaultModel().add(model),
+			    ((QueryEngineHTTP)qex).getETag(), ((QueryEngineHTTP)qex).getLastModified());
+	    }
+	    success = true;
+	    return model;
 	}
 	finally
 	{
 	    qex.close();
+	    record("loadModel", endpointURI, span, start, success);
 	}
     }
     
+    /**
+     * Loads description of a resource as part of a batch of concurrent <code>DESCRIBE</code> queries of single
+     * resources on a remote SPARQL endpoint. It has to be called outside of upstream workers, as it waits for the
+     * batch, which is then executed by one worker.
+     * A fresh cached <code>DESCRIBE</code> result is returned as it is. Descriptions split from batches differ from
+     * <code>DESCRIBE</code> results, so they are cached under their own keys, without validators, and never served
+     * for the <code>DESCRIBE</code> query itself.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param query <code>DESCRIBE</code> query of a single resource
+     * @return description, or null if the query is not batched and has to be loaded using
+     * {@link #loadModel(String, Query)}
+     * @see DescribeBatcher#describe(DataManager, String, String)
+     */
+    public Model loadBatchedModel(String endpointURI, Query query)
+    {
+	if (getDescribeBatcher() == null || !DescribeBatcher.isBatchable(query)) return null;
+
+	UpstreamCache.Entry cached = getCacheEntry(getCacheKey("model", endpointURI, query.toString(), null));
+	if (cached != null && cached.isFresh())
+	{
+	    countCache(endpointURI, "hit");
+	    return ModelFactory.createDefaultModel().add((Model)cached.getValue());
+	}
+	if (cached != null && cached.hasValidators()) return null; // revalidated by loadModel()
+
+	String uri = query.getResultURIs().get(0).getURI();
+	Model model = getBatchedModel(endpointURI, uri);
+	if (model != null) return model;
+
+	model = getDescribeBatcher().describe(this, endpointURI, uri);
+	if (model != null) putBatchedModel(endpointURI, uri, model);
+	return model;
+    }
+
+    /**
+     * Returns description of a resource split from a batch from the upstream cache.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param uri resource URI
+     * @return copy of the cached description, or null if it is not cached or no longer fresh
+     */
+    private Model getBatchedModel(String endpointURI, String uri)
+    {
+	UpstreamCache.Entry cached = getCacheEntry(getCacheKey("batch", endpointURI, uri, null));
+	if (cached == null || !cached.isFresh()) return null;
+
+	countCache(endpointURI, "hit");
+	return ModelFactory.createDefaultModel().add((Model)cached.getValue());
+    }
+
+    /**
+     * Caches description of a resource split from a batch under its own key, so that it is not served as the
+     * <code>DESCRIBE</code> result of the resource.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param uri resource URI
+     * @param model description
+     */
+    private void putBatchedModel(String endpointURI, String uri, Model model)
+    {
+	String cacheKey = getCacheKey("batch", endpointURI, uri, null);
+	if (cacheKey == null) return;
+
+	countCache(endpointURI, "miss");
+	getUpstreamCache().put(cacheKey, ModelFactory.createDefaultModel().add(model), null, null);
+    }
+
+    /**
+     * Executes combined <code>CONSTRUCT</code> query of a batch of resources on a remote SPARQL endpoint.
+     * The result is not cached, as the descriptions of the resources are cached separately.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param query combined query
+     * @param size number of resources in the batch
+     * @return combined RDF model
+     * @see DescribeBatcher
+     */
+    protected Model loadBatch(String endpointURI, Query query, int size)
+    {
+	if (log.isDebugEnabled()) log.debug("Remote service {} batch of {} resources", endpointURI, size);
+
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.loadBatch").setAttribute("endpoint", endpointURI).
+		setAttribute("size", size);
+	QueryProfile.addQuery(query, endpointURI);
+	boolean success = false;
+	QueryExecution qex = sparqlService(endpointURI, query, null);
+	try
+	{
+	    Model model = qex.execConstruct();
+	    getMetrics().summary("upstream.batch.size", "endpoint", endpointURI).record(size);
+	    getMetrics().summary("upstream.model.size", "endpoint", endpointURI).record(model.size());
+	    QueryProfile.addCardinality(model.size());
+	    success = true;
+	    return model;
+	}
+	finally
+	{
+	    qex.close();
+	    record("loadBatch", endpointURI, span, start, success);
+	}
+    }
+
+    /**
+     * Loads RDF models of several <code>DESCRIBE</code> queries of single resources from a remote SPARQL endpoint.
+     * Models are served from the upstream cache where possible, either as cached <code>DESCRIBE</code> results or as
+     * descriptions split from earlier batches. The remaining queries are executed as one combined query, the result
+     * of which is split by resource, and each description is cached as a batched description, separately from the
+     * <code>DESCRIBE</code> result.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param queries <code>DESCRIBE</code> queries of single resources
+     * @return map of the queries to their result RDF models, in the order of the queries
+     * @see DescribeBatcher#isBatchable(Query)
+     */
+    public Map<Query, Model> loadModels(String endpointURI, Collection<Query> queries)
+    {
+	Map<Query, Model> models = new LinkedHashMap<Query, Model>();
+	Map<String, Query> misses = new LinkedHashMap<String, Query>();
+	for (Query query : queries)
+	{
+	    if (!DescribeBatcher.isBatchable(query)) throw new IllegalArgumentException("Query must be DESCRIBE of a single URI");
+
+	    String uri = query.getResultURIs().get(0).getURI();
+	    Model model = getCachedModel(endpointURI, query, null);
+	    if (model == null) model = getBatchedModel(endpointURI, uri);
+	    models.put(query, model); // keeps the position of the query, even if the model is loaded later
+	    if (model == null) misses.put(uri, query);
+	}
+	if (misses.isEmpty()) return models;
+
+	if (misses.size() == 1)
+	{
+	    Query query = misses.values().iterator().next();
+	    models.put(query, loadModel(endpointURI, query));
+	    return models;
+	}
+
+	Model batch = loadBatch(endpointURI, DescribeBatcher.getQuery(misses.keySet()), misses.size());
+	for (Map.Entry<String, Query> miss : misses.entrySet())
+	{
+	    Model model = DescribeBatcher.split(batch, miss.getKey());
+	    putBatchedModel(endpointURI, miss.getKey(), model);
+	    models.put(miss.getValue(), model);
+	}
+	return models;
+    }
+
     /**
      * Loads RDF model from a remote SPARQL endpoint using a query and optional request parameters.
      * Only <code>DESCRIBE</code> and <code>CONSTRUCT</code> queries can be used with this method.
@@ -153,6 +371,73 @@ public class DataManager extends FileManager
     {
 	return loadModel(endpointURI, query, null);
     }
+
+    /**
+     * Returns RDF model of a query from the upstream cache, without contacting the remote endpoint.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param query query object
+     * @param params name/value pairs of request parameters or null, if none
+     * @return copy of the cached RDF model, or null if it is not cached or no longer fresh
+     * @see #loadModel(String, Query, MultivaluedMap)
+     */
+    public Model getCachedModel(String endpointURI, Query query, MultivaluedMap<String, String> params)
+    {
+	if (query == null) throw new IllegalArgumentException("Query must be not null");
+
+	UpstreamCache.Entry cached = getCacheEntry(getCacheKey("model", endpointURI, query.toString(), params));
+	if (cached == null || !cached.isFresh()) return null;
+
+	countCache(endpointURI, "hit");
+	return ModelFactory.createDefaultModel().add((Model)cached.getValue());
+    }
+
+    /**
+     * Executes <code>ASK</code> query on a remote SPARQL endpoint.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param query query object
+     * @param params name/value pairs of request parameters or null, if none
+     * @return boolean result
+     * @see <a href="http://www.w3.org/TR/2013/REC-sparql11-query-20130321/#ask">ASK</a>
+     */
+    public boolean ask(String endpointURI, Query query, MultivaluedMap<String, String> params)
+    {
+	if (log.isDebugEnabled()) log.debug("Remote service {} Query: {} ", endpointURI, query);
+	if (query == null) throw new IllegalArgumentException("Query must be not null");
+	if (!query.isAskType()) throw new QueryExecException("Query must be ASK");
+
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.ask").setAttribute("endpoint", endpointURI);
+	QueryProfile.addQuery(query, endpointURI);
+	boolean success = false;
+	QueryExecution qex = sparqlService(endpointURI, query, params);
+	try
+	{
+	    boolean result = qex.execAsk();
+	    success = true;
+	    return result;
+	}
+	finally
+	{
+	    qex.close();
+	    record("ask", endpointURI, span, start, success);
+	}
+    }
+
+    /**
+     * Executes <code>ASK</code> query on a remote SPARQL endpoint.
+     * This is a convenience method for {@link ask(String,Query,MultivaluedMap<String, String>)}
+     * with null request parameters.
+     * 
+     * @param endpointURI remote endpoint URI
+     * @param query query object
+     * @return boolean result
+     */
+    public boolean ask(String endpointURI, Query query)
+    {
+	return ask(endpointURI, query, null);
+    }
     
     /**
      * Loads RDF model from another RDF model using a SPARQL query.
@@ -170,6 +455,7 @@ public class DataManager extends FileManager
 	if (query == null) throw new IllegalArgumentException("Query must be not null");
 	
 	QueryExecution qex = QueryExecutionFactory.create(query, model);
+	if (getTimeout(query) >= 0) qex.setTimeout(getTimeout(query));
 	try
 	{	
 	    if (query.isConstructType()) return qex.execConstruct();
@@ -198,16 +484,53 @@ public class DataManager extends FileManager
 	if (log.isDebugEnabled()) log.debug("Remote service {} Query execution: {} ", endpointURI, query);
 	if (query == null) throw new IllegalArgumentException("Query must be not null");
 
+	String cacheKey = getCacheKey("results", endpointURI, query.toString(), params);
+	UpstreamCache.Entry cached = getCacheEntry(cacheKey);
+	if (cached != null && cached.isFresh())
+	{
+	    countCache(endpointURI, "hit");
+	    return new ResultSetMem((ResultSetMem)cached.getValue()); // shares the immutable rows
+	}
+
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.loadResultSet").setAttribute("endpoint", endpointURI);
+	QueryProfile.addQuery(query, endpointURI);
+	boolean success = false;
 	QueryExecution qex = sparqlService(endpointURI, query, params);
+	if (cached != null && cached.hasValidators() && qex instanceof QueryEngineHTTP)
+	    ((QueryEngineHTTP)qex).setValidators(cached.getETag(), cached.getLastModified());
 	try
 	{
-	    if (query.isSelectType()) return ResultSetFactory.copyResults(qex.execSelect());
-	    
-	    throw new QueryExecException("Query to load ResultSet must be SELECT");
+	    if (!query.isSelectType()) throw new QueryExecException("Query to load ResultSet must be SELECT");
+
+	    ResultSet remote = qex.execSelect();
+	    if (qex instanceof QueryEngineHTTP && ((QueryEngineHTTP)qex).isNotModified())
+	    {
+		getUpstreamCache().revalidated(cached);
+		countCache(endpointURI, "revalidated");
+		success = true;
+		return new ResultSetMem((ResultSetMem)cached.getValue());
+	    }
+
+	    long materializeStart = System.nanoTime();
+	    ResultSetMem results = new ResultSetMem(remote);
+	    QueryProfile.addPhase(QueryProfile.Phase.MATERIALIZE, System.nanoTime() - materializeStart);
+	    getMetrics().summary("upstream.resultset.size", "endpoint", endpointURI).record(results.size());
+	    QueryProfile.addCardinality(results.size());
+	    if (cacheKey != null)
+	    {
+		countCache(endpointURI, "miss");
+		if (qex instanceof QueryEngineHTTP)
+		    getUpstreamCache().put(cacheKey, results,
+			    ((QueryEngineHTTP)qex).getETag(), ((QueryEngineHTTP)qex).getLastModified());
+	    }
+	    success = true;
+	    return new ResultSetMem(results);
 	}
 	finally
 	{
 	    qex.close();
+	    record("loadResultSet", endpointURI, span, start, success);
 	}
     }
     
@@ -241,6 +564,7 @@ public class DataManager extends FileManager
 	if (query == null) throw new IllegalArgumentException("Query must be not null");
 	
 	QueryExecution qex = QueryExecutionFactory.create(query, model);
+	if (getTimeout(query) >= 0) qex.setTimeout(getTimeout(query));
 	try
 	{
 	    if (query.isSelectType()) return ResultSetFactory.copyResults(qex.execSelect());
@@ -264,8 +588,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("Checking if Graph Store {} contains GRAPH with URI {}", graphStoreURI, graphURI);
 
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	return accessor.containsModel(graphURI);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.containsModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    boolean result = accessor.containsModel(graphURI);
+	    success = true;
+	    return result;
+	}
+	finally
+	{
+	    record("containsModel", graphStoreURI, span, start, success);
+	}
     }
     
     /**
@@ -279,8 +615,7 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("GET Model from Graph Store {} default graph", graphStoreURI);
 
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	return accessor.getModel();
+	return loadGraph(graphStoreURI, null);
     }
     
     /**
@@ -294,9 +629,76 @@ public class DataManager extends FileManager
     public Model getModel(String graphStoreURI, String graphURI)
     {
 	if (log.isDebugEnabled()) log.debug("GET Model from Graph Store {} with named graph URI: {}", graphStoreURI, graphURI);
+	if (graphURI == null) throw new IllegalArgumentException("Graph URI must be not null");
+
+	return loadGraph(graphStoreURI, graphURI);
+    }
+
+    /**
+     * Loads RDF model from a remote SPARQL Graph Store, using the upstream cache if it is set.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @param graphURI named graph URI, or null for the default graph
+     * @return RDF model, read-only if it is cached, or null if the named graph does not exist
+     */
+    protected Model loadGraph(String graphStoreURI, String graphURI)
+    {
+	String cacheKey = getCacheKey("graph", graphStoreURI, graphURI, null);
+	UpstreamCache.Entry cached = getCacheEntry(cacheKey);
+	if (cached != null && cached.isFresh())
+	{
+	    countCache(graphStoreURI, "hit");
+	    return ModelFactory.createModelForGraph(new ReadOnlyGraph((Graph)cached.getValue()));
+	}
 
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	return accessor.getModel(graphURI);	
+	DatasetGraphAccessorHTTP accessor = createGraphAccessor(graphStoreURI);
+	if (cached != null && cached.hasValidators()) accessor.setValidators(cached.getETag(), cached.getLastModified());
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.getModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    Graph graph = graphURI == null ? accessor.httpGet() : accessor.httpGet(Node.createURI(graphURI));
+	    if (accessor.isNotModified())
+	    {
+		getUpstreamCache().revalidated(cached);
+		countCache(graphStoreURI, "revalidated");
+		graph = new ReadOnlyGraph((Graph)cached.getValue());
+	    }
+	    else if (graph != null)
+	    {
+		getMetrics().summary("upstream.model.size", "endpoint", graphStoreURI).record(graph.size());
+		if (cacheKey != null)
+		{
+		    countCache(graphStoreURI, "miss");
+		    getUpstreamCache().put(cacheKey, graph, accessor.getETag(), accessor.getLastModified());
+		    graph = new ReadOnlyGraph(graph); // the cached graph is shared between requests
+		}
+	    }
+	    success = true;
+	    return graph == null ? null : ModelFactory.createModelForGraph(graph);
+	}
+	finally
+	{
+	    record("getModel", graphStoreURI, span, start, success);
+	}
+    }
+
+    /**
+     * Returns RDF model of a graph from the upstream cache, without contacting the remote Graph Store.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @param graphURI named graph URI, or null for the default graph
+     * @return read-only RDF model, or null if the graph is not cached or no longer fresh
+     * @see #loadGraph(String, String)
+     */
+    public Model getCachedModel(String graphStoreURI, String graphURI)
+    {
+	UpstreamCache.Entry cached = getCacheEntry(getCacheKey("graph", graphStoreURI, graphURI, null));
+	if (cached == null || !cached.isFresh()) return null;
+
+	countCache(graphStoreURI, "hit");
+	return ModelFactory.createModelForGraph(new ReadOnlyGraph((Graph)cached.getValue()));
     }
 
     /**
@@ -309,8 +711,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("POST Model to Graph Store {} default graph", graphStoreURI);
 
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.add(model);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.addModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.add(model);
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, null, model);
+	    record("addModel", graphStoreURI, span, start, success);
+	}
     }
     
     /**
@@ -324,8 +738,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("POST Model to Graph Store {} with named graph URI: {}", graphStoreURI, graphURI);
 
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.add(graphURI, model);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.addModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.add(graphURI, model);
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, graphURI, model);
+	    record("addModel", graphStoreURI, span, start, success);
+	}
     }
 
     /**
@@ -339,8 +765,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("PUT Model to Graph Store {} default graph", graphStoreURI);
 	
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.putModel(model);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.putModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.putModel(model);
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, null, model);
+	    record("putModel", graphStoreURI, span, start, success);
+	}
     }
 
     /**
@@ -355,8 +793,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("PUT Model to Graph Store {} with named graph URI {}", graphStoreURI, graphURI);
 	
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.putModel(graphURI, model);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.putModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.putModel(graphURI, model);
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, graphURI, model);
+	    record("putModel", graphStoreURI, span, start, success);
+	}
     }
 
     /**
@@ -369,8 +819,20 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("DELETE default graph from Graph Store {}", graphStoreURI);
 	
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.deleteDefault();
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.deleteDefault").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.deleteDefault();
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, null);
+	    record("deleteDefault", graphStoreURI, span, start, success);
+	}
     }
 
     /**
@@ -384,10 +846,294 @@ public class DataManager extends FileManager
     {
 	if (log.isDebugEnabled()) log.debug("DELETE named graph with URI {} from Graph Store {}", graphURI, graphStoreURI);
 	
-	DatasetAccessor accessor = new DatasetAdapter(new DatasetGraphAccessorHTTP(graphStoreURI));
-	accessor.deleteModel(graphURI);
+	DatasetAccessor accessor = createGraphStoreAccessor(graphStoreURI);
+	long start = System.nanoTime();
+	Span span = getTracer().start("upstream.deleteModel").setAttribute("endpoint", graphStoreURI);
+	boolean success = false;
+	try
+	{
+	    accessor.deleteModel(graphURI);
+	    success = true;
+	}
+	finally
+	{
+	    invalidate(graphStoreURI, graphURI);
+	    record("deleteModel", graphStoreURI, span, start, success);
+	}
     }
     
+    /**
+     * Removes cached Graph Store graph and all cached query results after it has been written, and bumps its
+     * version in the graph version registry.
+     * Query results are flushed whenever the version is bumped, as any of them may depend on the written graph
+     * and would otherwise be served under the new validators.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @param graphURI named graph URI, or null for the default graph
+     * @see GraphVersionRegistry#bump(String)
+     * @see #invalidateQueries()
+     */
+    protected void invalidate(String graphStoreURI, String graphURI)
+    {
+	String cacheKey = getCacheKey("graph", graphStoreURI, graphURI, null);
+	if (cacheKey != null) getUpstreamCache().invalidate(cacheKey);
+	invalidateQueries();
+	GraphVersionRegistry.get().bump(graphURI);
+    }
+
+    /**
+     * Invalidates caches after a SPARQL update has been sent: bumps the versions of the updated graphs, removes
+     * affected resources from the negative cache, adds new subjects to the subject index, and clears the upstream
+     * cache, since the update may have modified any graph.
+     * 
+     * @param request update request
+     * @see GraphVersionRegistry#bump(UpdateRequest)
+     * @see NegativeCache#invalidate(UpdateRequest)
+     * @see SubjectIndex#add(UpdateRequest)
+     */
+    public void invalidate(UpdateRequest request)
+    {
+	if (getUpstreamCache() != null) getUpstreamCache().clear();
+	GraphVersionRegistry.get().bump(request);
+	if (getNegativeCache() != null) getNegativeCache().invalidate(request);
+	SubjectIndex.get().add(request);
+    }
+
+    /**
+     * Removes all cached <code>CONSTRUCT</code>/<code>DESCRIBE</code> models, batched descriptions and
+     * <code>SELECT</code> results.
+     */
+    protected void invalidateQueries()
+    {
+	if (getUpstreamCache() == null) return;
+
+	getUpstreamCache().invalidatePrefix("model ");
+	getUpstreamCache().invalidatePrefix("batch ");
+	getUpstreamCache().invalidatePrefix("results ");
+    }
+
+    /**
+     * Removes cached Graph Store graph after RDF model has been written into it, bumps its version, removes
+     * the resources described by the model from the negative cache, and adds its subjects to the subject index.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @param graphURI named graph URI, or null for the default graph
+     * @param model written RDF model
+     * @see NegativeCache#invalidate(Model)
+     * @see SubjectIndex#add(Model)
+     */
+    protected void invalidate(String graphStoreURI, String graphURI, Model model)
+    {
+	invalidate(graphStoreURI, graphURI);
+	if (getNegativeCache() != null) getNegativeCache().invalidate(model);
+	SubjectIndex.get().add(model);
+    }
+
+    /**
+     * Builds key of a cached upstream response.
+     * 
+     * @param kind kind of response, e.g. <code>model</code>
+     * @param uri remote endpoint or graph store URI
+     * @param request query string or graph URI, or null if none
+     * @param params name/value pairs of request parameters or null, if none
+     * @return cache key, or null if the upstream cache is not set
+     */
+    protected String getCacheKey(String kind, String uri, String request, MultivaluedMap<String, String> params)
+    {
+	if (getUpstreamCache() == null) return null;
+
+	StringBuilder key = new StringBuilder(kind).append(' ').append(uri).append(' ');
+	if (request != null) key.append(request);
+	if (params != null) key.append(' ').append(params);
+	return key.toString();
+    }
+
+    private UpstreamCache.Entry getCacheEntry(String cacheKey)
+    {
+	return cacheKey == null ? null : getUpstreamCache().get(cacheKey);
+    }
+
+    private void countCache(String endpointURI, String result)
+    {
+	getMetrics().counter("upstream.cache", "endpoint", endpointURI, "result", result).increment();
+    }
+
+    /**
+     * Records duration of a remote call in metrics and the query profile, and ends its span.
+     * 
+     * @param operation name of the <code>DataManager</code> method
+     * @param endpointURI remote endpoint or graph store URI
+     * @param span span of the call, which is ended
+     * @param startNanos start time (as returned by <code>System.nanoTime()</code>)
+     * @param success true if the call returned normally
+     */
+    protected void record(String operation, String endpointURI, Span span, long startNanos, boolean success)
+    {
+	getMetrics().timer("upstream.calls", "operation", operation, "endpoint", endpointURI,
+		"outcome", success ? "success" : "error").recordSince(startNanos);
+	QueryProfile.addUpstreamCall(System.nanoTime() - startNanos);
+	span.setAttribute("outcome", success ? "success" : "error").end();
+    }
+
+    public Metrics getMetrics()
+    {
+	return Metrics.get();
+    }
+
+    public Tracer getTracer()
+    {
+	return Tracer.get();
+    }
+
+    /**
+     * Sets execution timeout for a type of queries.
+     * 
+     * @param queryType query type, e.g. <code>Query.QueryTypeSelect</code>
+     * @param timeout timeout in milliseconds, or -1 for no timeout
+     * @see <a href="http://jena.apache.org/documentation/javadoc/arq/com/hp/hpl/jena/query/Query.html">ARQ Query</a>
+     */
+    public void setTimeout(int queryType, long timeout)
+    {
+	if (timeout < 0) timeouts.remove(queryType);
+	else timeouts.put(queryType, timeout);
+    }
+
+    /**
+     * Returns execution timeout for a query, based on its type.
+     * 
+     * @param query query object
+     * @return timeout in milliseconds, or -1 if the query should not time out
+     */
+    public long getTimeout(Query query)
+    {
+	if (query == null) throw new IllegalArgumentException("Query must be not null");
+
+	return getTimeout(query.getQueryType());
+    }
+
+    /**
+     * Returns execution timeout for a query type, also used for upstream calls equivalent to such queries.
+     * 
+     * @param queryType query type, e.g. <code>Query.QueryTypeConstruct</code>
+     * @return timeout in milliseconds, or -1 if the query should not time out
+     */
+    public long getTimeout(int queryType)
+    {
+	Long timeout = timeouts.get(queryType);
+	return timeout == null ? -1 : timeout;
+    }
+
+    /**
+     * Sets execution timeout of remote SPARQL Update requests.
+     * 
+     * @param timeout timeout in milliseconds, or -1 for no timeout
+     */
+    public void setUpdateTimeout(long timeout)
+    {
+	updateTimeout = timeout < 0 ? -1 : timeout;
+    }
+
+    /**
+     * Returns execution timeout of remote SPARQL Update requests.
+     * 
+     * @return timeout in milliseconds, or -1 if updates should not time out
+     */
+    public long getUpdateTimeout()
+    {
+	return updateTimeout;
+    }
+
+    /**
+     * Creates Graph Store accessor. Graphs are uploaded using the Graph Store media type, if it is set.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @return dataset accessor
+     * @see #setGraphStoreMediaType(String)
+     */
+    protected DatasetAccessor createGraphStoreAccessor(String graphStoreURI)
+    {
+	return new DatasetAdapter(createGraphAccessor(graphStoreURI));
+    }
+
+    /**
+     * Creates Graph Store protocol accessor, which supports conditional requests.
+     * 
+     * @param graphStoreURI remote graph store URI
+     * @return graph accessor
+     */
+    protected DatasetGraphAccessorHTTP createGraphAccessor(String graphStoreURI)
+    {
+	DatasetGraphAccessorHTTP accessor = new DatasetGraphAccessorHTTP(graphStoreURI);
+	if (getGraphStoreMediaType() != null) accessor.setUploadMediaType(getGraphStoreMediaType());
+	long timeout = getTimeout(Query.QueryTypeConstruct);
+	if (timeout >= 0) accessor.setTimeout(timeout, timeout);
+	return accessor;
+    }
+
+    public String getGraphStoreMediaType()
+    {
+	return graphStoreMediaType;
+    }
+
+    /**
+     * Sets media type of graphs uploaded to Graph Stores, e.g. <code>application/x-rdf-binary</code> if the store
+     * supports it. N-Triples are used by default.
+     * 
+     * @param mediaType media type, or null for the default
+     */
+    public void setGraphStoreMediaType(String mediaType)
+    {
+	this.graphStoreMediaType = mediaType;
+    }
+
+    public UpstreamCache getUpstreamCache()
+    {
+	return upstreamCache;
+    }
+
+    /**
+     * Sets cache of upstream responses. Graph Store graphs are invalidated when they are modified through this
+     * data manager, and query results are flushed on every write through this data manager or
+     * <code>SPARQLAdapter</code>; writes by other clients are only seen once the entries expire.
+     * 
+     * @param upstreamCache cache, or null to disable caching
+     */
+    public void setUpstreamCache(UpstreamCache upstreamCache)
+    {
+	this.upstreamCache = upstreamCache;
+    }
+
+    public NegativeCache getNegativeCache()
+    {
+	return negativeCache;
+    }
+
+    /**
+     * Sets cache of resources without description. Resources are invalidated when triples about them are written
+     * through this data manager or <code>SPARQLAdapter</code>.
+     * 
+     * @param negativeCache cache, or null to disable it
+     */
+    public void setNegativeCache(NegativeCache negativeCache)
+    {
+	this.negativeCache = negativeCache;
+    }
+
+    public DescribeBatcher getDescribeBatcher()
+    {
+	return describeBatcher;
+    }
+
+    /**
+     * Sets batcher of <code>DESCRIBE</code> queries. Batched descriptions are cached without validators.
+     * 
+     * @param describeBatcher batcher, or null to execute each query separately
+     */
+    public void setDescribeBatcher(DescribeBatcher describeBatcher)
+    {
+	this.describeBatcher = describeBatcher;
+    }
+
     /**
      * Returns SPARQL context
      * 
@@ -400,26 +1146,14 @@ public class DataManager extends FileManager
 
     /**
      * Given a URI (e.g. with encoded SPARQL query string), finds matching SPARQL endpoint in the service
-     * context map.
+     * context map. If several endpoint URIs are prefixes of the URI, the longest one is matched.
      * 
      * @param filenameOrURI SPARQL request URI
      * @return matching map entry, or null if none
      */
     public Entry<String, Context> findEndpoint(String filenameOrURI)
     {
-	if (getServiceContextMap() != null)
-	{
-	    Iterator<Entry<String, Context>> it = getServiceContextMap().entrySet().iterator();
-
-	    while (it.hasNext())
-	    {
-		Entry<String, Context> endpoint = it.next(); 
-		if (filenameOrURI.startsWith(endpoint.getKey()))
-		    return endpoint;
-	    }
-	}
-	
-	return null;
+	return getEndpointRegistry().findLongestPrefix(filenameOrURI);
     }
 
     /**
@@ -429,13 +1163,30 @@ public class DataManager extends FileManager
      */
     public Map<String,Context> getServiceContextMap()
     {
-	if (!getContext().isDefined(Service.serviceContext))
+	return getEndpointRegistry();
+    }
+
+    /**
+     * Returns registry of service contexts, which is stored in the SPARQL context as the service context map.
+     * A map previously stored there (e.g. by ARQ configuration) is replaced by a registry with the same entries.
+     * 
+     * @return endpoint registry
+     */
+    public EndpointRegistry getEndpointRegistry()
+    {
+	Object map = getContext().get(Service.serviceContext);
+	if (map instanceof EndpointRegistry) return (EndpointRegistry)map;
+
+	synchronized (this)
 	{
-	    Map<String,Context> serviceContext = new HashMap<String,Context>();
-	    getContext().put(Service.serviceContext, serviceContext);
+	    map = getContext().get(Service.serviceContext);
+	    if (map instanceof EndpointRegistry) return (EndpointRegistry)map;
+
+	    EndpointRegistry registry = new EndpointRegistry();
+	    if (map != null) registry.putAll((Map<String,Context>)map);
+	    getContext().put(Service.serviceContext, registry);
+	    return registry;
 	}
-	
-	return (Map<String,Context>)getContext().get(Service.serviceContext);
     }
 
     /**
@@ -0,0 +1,298 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementData;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.graphity.query.PreparedQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines concurrent <code>DESCRIBE</code> queries of single resources on the same endpoint into one
+ * <code>CONSTRUCT</code> query, which binds all the resources in a <code>VALUES</code> block.
+ * The first caller becomes the leader of a batch and waits for the batch window, or until the batch is full, while
+ * further callers join the batch. The leader then executes the combined query using the interactive workload of the
+ * upstream scheduler, and the result is split by subject between the waiting callers. Callers wait outside of the
+ * scheduler, so a batch takes one upstream worker, however many resources it contains.
+ * The batcher is adaptive: a caller is not delayed if the previous one arrived longer than the batch window ago,
+ * so that batches are only formed under load. Batches of one resource, and batches whose combined query fails,
+ * are not used: the callers execute their own queries instead.
+ * The description of a resource in a batch consists of the triples in which it is subject, together with the
+ * triples of blank nodes reachable from it, which can differ from the <code>DESCRIBE</code> result of the
+ * endpoint. Pages of paged resources are <code>CONSTRUCT</code> queries and are not batched.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://www.w3.org/TR/2013/REC-sparql11-query-20130321/#inline-data">VALUES</a>
+ */
+public class DescribeBatcher
+{
+    private static final Logger log = LoggerFactory.getLogger(DescribeBatcher.class);
+
+    /** Default maximum number of resources in a batch */
+    public static final int DEFAULT_MAX_SIZE = 50;
+    /** Template of the combined query; resources are bound to <code>?this</code> in a <code>VALUES</code> block */
+    public static final String TEMPLATE = "CONSTRUCT { ?this ?p ?o . ?o ?bp ?bo } " +
+	    "WHERE { ?this ?p ?o OPTIONAL { ?o ?bp ?bo FILTER isBlank(?o) } }";
+
+    private static final PreparedQuery QUERY = new PreparedQuery(TEMPLATE);
+    private static final Var THIS = Var.alloc("this");
+
+    private final long window;
+    private final int maxSize;
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+    private final Map<String, Long> arrivals = new HashMap<String, Long>();
+
+    /**
+     * Creates batcher.
+     *
+     * @param window time for which the leader of a batch waits for further resources (in milliseconds)
+     * @param maxSize maximum number of resources in a batch
+     */
+    public DescribeBatcher(long window, int maxSize)
+    {
+	if (window <= 0) throw new IllegalArgumentException("Batch window must be positive");
+	if (maxSize < 2) throw new IllegalArgumentException("Maximum batch size must be at least 2");
+
+	this.window = window;
+	this.maxSize = maxSize;
+    }
+
+    /**
+     * Checks whether query can be batched, i.e. it is a <code>DESCRIBE</code> of a single URI without a graph
+     * pattern and without a dataset description.
+     *
+     * @param query query object
+     * @return true if the query can be batched
+     */
+    public static boolean isBatchable(Query query)
+    {
+	return query.isDescribeType() && query.getQueryPattern() == null && !query.hasDatasetDescription() &&
+		query.getResultVars().isEmpty() && query.getResultURIs().size() == 1 &&
+		query.getResultURIs().get(0).isURI();
+    }
+
+    /**
+     * Returns combined query of resources.
+     *
+     * @param uris resource URIs
+     * @return <code>CONSTRUCT</code> query
+     */
+    public static Query getQuery(Collection<String> uris)
+    {
+	// inline data is used, as VALUES at the end of the query is not serialized correctly for a single variable
+	ElementData data = new ElementData();
+	data.add(THIS);
+	for (String uri : uris) data.add(BindingFactory.binding(THIS, Node.createURI(uri)));
+
+	Query query = QUERY.bind(Collections.<String, Node>emptyMap());
+	ElementGroup pattern = new ElementGroup();
+	pattern.addElement(data);
+	for (Element element : ((ElementGroup)query.getQueryPattern()).getElements()) pattern.addElement(element);
+	query.setQueryPattern(pattern);
+	return query;
+    }
+
+    /**
+     * Retrieves description of a resource as part of a batch. Blocks until the batch has been executed, so it must
+     * not be called from an upstream worker.
+     *
+     * @param dataManager data manager executing the combined query
+     * @param endpointURI remote endpoint URI
+     * @param uri resource URI
+     * @return copy of the description, or null if the resource has not been batched and the caller has to
+     * execute its own query
+     */
+    public Model describe(DataManager dataManager, String endpointURI, String uri)
+    {
+	Batch batch;
+	boolean leader = false;
+	synchronized (this)
+	{
+	    long now = System.nanoTime();
+	    Long previous = arrivals.put(endpointURI, now);
+	    batch = pending.get(endpointURI);
+	    if (batch == null)
+	    {
+		if (previous == null || now - previous > TimeUnit.MILLISECONDS.toNanos(window)) return null;
+
+		batch = new Batch(now + TimeUnit.MILLISECONDS.toNanos(window));
+		pending.put(endpointURI, batch);
+		leader = true;
+	    }
+	    batch.uris.add(uri);
+	    if (batch.uris.size() >= maxSize)
+	    {
+		pending.remove(endpointURI);
+		notifyAll();
+	    }
+
+	    if (leader)
+	    {
+		try
+		{
+		    long remaining;
+		    while (pending.get(endpointURI) == batch && (remaining = batch.deadline - System.nanoTime()) > 0)
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		catch (InterruptedException ex)
+		{
+		    Thread.currentThread().interrupt();
+		}
+		if (pending.get(endpointURI) == batch) pending.remove(endpointURI);
+	    }
+	}
+
+	if (leader) execute(dataManager, endpointURI, batch);
+	else
+	    try
+	    {
+		batch.done.await();
+	    }
+	    catch (InterruptedException ex)
+	    {
+		Thread.currentThread().interrupt();
+		return null;
+	    }
+
+	return batch.get(uri);
+    }
+
+    /**
+     * Executes combined query of a closed batch using the interactive workload and completes it. Batches of one
+     * resource are completed without result, as are batches whose leader has been interrupted.
+     */
+    private void execute(final DataManager dataManager, final String endpointURI, final Batch batch)
+    {
+	Model model = null;
+	try
+	{
+	    if (batch.uris.size() > 1 && !Thread.currentThread().isInterrupted())
+	    {
+		final Query query = getQuery(batch.uris);
+		model = UpstreamScheduler.get().execute(UpstreamScheduler.Workload.INTERACTIVE, new Callable<Model>()
+		{
+		    @Override
+		    public Model call()
+		    {
+			return dataManager.loadBatch(endpointURI, query, batch.uris.size());
+		    }
+		}, dataManager.getTimeout(query));
+	    }
+	}
+	catch (RuntimeException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Batch of {} DESCRIBE queries failed, executing them separately: {}", batch.uris.size(), ex.getMessage());
+	}
+	finally
+	{
+	    batch.complete(model);
+	}
+    }
+
+    /**
+     * Extracts description of a resource from the combined result: the triples in which it is subject, and the
+     * triples of blank nodes reachable from it.
+     *
+     * @param model combined result
+     * @param uri resource URI
+     * @return description
+     */
+    public static Model split(Model model, String uri)
+    {
+	Model description = ModelFactory.createDefaultModel();
+	Set<Resource> visited = new HashSet<Resource>();
+	Deque<Resource> subjects = new ArrayDeque<Resource>();
+	subjects.add(model.createResource(uri));
+	while (!subjects.isEmpty())
+	{
+	    Resource subject = subjects.poll();
+	    if (!visited.add(subject)) continue;
+
+	    StmtIterator it = model.listStatements(subject, null, (RDFNode)null);
+	    try
+	    {
+		while (it.hasNext())
+		{
+		    Statement stmt = it.next();
+		    description.add(stmt);
+		    if (stmt.getObject().isAnon()) subjects.add(stmt.getResource());
+		}
+	    }
+	    finally
+	    {
+		it.close();
+	    }
+	}
+	return description;
+    }
+
+    public long getWindow()
+    {
+	return window;
+    }
+
+    public int getMaxSize()
+    {
+	return maxSize;
+    }
+
+    private static class Batch
+    {
+	final long deadline;
+	final Set<String> uris = new LinkedHashSet<String>();
+	final CountDownLatch done = new CountDownLatch(1);
+	Map<String, Model> descriptions = null;
+
+	Batch(long deadline)
+	{
+	    this.deadline = deadline;
+	}
+
+	void complete(Model model)
+	{
+	    if (model != null)
+	    {
+		descriptions = new HashMap<String, Model>();
+		for (String uri : uris) descriptions.put(uri, split(model, uri));
+	    }
+	    done.countDown();
+	}
+
+	Model get(String uri)
+	{
+	    if (descriptions == null) return null;
+	    return ModelFactory.createDefaultModel().add(descriptions.get(uri));
+	}
+    }
+
+}
@@ -0,0 +1,251 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.sparql.util.Context;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of SPARQL endpoint and Graph Store service contexts, keyed by endpoint URI.
+ * Endpoints are kept in an immutable character trie, which is replaced on every update by copying the path to the
+ * updated node (copy-on-write). Lookups therefore take no locks and are proportional to the length of the URI,
+ * not to the number of endpoints, while updates are serialized.
+ * The registry is a <code>Map</code>, so it can be stored in the ARQ context as the
+ * <code>Service.serviceContext</code> map, where it is read by query executions.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://en.wikipedia.org/wiki/Trie">Trie</a>
+ */
+public class EndpointRegistry extends AbstractMap<String, Context>
+{
+    private static final Node EMPTY = new Node(null, new char[0], new Node[0], 0);
+
+    private volatile Node root = EMPTY;
+
+    /**
+     * Finds the endpoint with the longest URI that is a prefix of the given URI, e.g. of a SPARQL request URI
+     * with encoded query string.
+     *
+     * @param uri request URI
+     * @return matching endpoint URI and context, or null if none
+     */
+    public Map.Entry<String, Context> findLongestPrefix(String uri)
+    {
+	Node node = root;
+	Context match = node.value;
+	int matchLength = 0;
+	for (int i = 0; i < uri.length() && node != null; i++)
+	{
+	    node = node.child(uri.charAt(i));
+	    if (node != null && node.value != null)
+	    {
+		match = node.value;
+		matchLength = i + 1;
+	    }
+	}
+
+	if (match == null) return null;
+	return new AbstractMap.SimpleImmutableEntry<String, Context>(uri.substring(0, matchLength), match);
+    }
+
+    @Override
+    public Context get(Object key)
+    {
+	if (!(key instanceof String)) return null;
+
+	Node node = find(root, (String)key);
+	return node == null ? null : node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+	return get(key) != null;
+    }
+
+    @Override
+    public synchronized Context put(String key, Context value)
+    {
+	if (key == null) throw new IllegalArgumentException("Endpoint URI must be not null");
+	if (value == null) throw new IllegalArgumentException("Context must be not null");
+
+	Context previous = get(key);
+	root = update(root, key, 0, value);
+	return previous;
+    }
+
+    @Override
+    public synchronized Context remove(Object key)
+    {
+	Context previous = get(key);
+	if (previous == null) return null;
+
+	Node updated = update(root, (String)key, 0, null);
+	root = updated == null ? EMPTY : updated;
+	return previous;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+	root = EMPTY;
+    }
+
+    @Override
+    public int size()
+    {
+	return root.size;
+    }
+
+    /**
+     * Returns read-only snapshot of the registered endpoints. The set is not updated by subsequent changes, and
+     * endpoints can only be removed using {@link #remove(Object)}.
+     *
+     * @return set of entries
+     */
+    @Override
+    public Set<Map.Entry<String, Context>> entrySet()
+    {
+	final List<Map.Entry<String, Context>> entries = new ArrayList<Map.Entry<String, Context>>();
+	collect(root, new StringBuilder(), entries);
+
+	return Collections.unmodifiableSet(new AbstractSet<Map.Entry<String, Context>>()
+	{
+	    @Override
+	    public Iterator<Map.Entry<String, Context>> iterator()
+	    {
+		return entries.iterator();
+	    }
+
+	    @Override
+	    public int size()
+	    {
+		return entries.size();
+	    }
+	});
+    }
+
+    private static Node find(Node node, String key)
+    {
+	for (int i = 0; i < key.length() && node != null; i++) node = node.child(key.charAt(i));
+	return node;
+    }
+
+    /**
+     * Returns copy of a subtrie with the value of a key set or removed. Nodes off the path of the key are shared.
+     *
+     * @return updated node, or null if it has no value and no children
+     */
+    private static Node update(Node node, String key, int depth, Context value)
+    {
+	if (depth == key.length())
+	    return Node.create(value, node.keys, node.children);
+
+	char c = key.charAt(depth);
+	int index = Arrays.binarySearch(node.keys, c);
+	Node child = index >= 0 ? node.children[index] : EMPTY;
+	Node updated = update(child, key, depth + 1, value);
+
+	char[] keys;
+	Node[] children;
+	if (index >= 0 && updated != null)
+	{
+	    keys = node.keys;
+	    children = node.children.clone();
+	    children[index] = updated;
+	}
+	else if (index >= 0)
+	{
+	    keys = new char[node.keys.length - 1];
+	    children = new Node[node.children.length - 1];
+	    System.arraycopy(node.keys, 0, keys, 0, index);
+	    System.arraycopy(node.keys, index + 1, keys, index, keys.length - index);
+	    System.arraycopy(node.children, 0, children, 0, index);
+	    System.arraycopy(node.children, index + 1, children, index, children.length - index);
+	}
+	else if (updated != null)
+	{
+	    int insert = -index - 1;
+	    keys = new char[node.keys.length + 1];
+	    children = new Node[node.children.length + 1];
+	    System.arraycopy(node.keys, 0, keys, 0, insert);
+	    System.arraycopy(node.keys, insert, keys, insert + 1, node.keys.length - insert);
+	    System.arraycopy(node.children, 0, children, 0, insert);
+	    System.arraycopy(node.children, insert, children, insert + 1, node.children.length - insert);
+	    keys[insert] = c;
+	    children[insert] = updated;
+	}
+	else return node.value == null && node.keys.length == 0 ? null : node;
+
+	return Node.create(node.value, keys, children);
+    }
+
+    private static void collect(Node node, StringBuilder prefix, List<Map.Entry<String, Context>> entries)
+    {
+	if (node.value != null) entries.add(new AbstractMap.SimpleImmutableEntry<String, Context>(prefix.toString(), node.value));
+	for (int i = 0; i < node.keys.length; i++)
+	{
+	    prefix.append(node.keys[i]);
+	    collect(node.children[i], prefix, entries);
+	    prefix.setLength(prefix.length() - 1);
+	}
+    }
+
+    /**
+     * Immutable trie node. Children are sorted by their character.
+     */
+    private static class Node
+    {
+	private final Context value;
+	private final char[] keys;
+	private final Node[] children;
+	private final int size;
+
+	Node(Context value, char[] keys, Node[] children, int size)
+	{
+	    this.value = value;
+	    this.keys = keys;
+	    this.children = children;
+	    this.size = size;
+	}
+
+	static Node create(Context value, char[] keys, Node[] children)
+	{
+	    if (value == null && keys.length == 0) return null;
+
+	    int size = value == null ? 0 : 1;
+	    for (Node child : children) size += child.size;
+	    return new Node(value, keys, children, size);
+	}
+
+	Node child(char c)
+	{
+	    int index = Arrays.binarySearch(keys, c);
+	    return index >= 0 ? children[index] : null;
+	}
+
+    }
+
+}
@@ -0,0 +1,413 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCreate;
+import com.hp.hpl.jena.sparql.modify.request.UpdateData;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDropClear;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateRequest;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.ws.rs.core.EntityTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of graph versions, used as a cheap source of <code>ETag</code> and <code>Last-Modified</code> validators
+ * instead of hashing response bodies.
+ * Every write through the Graph Store, <code>SPARQLAdapter</code> or SPARQL Update bumps a monotonically increasing
+ * version and modification time of the written graph, and of the whole dataset. Updates whose target graphs are not
+ * known in advance (e.g. <code>DELETE/INSERT ... WHERE</code>) bump all graphs.
+ * Writes that bypass this server are not seen, so the registry is disabled unless replaced using
+ * {@link #set(GraphVersionRegistry)}.
+ * Versions can be persisted in an append-only file, so that validators remain valid across restarts.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class GraphVersionRegistry
+{
+    private static final Logger log = LoggerFactory.getLogger(GraphVersionRegistry.class);
+
+    private static final String HEADER = "graphity-graph-versions";
+    private static final String DEFAULT = "D", NAMED = "G", ALL = "A";
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private static GraphVersionRegistry s_instance = null;
+
+    private final boolean enabled;
+    private final long epoch;
+    private final ConcurrentMap<String, Version> graphs = new ConcurrentHashMap<String, Version>();
+    private final File file;
+    private volatile Version all, dataset;
+    private Writer writer = null;
+    private int records = 0;
+
+    /**
+     * Returns global registry. It is disabled unless replaced using {@link #set(GraphVersionRegistry)}.
+     *
+     * @return singleton instance
+     */
+    public static synchronized GraphVersionRegistry get()
+    {
+	if (s_instance == null) s_instance = new GraphVersionRegistry(false);
+	return s_instance;
+    }
+
+    /**
+     * Replaces global registry. The previous instance is closed.
+     *
+     * @param registry new registry
+     */
+    public static synchronized void set(GraphVersionRegistry registry)
+    {
+	if (registry == null) throw new IllegalArgumentException("GraphVersionRegistry cannot be null");
+
+	if (s_instance != null) s_instance.close();
+	s_instance = registry;
+    }
+
+    /**
+     * Creates in-memory registry. Versions start from scratch after a restart.
+     */
+    public GraphVersionRegistry()
+    {
+	this(true);
+    }
+
+    private GraphVersionRegistry(boolean enabled)
+    {
+	this.enabled = enabled;
+	this.epoch = System.currentTimeMillis();
+	this.file = null;
+	this.all = this.dataset = new Version(epoch, 0, epoch);
+    }
+
+    /**
+     * Creates registry persisted in a file. Versions are loaded from the file if it exists, and every bump is
+     * appended to it. The file is compacted when it grows.
+     *
+     * @param file version file
+     * @throws IOException if the file cannot be read or written
+     */
+    public GraphVersionRegistry(File file) throws IOException
+    {
+	if (file == null) throw new IllegalArgumentException("File cannot be null");
+
+	this.enabled = true;
+	this.file = file;
+	this.epoch = file.exists() ? load(file) : System.currentTimeMillis();
+	if (all == null) all = new Version(epoch, 0, epoch);
+	dataset = all;
+	for (Version version : graphs.values())
+	    if (version.getNumber() > dataset.getNumber()) dataset = version;
+
+	synchronized (this)
+	{
+	    compact();
+	}
+    }
+
+    /**
+     * Loads versions from file, ignoring an incomplete last record.
+     *
+     * @return epoch of the versions
+     */
+    private long load(File file) throws IOException
+    {
+	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	try
+	{
+	    String header = reader.readLine();
+	    if (header == null || !header.startsWith(HEADER + " ")) throw new IOException("Not a graph version file: " + file);
+	    long fileEpoch = Long.parseLong(header.substring(HEADER.length() + 1).trim());
+
+	    String line;
+	    while ((line = reader.readLine()) != null)
+	    {
+		String[] fields = line.split(" ", 4);
+		try
+		{
+		    Version version = new Version(fileEpoch, Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+		    if (fields[2].equals(ALL)) all = version;
+		    else if (fields[2].equals(DEFAULT)) graphs.put("", version);
+		    else if (fields[2].equals(NAMED) && fields.length == 4) graphs.put(fields[3], version);
+		    else throw new IllegalArgumentException("Unknown record type: " + fields[2]);
+		}
+		catch (RuntimeException ex)
+		{
+		    if (log.isWarnEnabled()) log.warn("Skipping invalid record in graph version file {}: {}", file, line);
+		}
+	    }
+
+	    if (log.isDebugEnabled()) log.debug("Loaded versions of {} graphs from {}", graphs.size(), file);
+	    return fileEpoch;
+	}
+	finally
+	{
+	    reader.close();
+	}
+    }
+
+    public boolean isEnabled()
+    {
+	return enabled;
+    }
+
+    /**
+     * Bumps version of a graph after it has been written.
+     *
+     * @param graphURI named graph URI, or null for the default graph
+     */
+    public synchronized void bump(String graphURI)
+    {
+	if (!isEnabled()) return;
+
+	Version version = next();
+	graphs.put(graphURI == null ? "" : graphURI, version);
+	dataset = version;
+	append(version, graphURI == null ? DEFAULT : NAMED, graphURI);
+    }
+
+    /**
+     * Bumps versions of all graphs, e.g. after an update with unknown target graphs.
+     */
+    public synchronized void bumpAll()
+    {
+	if (!isEnabled()) return;
+
+	Version version = next();
+	all = dataset = version;
+	append(version, ALL, null);
+    }
+
+    /**
+     * Bumps versions of graphs written by a SPARQL update. <code>INSERT DATA</code>, <code>DELETE DATA</code>,
+     * <code>CREATE</code>, <code>CLEAR</code> and <code>DROP</code> operations bump their target graphs, while all
+     * graphs are bumped if the update contains other operations.
+     *
+     * @param request update request
+     */
+    public void bump(UpdateRequest request)
+    {
+	if (!isEnabled()) return;
+
+	Set<String> graphURIs = new HashSet<String>();
+	for (Update update : request.getOperations())
+	{
+	    if (update instanceof UpdateData)
+	    {
+		for (Quad quad : ((UpdateData)update).getQuads())
+		    if (quad.isDefaultGraph()) graphURIs.add(null);
+		    else if (quad.getGraph().isURI()) graphURIs.add(quad.getGraph().getURI());
+		    else
+		    {
+			bumpAll();
+			return;
+		    }
+	    }
+	    else if (update instanceof UpdateCreate && ((UpdateCreate)update).getGraph().isURI())
+		graphURIs.add(((UpdateCreate)update).getGraph().getURI());
+	    else if (update instanceof UpdateDropClear && ((UpdateDropClear)update).isDefault())
+		graphURIs.add(null);
+	    else if (update instanceof UpdateDropClear && ((UpdateDropClear)update).isOneGraph() &&
+		    ((UpdateDropClear)update).getGraph().isURI())
+		graphURIs.add(((UpdateDropClear)update).getGraph().getURI());
+	    else
+	    {
+		bumpAll();
+		return;
+	    }
+	}
+
+	for (String graphURI : graphURIs) bump(graphURI);
+    }
+
+    /**
+     * Returns current version of a graph.
+     *
+     * @param graphURI named graph URI, or null for the default graph
+     * @return version, or null if the registry is disabled
+     */
+    public Version getVersion(String graphURI)
+    {
+	if (!isEnabled()) return null;
+
+	Version version = graphs.get(graphURI == null ? "" : graphURI);
+	Version allVersion = all;
+	return version == null || version.getNumber() < allVersion.getNumber() ? allVersion : version;
+    }
+
+    /**
+     * Returns current version of the dataset, which changes when any of its graphs is written.
+     *
+     * @return version, or null if the registry is disabled
+     */
+    public Version getDatasetVersion()
+    {
+	if (!isEnabled()) return null;
+
+	return dataset;
+    }
+
+    private Version next()
+    {
+	Version last = dataset;
+	return new Version(epoch, last.getNumber() + 1, Math.max(System.currentTimeMillis(), last.getModified()));
+    }
+
+    private void append(Version version, String type, String graphURI)
+    {
+	if (writer == null) return;
+
+	try
+	{
+	    writer.write(version.getNumber() + " " + version.getModified() + " " + type + (graphURI == null ? "" : " " + graphURI) + "\n");
+	    writer.flush();
+	    if (++records > COMPACT_MIN_RECORDS && records > 2 * graphs.size()) compact();
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not write graph version file " + file, ex);
+	}
+    }
+
+    /**
+     * Rewrites the version file with the current version of each graph, and reopens it for appending.
+     */
+    private void compact() throws IOException
+    {
+	File temp = new File(file.getPath() + ".tmp");
+	Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+	int written = 0;
+	try
+	{
+	    out.write(HEADER + " " + epoch + "\n");
+	    out.write(all.getNumber() + " " + all.getModified() + " " + ALL + "\n");
+	    for (Map.Entry<String, Version> entry : graphs.entrySet())
+	    {
+		Version version = entry.getValue();
+		if (version.getNumber() < all.getNumber()) continue; // shadowed by a bump of all graphs
+		out.write(version.getNumber() + " " + version.getModified() + " " +
+			(entry.getKey().isEmpty() ? DEFAULT : NAMED + " " + entry.getKey()) + "\n");
+		written++;
+	    }
+	}
+	finally
+	{
+	    out.close();
+	}
+
+	if (writer != null) writer.close();
+	writer = null;
+	if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+	    throw new IOException("Could not replace graph version file " + file);
+	writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+	records = written + 1;
+    }
+
+    /**
+     * Closes the version file. Versions are no longer persisted afterwards.
+     */
+    public synchronized void close()
+    {
+	if (writer == null) return;
+
+	try
+	{
+	    writer.close();
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not close graph version file " + file, ex);
+	}
+	writer = null;
+    }
+
+    public File getFile()
+    {
+	return file;
+    }
+
+    /**
+     * Version of a graph or dataset.
+     */
+    public static class Version
+    {
+	private final long epoch, number, modified;
+
+	Version(long epoch, long number, long modified)
+	{
+	    this.epoch = epoch;
+	    this.number = number;
+	    this.modified = modified;
+	}
+
+	public long getNumber()
+	{
+	    return number;
+	}
+
+	public long getModified()
+	{
+	    return modified;
+	}
+
+	/**
+	 * Returns modification time, truncated to seconds as in HTTP dates.
+	 *
+	 * @return date for <code>Last-Modified</code> header
+	 */
+	public Date getLastModified()
+	{
+	    return new Date(modified / 1000 * 1000);
+	}
+
+	/**
+	 * Returns weak entity tag of this version. The epoch of the registry is included, so that tags issued by
+	 * an in-memory registry before a restart do not match.
+	 *
+	 * @return entity tag
+	 */
+	public EntityTag getEntityTag()
+	{
+	    return new EntityTag(Long.toHexString(epoch) + "-" + Long.toHexString(number), true);
+	}
+
+	@Override
+	public String toString()
+	{
+	    return getEntityTag().toString();
+	}
+
+    }
+
+}
@@ -0,0 +1,214 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCreate;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataDelete;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDropClear;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateRequest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of recently seen resources without description, e.g. URIs of broken links requested by crawlers.
+ * While an entry is fresh, requests for the resource can be answered with <code>404 Not Found</code> without
+ * querying the upstream endpoint. Entries expire after a short time-to-live, which is configured separately from
+ * the upstream cache, and are evicted in least-recently-used order once the cache is full.
+ * Entries are invalidated when a write adds triples in which the resource is subject or object.
+ * Every invalidation increments a generation number, so that a lookup which started before a write and found no
+ * description does not record the resource after the write has invalidated it.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class NegativeCache
+{
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final long ttl;
+    private final Map<String, Long> entries;
+    private long generation = 0;
+
+    /**
+     * Creates cache.
+     *
+     * @param ttl time-to-live of entries (in milliseconds)
+     * @param maxSize maximum number of entries
+     */
+    public NegativeCache(long ttl, final int maxSize)
+    {
+	if (ttl < 0) throw new IllegalArgumentException("Time-to-live must be non-negative");
+	if (maxSize <= 0) throw new IllegalArgumentException("Maximum size must be positive");
+
+	this.ttl = ttl;
+	this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true)
+	{
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+	    {
+		return size() > maxSize;
+	    }
+	};
+    }
+
+    /**
+     * Checks whether a resource is known to have no description. Expired entries are removed.
+     *
+     * @param uri resource URI
+     * @return true if there is a fresh entry of the resource
+     */
+    public synchronized boolean contains(String uri)
+    {
+	Long expires = entries.get(uri);
+	if (expires == null) return false;
+	if (System.currentTimeMillis() < expires) return true;
+
+	entries.remove(uri);
+	return false;
+    }
+
+    /**
+     * Returns the current generation, which has to be taken before the description of a resource is looked up.
+     *
+     * @return generation number
+     * @see #add(String, long)
+     */
+    public synchronized long getGeneration()
+    {
+	return generation;
+    }
+
+    /**
+     * Records resource without description, unless the cache has been invalidated since the given generation.
+     * The entry is fresh for the time-to-live of the cache.
+     *
+     * @param uri resource URI
+     * @param generation generation taken before the description was looked up
+     * @return true if the resource was recorded
+     * @see #getGeneration()
+     */
+    public boolean add(String uri, long generation)
+    {
+	long expires = System.currentTimeMillis() + ttl;
+	synchronized (this)
+	{
+	    if (generation != this.generation) return false;
+	    entries.put(uri, expires);
+	    return true;
+	}
+    }
+
+    /**
+     * Removes entry, e.g. after triples about the resource have been written.
+     *
+     * @param uri resource URI
+     */
+    public synchronized void invalidate(String uri)
+    {
+	generation++;
+	entries.remove(uri);
+    }
+
+    /**
+     * Removes entries of all URI resources that are subjects or objects of the statements in a model.
+     *
+     * @param model written RDF model
+     */
+    public void invalidate(Model model)
+    {
+	StmtIterator it = model.listStatements();
+	try
+	{
+	    synchronized (this)
+	    {
+		generation++;
+		while (it.hasNext())
+		{
+		    Statement stmt = it.nextStatement();
+		    if (stmt.getSubject().isURIResource()) entries.remove(stmt.getSubject().getURI());
+		    RDFNode object = stmt.getObject();
+		    if (object.isURIResource()) entries.remove(object.asResource().getURI());
+		}
+	    }
+	}
+	finally
+	{
+	    it.close();
+	}
+    }
+
+    /**
+     * Removes entries that might be affected by a SPARQL update.
+     * Subjects and objects of <code>INSERT DATA</code> are invalidated precisely; updates that cannot add triples
+     * (<code>DELETE DATA</code>, <code>CREATE</code>, <code>DROP</code>, <code>CLEAR</code>) do not invalidate
+     * anything, and any other update clears the whole cache.
+     *
+     * @param request update request
+     */
+    public void invalidate(UpdateRequest request)
+    {
+	for (Update update : request.getOperations())
+	{
+	    if (update instanceof UpdateDataInsert)
+	    {
+		synchronized (this)
+		{
+		    generation++;
+		    for (Quad quad : ((UpdateDataInsert)update).getQuads())
+		    {
+			if (quad.getSubject().isURI()) entries.remove(quad.getSubject().getURI());
+			Node object = quad.getObject();
+			if (object.isURI()) entries.remove(object.getURI());
+		    }
+		}
+	    }
+	    else if (!(update instanceof UpdateDataDelete) && !(update instanceof UpdateCreate) &&
+		    !(update instanceof UpdateDropClear))
+	    {
+		clear();
+		return;
+	    }
+	}
+    }
+
+    public synchronized void clear()
+    {
+	generation++;
+	entries.clear();
+    }
+
+    public synchronized int size()
+    {
+	return entries.size();
+    }
+
+    public long getTTL()
+    {
+	return ttl;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Capabilities;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.AllCapabilities;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * Read-only view of a graph, e.g. of a graph shared through the upstream cache.
+ * Adding or deleting triples, directly, in bulk or through <code>find()</code> iterators, throws
+ * <code>AddDeniedException</code> or <code>DeleteDeniedException</code>, and the underlying graph is not closed.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see UpstreamCache
+ */
+public class ReadOnlyGraph extends WrappedGraph
+{
+
+    public ReadOnlyGraph(Graph base)
+    {
+	super(base);
+    }
+
+    @Override
+    public void add(Triple t)
+    {
+	throw new AddDeniedException("Graph is read-only", t);
+    }
+
+    @Override
+    public void delete(Triple t)
+    {
+	throw new DeleteDeniedException("Graph is read-only", t);
+    }
+
+    @Override
+    public void performAdd(Triple t)
+    {
+	throw new AddDeniedException("Graph is read-only", t);
+    }
+
+    @Override
+    public void performDelete(Triple t)
+    {
+	throw new DeleteDeniedException("Graph is read-only", t);
+    }
+
+    @Override
+    public BulkUpdateHandler getBulkUpdateHandler()
+    {
+	return new SimpleBulkUpdateHandler(this)
+	{
+	    @Override
+	    public void removeAll()
+	    {
+		throw new DeleteDeniedException("Graph is read-only");
+	    }
+
+	    @Override
+	    public void remove(Node s, Node p, Node o)
+	    {
+		throw new DeleteDeniedException("Graph is read-only");
+	    }
+	};
+    }
+
+    @Override
+    public ExtendedIterator<Triple> find(TripleMatch m)
+    {
+	return WrappedIterator.createNoRemove(super.find(m));
+    }
+
+    @Override
+    public ExtendedIterator<Triple> find(Node s, Node p, Node o)
+    {
+	return WrappedIterator.createNoRemove(super.find(s, p, o));
+    }
+
+    @Override
+    public Capabilities getCapabilities()
+    {
+	return new AllCapabilities()
+	{
+	    @Override
+	    public boolean addAllowed(boolean every)
+	    {
+		return false;
+	    }
+
+	    @Override
+	    public boolean deleteAllowed(boolean every)
+	    {
+		return false;
+	    }
+	};
+    }
+
+    @Override
+    public void close()
+    {
+	// the underlying graph is shared
+    }
+
+}
@@ -0,0 +1,629 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCreate;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataDelete;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDropClear;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateRequest;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Approximate index of the URIs used as subjects or objects in the dataset of the remote SPARQL endpoint, kept as a
+ * Bloom filter.
+ * The index is built by a background thread that scans the endpoint page by page, ordered by URI and continued from
+ * the last URI of the previous page, using the bulk workload of the upstream scheduler. It is updated incrementally
+ * by writes through <code>DataManager</code> and <code>SPARQLAdapter</code>, and optionally persisted to a file so
+ * that it does not have to be rebuilt after a restart. URIs added since the file was last saved are appended to a
+ * journal next to it, and replayed when the file is loaded. Updates whose written triples are not known (e.g.
+ * <code>DELETE/INSERT ... WHERE</code>) make the index unusable until it has been rebuilt.
+ * A resource that the index does not contain definitely has no triples, neither as subject nor as object, so it can
+ * be answered with <code>404 Not Found</code> without querying the endpoint, whether its description is retrieved
+ * using <code>DESCRIBE</code> or as pages that include incoming triples. Indexing objects makes the scan more
+ * expensive and lets resources that are only objects pass the check, in exchange for covering paged resources.
+ * Until the index has been built, every resource is assumed to exist.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see BloomFilter
+ */
+public class SubjectIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(SubjectIndex.class);
+
+    /** Default expected number of subjects and objects */
+    public static final long DEFAULT_EXPECTED_SIZE = 1000000;
+    /** Default false positive rate */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    /** Default number of URIs retrieved per page of the scan */
+    public static final long DEFAULT_PAGE_SIZE = 10000;
+    /** Delay before a failed scan is retried (in milliseconds) */
+    public static final long RETRY_INTERVAL = 60000;
+
+    private static final String HEADER = "graphity-subject-index";
+    private static final int FILE_VERSION = 2;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String SUBJECT = "S", INVALIDATED = "I";
+    /** Scan of URIs ordered by their string value, which stores can read from their indexes */
+    private static final String SCAN_QUERY = "SELECT DISTINCT ?s WHERE { { ?s ?p ?o } UNION { ?o ?p ?s } FILTER (isIRI(?s)%s) } ORDER BY ?s LIMIT %d";
+
+    private static SubjectIndex s_instance = null;
+
+    private final String endpointURI;
+    private final long expectedSize, pageSize, refreshInterval;
+    private final double falsePositiveRate;
+    private final File file;
+    private final AtomicLong generation = new AtomicLong();
+    private final Thread builder;
+    private volatile BloomFilter filter = null, pending = null;
+    private volatile boolean shutdown = false;
+    private boolean rebuild = false;
+    private Writer journal = null;
+
+    /**
+     * Returns global subject index. It is disabled unless replaced using {@link #set(SubjectIndex)}.
+     *
+     * @return singleton instance
+     */
+    public static synchronized SubjectIndex get()
+    {
+	if (s_instance == null) s_instance = new SubjectIndex();
+	return s_instance;
+    }
+
+    /**
+     * Replaces global subject index. The previous instance is closed.
+     *
+     * @param index new index
+     */
+    public static synchronized void set(SubjectIndex index)
+    {
+	if (index == null) throw new IllegalArgumentException("SubjectIndex cannot be null");
+
+	if (s_instance != null) s_instance.close();
+	s_instance = index;
+    }
+
+    private SubjectIndex()
+    {
+	this.endpointURI = null;
+	this.expectedSize = DEFAULT_EXPECTED_SIZE;
+	this.falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+	this.pageSize = DEFAULT_PAGE_SIZE;
+	this.refreshInterval = -1;
+	this.file = null;
+	this.builder = null;
+    }
+
+    /**
+     * Creates index and starts its builder thread. If the file exists and was written with the same size
+     * parameters, the index is loaded from it and not rebuilt until it is refreshed.
+     *
+     * @param endpointURI remote SPARQL endpoint URI
+     * @param expectedSize expected number of subjects and objects
+     * @param falsePositiveRate acceptable false positive rate
+     * @param pageSize number of URIs retrieved per page of the scan
+     * @param refreshInterval interval of periodic rebuilds (in milliseconds), or -1 to only rebuild when needed
+     * @param file index file, or null if the index is not persisted
+     */
+    public SubjectIndex(String endpointURI, long expectedSize, double falsePositiveRate, long pageSize, long refreshInterval, File file)
+    {
+	if (endpointURI == null) throw new IllegalArgumentException("Endpoint URI cannot be null");
+	if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+
+	this.endpointURI = endpointURI;
+	this.expectedSize = expectedSize;
+	this.falsePositiveRate = falsePositiveRate;
+	this.pageSize = pageSize;
+	this.refreshInterval = refreshInterval;
+	this.file = file;
+	if (file != null)
+	{
+	    if (file.exists()) filter = load(file);
+	    openJournal(filter != null);
+	}
+
+	builder = new Thread(new Builder(), "SubjectIndex");
+	builder.setDaemon(true);
+	builder.start();
+    }
+
+    public boolean isEnabled()
+    {
+	return endpointURI != null;
+    }
+
+    /**
+     * Checks whether the index can be used to rule out resources.
+     *
+     * @return true if the index has been built and is up to date
+     */
+    public boolean isReady()
+    {
+	return filter != null;
+    }
+
+    /**
+     * Tests whether a resource might be a subject or object in the dataset.
+     *
+     * @param uri resource URI
+     * @return false if the resource is definitely not used in the dataset, true if it might be or the index is not
+     * ready
+     */
+    public boolean mightContain(String uri)
+    {
+	BloomFilter current = filter;
+	return current == null || current.mightContain(uri);
+    }
+
+    /**
+     * Adds written subject or object to the index, and to the index being built, if any.
+     *
+     * @param uri resource URI
+     */
+    public void add(String uri)
+    {
+	// pending is read before filter, so that a write is not missed when the built index replaces the current one
+	BloomFilter next = pending, current = filter;
+	if (next != null) next.add(uri);
+	if (current != null) current.add(uri);
+	if (file != null) append(SUBJECT + " " + uri);
+    }
+
+    /**
+     * Adds subjects and URI objects of a written RDF model to the index.
+     *
+     * @param model RDF model
+     */
+    public void add(Model model)
+    {
+	if (!isEnabled()) return;
+
+	ResIterator it = model.listSubjects();
+	try
+	{
+	    while (it.hasNext())
+	    {
+		Resource subject = it.nextResource();
+		if (subject.isURIResource()) add(subject.getURI());
+	    }
+	}
+	finally
+	{
+	    it.close();
+	}
+
+	NodeIterator objects = model.listObjects();
+	try
+	{
+	    while (objects.hasNext())
+	    {
+		RDFNode object = objects.nextNode();
+		if (object.isURIResource()) add(object.asResource().getURI());
+	    }
+	}
+	finally
+	{
+	    objects.close();
+	}
+    }
+
+    /**
+     * Adds subjects and URI objects of a SPARQL update to the index.
+     * Subjects and objects of <code>INSERT DATA</code> are added; updates that cannot add triples (<code>DELETE DATA</code>,
+     * <code>CREATE</code>, <code>DROP</code>, <code>CLEAR</code>) are ignored, and any other update invalidates
+     * the index until it is rebuilt.
+     *
+     * @param request update request
+     */
+    public void add(UpdateRequest request)
+    {
+	if (!isEnabled()) return;
+
+	for (Update update : request.getOperations())
+	{
+	    if (update instanceof UpdateDataInsert)
+	    {
+		for (Quad quad : ((UpdateDataInsert)update).getQuads())
+		{
+		    if (quad.getSubject().isURI()) add(quad.getSubject().getURI());
+		    if (quad.getObject().isURI()) add(quad.getObject().getURI());
+		}
+	    }
+	    else if (!(update instanceof UpdateDataDelete) && !(update instanceof UpdateCreate) &&
+		    !(update instanceof UpdateDropClear))
+	    {
+		invalidate();
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Makes the index unusable and requests a rebuild, e.g. after triples have been written that are not known.
+     */
+    public void invalidate()
+    {
+	if (!isEnabled()) return;
+
+	synchronized (this)
+	{
+	    generation.incrementAndGet();
+	    filter = null;
+	}
+	if (file != null) append(INVALIDATED);
+	if (log.isDebugEnabled()) log.debug("Subject index of endpoint {} invalidated", endpointURI);
+	rebuild();
+    }
+
+    /**
+     * Requests a rebuild of the index in the background.
+     */
+    public synchronized void rebuild()
+    {
+	rebuild = true;
+	notifyAll();
+    }
+
+    /**
+     * Scans the remote endpoint and replaces the index. Writes during the scan are added to both the current and
+     * the new index. The new index is discarded if the current one was invalidated during the scan.
+     * Pages are ordered by the URI itself and continued with a <code>FILTER</code> on its string value, which
+     * matches the SPARQL order of IRIs, so the endpoint does not have to sort computed keys for every page.
+     *
+     * @return true if the index was replaced
+     */
+    protected boolean build()
+    {
+	long start = System.currentTimeMillis(), startGeneration = generation.get(), count = 0;
+	BloomFilter next = new BloomFilter(expectedSize, falsePositiveRate);
+	pending = next;
+	try
+	{
+	    String last = null;
+	    while (true)
+	    {
+		if (shutdown) return false;
+
+		ResultSetRewindable page = loadPage(getScanQuery(last));
+		int size = 0;
+		while (page.hasNext())
+		{
+		    RDFNode uri = page.next().get("s");
+		    if (uri != null && uri.isURIResource())
+		    {
+			last = uri.asResource().getURI();
+			next.add(last);
+			count++;
+		    }
+		    size++;
+		}
+		if (size < pageSize) break;
+	    }
+
+	    // checked and published under the lock of invalidate(), so that an invalidation cannot slip in between
+	    synchronized (this)
+	    {
+		if (generation.get() != startGeneration) return false;
+		filter = next;
+	    }
+	}
+	finally
+	{
+	    pending = null;
+	}
+
+	if (log.isDebugEnabled()) log.debug("Built subject index of endpoint {} with {} URIs in {} ms", new Object[]{endpointURI, count, System.currentTimeMillis() - start});
+	if (count > expectedSize && log.isWarnEnabled())
+	    log.warn("Subject index contains {} URIs, more than the expected {}; false positive rate will be higher", count, expectedSize);
+	if (file != null) save(file);
+	return true;
+    }
+
+    /**
+     * Returns query of the page of the scan following a URI.
+     *
+     * @param last last URI of the previous page, or null for the first page
+     * @return page query
+     */
+    protected Query getScanQuery(String last)
+    {
+	String continuation = last == null ? "" : " && STR(?s) > " + FmtUtils.stringForNode(Node.createLiteral(last));
+	return QueryFactory.create(String.format(SCAN_QUERY, continuation, pageSize));
+    }
+
+    /**
+     * Retrieves a page of the scan from the remote endpoint using the bulk workload. The upstream cache is
+     * bypassed, so that the scan does not evict cached responses.
+     *
+     * @param pageQuery page query
+     * @return page results
+     */
+    protected ResultSetRewindable loadPage(final Query pageQuery)
+    {
+	return UpstreamScheduler.get().execute(UpstreamScheduler.Workload.BULK, new Callable<ResultSetRewindable>()
+	{
+	    @Override
+	    public ResultSetRewindable call()
+	    {
+		QueryExecution qex = DataManager.get().sparqlService(endpointURI, pageQuery, null);
+		try
+		{
+		    return ResultSetFactory.copyResults(qex.execSelect());
+		}
+		finally
+		{
+		    qex.close();
+		}
+	    }
+	}, DataManager.get().getTimeout(pageQuery));
+    }
+
+    /**
+     * Loads index from file, unless it was written with different size parameters.
+     *
+     * @return filter, or null if the file cannot be used
+     */
+    private BloomFilter load(File file)
+    {
+	try
+	{
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	    try
+	    {
+		if (!in.readUTF().equals(HEADER) || in.readInt() != FILE_VERSION) throw new IOException("Not a subject index file");
+		BloomFilter loaded = BloomFilter.readFrom(in);
+
+		BloomFilter expected = new BloomFilter(expectedSize, falsePositiveRate);
+		if (loaded.getBits() != expected.getBits() || loaded.getHashes() != expected.getHashes())
+		{
+		    if (log.isDebugEnabled()) log.debug("Subject index file {} has different size parameters, rebuilding", file);
+		    return null;
+		}
+		if (!replay(getJournalFile(), loaded)) return null;
+		if (log.isDebugEnabled()) log.debug("Loaded subject index from file {}", file);
+		return loaded;
+	    }
+	    finally
+	    {
+		in.close();
+	    }
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not load subject index from file " + file + ", rebuilding", ex);
+	    return null;
+	}
+    }
+
+    /**
+     * Adds URIs recorded in the journal to a loaded filter.
+     *
+     * @return false if the index was invalidated after the file had been saved
+     */
+    private boolean replay(File journalFile, BloomFilter loaded) throws IOException
+    {
+	if (!journalFile.exists()) return true;
+
+	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+	try
+	{
+	    String line;
+	    while ((line = reader.readLine()) != null)
+	    {
+		if (line.equals(INVALIDATED))
+		{
+		    if (log.isDebugEnabled()) log.debug("Subject index file {} was invalidated, rebuilding", file);
+		    return false;
+		}
+		if (line.startsWith(SUBJECT + " ")) loaded.add(line.substring(SUBJECT.length() + 1));
+	    }
+	    return true;
+	}
+	finally
+	{
+	    reader.close();
+	}
+    }
+
+    /**
+     * Opens journal of URIs added since the file was saved.
+     *
+     * @param append true to keep the existing records, false to truncate the journal
+     */
+    private synchronized void openJournal(boolean append)
+    {
+	try
+	{
+	    if (journal != null) journal.close();
+	    journal = new OutputStreamWriter(new FileOutputStream(getJournalFile(), append), "UTF-8");
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not open subject index journal " + getJournalFile(), ex);
+	    journal = null;
+	}
+    }
+
+    private synchronized void append(String record)
+    {
+	if (journal == null) return;
+
+	try
+	{
+	    journal.write(record + "\n");
+	    journal.flush();
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not write subject index journal " + getJournalFile(), ex);
+	}
+    }
+
+    /**
+     * Saves current index to file and truncates the journal. The file is replaced atomically, so that a crash
+     * cannot leave it incomplete. Journal records are appended under the same lock, so none of them can be
+     * truncated without being saved in the file.
+     */
+    private synchronized void save(File file)
+    {
+	BloomFilter current = filter;
+	if (current == null) return;
+
+	File temp = new File(file.getPath() + ".tmp");
+	try
+	{
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+	    try
+	    {
+		out.writeUTF(HEADER);
+		out.writeInt(FILE_VERSION);
+		current.writeTo(out);
+	    }
+	    finally
+	    {
+		out.close();
+	    }
+	    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) throw new IOException("Could not rename " + temp + " to " + file);
+	    openJournal(false);
+	}
+	catch (IOException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Could not save subject index to file " + file, ex);
+	}
+    }
+
+    /**
+     * Waits until a rebuild is requested or due.
+     *
+     * @return true if the index has to be rebuilt, false if the index has been closed
+     */
+    private synchronized boolean await()
+    {
+	long interval = isReady() ? refreshInterval : (refreshInterval > 0 ? Math.min(refreshInterval, RETRY_INTERVAL) : RETRY_INTERVAL);
+	long deadline = interval > 0 ? System.currentTimeMillis() + interval : Long.MAX_VALUE;
+	while (!shutdown && !rebuild)
+	{
+	    long remaining = deadline - System.currentTimeMillis();
+	    if (remaining <= 0) return true;
+
+	    try
+	    {
+		wait(remaining);
+	    }
+	    catch (InterruptedException ex)
+	    {
+		return false;
+	    }
+	}
+	rebuild = false;
+	return !shutdown;
+    }
+
+    /**
+     * Stops the builder thread and saves the index, including URIs added since it was built.
+     */
+    public void close()
+    {
+	if (!isEnabled()) return;
+
+	synchronized (this)
+	{
+	    shutdown = true;
+	    notifyAll();
+	}
+	if (file == null) return;
+
+	save(file);
+	synchronized (this)
+	{
+	    try
+	    {
+		if (journal != null) journal.close();
+	    }
+	    catch (IOException ex)
+	    {
+		if (log.isWarnEnabled()) log.warn("Could not close subject index journal " + getJournalFile(), ex);
+	    }
+	    journal = null;
+	}
+    }
+
+    public File getFile()
+    {
+	return file;
+    }
+
+    private File getJournalFile()
+    {
+	return new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    private class Builder implements Runnable
+    {
+
+	@Override
+	public void run()
+	{
+	    boolean build = !isReady();
+	    while (!shutdown)
+	    {
+		if (build)
+		    try
+		    {
+			build();
+		    }
+		    catch (RuntimeException ex)
+		    {
+			if (log.isWarnEnabled()) log.warn("Could not build subject index of endpoint " + endpointURI, ex);
+		    }
+		build = await();
+	    }
+	}
+
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of upstream responses (RDF models, result sets and Graph Store graphs).
+ * Entries are fresh for a fixed time-to-live and evicted in least-recently-used order once the cache is full.
+ * Each entry keeps the <code>ETag</code> and <code>Last-Modified</code> validators of the upstream response, so that
+ * an expired entry can be revalidated with a conditional request instead of being downloaded again.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see <a href="http://tools.ietf.org/html/rfc2616#section-13.3">HTTP/1.1 Validation Model</a>
+ */
+public class UpstreamCache
+{
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final long ttl;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Creates cache.
+     *
+     * @param ttl time-to-live of entries (in milliseconds)
+     * @param maxSize maximum number of entries
+     */
+    public UpstreamCache(long ttl, final int maxSize)
+    {
+	if (ttl < 0) throw new IllegalArgumentException("Time-to-live must be non-negative");
+	if (maxSize <= 0) throw new IllegalArgumentException("Maximum size must be positive");
+
+	this.ttl = ttl;
+	this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+	{
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+	    {
+		return size() > maxSize;
+	    }
+	};
+    }
+
+    /**
+     * Returns cached entry, fresh or expired.
+     *
+     * @param key cache key
+     * @return entry or null if none
+     */
+    public synchronized Entry get(String key)
+    {
+	return entries.get(key);
+    }
+
+    /**
+     * Stores value with its validators. The entry is fresh for the time-to-live of the cache.
+     *
+     * @param key cache key
+     * @param value cached value, which must not be modified afterwards
+     * @param etag value of <code>ETag</code> response header, or null if none
+     * @param lastModified value of <code>Last-Modified</code> response header, or null if none
+     * @return new entry
+     */
+    public Entry put(String key, Object value, String etag, String lastModified)
+    {
+	Entry entry = new Entry(value, etag, lastModified, System.currentTimeMillis() + ttl);
+	synchronized (this)
+	{
+	    entries.put(key, entry);
+	}
+	return entry;
+    }
+
+    /**
+     * Extends lifetime of an entry which the upstream has confirmed as not modified.
+     *
+     * @param entry cache entry
+     */
+    public void revalidated(Entry entry)
+    {
+	entry.expires = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * Removes entry, e.g. after the upstream resource has been modified.
+     *
+     * @param key cache key
+     */
+    public synchronized void invalidate(String key)
+    {
+	entries.remove(key);
+    }
+
+    /**
+     * Removes all entries whose keys start with a prefix, e.g. all query results after the dataset has changed.
+     *
+     * @param prefix cache key prefix
+     */
+    public synchronized void invalidatePrefix(String prefix)
+    {
+	Iterator<String> it = entries.keySet().iterator();
+	while (it.hasNext())
+	    if (it.next().startsWith(prefix)) it.remove();
+    }
+
+    public synchronized void clear()
+    {
+	entries.clear();
+    }
+
+    public synchronized int size()
+    {
+	return entries.size();
+    }
+
+    public long getTTL()
+    {
+	return ttl;
+    }
+
+    /**
+     * Cached value with validators and expiration time.
+     */
+    public static class Entry
+    {
+	private final Object value;
+	private final String etag, lastModified;
+	private volatile long expires;
+
+	Entry(Object value, String etag, String lastModified, long expires)
+	{
+	    this.value = value;
+	    this.etag = etag;
+	    this.lastModified = lastModified;
+	    this.expires = expires;
+	}
+
+	public Object getValue()
+	{
+	    return value;
+	}
+
+	public String getETag()
+	{
+	    return etag;
+	}
+
+	public String getLastModified()
+	{
+	    return lastModified;
+	}
+
+	public boolean isFresh()
+	{
+	    return System.currentTimeMillis() < expires;
+	}
+
+	/**
+	 * Checks whether the entry can be revalidated using a conditional request.
+	 *
+	 * @return true if entry has at least one validator
+	 */
+	public boolean hasValidators()
+	{
+	    return etag != null || lastModified != null;
+	}
+
+    }
+
+}
@@ -0,0 +1,500 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.graphity.server.slowquery.QueryProfile;
+import org.graphity.server.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules calls to remote SPARQL endpoints and Graph Stores on a bounded pool of worker threads.
+ * Calls are classified by workload, each of which has its own bounded queue and a cap on the number of workers
+ * it can occupy. Idle workers pick the next call from the workload which has received the least service relative
+ * to its weight (stride scheduling), so that bulk transfers cannot starve interactive requests of upstream
+ * connections.
+ * Upstream calls must not touch request-scoped JAX-RS objects, as they are executed on worker threads.
+ * Calls can be executed with a deadline, after which they are cancelled and their upstream requests are aborted
+ * using hooks registered with {@link #onCancel(Runnable)}.
+ * The trace span and query profile of the submitting thread remain current while the call is executed.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ * @see DataManager
+ */
+public class UpstreamScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(UpstreamScheduler.class);
+
+    /** Default number of worker threads */
+    public static final int DEFAULT_WORKERS = 16;
+    /** Default capacity of each workload queue */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+    /** "504 Gateway Timeout" (not defined in JAX-RS 1.1 Response.Status) */
+    public static final int GATEWAY_TIMEOUT = 504;
+
+    /** Call executed by the current worker thread */
+    private static final ThreadLocal<Call<?>> currentCall = new ThreadLocal<Call<?>>();
+
+    /**
+     * Kinds of upstream calls.
+     * Weight determines share of the workers under contention, while share determines the maximum fraction of
+     * the workers a workload can occupy at any time.
+     */
+    public enum Workload
+    {
+	/** Interactive Linked Data requests (<code>DESCRIBE</code> of resources) */
+	INTERACTIVE(8, 1.0),
+	/** Ad-hoc queries submitted to the SPARQL endpoint */
+	QUERY(4, 0.5),
+	/** Graph Store transfers and expensive queries */
+	BULK(2, 0.25);
+
+	private final int weight;
+	private final double share;
+
+	Workload(int weight, double share)
+	{
+	    this.weight = weight;
+	    this.share = share;
+	}
+
+	public int getWeight()
+	{
+	    return weight;
+	}
+
+	public double getShare()
+	{
+	    return share;
+	}
+    }
+
+    private static UpstreamScheduler s_instance = null;
+
+    private final int workers;
+    private final int queueSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<Workload, Lane> lanes = new EnumMap<Workload, Lane>(Workload.class);
+    private volatile boolean shutdown = false;
+
+    /**
+     * Returns global scheduler
+     *
+     * @return singleton instance
+     */
+    public static synchronized UpstreamScheduler get()
+    {
+	if (s_instance == null)
+	{
+	    s_instance = new UpstreamScheduler(DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+	    if (log.isDebugEnabled()) log.debug("new UpstreamScheduler({}, {})", DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+	}
+	return s_instance;
+    }
+
+    /**
+     * Replaces global scheduler. The previous instance is shut down.
+     *
+     * @param scheduler new scheduler
+     */
+    public static synchronized void set(UpstreamScheduler scheduler)
+    {
+	if (scheduler == null) throw new IllegalArgumentException("UpstreamScheduler cannot be null");
+
+	if (s_instance != null) s_instance.shutdown();
+	s_instance = scheduler;
+    }
+
+    /**
+     * Creates scheduler and starts its worker threads.
+     *
+     * @param workers total number of worker threads, i.e. concurrent upstream calls
+     * @param queueSize capacity of each workload queue
+     */
+    public UpstreamScheduler(int workers, int queueSize)
+    {
+	if (workers < 1) throw new IllegalArgumentException("Number of workers must be positive");
+	if (queueSize < 0) throw new IllegalArgumentException("Queue size cannot be negative");
+
+	this.workers = workers;
+	this.queueSize = queueSize;
+	for (Workload workload : Workload.values())
+	    lanes.put(workload, new Lane(workload, Math.max(1, (int)Math.ceil(workers * workload.getShare()))));
+
+	for (int i = 0; i < workers; i++)
+	{
+	    Thread thread = new Thread(new Worker(), "UpstreamScheduler-" + i);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+    }
+
+    /**
+     * Queues an upstream call.
+     *
+     * @param <T> result type
+     * @param workload kind of the call
+     * @param task the call
+     * @return future result
+     * @throws RejectedExecutionException if the workload queue is full
+     */
+    public <T> Future<T> submit(Workload workload, Callable<T> task)
+    {
+	if (workload == null) throw new IllegalArgumentException("Workload cannot be null");
+	if (task == null) throw new IllegalArgumentException("Task cannot be null");
+
+	Call<T> future = new Call<T>(QueryProfile.wrap(Tracer.get().wrap(task)));
+	lock.lock();
+	try
+	{
+	    if (shutdown) throw new RejectedExecutionException("UpstreamScheduler has been shut down");
+
+	    Lane lane = lanes.get(workload);
+	    if (lane.queue.size() >= getQueueSize())
+		throw new RejectedExecutionException("Queue of " + workload + " workload is full");
+
+	    if (lane.queue.isEmpty() && lane.running == 0) lane.pass = Math.max(lane.pass, getMinPass());
+	    lane.queue.add(future);
+	    available.signal();
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+
+	return future;
+    }
+
+    /**
+     * Executes an upstream call and waits for its result without a deadline.
+     *
+     * @param <T> result type
+     * @param workload kind of the call
+     * @param task the call
+     * @return result of the call
+     * @see #execute(Workload, Callable, long)
+     */
+    public <T> T execute(Workload workload, Callable<T> task)
+    {
+	return execute(workload, task, -1);
+    }
+
+    /**
+     * Executes an upstream call and waits for its result.
+     * Unchecked exceptions thrown by the call are rethrown in the calling thread.
+     * If the deadline passes or the waiting thread is interrupted, the call is cancelled, which aborts its upstream
+     * request and releases the worker.
+     *
+     * @param <T> result type
+     * @param workload kind of the call
+     * @param task the call
+     * @param timeout deadline in milliseconds (including time spent in the queue), or -1 for no deadline
+     * @return result of the call
+     * @throws WebApplicationException with <code>503 Service Unavailable</code> status if the call cannot be
+     * queued or the waiting thread is interrupted, and with <code>504 Gateway Timeout</code> if the deadline passes
+     */
+    public <T> T execute(Workload workload, Callable<T> task, long timeout)
+    {
+	Future<T> future;
+	try
+	{
+	    future = submit(workload, task);
+	}
+	catch (RejectedExecutionException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Upstream call rejected: {}", ex.getMessage());
+	    throw new WebApplicationException(ex, Response.status(Response.Status.SERVICE_UNAVAILABLE).
+		    header("Retry-After", 1).
+		    type(MediaType.TEXT_PLAIN_TYPE).
+		    entity("Server is overloaded, please retry later").
+		    build());
+	}
+
+	try
+	{
+	    if (timeout < 0) return future.get();
+	    return future.get(timeout, TimeUnit.MILLISECONDS);
+	}
+	catch (TimeoutException ex)
+	{
+	    if (log.isWarnEnabled()) log.warn("Upstream call of {} workload cancelled after {} ms", workload, timeout);
+	    future.cancel(true);
+	    throw new WebApplicationException(ex, Response.status(GATEWAY_TIMEOUT).
+		    type(MediaType.TEXT_PLAIN_TYPE).
+		    entity("Upstream request timed out after " + timeout + " ms").
+		    build());
+	}
+	catch (CancellationException ex)
+	{
+	    throw new WebApplicationException(ex, Response.Status.SERVICE_UNAVAILABLE);
+	}
+	catch (InterruptedException ex)
+	{
+	    future.cancel(true);
+	    Thread.currentThread().interrupt();
+	    throw new WebApplicationException(ex, Response.Status.SERVICE_UNAVAILABLE);
+	}
+	catch (ExecutionException ex)
+	{
+	    if (ex.getCause() instanceof RuntimeException) throw (RuntimeException)ex.getCause();
+	    if (ex.getCause() instanceof Error) throw (Error)ex.getCause();
+	    throw new WebApplicationException(ex.getCause());
+	}
+    }
+
+    /**
+     * Registers a hook that aborts upstream work of the call executed by the current thread, should the call be
+     * cancelled. Does nothing if the current thread is not a worker of a scheduler.
+     * If the call is already cancelled, the hook is run immediately.
+     *
+     * @param hook abort action, e.g. closing a connection
+     */
+    public static void onCancel(Runnable hook)
+    {
+	Call<?> call = currentCall.get();
+	if (call != null) call.addHook(hook);
+    }
+
+    /**
+     * Stops worker threads. Queued calls are cancelled.
+     */
+    public void shutdown()
+    {
+	lock.lock();
+	try
+	{
+	    shutdown = true;
+	    for (Lane lane : lanes.values())
+		while (!lane.queue.isEmpty()) lane.queue.poll().cancel(false);
+	    available.signalAll();
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns number of queued calls of a workload.
+     *
+     * @param workload kind of the calls
+     * @return queue length
+     */
+    public int getQueued(Workload workload)
+    {
+	lock.lock();
+	try
+	{
+	    return lanes.get(workload).queue.size();
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns number of running calls of a workload.
+     *
+     * @param workload kind of the calls
+     * @return number of occupied workers
+     */
+    public int getRunning(Workload workload)
+    {
+	lock.lock();
+	try
+	{
+	    return lanes.get(workload).running;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public int getWorkers()
+    {
+	return workers;
+    }
+
+    public int getQueueSize()
+    {
+	return queueSize;
+    }
+
+    private long getMinPass()
+    {
+	long min = Long.MAX_VALUE;
+	for (Lane lane : lanes.values())
+	    if (!lane.queue.isEmpty() || lane.running > 0) min = Math.min(min, lane.pass);
+
+	return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * Selects the lane that should run next. Must be called while holding the lock.
+     *
+     * @return lane with the lowest pass value among those that have queued calls and free workers, or null
+     */
+    private Lane next()
+    {
+	Lane next = null;
+	for (Lane lane : lanes.values())
+	    if (!lane.queue.isEmpty() && lane.running < lane.maxRunning &&
+		    (next == null || lane.pass < next.pass))
+		next = lane;
+
+	return next;
+    }
+
+    private static class Lane
+    {
+	/** Pass increment of a workload with weight 1; heavier workloads advance proportionally slower */
+	static final long STRIDE = 1 << 20;
+
+	final Workload workload;
+	final int maxRunning;
+	final Queue<Call<?>> queue = new ArrayDeque<Call<?>>();
+	int running = 0;
+	long pass = 0;
+
+	Lane(Workload workload, int maxRunning)
+	{
+	    this.workload = workload;
+	    this.maxRunning = maxRunning;
+	}
+    }
+
+    private static class Call<T> extends FutureTask<T>
+    {
+	private final List<Runnable> hooks = new ArrayList<Runnable>();
+
+	Call(Callable<T> callable)
+	{
+	    super(callable);
+	}
+
+	void addHook(Runnable hook)
+	{
+	    synchronized (hooks)
+	    {
+		if (!isCancelled())
+		{
+		    hooks.add(hook);
+		    return;
+		}
+	    }
+	    hook.run();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+	    boolean cancelled = super.cancel(mayInterruptIfRunning);
+	    if (cancelled)
+	    {
+		List<Runnable> cancelHooks;
+		synchronized (hooks)
+		{
+		    cancelHooks = new ArrayList<Runnable>(hooks);
+		    hooks.clear();
+		}
+		for (Runnable hook : cancelHooks)
+		    try
+		    {
+			hook.run();
+		    }
+		    catch (RuntimeException ex)
+		    {
+			if (log.isWarnEnabled()) log.warn("Cancel hook failed", ex);
+		    }
+	    }
+	    return cancelled;
+	}
+    }
+
+    private class Worker implements Runnable
+    {
+	@Override
+	public void run()
+	{
+	    while (true)
+	    {
+		Lane lane;
+		Call<?> task;
+
+		lock.lock();
+		try
+		{
+		    while (!shutdown && next() == null) available.awaitUninterruptibly();
+		    if (shutdown) return;
+
+		    lane = next();
+		    task = lane.queue.poll();
+		    lane.running++;
+		    lane.pass += Lane.STRIDE / lane.workload.getWeight();
+		}
+		finally
+		{
+		    lock.unlock();
+		}
+
+		currentCall.set(task);
+		try
+		{
+		    task.run();
+		}
+		finally
+		{
+		    currentCall.remove();
+		    Thread.interrupted(); // clear interrupt caused by cancellation
+		    lock.lock();
+		    try
+		    {
+			lane.running--;
+			available.signal();
+		    }
+		    finally
+		    {
+			lock.unlock();
+		    }
+		}
+	    }
+	}
+    }
+
+}
@@ -53,4 +53,82 @@ public class GS
 
     public static final DatatypeProperty resultLimit = m_model.createDatatypeProperty( NS + "resultLimit" );
 
+    public static final DatatypeProperty maxQueryCost = m_model.createDatatypeProperty( NS + "maxQueryCost" );
+
+    public static final DatatypeProperty requestRate = m_model.createDatatypeProperty( NS + "requestRate" );
+
+    public static final DatatypeProperty requestBurst = m_model.createDatatypeProperty( NS + "requestBurst" );
+
+    public static final DatatypeProperty maxConcurrentRequests = m_model.createDatatypeProperty( NS + "maxConcurrentRequests" );
+
+    public static final DatatypeProperty sparqlRequestRate = m_model.createDatatypeProperty( NS + "sparqlRequestRate" );
+
+    public static final DatatypeProperty sparqlRequestBurst = m_model.createDatatypeProperty( NS + "sparqlRequestBurst" );
+
+    public static final DatatypeProperty sparqlMaxConcurrentRequests = m_model.createDatatypeProperty( NS + "sparqlMaxConcurrentRequests" );
+
+    public static final DatatypeProperty upstreamWorkers = m_model.createDatatypeProperty( NS + "upstreamWorkers" );
+
+    public static final DatatypeProperty upstreamQueueSize = m_model.createDatatypeProperty( NS + "upstreamQueueSize" );
+
+    public static final DatatypeProperty lowPriorityQueryCost = m_model.createDatatypeProperty( NS + "lowPriorityQueryCost" );
+
+    public static final DatatypeProperty selectTimeout = m_model.createDatatypeProperty( NS + "selectTimeout" );
+
+    public static final DatatypeProperty constructTimeout = m_model.createDatatypeProperty( NS + "constructTimeout" );
+
+    public static final DatatypeProperty describeTimeout = m_model.createDatatypeProperty( NS + "describeTimeout" );
+
+    public static final DatatypeProperty describeIncoming = m_model.createDatatypeProperty( NS + "describeIncoming" );
+
+    public static final DatatypeProperty askTimeout = m_model.createDatatypeProperty( NS + "askTimeout" );
+
+    public static final DatatypeProperty updateTimeout = m_model.createDatatypeProperty( NS + "updateTimeout" );
+
+    public static final DatatypeProperty pageSize = m_model.createDatatypeProperty( NS + "pageSize" );
+
+    public static final DatatypeProperty spanExporter = m_model.createDatatypeProperty( NS + "spanExporter" );
+
+    public static final DatatypeProperty slowQueryThreshold = m_model.createDatatypeProperty( NS + "slowQueryThreshold" );
+
+    public static final DatatypeProperty slowQueryQueueSize = m_model.createDatatypeProperty( NS + "slowQueryQueueSize" );
+
+    public static final DatatypeProperty graphStoreMediaType = m_model.createDatatypeProperty( NS + "graphStoreMediaType" );
+
+    public static final DatatypeProperty compressionThreshold = m_model.createDatatypeProperty( NS + "compressionThreshold" );
+
+    public static final DatatypeProperty compressionLevel = m_model.createDatatypeProperty( NS + "compressionLevel" );
+
+    public static final DatatypeProperty maxDecodedRequestSize = m_model.createDatatypeProperty( NS + "maxDecodedRequestSize" );
+
+    public static final DatatypeProperty upstreamCacheTTL = m_model.createDatatypeProperty( NS + "upstreamCacheTTL" );
+
+    public static final DatatypeProperty upstreamCacheSize = m_model.createDatatypeProperty( NS + "upstreamCacheSize" );
+
+    public static final DatatypeProperty negativeCacheTTL = m_model.createDatatypeProperty( NS + "negativeCacheTTL" );
+
+    public static final DatatypeProperty negativeCacheSize = m_model.createDatatypeProperty( NS + "negativeCacheSize" );
+
+    public static final DatatypeProperty describeBatchWindow = m_model.createDatatypeProperty( NS + "describeBatchWindow" );
+
+    public static final DatatypeProperty describeBatchSize = m_model.createDatatypeProperty( NS + "describeBatchSize" );
+
+    public static final DatatypeProperty graphVersioning = m_model.createDatatypeProperty( NS + "graphVersioning" );
+
+    public static final DatatypeProperty graphVersionFile = m_model.createDatatypeProperty( NS + "graphVersionFile" );
+
+    public static final DatatypeProperty subjectIndex = m_model.createDatatypeProperty( NS + "subjectIndex" );
+
+    public static final DatatypeProperty subjectIndexFile = m_model.createDatatypeProperty( NS + "subjectIndexFile" );
+
+    public static final DatatypeProperty subjectIndexSize = m_model.createDatatypeProperty( NS + "subjectIndexSize" );
+
+    public static final DatatypeProperty subjectIndexFalsePositiveRate = m_model.createDatatypeProperty( NS + "subjectIndexFalsePositiveRate" );
+
+    public static final DatatypeProperty subjectIndexRefresh = m_model.createDatatypeProperty( NS + "subjectIndexRefresh" );
+
+    public static final DatatypeProperty batchMaxResources = m_model.createDatatypeProperty( NS + "batchMaxResources" );
+
+    public static final DatatypeProperty metrics = m_model.createDatatypeProperty( NS + "metrics" );
+
 }
\ No newline at end of file
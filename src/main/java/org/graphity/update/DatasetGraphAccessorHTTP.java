@@ -39,6 +39,13 @@ import org.apache.jena.fuseki.*;
 import org.apache.jena.fuseki.http.DatasetGraphAccessor;
 import org.apache.jena.fuseki.http.HttpSC;
 import org.apache.jena.fuseki.migrate.UnmodifiableGraph;
+import org.graphity.io.BinaryRDF;
+import org.graphity.io.BinaryRDFReader;
+import org.graphity.io.ContentCoding;
+import org.graphity.query.QueryEngineHTTP;
+import org.graphity.server.util.UpstreamScheduler;
+import org.graphity.server.trace.Span;
+import org.graphity.server.trace.Tracer;
 import org.openjena.atlas.io.IO;
 import org.openjena.atlas.lib.Sink;
 import org.openjena.atlas.logging.Log;
@@ -54,6 +61,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This class is borrowed from Fuseki and adds authentication to SPARQL Graph Protocol accessor.
+ * Requests are traced as spans, and the trace context is forwarded in the <code>traceparent</code> header.
+ * Binary RDF is preferred when reading graphs, and can be used for uploads instead of N-Triples.
+ * Graphs are requested with <code>gzip</code> or <code>deflate</code> compression and decompressed while parsed.
+ * GET requests can be made conditional using validators of a previously retrieved graph.
  * 
  * @see <a href="http://jena.apache.org/documentation/javadoc/fuseki/org/apache/jena/fuseki/http/DatasetGraphAccessorHTTP.html">DatasetGraphAccessorHTTP</a>
  */
@@ -70,6 +81,11 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
     private String user = null;
     private char[] password = null;
     private Context context = null ;
+    private String uploadMediaType = WebContent.contentTypeNTriples ;
+    private String ifNoneMatch = null, ifModifiedSince = null ;
+    private String etag = null, lastModified = null ;
+    private boolean notModified = false ;
+    private long readTimeout = -1, connectTimeout = -1 ;
 
     /** Create a DatasetUpdater for the remote URL */
     public DatasetGraphAccessorHTTP(String remote)
@@ -220,9 +236,35 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
         return h.getValue() ;
     }
 
-    private Graph exec(String targetStr, Graph graphToSend, HttpUriRequest httpRequest, boolean processBody)
+    private Graph exec(String targetStr, Graph graphToSend, final HttpUriRequest httpRequest, boolean processBody)
     {
-        DefaultHttpClient httpclient = new DefaultHttpClient(httpParams) ;
+        DefaultHttpClient httpclient = new DefaultHttpClient(httpParams.copy()) ;
+        if ( readTimeout >= 0 )
+            HttpConnectionParams.setSoTimeout(httpclient.getParams(), (int)readTimeout) ;
+        if ( connectTimeout >= 0 )
+            HttpConnectionParams.setConnectionTimeout(httpclient.getParams(), (int)connectTimeout) ;
+        // a cancelled upstream call must not keep its worker blocked on the socket
+        UpstreamScheduler.onCancel(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                httpRequest.abort() ;
+            }
+        }) ;
+        Span span = Tracer.get().start("http.request").
+            setAttribute("http.method", httpRequest.getMethod()).
+            setAttribute("http.url", targetStr) ;
+        httpRequest.addHeader(Tracer.TRACEPARENT, span.getTraceparent()) ;
+        if ( processBody )
+        {
+            httpRequest.addHeader(HttpNames.hAccept, QueryEngineHTTP.MODEL_ACCEPT) ;
+            httpRequest.addHeader("Accept-Encoding", ContentCoding.ACCEPT_ENCODING) ;
+            if ( ifNoneMatch != null )
+                httpRequest.addHeader("If-None-Match", ifNoneMatch) ;
+            if ( ifModifiedSince != null )
+                httpRequest.addHeader("If-Modified-Since", ifModifiedSince) ;
+        }
         
         if ( graphToSend != null )
         {
@@ -230,12 +272,19 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
             // Impedence mismatch - is there a better way?
             ByteArrayOutputStream out = new ByteArrayOutputStream() ;
             Model model = ModelFactory.createModelForGraph(graphToSend) ;
-            model.write(out, WebContent.langNTriples) ;
+            boolean binary = BinaryRDF.CONTENT_TYPE.equals(uploadMediaType) ;
+            try {
+                if ( binary )
+                    BinaryRDF.write(model, out) ;
+                else
+                    model.write(out, WebContent.langNTriples) ;
+            } catch (IOException ex) { throw new FusekiException(ex) ; }
             byte[] bytes = out.toByteArray() ;
-            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray()) ;
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes) ;
             InputStreamEntity reqEntity = new InputStreamEntity(in, bytes.length) ;
-            reqEntity.setContentType(WebContent.contentTypeNTriples) ;
-            reqEntity.setContentEncoding(HTTP.UTF_8) ;
+            reqEntity.setContentType(binary ? BinaryRDF.CONTENT_TYPE : WebContent.contentTypeNTriples) ;
+            if ( ! binary )
+                reqEntity.setContentEncoding(HTTP.UTF_8) ;
             HttpEntity entity = reqEntity ;
             ((HttpEntityEnclosingRequestBase)httpRequest).setEntity(entity) ;
         }
@@ -252,8 +301,16 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
             HttpResponse response = httpclient.execute(httpRequest) ;
 
             int responseCode = response.getStatusLine().getStatusCode() ;
+            span.setAttribute("http.status_code", responseCode) ;
             String responseMessage = response.getStatusLine().getReasonPhrase() ;
             
+            if ( responseCode == HttpSC.NOT_MODIFIED_304 && processBody && ( ifNoneMatch != null || ifModifiedSince != null ) )
+            {
+                // cached graph is still valid
+                notModified = true ;
+                return null ;
+            }
+
             if ( HttpSC.isRedirection(responseCode) )
                 // Not implemented yet.
                 throw FusekiRequestException.create(responseCode, responseMessage) ;
@@ -271,6 +328,8 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
                 if (log.isWarnEnabled()) Log.warn(this, "Unexpected status code") ;
                 throw FusekiRequestException.create(responseCode, responseMessage) ;
             }
+            etag = getHeader(response, "ETag") ;
+            lastModified = getHeader(response, "Last-Modified") ;
             
             // May not have a body.
             String ct = getHeader(response, HttpNames.hContentType) ;
@@ -302,7 +361,8 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
 
             if (entity != null)
             {
-                InputStream instream = entity.getContent() ;
+                // decompressed while it is parsed
+                InputStream instream = ContentCoding.decode(entity.getContent(), getHeader(response, "Content-Encoding")) ;
 //                String mimeType = ConNeg.chooseContentType(request, rdfOffer, ConNeg.acceptRDFXML).getAcceptType() ;
 //                String charset = ConNeg.chooseCharset(request, charsetOffer, ConNeg.charsetUTF8).getAcceptType() ;
                 ts = new TypedInputStream(instream, contentType, charset) ;
@@ -316,12 +376,14 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
             return graph2 ;
         } catch (IOException ex)
         {
+            span.setError(ex) ;
             httpRequest.abort() ;
             return null ;
         }
 	catch (AuthenticationException ex)
         {
 	    if (log.isWarnEnabled()) log.warn("Not authenticated", ex);
+            span.setError(ex) ;
 
             httpRequest.abort() ;
             return null ;
@@ -329,6 +391,7 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
 	finally
 	{
             httpclient.getConnectionManager().shutdown();
+            span.end() ;
 	}
     }
 
@@ -340,6 +403,12 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
         // Either it's XML and so the XML parser deals with it, or the 
         // language determines the charset and the parsers offer InputStreams.   
        
+        if ( BinaryRDF.CONTENT_TYPE.equals(ts.getMediaType()) )
+        {
+            readBinaryGraph(graph, ts) ;
+            return ;
+        }
+
         Lang lang = FusekiLib.langFromContentType(ts.getMediaType()) ;
         if ( lang == null )
             throw new FusekiException("Unknown lang for "+ts.getMediaType()) ;
@@ -350,10 +419,79 @@ public class DatasetGraphAccessorHTTP implements DatasetGraphAccessor
             parser = LangRDFXML.create(ts, base, base, null, sink) ;
         else
             parser = RiotReader.createParserTriples(ts, lang, base, sink) ;
-        parser.parse() ;
+        Span span = Tracer.get().start("rdf.parse").setAttribute("mediaType", ts.getMediaType()) ;
+        try {
+            parser.parse() ;
+            span.setAttribute("triples", graph.size()) ;
+        } finally {
+            span.end() ;
+        }
         IO.close(ts) ;
     }
     
+    private void readBinaryGraph(Graph graph, TypedInputStream ts)
+    {
+        Span span = Tracer.get().start("rdf.parse").setAttribute("mediaType", ts.getMediaType()) ;
+        try {
+            new BinaryRDFReader(ts).read(graph) ;
+            span.setAttribute("triples", graph.size()) ;
+        } catch (IOException ex)
+        {
+            span.setError(ex) ;
+            throw new FusekiException(ex) ;
+        } finally {
+            span.end() ;
+        }
+        IO.close(ts) ;
+    }
+
+    /**
+     * Sets media type of uploaded graphs. Only N-Triples (default) and binary RDF are supported.
+     * 
+     * @param mediaType media type
+     * @see org.graphity.io.BinaryRDF
+     */
+    public void setUploadMediaType(String mediaType)
+    {
+        if ( ! WebContent.contentTypeNTriples.equals(mediaType) && ! BinaryRDF.CONTENT_TYPE.equals(mediaType) )
+            throw new IllegalArgumentException("Unsupported upload media type: "+mediaType) ;
+        this.uploadMediaType = mediaType ;
+    }
+
+    /**
+     * Makes subsequent GET requests conditional, using validators of a previously retrieved graph.
+     * If the graph has not been modified, <code>httpGet()</code> returns null and {@link #isNotModified()} is true.
+     * 
+     * @param etag value for <code>If-None-Match</code> header, or null if none
+     * @param lastModified value for <code>If-Modified-Since</code> header, or null if none
+     */
+    public void setValidators(String etag, String lastModified)
+    {
+        this.ifNoneMatch = etag ;
+        this.ifModifiedSince = lastModified ;
+    }
+
+    /**
+     * Sets socket read and connection timeouts of the requests.
+     * 
+     * @param readTimeout read timeout in milliseconds, or -1 for no timeout
+     * @param connectTimeout connection timeout in milliseconds, or -1 for no timeout
+     */
+    public void setTimeout(long readTimeout, long connectTimeout)
+    {
+        this.readTimeout = readTimeout < 0 ? -1 : readTimeout ;
+        this.connectTimeout = connectTimeout < 0 ? -1 : connectTimeout ;
+    }
+
+    /** <code>ETag</code> validator of the last retrieved graph, or null if none */
+    public String getETag()                           { return etag ; }
+
+    /** <code>Last-Modified</code> validator of the last retrieved graph, or null if none */
+    public String getLastModified()                   { return lastModified ; }
+
+    /** Whether the last conditional GET request was answered with <code>304 Not Modified</code> */
+    public boolean isNotModified()                    { return notModified ; }
+
     public void setBasicAuthentication(String user, char[] password)
     {
 	this.user = user ;
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 /**
  * SPARQL Update implementation of Fuseki DatasetAccessor
+ * Versions of the written graphs are bumped in the graph version registry by <code>UpdateProcessRemote</code>.
  * @see <a href="http://jena.apache.org/documentation/javadoc/fuseki/org/apache/jena/fuseki/DatasetAccessor.html">Fuseki's DatasetAccessor</a>
  * @author Martynas Jusevičius <martynas@graphity.org>
  */
@@ -39,6 +40,7 @@ public class SPARQLAdapter implements org.apache.jena.fuseki.DatasetAccessor
     private static final Logger log = LoggerFactory.getLogger(SPARQLAdapter.class);
     
     private String endpoint = null;
+    private boolean compressRequests = false;
     
     /**
      * Constructs adapter based on SPARQL endpoint URI.
@@ -57,6 +59,20 @@ public class SPARQLAdapter implements org.apache.jena.fuseki.DatasetAccessor
     {
 	return endpoint;
     }
+
+    public boolean isCompressRequests()
+    {
+	return compressRequests;
+    }
+
+    /**
+     * Enables gzip compression of SPARQL Update requests sent by this adapter.
+     * @param	compressRequests    true to compress, if the endpoint accepts compressed requests
+     */
+    public void setCompressRequests(boolean compressRequests)
+    {
+	this.compressRequests = compressRequests;
+    }
     
     /**
      * Adds RDF Model to the default graph.
@@ -75,6 +91,7 @@ public class SPARQLAdapter implements org.apache.jena.fuseki.DatasetAccessor
 	    "}", Syntax.syntaxSPARQL_11);
 
 	UpdateProcessRemote process = new UpdateProcessRemote(request, getEndpoint());
+	process.setCompressRequest(isCompressRequests());
 	process.execute();	
     }
     
@@ -97,6 +114,7 @@ public class SPARQLAdapter implements org.apache.jena.fuseki.DatasetAccessor
 	    "} }");
 
 	UpdateProcessRemote process = new UpdateProcessRemote(request, getEndpoint());
+	process.setCompressRequest(isCompressRequests());
 	process.execute();
     }
     
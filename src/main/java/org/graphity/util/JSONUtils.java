@@ -0,0 +1,67 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.util;
+
+/**
+ * Helpers for writing JSON by hand, used by line-oriented log writers and the streaming JSON-LD writer.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class JSONUtils
+{
+    /**
+     * Appends string as a quoted and escaped JSON string.
+     *
+     * @param sb target
+     * @param value string value
+     * @return the target
+     */
+    public static StringBuilder quote(StringBuilder sb, String value)
+    {
+	sb.append('"');
+	for (int i = 0; i < value.length(); i++)
+	{
+	    char c = value.charAt(i);
+	    switch (c)
+	    {
+		case '"': sb.append("\\\""); break;
+		case '\\': sb.append("\\\\"); break;
+		case '\n': sb.append("\\n"); break;
+		case '\r': sb.append("\\r"); break;
+		case '\t': sb.append("\\t"); break;
+		default:
+		    if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+		    else sb.append(c);
+	    }
+	}
+	return sb.append('"');
+    }
+
+    /**
+     * Appends a <code>"key":"value"</code> member.
+     *
+     * @param sb target
+     * @param key member name
+     * @param value string value
+     * @return the target
+     */
+    public static StringBuilder append(StringBuilder sb, String key, String value)
+    {
+	return quote(quote(sb, key).append(':'), value);
+    }
+
+}
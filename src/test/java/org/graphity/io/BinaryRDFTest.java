@@ -0,0 +1,187 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Round-trip tests of binary RDF, which check that writer and reader keep their dictionaries in step.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class BinaryRDFTest
+{
+    private static final String NS = "http://example.org/ns#";
+
+    private static Node uri(String localName)
+    {
+	return Node.createURI(NS + localName);
+    }
+
+    private static byte[] write(Model model) throws IOException
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	BinaryRDF.write(model, out);
+	return out.toByteArray();
+    }
+
+    private static Model read(byte[] bytes) throws IOException
+    {
+	return BinaryRDF.read(ModelFactory.createDefaultModel(), new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertRoundTrip(Model model) throws IOException
+    {
+	Model result = read(write(model));
+	assertEquals(model.size(), result.size());
+	assertTrue(model.isIsomorphicWith(result));
+    }
+
+    private static String repeat(char c, int length)
+    {
+	char[] chars = new char[length];
+	Arrays.fill(chars, c);
+	return new String(chars);
+    }
+
+    @Test
+    public void testEmptyGraph() throws IOException
+    {
+	Model model = ModelFactory.createDefaultModel();
+	byte[] bytes = write(model);
+
+	assertEquals(BinaryRDF.MAGIC.length + 2, bytes.length); // header and end record
+	assertTrue(read(bytes).isEmpty());
+    }
+
+    @Test
+    public void testIRIs() throws IOException
+    {
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(uri("a"), uri("p"), uri("b")));
+	model.getGraph().add(Triple.create(uri("b"), uri("p"), uri("a")));
+	model.getGraph().add(Triple.create(uri("a"), Node.createURI("http://example.org/other/q"), Node.createURI("http://example.org/other/")));
+	model.getGraph().add(Triple.create(Node.createURI("http://example.org/no-namespace"), uri("p"), uri("a")));
+
+	assertRoundTrip(model);
+    }
+
+    @Test
+    public void testBlankNodes() throws IOException
+    {
+	Node first = Node.createAnon(), second = Node.createAnon();
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(uri("a"), uri("p"), first));
+	model.getGraph().add(Triple.create(first, uri("p"), second));
+	model.getGraph().add(Triple.create(second, uri("p"), first));
+	model.getGraph().add(Triple.create(second, uri("q"), uri("a")));
+
+	assertRoundTrip(model);
+    }
+
+    @Test
+    public void testLiterals() throws IOException
+    {
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(uri("a"), uri("plain"), Node.createLiteral("plain")));
+	model.getGraph().add(Triple.create(uri("a"), uri("lang"), Node.createLiteral("chat", "fr", null)));
+	model.getGraph().add(Triple.create(uri("a"), uri("lang"), Node.createLiteral("chat", "en-GB", null)));
+	model.getGraph().add(Triple.create(uri("a"), uri("typed"), Node.createLiteral("1", null, XSDDatatype.XSDinteger)));
+	model.getGraph().add(Triple.create(uri("b"), uri("typed"), Node.createLiteral("1", null, XSDDatatype.XSDinteger)));
+	model.getGraph().add(Triple.create(uri("b"), uri("typed"), Node.createLiteral("2013-01-01", null, XSDDatatype.XSDdate)));
+	model.getGraph().add(Triple.create(uri("b"), uri("typed"), Node.createLiteral("x", null, XSDDatatype.XSDstring)));
+	model.getGraph().add(Triple.create(uri("b"), uri("unicode"), Node.createLiteral("Jusevičius é中")));
+
+	Model result = read(write(model));
+	assertTrue(model.isIsomorphicWith(result));
+	assertTrue(result.getGraph().contains(uri("a"), uri("lang"), Node.createLiteral("chat", "fr", null)));
+	assertTrue(result.getGraph().contains(uri("b"), uri("typed"), Node.createLiteral("1", null, XSDDatatype.XSDinteger)));
+    }
+
+    @Test
+    public void testLongLiterals() throws IOException
+    {
+	// longer than the dictionary limit, and than the reader and writer buffers
+	Node dictionaryLimit = Node.createLiteral(repeat('a', BinaryRDF.MAX_LITERAL_LENGTH + 1));
+	Node bufferSize = Node.createLiteral(repeat('b', 20000), null, XSDDatatype.XSDstring);
+	Node lang = Node.createLiteral(repeat('c', BinaryRDF.MAX_LITERAL_LENGTH * 2), "en", null);
+
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(uri("a"), uri("p"), dictionaryLimit));
+	model.getGraph().add(Triple.create(uri("b"), uri("p"), dictionaryLimit));
+	model.getGraph().add(Triple.create(uri("a"), uri("q"), bufferSize));
+	model.getGraph().add(Triple.create(uri("b"), uri("q"), bufferSize));
+	model.getGraph().add(Triple.create(uri("a"), uri("r"), lang));
+	// terms introduced after the long literals are only resolved correctly if both dictionaries skipped them
+	model.getGraph().add(Triple.create(uri("c"), uri("r"), Node.createLiteral("short")));
+	model.getGraph().add(Triple.create(uri("c"), uri("p"), Node.createLiteral("short")));
+
+	Model result = read(write(model));
+	assertEquals(model.size(), result.size());
+	assertTrue(model.isIsomorphicWith(result));
+	assertTrue(result.getGraph().contains(uri("b"), uri("q"), bufferSize));
+    }
+
+    @Test
+    public void testTruncatedStream() throws IOException
+    {
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(uri("a"), uri("p"), Node.createLiteral("chat", "fr", null)));
+	model.getGraph().add(Triple.create(Node.createAnon(), uri("p"), Node.createLiteral("1", null, XSDDatatype.XSDinteger)));
+	model.getGraph().add(Triple.create(uri("a"), uri("q"), Node.createLiteral(repeat('a', BinaryRDF.MAX_LITERAL_LENGTH + 1))));
+	byte[] bytes = write(model);
+
+	for (int length = 0; length < bytes.length; length++)
+	    try
+	    {
+		read(Arrays.copyOf(bytes, length));
+		fail("Reading binary RDF truncated to " + length + " of " + bytes.length + " bytes must fail");
+	    }
+	    catch (IOException ex)
+	    {
+		// expected
+	    }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidMagic() throws IOException
+    {
+	read("<http://example.org/ns#a> <http://example.org/ns#p> <http://example.org/ns#b> .".getBytes("UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidReference() throws IOException
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(BinaryRDF.MAGIC);
+	out.write(BinaryRDF.VERSION);
+	out.write(BinaryRDF.TRIPLE);
+	out.write(1); // refers to a term that has not been introduced
+	read(out.toByteArray());
+    }
+
+}
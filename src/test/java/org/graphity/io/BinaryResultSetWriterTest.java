@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.io;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests of binary SPARQL results, which share the term encoding of binary RDF.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class BinaryResultSetWriterTest
+{
+    private static final String NS = "http://example.org/ns#";
+
+    private static byte[] write(Model model, String queryString) throws IOException
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	QueryExecution qex = QueryExecutionFactory.create(queryString, model);
+	try
+	{
+	    BinaryResultSetWriter.write(qex.execSelect(), out);
+	}
+	finally
+	{
+	    qex.close();
+	}
+	return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) throws IOException
+    {
+	byte[] bytes = value.getBytes("UTF-8");
+	out.write(bytes.length); // shorter than 128 bytes
+	out.write(bytes);
+    }
+
+    @Test
+    public void testEmptyResults() throws IOException
+    {
+	ByteArrayOutputStream expected = new ByteArrayOutputStream();
+	expected.write(BinaryRDF.MAGIC);
+	expected.write(BinaryRDF.VERSION);
+	expected.write(BinaryRDF.VARIABLES);
+	expected.write(1);
+	writeString(expected, "x");
+	expected.write(BinaryRDF.END);
+
+	assertArrayEquals(expected.toByteArray(), write(ModelFactory.createDefaultModel(), "SELECT ?x WHERE { ?x ?p ?o }"));
+    }
+
+    @Test
+    public void testRows() throws IOException
+    {
+	Model model = ModelFactory.createDefaultModel();
+	model.getGraph().add(Triple.create(Node.createURI(NS + "a"), Node.createURI(NS + "p"), Node.createLiteral("1")));
+	model.getGraph().add(Triple.create(Node.createURI(NS + "a"), Node.createURI(NS + "p"), Node.createLiteral("2")));
+
+	ByteArrayOutputStream expected = new ByteArrayOutputStream();
+	expected.write(BinaryRDF.MAGIC);
+	expected.write(BinaryRDF.VERSION);
+	expected.write(BinaryRDF.VARIABLES);
+	expected.write(2);
+	writeString(expected, "x");
+	writeString(expected, "y");
+	// first row introduces the IRI and its namespace
+	expected.write(BinaryRDF.ROW);
+	expected.write(0);
+	expected.write(BinaryRDF.IRI);
+	expected.write(0);
+	writeString(expected, NS);
+	writeString(expected, "a");
+	expected.write(0);
+	expected.write(BinaryRDF.UNDEF);
+	// second row refers to it, as unbound values are not added to the dictionary
+	expected.write(BinaryRDF.ROW);
+	expected.write(1);
+	expected.write(0);
+	expected.write(BinaryRDF.UNDEF);
+	expected.write(BinaryRDF.END);
+
+	assertArrayEquals(expected.toByteArray(), write(model, "SELECT ?x ?y WHERE { ?x <" + NS + "p> ?o }"));
+    }
+
+}
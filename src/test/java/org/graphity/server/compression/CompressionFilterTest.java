@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2013 Martynas Jusevičius <martynas@graphity.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.graphity.server.compression;
+
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.WebApplicationFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.WebApplicationException;
+import org.graphity.server.provider.ModelProvider;
+import org.graphity.server.vocabulary.GS;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests of decompression of request entities by the compression filter.
+ *
+ * @author Martynas Jusevičius <martynas@graphity.org>
+ */
+public class CompressionFilterTest
+{
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private static CompressionFilter createFilter()
+    {
+	CompressionFilter filter = new CompressionFilter();
+	filter.resourceConfig = new DefaultResourceConfig();
+	filter.resourceConfig.getProperties().put(GS.maxDecodedRequestSize.getURI(), String.valueOf(MAX_SIZE));
+	return filter;
+    }
+
+    /**
+     * Creates gzip-compressed N-Triples graph of the given number of triples.
+     */
+    private static byte[] gzipTriples(int count) throws IOException
+    {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+	for (int i = 0; i < count; i++)
+	    gzip.write(("<http://example.org/resource/" + i + "> <http://example.org/ns#p> \"value\" .\n").getBytes("UTF-8"));
+	gzip.close();
+	return bytes.toByteArray();
+    }
+
+    private static ContainerRequest post(byte[] entity)
+    {
+	InBoundHeaders headers = new InBoundHeaders();
+	headers.putSingle(CompressionFilter.CONTENT_ENCODING, CompressionFilter.GZIP);
+	headers.putSingle("Content-Type", "application/n-triples");
+	return new ContainerRequest(WebApplicationFactory.createWebApplication(), "POST", URI.create("http://localhost/"), URI.create("http://localhost/service"),
+		headers, new ByteArrayInputStream(entity));
+    }
+
+    private static void readModel(InputStream in) throws IOException
+    {
+	new ModelProvider().readFrom(null, null, null, javax.ws.rs.core.MediaType.valueOf("application/n-triples"), null, in);
+    }
+
+    @Test
+    public void testDecodedEntityBelowLimit() throws IOException
+    {
+	ContainerRequest request = createFilter().filter(post(gzipTriples(10)));
+
+	assertNull(request.getHeaderValue(CompressionFilter.CONTENT_ENCODING));
+	readModel(request.getEntityInputStream());
+    }
+
+    @Test
+    public void testDecodedEntityAboveLimit() throws IOException
+    {
+	byte[] entity = gzipTriples(10000); // about 700 KB decoded
+	assertTrue("Compressed entity must be below the limit", entity.length < MAX_SIZE);
+
+	ContainerRequest request = createFilter().filter(post(entity));
+	try
+	{
+	    readModel(request.getEntityInputStream());
+	    fail("Decoded entity larger than " + MAX_SIZE + " bytes must be rejected");
+	}
+	catch (WebApplicationException ex)
+	{
+	    assertEquals(LimitedInputStream.REQUEST_ENTITY_TOO_LARGE, ex.getResponse().getStatus());
+	}
+    }
+
+}